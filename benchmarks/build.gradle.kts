@@ -0,0 +1,126 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.jetbrains.kotlin.gradle.tasks.KotlinCompile
+
+plugins {
+    id("com.android.library")
+    id("com.ncorti.ktfmt.gradle")
+    kotlin("android")
+    kotlin("kapt")
+    kotlin("plugin.serialization")
+}
+
+ktfmt {
+    googleStyle()
+}
+
+// The benchmarks run on the JVM, alongside the unit tests of this (otherwise empty) library.
+android {
+    namespace = "com.google.ai.client.generativeai.benchmarks"
+    compileSdk = 34
+
+    defaultConfig {
+        minSdk = 21
+    }
+
+    compileOptions {
+        sourceCompatibility = JavaVersion.VERSION_17
+        targetCompatibility = JavaVersion.VERSION_17
+    }
+    kotlinOptions {
+        jvmTarget = "17"
+    }
+
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
+
+    // Recorded responses to benchmark with
+    sourceSets["test"].resources.srcDir("../common/src/test/resources")
+}
+
+// The benchmarks measure internals of the SDK, so its projects are friends of their compilation,
+// the way a project is of its own tests.
+tasks.withType<KotlinCompile>().configureEach {
+    val sdkBuildDirs =
+        listOf(":common", ":generativeai").map { project(it).layout.buildDirectory.get().asFile }
+    friendPaths.from(libraries.filter { file -> sdkBuildDirs.any { file.startsWith(it) } })
+}
+
+dependencies {
+    val jmhVersion = "1.37"
+    val ktorVersion = "2.3.2"
+
+    testImplementation(project(":common"))
+    testImplementation(project(":generativeai"))
+    testImplementation("io.ktor:ktor-io:$ktorVersion")
+    testImplementation("io.ktor:ktor-server-core:$ktorVersion")
+    testImplementation("io.ktor:ktor-server-cio:$ktorVersion")
+    testImplementation("org.jetbrains.kotlinx:kotlinx-serialization-json:1.5.1")
+    testImplementation("org.jetbrains.kotlinx:kotlinx-coroutines-core:1.7.3")
+    testImplementation("org.openjdk.jmh:jmh-core:$jmhVersion")
+    kaptTest("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+/**
+ * Runs the benchmarks, with the GC profiler reporting the allocations of each operation.
+ *
+ * ```
+ * ./gradlew :benchmarks:jmh
+ * ./gradlew :benchmarks:jmh -Pjmh.include=StreamDecoding -Pjmh.args="-f 1 -wi 2 -i 3"
+ * ```
+ *
+ * Results are also written to `build/reports/jmh/results.json`.
+ */
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks, reporting allocations through the GC profiler."
+
+    // Everything the unit tests run with: the compiled benchmarks, and the code JMH generates for them
+    classpath = tasks.named<Test>("testReleaseUnitTest").get().classpath
+    mainClass.set("org.openjdk.jmh.Main")
+
+    val results = layout.buildDirectory.file("reports/jmh/results.json")
+    outputs.file(results)
+    outputs.upToDateWhen { false }
+    doFirst { results.get().asFile.parentFile.mkdirs() }
+
+    args("-prof", "gc", "-rf", "json", "-rff", results.get().asFile.path)
+    providers.gradleProperty("jmh.args").orNull?.let { args(it.split(" ")) }
+    args(providers.gradleProperty("jmh.include").getOrElse(".*"))
+}
+
+/**
+ * Runs concurrent clients against a local mock of the API, and reports how the SDK holds up.
+ *
+ * ```
+ * ./gradlew :benchmarks:loadTest
+ * ./gradlew :benchmarks:loadTest -Ploadtest.args="clients=64 durationSeconds=30 serverErrorRate=0.05"
+ * ```
+ *
+ * See `LoadDriver.kt` for all the supported arguments.
+ */
+tasks.register<JavaExec>("loadTest") {
+    group = "benchmark"
+    description = "Runs a load test of the SDK against a local mock of the API."
+
+    classpath = tasks.named<Test>("testReleaseUnitTest").get().classpath
+    mainClass.set("com.google.ai.client.generativeai.benchmarks.loadtest.LoadDriverKt")
+
+    outputs.upToDateWhen { false }
+    providers.gradleProperty("loadtest.args").orNull?.let { args(it.split(" ")) }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.benchmarks
+
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.internal.util.toInternal
+import com.google.ai.client.generativeai.internal.util.toPublic
+import com.google.ai.client.generativeai.type.Content
+import com.google.ai.client.generativeai.type.GenerateContentResponse
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Conversions between the public types and the serializable ones of the common module: responses
+ * with `toPublic`, and contents created by the app (which have no cached serializable form) with
+ * `toInternal`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class ConversionBenchmark {
+  @Param("1", "10", "100") @JvmField var parts = 0
+
+  private lateinit var response: GenerateContentResponse_Common
+  private lateinit var content: Content
+
+  @Setup
+  fun setUp() {
+    response = responseOf(partsOf(parts))
+    content = Content("user", response.candidates!!.single().content!!.toPublic().parts)
+  }
+
+  @Benchmark fun toPublic(): GenerateContentResponse = response.toPublic()
+
+  @Benchmark fun toInternal(): Content_Common = content.toInternal()
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.benchmarks
+
+import com.google.ai.client.generativeai.common.GenerateContentRequest
+import com.google.ai.client.generativeai.common.GenerateContentResponse
+import com.google.ai.client.generativeai.common.client.FunctionDeclaration
+import com.google.ai.client.generativeai.common.client.GenerationConfig
+import com.google.ai.client.generativeai.common.client.Schema
+import com.google.ai.client.generativeai.common.client.Tool
+import com.google.ai.client.generativeai.common.server.Candidate
+import com.google.ai.client.generativeai.common.server.FinishReason
+import com.google.ai.client.generativeai.common.server.HarmProbability
+import com.google.ai.client.generativeai.common.server.SafetyRating
+import com.google.ai.client.generativeai.common.shared.Content
+import com.google.ai.client.generativeai.common.shared.FunctionCall
+import com.google.ai.client.generativeai.common.shared.FunctionCallPart
+import com.google.ai.client.generativeai.common.shared.HarmBlockThreshold
+import com.google.ai.client.generativeai.common.shared.HarmCategory
+import com.google.ai.client.generativeai.common.shared.Part
+import com.google.ai.client.generativeai.common.shared.SafetySetting
+import com.google.ai.client.generativeai.common.shared.TextPart
+
+/*
+ * Inputs shared by the benchmarks, shaped like what the SDK sends and receives in a typical chat.
+ *
+ * The benchmarks exercise internal parts of the SDK, hence the suppressions above.
+ */
+
+private const val SENTENCE = "The quick brown fox jumps over the lazy dog, and keeps on running. "
+
+/** A chat of [turns] exchanges, with the settings and tools a typical app would send along. */
+internal fun conversation(turns: Int) =
+  GenerateContentRequest(
+    model = "models/gemini-1.5-pro",
+    contents =
+      List(turns * 2) {
+        if (it % 2 == 0) Content("user", listOf(TextPart("Question $it. ${SENTENCE.repeat(2)}")))
+        else Content("model", listOf(TextPart(SENTENCE.repeat(8))))
+      },
+    safetySettings =
+      HarmCategory.values().drop(1).map { SafetySetting(it, HarmBlockThreshold.BLOCK_ONLY_HIGH) },
+    generationConfig = GenerationConfig(0.7f, 0.9f, 40, 1, 1024, null),
+    tools =
+      listOf(
+        Tool(
+          functionDeclarations =
+            List(4) {
+              FunctionDeclaration(
+                "function$it",
+                "Does something useful with the provided arguments",
+                Schema(
+                  type = "OBJECT",
+                  properties =
+                    mapOf(
+                      "query" to Schema(type = "STRING", description = "What to look for"),
+                      "limit" to Schema(type = "INTEGER", description = "How many results"),
+                    ),
+                  required = listOf("query"),
+                ),
+              )
+            }
+        )
+      ),
+  )
+
+/** A response with a single candidate made of the provided [parts]. */
+internal fun responseOf(parts: List<Part>) =
+  GenerateContentResponse(
+    candidates =
+      listOf(
+        Candidate(
+          content = Content("model", parts),
+          finishReason = FinishReason.STOP,
+          safetyRatings =
+            HarmCategory.values().drop(1).map { SafetyRating(it, HarmProbability.NEGLIGIBLE) },
+        )
+      )
+  )
+
+/** [count] parts, mostly text, with the occasional function call. */
+internal fun partsOf(count: Int): List<Part> =
+  List(count) {
+    if (it % 5 == 4) FunctionCallPart(FunctionCall("function$it", mapOf("query" to "cats")))
+    else TextPart(SENTENCE)
+  }
+
+/** Reads a recorded response from the golden files of the common module. */
+internal fun goldenFile(path: String): ByteArray =
+  checkNotNull(object {}.javaClass.classLoader?.getResourceAsStream("golden-files/$path")) {
+      "Missing golden file: $path"
+    }
+    .use { it.readBytes() }
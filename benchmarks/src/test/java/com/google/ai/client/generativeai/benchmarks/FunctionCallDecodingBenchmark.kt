@@ -0,0 +1,85 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.benchmarks
+
+import com.google.ai.client.generativeai.common.JSON
+import com.google.ai.client.generativeai.common.shared.Part
+import com.google.ai.client.generativeai.internal.util.toPublic
+import com.google.ai.client.generativeai.type.FunctionArguments
+import com.google.ai.client.generativeai.type.FunctionCallPart
+import com.google.ai.client.generativeai.type.Schema
+import com.google.ai.client.generativeai.type.defineFunction
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Decoding of the arguments of a function call, as done on every iteration of a tool loop: through
+ * the compiled binder of the declaration, and by hand through [Schema.fromString].
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class FunctionCallDecodingBenchmark {
+  private val city = Schema.str("city", "The city to forecast")
+  private val days = Schema.int("days", "How many days to forecast")
+  private val threshold = Schema.double("threshold", "The chance of rain worth reporting")
+  private val hours = Schema.arr("hours", "The hours to forecast", Schema.long("hour", "An hour"))
+  private val units =
+    Schema.obj("units", "The units to use", Schema.bool("metric", "Whether to use metric units"))
+  private val forecast =
+    defineFunction(
+      "forecast",
+      "Gets the weather forecast",
+      listOf(city, days, threshold, hours, units),
+      listOf("city"),
+    )
+
+  private lateinit var call: FunctionCallPart
+
+  @Setup
+  fun setUp() {
+    val part =
+      """{"functionCall":{"name":"forecast","args":{"city":"Paris","days":3,"threshold":0.5,""" +
+        """"hours":[6,12,18],"units":{"metric":true}}}}"""
+    call = JSON.decodeFromString<Part>(part).toPublic() as FunctionCallPart
+  }
+
+  @Benchmark fun decodeArguments(): FunctionArguments = forecast.decodeArguments(call)
+
+  @Benchmark
+  fun fromString(blackhole: Blackhole) {
+    val args = call.args!!
+    blackhole.consume(city.fromString(args["city"]))
+    blackhole.consume(days.fromString(args["days"]))
+    blackhole.consume(threshold.fromString(args["threshold"]))
+    blackhole.consume(hours.fromString(args["hours"])?.map { it.toLong() })
+    blackhole.consume(units.fromString(args["units"])?.getBoolean("metric"))
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.benchmarks
+
+import com.google.ai.client.generativeai.common.JSON
+import com.google.ai.client.generativeai.common.server.SafetyRating
+import com.google.ai.client.generativeai.common.shared.Part
+import com.google.ai.client.generativeai.common.shared.PartSerializer
+import com.google.ai.client.generativeai.common.util.FirstOrdinalSerializer
+import java.util.concurrent.TimeUnit
+import kotlinx.serialization.builtins.ListSerializer
+import kotlinx.serialization.encodeToString
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Decoding of the polymorphic [Part]s through the [PartSerializer], and of the enums of
+ * [SafetyRating]s through the [FirstOrdinalSerializer].
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class SerializerBenchmark {
+  @Param("1", "10", "100") @JvmField var size = 0
+
+  private val partsSerializer = ListSerializer(PartSerializer)
+  private val ratingsSerializer = ListSerializer(SafetyRating.serializer())
+  private lateinit var parts: String
+  private lateinit var ratings: String
+
+  @Setup
+  fun setUp() {
+    parts = JSON.encodeToString(partsSerializer, partsOf(size))
+    val candidate = responseOf(emptyList()).candidates!!.single()
+    ratings = JSON.encodeToString(List(size) { candidate.safetyRatings!! }.flatten())
+  }
+
+  @Benchmark fun parts(): List<Part> = JSON.decodeFromString(partsSerializer, parts)
+
+  @Benchmark
+  fun safetyRatings(): List<SafetyRating> = JSON.decodeFromString(ratingsSerializer, ratings)
+}
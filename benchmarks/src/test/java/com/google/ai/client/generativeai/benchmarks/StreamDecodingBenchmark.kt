@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.benchmarks
+
+import com.google.ai.client.generativeai.common.GenerateContentResponse
+import com.google.ai.client.generativeai.common.JSON
+import com.google.ai.client.generativeai.common.util.decodeToFlow
+import io.ktor.utils.io.ByteReadChannel
+import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Decoding of recorded server-sent event streams into [GenerateContentResponse]s, as done for every
+ * streamed request.
+ *
+ * Each recording is repeated [repeats] times, to also cover streams of many more chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class StreamDecodingBenchmark {
+  @Param("success-basic-reply-short.txt", "success-basic-reply-long.txt", "success-citations.txt")
+  @JvmField
+  var recording = ""
+
+  @Param("1", "100") @JvmField var repeats = 0
+
+  private lateinit var stream: ByteArray
+
+  @Setup
+  fun setUp() {
+    val events = goldenFile("streaming/$recording").decodeToString().trimEnd() + "\r\n\r\n"
+    stream = events.repeat(repeats).encodeToByteArray()
+  }
+
+  @Benchmark
+  fun decodeToFlow(blackhole: Blackhole) = runBlocking {
+    JSON.decodeToFlow<GenerateContentResponse>(ByteReadChannel(stream)).collect {
+      blackhole.consume(it)
+    }
+  }
+}
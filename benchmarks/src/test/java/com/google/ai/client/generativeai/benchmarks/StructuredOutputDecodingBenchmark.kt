@@ -0,0 +1,89 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.benchmarks
+
+import com.google.ai.client.generativeai.internal.util.ObjectBinder
+import com.google.ai.client.generativeai.type.FunctionArguments
+import com.google.ai.client.generativeai.type.ResponseDecoder
+import com.google.ai.client.generativeai.type.Schema
+import java.util.concurrent.TimeUnit
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonElement
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+
+/**
+ * Decoding of a structured response of fifty recipes: in a single pass through the compiled
+ * [ResponseDecoder], and by parsing it into a [JsonElement] tree before validating that tree
+ * against the schema.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class StructuredOutputDecodingBenchmark {
+  private val schema =
+    Schema.obj(
+      "response",
+      "The recipes",
+      Schema.arr(
+        "recipes",
+        "The recipes",
+        Schema.obj(
+          "recipe",
+          "A recipe",
+          Schema.str("name", "The name of the recipe"),
+          Schema.int("minutes", "How long the recipe takes"),
+          Schema.double("rating", "How well the recipe was rated"),
+          Schema.bool("vegetarian", "Whether the recipe is vegetarian"),
+          Schema.enum("course", "The course", listOf("STARTER", "MAIN", "DESSERT")),
+          Schema.arr("ingredients", "The ingredients", Schema.str("ingredient", "An ingredient")),
+        ),
+      ),
+    )
+  private val decoder = ResponseDecoder(schema)
+  private val binder = ObjectBinder(schema.properties!!.values, schema.required.orEmpty())
+
+  private lateinit var text: String
+
+  @Setup
+  fun setUp() {
+    val courses = listOf("STARTER", "MAIN", "DESSERT")
+    text =
+      (0 until 50).joinToString(",\n", "{\"recipes\": [\n", "\n]}") {
+        """  {"name": "Recipe $it", "minutes": ${10 + it}, "rating": ${it % 5}.5, """ +
+          """"vegetarian": ${it % 2 == 0}, "course": "${courses[it % 3]}", """ +
+          """"ingredients": ["flour", "eggs", "butter \"salted\"", "sugar"]}"""
+      }
+  }
+
+  @Benchmark fun compiledDecoder(): Any? = decoder.decode(text)
+
+  @Benchmark fun parseThenValidate(): FunctionArguments = binder.bind(Json.parseToJsonElement(text))
+
+  @Benchmark fun parseOnly(): JsonElement = Json.parseToJsonElement(text)
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.benchmarks.loadtest
+
+import com.google.ai.client.generativeai.GenerativeModel
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.EndpointSet
+import com.google.ai.client.generativeai.common.RequestOptions
+import java.lang.management.ManagementFactory
+import kotlin.system.exitProcess
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+
+/*
+ * The clients talk to the SDK through its public API, but are pointed at the local endpoint
+ * through internal constructors, hence the suppression above.
+ */
+
+/** Which requests the [LoadDriver] clients make. */
+enum class LoadMode {
+  GENERATE,
+  STREAM,
+  COUNT_TOKENS,
+  /** Each client goes through the other modes in turn. */
+  MIXED,
+}
+
+/**
+ * How the [LoadDriver] puts load on the SDK.
+ *
+ * @property clients how many clients make requests concurrently, each with its own
+ *   [GenerativeModel]
+ * @property duration how long the clients keep making requests for
+ * @property mode which requests the clients make
+ * @property requestTimeout how long each request may take before it fails
+ */
+class LoadTestConfig(
+  val clients: Int = 16,
+  val duration: Duration = 10.seconds,
+  val mode: LoadMode = LoadMode.STREAM,
+  val requestTimeout: Duration = 30.seconds,
+) {
+  init {
+    require(clients > 0) { "clients must be positive, but was $clients" }
+    require(duration.isPositive()) { "duration must be positive, but was $duration" }
+  }
+}
+
+/**
+ * The outcome of a load test.
+ *
+ * @property requests how many requests completed successfully
+ * @property errors how many requests failed, by the type of the exception they failed with
+ * @property elapsed how long the test took, from the first request to the last response
+ * @property throughput how many requests completed successfully per second
+ * @property latencyP50 the median time a successful request took to complete
+ * @property latencyP99 the 99th percentile of the time a successful request took to complete
+ * @property timeToFirstTokenP50 the median time a successful stream took to emit its first response
+ * @property timeToFirstTokenP99 the 99th percentile of the time a successful stream took to emit
+ *   its first response
+ * @property peakHeapBytes the most heap in use at any of the samples taken during the test
+ * @property peakThreads the most live threads at any of the samples taken during the test
+ * @property threadsBefore how many threads were live before the clients were created
+ * @property threadsAfter how many threads were live once all the requests completed
+ * @property endpointRequests how many requests were sent to each endpoint, when there are several
+ */
+class LoadReport(
+  val requests: Int,
+  val errors: Map<String, Int>,
+  val elapsed: Duration,
+  val latencyP50: Duration,
+  val latencyP99: Duration,
+  val timeToFirstTokenP50: Duration?,
+  val timeToFirstTokenP99: Duration?,
+  val peakHeapBytes: Long,
+  val peakThreads: Int,
+  val threadsBefore: Int,
+  val threadsAfter: Int,
+  val endpointRequests: Map<String, Long>,
+) {
+  val throughput: Double
+    get() = requests / (elapsed.inWholeMilliseconds / 1000.0)
+
+  override fun toString() = buildString {
+    appendLine("Requests:           $requests in $elapsed (%.1f/s)".format(throughput))
+    appendLine(
+      "Errors:             ${errors.values.sum()} ${errors.takeIf { it.isNotEmpty() } ?: ""}"
+    )
+    appendLine("Latency:            p50 $latencyP50, p99 $latencyP99")
+    if (timeToFirstTokenP50 != null) {
+      appendLine("Time to first token: p50 $timeToFirstTokenP50, p99 $timeToFirstTokenP99")
+    }
+    appendLine("Peak heap:          ${peakHeapBytes / (1024 * 1024)} MB")
+    append("Threads:            $threadsBefore before, $peakThreads peak, $threadsAfter after")
+    if (endpointRequests.isNotEmpty()) {
+      append("\nEndpoints:          $endpointRequests")
+    }
+  }
+}
+
+/**
+ * Runs concurrent [GenerativeModel] clients against [endpoints], such as the ones of
+ * [MockGeminiServer]s, and measures how the SDK holds up.
+ *
+ * Every client makes requests one after the other for the [LoadTestConfig.duration], while the heap
+ * and thread usage of the process are sampled in the background. With several endpoints, the
+ * clients share an [EndpointSet] that routes their requests between them.
+ */
+class LoadDriver(private val endpoints: List<String>, private val config: LoadTestConfig) {
+  private val endpointSet = endpoints.takeIf { it.size > 1 }?.let { EndpointSet(it) }
+
+  fun run(): LoadReport =
+    runBlocking(Dispatchers.Default) {
+      val threads = ManagementFactory.getThreadMXBean()
+      val threadsBefore = threads.threadCount
+      val models = List(config.clients) { createModel() }
+      val results = List(config.clients) { ClientResults() }
+      var peakHeap = 0L
+      var peakThreads = 0
+
+      val start = System.nanoTime()
+      coroutineScope {
+        val sampler = launch {
+          val runtime = Runtime.getRuntime()
+          while (isActive) {
+            peakHeap = maxOf(peakHeap, runtime.totalMemory() - runtime.freeMemory())
+            peakThreads = maxOf(peakThreads, threads.threadCount)
+            delay(SAMPLE_INTERVAL)
+          }
+        }
+        models
+          .mapIndexed { index, model ->
+            launch {
+              var iteration = 0
+              while (elapsedSince(start) < config.duration) {
+                results[index].runRequest(model, modeOf(iteration++))
+              }
+            }
+          }
+          .forEach { it.join() }
+        sampler.cancel()
+      }
+      val elapsed = elapsedSince(start)
+
+      val latencies = results.flatMap { it.latencies }.sorted()
+      val timesToFirstToken = results.flatMap { it.timesToFirstToken }.sorted()
+      LoadReport(
+        requests = latencies.size,
+        errors =
+          results
+            .flatMap { it.errors.entries }
+            .groupBy({ it.key }, { it.value })
+            .mapValues { it.value.sum() },
+        elapsed = elapsed,
+        latencyP50 = latencies.percentile(0.5),
+        latencyP99 = latencies.percentile(0.99),
+        timeToFirstTokenP50 = timesToFirstToken.ifEmpty { null }?.percentile(0.5),
+        timeToFirstTokenP99 = timesToFirstToken.ifEmpty { null }?.percentile(0.99),
+        peakHeapBytes = peakHeap,
+        peakThreads = peakThreads,
+        threadsBefore = threadsBefore,
+        threadsAfter = threads.threadCount,
+        endpointRequests = endpointSet?.status?.associate { it.url to it.requests }.orEmpty(),
+      )
+    }
+
+  private fun createModel(): GenerativeModel {
+    val options =
+      RequestOptions(
+        config.requestTimeout,
+        endpoint = endpoints.first(),
+        apiVersion = API_VERSION,
+        endpoints = endpointSet,
+      )
+    return GenerativeModel(
+      modelName = MODEL_NAME,
+      apiKey = API_KEY,
+      controller = APIController(API_KEY, MODEL_NAME, options, "genai-android/loadtest"),
+    )
+  }
+
+  private fun modeOf(iteration: Int) =
+    if (config.mode == LoadMode.MIXED) LoadMode.values()[iteration % 3] else config.mode
+
+  /** What a single client measured; only ever touched by that client. */
+  private class ClientResults {
+    val latencies = mutableListOf<Duration>()
+    val timesToFirstToken = mutableListOf<Duration>()
+    val errors = mutableMapOf<String, Int>()
+
+    suspend fun runRequest(model: GenerativeModel, mode: LoadMode) {
+      val start = System.nanoTime()
+      try {
+        when (mode) {
+          LoadMode.GENERATE -> model.generateContent(PROMPT)
+          LoadMode.COUNT_TOKENS -> model.countTokens(PROMPT)
+          else -> {
+            var first = true
+            model
+              .generateContentStream(PROMPT)
+              .onEach {
+                if (first) timesToFirstToken.add(elapsedSince(start))
+                first = false
+              }
+              .collect()
+          }
+        }
+        latencies.add(elapsedSince(start))
+      } catch (e: Exception) {
+        errors.merge(e.javaClass.simpleName, 1, Int::plus)
+      }
+    }
+  }
+
+  companion object {
+    private const val API_KEY = "load-test"
+    private const val API_VERSION = "v1beta"
+    private const val MODEL_NAME = "models/gemini-1.5-flash"
+    private const val PROMPT = "Tell me a story about a load test."
+    private val SAMPLE_INTERVAL = 100.milliseconds
+  }
+}
+
+private fun elapsedSince(start: Long) = (System.nanoTime() - start).nanoseconds
+
+private fun List<Duration>.percentile(fraction: Double): Duration =
+  if (isEmpty()) Duration.ZERO else this[((size - 1) * fraction).toInt()]
+
+/**
+ * Starts a [MockGeminiServer] and runs a [LoadDriver] against it, printing the [LoadReport].
+ *
+ * Takes `key=value` arguments, all optional: `clients`, `durationSeconds` and `mode` for the
+ * driver; `latencyMillis`, `chunkIntervalMillis`, `chunks`, `chunkSize`, `rateLimitedRate`,
+ * `serverErrorRate` and `malformedRate` for the server. With several comma-separated
+ * `latencyMillis`, a server is started for each of them. With `endpoint`, no server is started and
+ * the clients are pointed at that endpoint instead, or at several comma-separated ones.
+ */
+fun main(args: Array<String>) {
+  val options = args.associate { it.substringBefore('=') to it.substringAfter('=') }
+  fun long(key: String, default: Long) = options[key]?.toLong() ?: default
+  fun double(key: String) = options[key]?.toDouble() ?: 0.0
+
+  val config =
+    LoadTestConfig(
+      clients = long("clients", 16).toInt(),
+      duration = long("durationSeconds", 10).seconds,
+      mode = options["mode"]?.let { LoadMode.valueOf(it.uppercase()) } ?: LoadMode.STREAM,
+    )
+  val latencies = options["latencyMillis"]?.split(',')?.map { it.toLong() } ?: listOf(50L)
+  fun serverConfig(latency: Long) =
+    MockServerConfig(
+      latency = latency.milliseconds,
+      chunkInterval = long("chunkIntervalMillis", 20).milliseconds,
+      chunks = long("chunks", 20).toInt(),
+      chunkSize = long("chunkSize", 64).toInt(),
+      rateLimitedRate = double("rateLimitedRate"),
+      serverErrorRate = double("serverErrorRate"),
+      malformedRate = double("malformedRate"),
+    )
+
+  val endpoints = options["endpoint"]?.split(',')
+  if (endpoints != null) {
+    println(LoadDriver(endpoints, config).run())
+  } else {
+    val servers = latencies.map { MockGeminiServer(serverConfig(it)) }
+    try {
+      println(LoadDriver(servers.map { it.start() }, config).run())
+    } finally {
+      servers.forEach { it.close() }
+    }
+  }
+  // The connection pools of the clients would otherwise keep the process alive for a while
+  exitProcess(0)
+}
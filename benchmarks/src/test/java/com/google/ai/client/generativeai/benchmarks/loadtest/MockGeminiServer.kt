@@ -0,0 +1,193 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.benchmarks.loadtest
+
+import io.ktor.http.ContentType
+import io.ktor.http.HttpStatusCode
+import io.ktor.server.application.ApplicationCall
+import io.ktor.server.application.call
+import io.ktor.server.cio.CIO
+import io.ktor.server.cio.CIOApplicationEngine
+import io.ktor.server.engine.embeddedServer
+import io.ktor.server.request.receiveText
+import io.ktor.server.response.respondBytesWriter
+import io.ktor.server.response.respondText
+import io.ktor.server.routing.post
+import io.ktor.server.routing.routing
+import io.ktor.utils.io.writeStringUtf8
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.random.Random
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.json.JsonPrimitive
+
+/**
+ * How the [MockGeminiServer] responds.
+ *
+ * @property latency how long before the response (or the first chunk of a stream) is sent
+ * @property chunkInterval how long between the chunks of a stream
+ * @property chunks how many chunks a stream is made of
+ * @property chunkSize how many characters of text each chunk (or the whole of a unary response,
+ *   times [chunks]) holds
+ * @property rateLimitedRate the fraction of requests that fail with a 429
+ * @property serverErrorRate the fraction of requests that fail with a 500
+ * @property malformedRate the fraction of streams that break off with an event that isn't JSON
+ */
+class MockServerConfig(
+  val latency: Duration = 50.milliseconds,
+  val chunkInterval: Duration = 20.milliseconds,
+  val chunks: Int = 20,
+  val chunkSize: Int = 64,
+  val rateLimitedRate: Double = 0.0,
+  val serverErrorRate: Double = 0.0,
+  val malformedRate: Double = 0.0,
+) {
+  init {
+    require(chunks > 0) { "chunks must be positive, but was $chunks" }
+    require(chunkSize >= 0) { "chunkSize must not be negative, but was $chunkSize" }
+    require(rateLimitedRate + serverErrorRate + malformedRate <= 1.0) {
+      "The error rates must not add up to more than 1"
+    }
+  }
+}
+
+/**
+ * A local stand-in for the Gemini API, for load testing the SDK without reaching the real one.
+ *
+ * Serves `generateContent`, `streamGenerateContent` (as server-sent events) and `countTokens` for
+ * any model and api version, ignoring the api key. Responses are shaped like the real ones, and are
+ * timed and broken as configured by the [config].
+ *
+ * ```
+ * MockGeminiServer(MockServerConfig(latency = 100.milliseconds)).use { server ->
+ *   val endpoint = server.start()
+ *   // Point the SDK at the endpoint
+ * }
+ * ```
+ */
+class MockGeminiServer(private val config: MockServerConfig, private val port: Int = 0) :
+  AutoCloseable {
+  private val requests = AtomicLong()
+  private val text = "lorem ipsum ".repeat(config.chunkSize / 12 + 1).take(config.chunkSize)
+  private val chunk = responseJson(text, finished = false)
+  private val lastChunk = responseJson(text, finished = true)
+  private val unary = responseJson(text.repeat(config.chunks), finished = true)
+
+  private val server: CIOApplicationEngine =
+    embeddedServer(CIO, port = port) {
+      routing {
+        post("/{version}/models/{call}") {
+          requests.incrementAndGet()
+          call.receiveText()
+          delay(config.latency)
+          when (call.parameters["call"]?.substringAfter(':')) {
+            "generateContent" -> call.respondUnary()
+            "streamGenerateContent" -> call.respondStream()
+            "countTokens" ->
+              call.respondText("""{"totalTokens":42}""", ContentType.Application.Json)
+            else -> call.respondText("Unknown method", status = HttpStatusCode.NotFound)
+          }
+        }
+      }
+    }
+
+  /** How many requests the server received so far. */
+  val requestCount: Long
+    get() = requests.get()
+
+  /**
+   * Starts the server.
+   *
+   * @return the endpoint to send requests to
+   */
+  fun start(): String {
+    server.start()
+    val connector = runBlocking { server.resolvedConnectors().first() }
+    return "http://localhost:${connector.port}"
+  }
+
+  override fun close() {
+    server.stop(gracePeriodMillis = 0, timeoutMillis = 1000)
+  }
+
+  private suspend fun ApplicationCall.respondUnary() {
+    val failure = pickFailure()
+    if (failure != null && failure != Failure.MALFORMED) return respondFailure(failure)
+    respondText(unary, ContentType.Application.Json)
+  }
+
+  private suspend fun ApplicationCall.respondStream() {
+    val failure = pickFailure()
+    if (failure != null && failure != Failure.MALFORMED) return respondFailure(failure)
+
+    respondBytesWriter(ContentType.Text.EventStream) {
+      for (index in 0 until config.chunks) {
+        if (index > 0) delay(config.chunkInterval)
+        if (failure == Failure.MALFORMED && index == config.chunks / 2) {
+          writeStringUtf8("data: {\"candidates\": [{\"content\":\r\n\r\n")
+          flush()
+          return@respondBytesWriter
+        }
+        writeStringUtf8("data: ${if (index == config.chunks - 1) lastChunk else chunk}\r\n\r\n")
+        flush()
+      }
+    }
+  }
+
+  private suspend fun ApplicationCall.respondFailure(failure: Failure) {
+    val (status, message) =
+      when (failure) {
+        Failure.RATE_LIMITED ->
+          HttpStatusCode.TooManyRequests to "Resource has been exhausted (e.g. check quota)."
+        else -> HttpStatusCode.InternalServerError to "An internal error has occurred."
+      }
+    val body =
+      """{"error":{"code":${status.value},"message":"$message",""" +
+        """"status":"${failure.status}","details":[]}}"""
+    respondText(body, ContentType.Application.Json, status)
+  }
+
+  private fun pickFailure(): Failure? {
+    val roll = Random.nextDouble()
+    return when {
+      roll < config.rateLimitedRate -> Failure.RATE_LIMITED
+      roll < config.rateLimitedRate + config.serverErrorRate -> Failure.SERVER_ERROR
+      roll < config.rateLimitedRate + config.serverErrorRate + config.malformedRate ->
+        Failure.MALFORMED
+      else -> null
+    }
+  }
+
+  private enum class Failure(val status: String) {
+    RATE_LIMITED("RESOURCE_EXHAUSTED"),
+    SERVER_ERROR("INTERNAL"),
+    MALFORMED(""),
+  }
+
+  companion object {
+    private fun responseJson(text: String, finished: Boolean): String {
+      val finishReason = if (finished) ""","finishReason":"STOP"""" else ""
+      val usage =
+        if (finished) ""","usageMetadata":{"promptTokenCount":8,"candidatesTokenCount":16}"""
+        else ""
+      return """{"candidates":[{"content":{"parts":[{"text":${JsonPrimitive(text)}}],""" +
+        """"role":"model"}$finishReason,"index":0}]$usage}"""
+    }
+  }
+}
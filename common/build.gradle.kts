@@ -69,6 +69,11 @@ android {
     testOptions {
         unitTests.isReturnDefaultValues = true
     }
+
+    sourceSets {
+        // Test helpers shared with the tests of the generativeai module
+        getByName("test").java.srcDir("src/sharedTest/java")
+    }
 }
 
 dependencies {
@@ -19,6 +19,7 @@ package com.google.ai.client.generativeai.common
 import android.util.Log
 import androidx.annotation.VisibleForTesting
 import com.google.ai.client.generativeai.common.server.FinishReason
+import com.google.ai.client.generativeai.common.util.ContentCompression
 import com.google.ai.client.generativeai.common.util.decodeToFlow
 import com.google.ai.client.generativeai.common.util.fullModelName
 import io.ktor.client.HttpClient
@@ -29,7 +30,9 @@ import io.ktor.client.engine.mock.respond
 import io.ktor.client.engine.okhttp.OkHttp
 import io.ktor.client.plugins.HttpTimeout
 import io.ktor.client.plugins.contentnegotiation.ContentNegotiation
+import io.ktor.client.plugins.timeout
 import io.ktor.client.request.HttpRequestBuilder
+import io.ktor.client.request.get
 import io.ktor.client.request.header
 import io.ktor.client.request.post
 import io.ktor.client.request.preparePost
@@ -40,17 +43,29 @@ import io.ktor.client.statement.bodyAsText
 import io.ktor.http.ContentType
 import io.ktor.http.HttpHeaders
 import io.ktor.http.HttpStatusCode
+import io.ktor.http.content.TextContent
 import io.ktor.http.contentType
 import io.ktor.http.headersOf
 import io.ktor.serialization.kotlinx.json.json
 import io.ktor.utils.io.ByteChannel
+import java.io.IOException
 import kotlin.time.Duration
-import kotlinx.coroutines.CoroutineName
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
 import kotlinx.coroutines.flow.catch
-import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withTimeout
 import kotlinx.serialization.json.Json
@@ -72,6 +87,11 @@ internal val JSON = Json {
  * @property model The model to use for generation.
  * @property apiClient The value to pass in the `x-goog-api-client` header.
  * @property headerProvider A provider that generates extra headers to include in all HTTP requests.
+ * @property responseLatency How long [generateContent] requests took to get a response.
+ * @property firstChunkLatency How long [generateContentStream] requests took to get their first
+ *   response.
+ * @property circuitBreakerMetrics The state of the [RequestOptions.circuitBreaker], if there is
+ *   one.
  */
 class APIController
 internal constructor(
@@ -111,55 +131,211 @@ internal constructor(
 
   private val model = fullModelName(model)
 
-  private val client =
+  val responseLatency = LatencyHistogram()
+  val firstChunkLatency = LatencyHistogram()
+  val compressionMetrics = CompressionMetrics()
+  private val requestEncoder = RequestEncoder()
+  private val circuitBreaker = requestOptions.circuitBreaker?.let { CircuitBreaker(it) }
+
+  val circuitBreakerMetrics: CircuitBreakerMetrics?
+    get() = circuitBreaker?.metrics()
+
+  @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
+  internal val client =
     HttpClient(httpEngine) {
       install(HttpTimeout) {
         requestTimeoutMillis = requestOptions.timeout.inWholeMilliseconds
         socketTimeoutMillis = 80_000
       }
       install(ContentNegotiation) { json(JSON) }
+      requestOptions.compression?.let {
+        install(ContentCompression) {
+          options = it
+          metrics = compressionMetrics
+        }
+      }
     }
 
-  suspend fun generateContent(request: GenerateContentRequest): GenerateContentResponse =
+  private val prober = EndpointSet.Prober(client) { probe(it) }
+
+  suspend fun generateContent(
+    request: GenerateContentRequest,
+    options: CallOptions? = null,
+  ): GenerateContentResponse = guarded {
+    val start = System.nanoTime()
     try {
-      client
-        .post("${requestOptions.endpoint}/${requestOptions.apiVersion}/$model:generateContent") {
-          applyCommonConfiguration(request)
-          applyHeaderProvider()
+      withKey { key, _ ->
+          withEndpoint { endpoint, _ ->
+            client
+              .post("$endpoint/${requestOptions.apiVersion}/$model:generateContent") {
+                applyCommonConfiguration(request, key)
+                applyCallOptions(options, firstResponseIsLast = true)
+                applyHeaderProvider()
+              }
+              .also { validateResponse(it) }
+              .body<GenerateContentResponse>()
+          }
         }
-        .also { validateResponse(it) }
-        .body<GenerateContentResponse>()
-        .validate()
+        .validate(requestOptions.partialOutputOnStop)
+        .also { responseLatency.record((System.nanoTime() - start).nanoseconds) }
     } catch (e: Throwable) {
       throw GoogleGenerativeAIException.from(e)
     }
+  }
 
-  fun generateContentStream(request: GenerateContentRequest): Flow<GenerateContentResponse> =
-    client
-      .postStream<GenerateContentResponse>(
-        "${requestOptions.endpoint}/${requestOptions.apiVersion}/$model:streamGenerateContent?alt=sse"
-      ) {
-        applyCommonConfiguration(request)
+  fun generateContentStream(
+    request: GenerateContentRequest,
+    options: CallOptions? = null,
+  ): Flow<GenerateContentResponse> {
+    val responses =
+      if (requestOptions.maxStreamResumptions > 0) {
+        resumableStream(request, options)
+      } else {
+        stream(request, options).map { it.validate(requestOptions.partialOutputOnStop) }
+      }
+    val converted =
+      responses.catch {
+        // The engine may rethrow the collector's cancellation as its own, which isn't an error
+        currentCoroutineContext().ensureActive()
+        throw GoogleGenerativeAIException.from(it)
       }
-      .map { it.validate() }
-      .catch { throw GoogleGenerativeAIException.from(it) }
+    if (circuitBreaker == null) return converted
+    return flow { rethrowCollectorExceptions { guarded { converted.collectWithin(this) } } }
+  }
 
-  suspend fun countTokens(request: CountTokensRequest): CountTokensResponse =
+  suspend fun countTokens(request: CountTokensRequest): CountTokensResponse = guarded {
     try {
-      client
-        .post("${requestOptions.endpoint}/${requestOptions.apiVersion}/$model:countTokens") {
-          applyCommonConfiguration(request)
-          applyHeaderProvider()
+      withKey { key, _ ->
+        withEndpoint { endpoint, _ ->
+          client
+            .post("$endpoint/${requestOptions.apiVersion}/$model:countTokens") {
+              applyCommonConfiguration(request, key)
+              applyHeaderProvider()
+            }
+            .also { validateResponse(it) }
+            .body<CountTokensResponse>()
         }
-        .also { validateResponse(it) }
-        .body()
+      }
     } catch (e: Throwable) {
       throw GoogleGenerativeAIException.from(e)
     }
+  }
 
-  private fun HttpRequestBuilder.applyCommonConfiguration(request: Request) {
+  private fun stream(
+    request: GenerateContentRequest,
+    options: CallOptions?,
+  ): Flow<GenerateContentResponse> =
+    flow {
+        rethrowCollectorExceptions {
+          withKey { key, onKeyResponse ->
+            withEndpoint { endpoint, onResponse ->
+              client
+                .postStream<GenerateContentResponse>(
+                  "$endpoint/${requestOptions.apiVersion}/$model:streamGenerateContent?alt=sse"
+                ) {
+                  applyCommonConfiguration(request, key)
+                  applyCallOptions(options, firstResponseIsLast = false)
+                }
+                .onEach {
+                  onKeyResponse()
+                  onResponse()
+                }
+                .collectWithin(this@flow)
+            }
+          }
+        }
+      }
+      .timeoutFirst(options?.firstResponseTimeout)
+      .recordFirstLatency(firstChunkLatency)
+
+  /**
+   * Streams the response to [request], continuing it with another request whenever it is
+   * interrupted, up to [RequestOptions.maxStreamResumptions] times.
+   *
+   * A stream is interrupted by a network error, or by its first candidate stopping because of
+   * [FinishReason.MAX_TOKENS]. The continuation request is the original one, followed by what the
+   * first candidate generated so far as a 'model' turn, so its responses pick up where the
+   * interrupted ones stopped. The interrupting [FinishReason.MAX_TOKENS] is never emitted.
+   */
+  private fun resumableStream(request: GenerateContentRequest, options: CallOptions?) = flow {
+    val partial = PartialCandidate()
+    var resumptions = 0
+
+    do {
+      val canResume = resumptions < requestOptions.maxStreamResumptions
+      var interrupted = false
+
+      stream(partial.continuation(request), options)
+        .catch {
+          // Only network errors (timeouts included) are worth retrying; a malformed response or
+          // an error from the server would most likely fail the continuation the same way
+          if (it !is IOException || !canResume) throw it
+          Log.w(TAG, "Stream was interrupted, continuing it with a new request", it)
+          interrupted = true
+        }
+        .collect {
+          val candidate = it.candidates?.firstOrNull()
+          partial.append(candidate?.content)
+
+          if (canResume && candidate?.finishReason == FinishReason.MAX_TOKENS) {
+            interrupted = true
+            emit(it.withoutFirstFinishReason().validate(requestOptions.partialOutputOnStop))
+          } else {
+            emit(it.validate(requestOptions.partialOutputOnStop))
+          }
+        }
+      resumptions++
+    } while (interrupted)
+  }
+
+  /** Runs [block] through the [RequestOptions.circuitBreaker], when there is one. */
+  private suspend fun <T> guarded(block: suspend () -> T): T {
+    val circuitBreaker = circuitBreaker ?: return block()
+    return circuitBreaker.run(block)
+  }
+
+  /**
+   * Runs [block] with the key of this controller, or with the keys of the
+   * [RequestOptions.apiKeyPool] when there is one.
+   */
+  private suspend fun <T> withKey(block: suspend (key: String, onResponse: () -> Unit) -> T): T {
+    val pool = requestOptions.apiKeyPool ?: return block(key) {}
+    return pool.withKey(block)
+  }
+
+  /**
+   * Runs [block] with the endpoint of the [RequestOptions], or with the endpoints of the
+   * [RequestOptions.endpoints] when there are some.
+   */
+  private suspend fun <T> withEndpoint(
+    block: suspend (endpoint: String, onResponse: () -> Unit) -> T
+  ): T {
+    val endpoints = requestOptions.endpoints ?: return block(requestOptions.endpoint) {}
+    return endpoints.withEndpoint(prober, block)
+  }
+
+  /**
+   * Probes an endpoint that was marked as unhealthy.
+   *
+   * Any response that isn't a server error means that the endpoint is reachable, and serving
+   * requests again; the probe doesn't need to be authorized for that.
+   */
+  private suspend fun probe(endpoint: String) {
+    val response =
+      client.get("$endpoint/${requestOptions.apiVersion}/$model") {
+        header("x-goog-api-key", key)
+        header("x-goog-api-client", apiClient)
+        timeout { requestTimeoutMillis = PROBE_TIMEOUT.inWholeMilliseconds }
+      }
+    if (response.status.value >= 500) {
+      throw ServerException("Endpoint $endpoint is still failing with ${response.status}")
+    }
+  }
+
+  private fun HttpRequestBuilder.applyCommonConfiguration(request: Request, key: String) {
     when (request) {
-      is GenerateContentRequest -> setBody<GenerateContentRequest>(request)
+      is GenerateContentRequest ->
+        setBody(TextContent(requestEncoder.encode(request), ContentType.Application.Json))
       is CountTokensRequest -> setBody<CountTokensRequest>(request)
     }
     contentType(ContentType.Application.Json)
@@ -167,6 +343,31 @@ internal constructor(
     header("x-goog-api-client", apiClient)
   }
 
+  /**
+   * Applies the timeouts of the provided call [options], on top of the ones the client has.
+   *
+   * @param firstResponseIsLast whether the call only has a single response, in which case the
+   *   [CallOptions.firstResponseTimeout] applies to the whole call
+   */
+  private fun HttpRequestBuilder.applyCallOptions(
+    options: CallOptions?,
+    firstResponseIsLast: Boolean,
+  ) {
+    if (options == null) return
+    val requestTimeout =
+      if (firstResponseIsLast) {
+        listOfNotNull(options.timeout, options.firstResponseTimeout).minOrNull()
+      } else {
+        options.timeout
+      }
+
+    timeout {
+      requestTimeout?.let { requestTimeoutMillis = it.inWholeMilliseconds }
+      options.connectTimeout?.let { connectTimeoutMillis = it.inWholeMilliseconds }
+      options.readTimeout?.let { socketTimeoutMillis = it.inWholeMilliseconds }
+    }
+  }
+
   private suspend fun HttpRequestBuilder.applyHeaderProvider() {
     if (headerProvider != null) {
       try {
@@ -188,6 +389,10 @@ internal constructor(
    *
    * This function is intended for internal use within the client that handles streaming responses.
    *
+   * Responses are only read as fast as they are collected. Once the collection is cancelled (or
+   * times out), the underlying call is aborted right away, instead of reading the rest of the
+   * response first.
+   *
    * Example usage:
    * ```
    * val client: HttpClient = HttpClient(CIO)
@@ -211,25 +416,27 @@ internal constructor(
   private inline fun <reified R : Response> HttpClient.postStream(
     url: String,
     crossinline config: HttpRequestBuilder.() -> Unit = {},
-  ): Flow<R> = channelFlow {
-    launch(CoroutineName("postStream")) {
-      preparePost(url) {
-          applyHeaderProvider()
-          config()
-        }
-        .execute {
-          validateResponse(it)
-
-          val channel = it.bodyAsChannel()
-          val flow = JSON.decodeToFlow<R>(channel)
+  ): Flow<R> = flow {
+    preparePost(url) {
+        applyHeaderProvider()
+        config()
+      }
+      .execute { response ->
+        try {
+          validateResponse(response)
 
-          flow.collect { send(it) }
+          val channel = response.bodyAsChannel()
+          emitAll(JSON.decodeToFlow<R>(channel))
+        } catch (e: CancellationException) {
+          response.cancel(e)
+          throw e
         }
-    }
+      }
   }
 
   companion object {
     private val TAG = APIController::class.java.simpleName
+    private val PROBE_TIMEOUT = 10.seconds
   }
 }
 
@@ -265,13 +472,97 @@ private suspend fun validateResponse(response: HttpResponse) {
   throw ServerException(message)
 }
 
-private fun GenerateContentResponse.validate() = apply {
-  if ((candidates?.isEmpty() != false) && promptFeedback == null) {
+/**
+ * Fails with a [RequestTimeoutException] if this [Flow] doesn't emit its first value within the
+ * provided [timeout], once collected.
+ */
+private fun <T> Flow<T>.timeoutFirst(timeout: Duration?): Flow<T> {
+  if (timeout == null) return this
+  return flow {
+    coroutineScope {
+      val watchdog = launch {
+        delay(timeout)
+        throw RequestTimeoutException("No response was received within $timeout.")
+      }
+      collect {
+        watchdog.cancel()
+        emit(it)
+      }
+      watchdog.cancel()
+    }
+  }
+}
+
+/**
+ * An exception thrown by the collector of a [Flow], which is carried through the failure handling
+ * of the request the flow is collected within (see [collectWithin]).
+ */
+private class CollectorException(override val cause: Throwable) : RuntimeException(cause)
+
+/**
+ * Collects this [Flow] into [collector], from within a request.
+ *
+ * The exceptions thrown by the [collector] are wrapped into a [CollectorException], so that they
+ * are never mistaken for failures of the request. They are thrown as they were again by
+ * [rethrowCollectorExceptions], which should surround the request.
+ */
+private suspend fun <T> Flow<T>.collectWithin(collector: FlowCollector<T>) = collect {
+  try {
+    collector.emit(it)
+  } catch (e: CancellationException) {
+    throw e
+  } catch (e: Throwable) {
+    throw CollectorException(e)
+  }
+}
+
+/** Runs [block], throwing the exceptions of a collector it wrapped as they were. */
+private suspend fun <T> rethrowCollectorExceptions(block: suspend () -> T): T =
+  try {
+    block()
+  } catch (e: CollectorException) {
+    throw e.cause
+  }
+
+/** Records how long it took for the first value of this [Flow] to be emitted, once collected. */
+private fun <T> Flow<T>.recordFirstLatency(histogram: LatencyHistogram): Flow<T> = flow {
+  val start = System.nanoTime()
+  var recorded = false
+  collect {
+    if (!recorded) {
+      histogram.record((System.nanoTime() - start).nanoseconds)
+      recorded = true
+    }
+    emit(it)
+  }
+}
+
+private fun GenerateContentResponse.withoutFirstFinishReason() =
+  copy(
+    candidates =
+      candidates?.mapIndexed { i, it -> if (i == 0) it.copy(finishReason = null) else it }
+  )
+
+/**
+ * Validates a response, in a single pass over its candidates.
+ *
+ * Runs for every chunk of a stream, so it doesn't allocate anything unless the response is invalid.
+ *
+ * @param allowStopped whether candidates that stopped early are valid, see
+ *   [RequestOptions.partialOutputOnStop]
+ */
+private fun GenerateContentResponse.validate(allowStopped: Boolean) = apply {
+  val candidates = candidates
+  if (candidates.isNullOrEmpty() && promptFeedback == null) {
     throw SerializationException("Error deserializing response, found no valid fields")
   }
-  promptFeedback?.blockReason?.let { throw PromptBlockedException(this) }
-  candidates
-    ?.mapNotNull { it.finishReason }
-    ?.firstOrNull { it != FinishReason.STOP }
-    ?.let { throw ResponseStoppedException(this) }
+  if (promptFeedback?.blockReason != null) throw PromptBlockedException(this)
+  if (candidates == null || allowStopped) return@apply
+
+  for (i in candidates.indices) {
+    val finishReason = candidates[i].finishReason
+    if (finishReason != null && finishReason != FinishReason.STOP) {
+      throw ResponseStoppedException(this)
+    }
+  }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlin.time.Duration.Companion.seconds
+
+/** How an [ApiKeyPool] picks the key each request is made with. */
+enum class KeySelection {
+  /** Each request uses the next key, in turn. */
+  ROUND_ROBIN,
+
+  /** Each request uses the key with the fewest requests in flight. */
+  LEAST_LOADED,
+}
+
+/**
+ * Several API keys that requests are spread across, so that they aren't limited by the quota of a
+ * single one.
+ *
+ * A key whose quota is depleted ([QuotaExceededException]) cools down for [cooldown] before it is
+ * used again, and a key that is rejected ([InvalidAPIKeyException]) is never used again. Since the
+ * backend didn't process them, the requests that failed for either reason are retried with another
+ * key right away.
+ *
+ * A pool can be shared by several [APIController]s, so that they all know which keys can be used.
+ *
+ * @property selection how the key of each request is picked among the ones that can be used.
+ * @property cooldown how long a key whose quota is depleted isn't used for.
+ */
+class ApiKeyPool(
+  keys: List<String>,
+  val selection: KeySelection = KeySelection.ROUND_ROBIN,
+  val cooldown: Duration = 60.seconds,
+) {
+  private val keys = keys.map { Key(it) }
+  private val next = AtomicInteger()
+
+  init {
+    require(keys.isNotEmpty()) { "An ApiKeyPool needs at least one key" }
+    require(keys.toSet().size == keys.size) { "The keys of an ApiKeyPool must be unique" }
+    require(!cooldown.isNegative()) { "cooldown must not be negative, but was $cooldown" }
+  }
+
+  /** How each key was used so far, in the order of the keys. */
+  val usage: List<KeyUsage>
+    get() = System.nanoTime().let { now -> keys.map { it.usage(now) } }
+
+  /**
+   * Runs [block] with a key from the pool, and with another one whenever it fails because of the
+   * key it was given.
+   *
+   * The block calls `onResponse` once the first response arrived, after which it no longer fails
+   * over, so that responses are never repeated.
+   *
+   * @throws QuotaExceededException if the quota of every key is depleted
+   * @throws InvalidAPIKeyException if every key was rejected
+   */
+  suspend fun <T> withKey(block: suspend (key: String, onResponse: () -> Unit) -> T): T {
+    var attempts = 0
+    while (true) {
+      val key = acquire()
+      var responded = false
+      try {
+        return block(key.value) { responded = true }
+      } catch (e: GoogleGenerativeAIException) {
+        if (responded) throw e
+        when (e) {
+          is QuotaExceededException -> key.coolDown(System.nanoTime() + cooldown.inWholeNanoseconds)
+          is InvalidAPIKeyException -> key.invalid = true
+          else -> throw e
+        }
+        // Every key failed; without a cooldown, the first one could be picked again forever
+        if (++attempts >= keys.size) throw e
+      } finally {
+        key.inFlight.decrementAndGet()
+      }
+    }
+  }
+
+  private fun acquire(): Key {
+    val now = System.nanoTime()
+    val start = next.getAndIncrement().mod(keys.size)
+    val candidates = keys.indices.map { keys[(start + it) % keys.size] }.filter { it.isUsable(now) }
+    val key =
+      when (selection) {
+        KeySelection.ROUND_ROBIN -> candidates.firstOrNull()
+        KeySelection.LEAST_LOADED -> candidates.minByOrNull { it.inFlight.get() }
+      } ?: throw unavailable(now)
+
+    key.requests.incrementAndGet()
+    key.inFlight.incrementAndGet()
+    return key
+  }
+
+  private fun unavailable(now: Long): GoogleGenerativeAIException {
+    val coolingDown = keys.filterNot { it.invalid }
+    if (coolingDown.isEmpty()) {
+      return InvalidAPIKeyException("Every API key in the pool was rejected as invalid.")
+    }
+    val remaining =
+      (coolingDown.minOf { it.coolingDownUntil.get() } - now).coerceAtLeast(0).nanoseconds
+    return QuotaExceededException(
+      "The quota of every API key in the pool is depleted, the first one is available again in " +
+        "$remaining."
+    )
+  }
+
+  private class Key(val value: String) {
+    val requests = AtomicLong()
+    val inFlight = AtomicInteger()
+    val quotaExceeded = AtomicLong()
+    val coolingDownUntil = AtomicLong(System.nanoTime())
+    @Volatile var invalid = false
+
+    fun isUsable(now: Long) = !invalid && now - coolingDownUntil.get() >= 0
+
+    fun coolDown(until: Long) {
+      quotaExceeded.incrementAndGet()
+      coolingDownUntil.set(until)
+    }
+
+    fun usage(now: Long) =
+      KeyUsage(
+        requests.get(),
+        inFlight.get(),
+        quotaExceeded.get(),
+        invalid,
+        !invalid && !isUsable(now),
+      )
+  }
+}
+
+/**
+ * How a key of an [ApiKeyPool] was used so far.
+ *
+ * @property requests how many requests were made with the key.
+ * @property inFlight how many requests made with the key are still in flight.
+ * @property quotaExceeded how many requests failed because the quota of the key was depleted.
+ * @property invalid whether the key was rejected, and is no longer used.
+ * @property coolingDown whether the key isn't used until its cooldown ends.
+ */
+class KeyUsage(
+  val requests: Long,
+  val inFlight: Int,
+  val quotaExceeded: Long,
+  val invalid: Boolean,
+  val coolingDown: Boolean,
+)
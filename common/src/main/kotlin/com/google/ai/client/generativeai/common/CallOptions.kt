@@ -0,0 +1,38 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import kotlin.time.Duration
+
+/**
+ * Options for a single call, overriding the ones the [APIController] was created with.
+ *
+ * Calls with different options still share the same underlying client and connections.
+ *
+ * @property timeout the maximum amount of time for the whole call to take, including reading all
+ *   the responses of a stream.
+ * @property connectTimeout the maximum amount of time to establish a connection.
+ * @property readTimeout the maximum amount of time between two reads from the connection.
+ * @property firstResponseTimeout the maximum amount of time until the first response is received.
+ *   For a stream, this is its first response; for other calls, the response itself.
+ */
+data class CallOptions(
+  val timeout: Duration? = null,
+  val connectTimeout: Duration? = null,
+  val readTimeout: Duration? = null,
+  val firstResponseTimeout: Duration? = null,
+)
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import android.util.Log
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.isActive
+
+/** The states of a [CircuitBreaker]. */
+enum class CircuitState {
+  /** Requests are sent, and their outcomes are recorded. */
+  CLOSED,
+
+  /** Requests fail right away with a [CircuitOpenException], without being sent. */
+  OPEN,
+
+  /** A few probe requests are sent, to find out whether the backend recovered. */
+  HALF_OPEN,
+}
+
+/**
+ * Configures a [CircuitBreaker].
+ *
+ * @property failureRateThreshold the fraction of failed requests, above 0 and at most 1, from which
+ *   the circuit opens.
+ * @property windowSize how many of the most recent requests the failure rate is measured over.
+ * @property minimumRequests how many requests need to be recorded before the circuit can open.
+ * @property openDuration how long the circuit stays open before probe requests are sent.
+ * @property probeRequests how many probe requests are sent while the circuit is half-open. They all
+ *   need to succeed for the circuit to close.
+ */
+class CircuitBreakerOptions(
+  val failureRateThreshold: Double = 0.5,
+  val windowSize: Int = 20,
+  val minimumRequests: Int = 10,
+  val openDuration: Duration = 30.seconds,
+  val probeRequests: Int = 1,
+) {
+  init {
+    require(failureRateThreshold > 0.0 && failureRateThreshold <= 1.0) {
+      "failureRateThreshold must be above 0 and at most 1, but was $failureRateThreshold"
+    }
+    require(windowSize > 0) { "windowSize must be positive, but was $windowSize" }
+    require(minimumRequests in 1..windowSize) {
+      "minimumRequests must be between 1 and windowSize, but was $minimumRequests"
+    }
+    require(openDuration.isPositive()) { "openDuration must be positive, but was $openDuration" }
+    require(probeRequests > 0) { "probeRequests must be positive, but was $probeRequests" }
+  }
+}
+
+/**
+ * A snapshot of the state of a [CircuitBreaker], and of how it changed so far.
+ *
+ * @property state the current state of the circuit. An open circuit whose open duration elapsed is
+ *   half-open, even before the next request turns it half-open.
+ * @property failureRate the fraction of failed requests among the most recent ones, while the
+ *   circuit was last closed.
+ * @property timesOpened how many times the circuit opened.
+ * @property timesHalfOpened how many times the circuit went from open to half-open.
+ * @property timesClosed how many times the circuit closed again, after being open.
+ * @property rejectedRequests how many requests failed right away, without being sent.
+ */
+class CircuitBreakerMetrics(
+  val state: CircuitState,
+  val failureRate: Double,
+  val timesOpened: Long,
+  val timesHalfOpened: Long,
+  val timesClosed: Long,
+  val rejectedRequests: Long,
+)
+
+/**
+ * Stops sending requests to a backend that keeps failing, so that they fail right away instead of
+ * waiting for the backend to respond, or to time out.
+ *
+ * The outcomes of the most recent requests are recorded while the circuit is [CircuitState.CLOSED].
+ * Once too many of them failed, the circuit opens: requests fail right away with a
+ * [CircuitOpenException] for [CircuitBreakerOptions.openDuration]. The circuit then turns
+ * [CircuitState.HALF_OPEN], and lets a few probe requests through. If they all succeed, the circuit
+ * closes; if any of them fails, it opens again.
+ *
+ * Only the failures that point to an unhealthy backend are counted: server errors, a disabled
+ * service, timeouts and network errors. Requests that fail for any other reason (eg; a client
+ * error), or that are cancelled, aren't counted at all.
+ */
+class CircuitBreaker(private val options: CircuitBreakerOptions) {
+  private val window = BooleanArray(options.windowSize)
+  private var recorded = 0
+  private var next = 0
+  private var failures = 0
+
+  @Volatile private var state = CircuitState.CLOSED
+  @Volatile private var openUntil = 0L
+  private var probesStarted = 0
+  private var probesSucceeded = 0
+
+  private var timesOpened = 0L
+  private var timesHalfOpened = 0L
+  private var timesClosed = 0L
+  private val rejectedRequests = AtomicLong()
+
+  /**
+   * Runs [block], unless the circuit is open.
+   *
+   * @throws CircuitOpenException if the circuit is open, or is half-open with all of its probe
+   *   requests already in flight
+   */
+  suspend fun <T> run(block: suspend () -> T): T {
+    val probe = acquire()
+    val result =
+      try {
+        block()
+      } catch (e: Throwable) {
+        // Cancellations may reach here converted into other exceptions, so the context is checked
+        val cancelled = e is CancellationException || !currentCoroutineContext().isActive
+        if (!cancelled && e.isBackendFailure()) {
+          record(probe, failed = true)
+        } else {
+          release(probe)
+        }
+        throw e
+      }
+    record(probe, failed = false)
+    return result
+  }
+
+  /**
+   * A snapshot of the state of this circuit breaker.
+   *
+   * Reading it never changes the state: a circuit that is due to turn half-open is reported as such,
+   * but only turns half-open once a request arrives.
+   */
+  @Synchronized
+  fun metrics(): CircuitBreakerMetrics {
+    val halfOpening = isHalfOpenDue(System.nanoTime())
+    return CircuitBreakerMetrics(
+      if (halfOpening) CircuitState.HALF_OPEN else state,
+      if (recorded == 0) 0.0 else failures.toDouble() / recorded,
+      timesOpened,
+      if (halfOpening) timesHalfOpened + 1 else timesHalfOpened,
+      timesClosed,
+      rejectedRequests.get(),
+    )
+  }
+
+  /** @return whether the request is a probe */
+  private fun acquire(): Boolean {
+    // Requests fail without taking the lock while the circuit is open, so that they fail fast
+    val now = System.nanoTime()
+    if (state == CircuitState.OPEN && now - openUntil < 0) throw reject(now)
+
+    synchronized(this) {
+      updateState(now)
+      return when (state) {
+        CircuitState.CLOSED -> false
+        CircuitState.OPEN -> throw reject(now)
+        CircuitState.HALF_OPEN -> {
+          if (probesStarted >= options.probeRequests) throw reject(now)
+          probesStarted++
+          true
+        }
+      }
+    }
+  }
+
+  @Synchronized
+  private fun record(probe: Boolean, failed: Boolean) {
+    when {
+      probe && state == CircuitState.HALF_OPEN ->
+        if (failed) {
+          open()
+        } else if (++probesSucceeded >= options.probeRequests) {
+          close()
+        }
+      state == CircuitState.CLOSED -> {
+        if (recorded == window.size) {
+          if (window[next]) failures--
+        } else {
+          recorded++
+        }
+        window[next] = failed
+        if (failed) failures++
+        next = (next + 1) % window.size
+
+        if (
+          recorded >= options.minimumRequests && failures >= options.failureRateThreshold * recorded
+        ) {
+          open()
+        }
+      }
+    }
+  }
+
+  @Synchronized
+  private fun release(probe: Boolean) {
+    if (probe && state == CircuitState.HALF_OPEN) probesStarted--
+  }
+
+  private fun reject(now: Long): CircuitOpenException {
+    rejectedRequests.incrementAndGet()
+    val remaining = (openUntil - now).coerceAtLeast(0).nanoseconds
+    return CircuitOpenException(
+      "Requests aren't being sent, because too many of the recent ones failed. Probe requests " +
+        "will be sent in $remaining."
+    )
+  }
+
+  private fun isHalfOpenDue(now: Long) = state == CircuitState.OPEN && now - openUntil >= 0
+
+  private fun updateState(now: Long) {
+    if (isHalfOpenDue(now)) {
+      transition(CircuitState.HALF_OPEN)
+      timesHalfOpened++
+      probesStarted = 0
+      probesSucceeded = 0
+    }
+  }
+
+  private fun open() {
+    openUntil = System.nanoTime() + options.openDuration.inWholeNanoseconds
+    transition(CircuitState.OPEN)
+    timesOpened++
+  }
+
+  private fun close() {
+    transition(CircuitState.CLOSED)
+    timesClosed++
+    // The failures that opened the circuit shouldn't count towards opening it again
+    recorded = 0
+    next = 0
+    failures = 0
+  }
+
+  private fun transition(to: CircuitState) {
+    Log.w(TAG, "Circuit went from $state to $to")
+    state = to
+  }
+
+  companion object {
+    private val TAG = CircuitBreaker::class.java.simpleName
+  }
+}
+
+/** Whether this failure points to an unhealthy backend. */
+private fun Throwable.isBackendFailure(): Boolean =
+  when (this) {
+    is ServerException,
+    is ServiceDisabledException,
+    is RequestTimeoutException,
+    // Network errors, including Ktor's timeouts
+    is IOException -> true
+    // Network errors that were already converted
+    is UnknownException -> cause is IOException
+    else -> false
+  }
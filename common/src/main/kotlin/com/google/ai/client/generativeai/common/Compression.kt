@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import java.util.concurrent.atomic.AtomicLong
+
+/** The algorithms request bodies can be compressed with. */
+enum class CompressionAlgorithm(val contentEncoding: String) {
+  GZIP("gzip"),
+  DEFLATE("deflate"),
+}
+
+/**
+ * Configures the compression of request bodies, and of the responses to them.
+ *
+ * @property algorithm the algorithm request bodies are compressed with.
+ * @property minRequestBytes the size (in bytes) from which request bodies are compressed. Smaller
+ *   ones are sent as they are, since compressing them would save little.
+ * @property acceptCompressedResponses whether the backend is asked to compress its responses, with
+ *   any of the [CompressionAlgorithm]s.
+ */
+class CompressionOptions(
+  val algorithm: CompressionAlgorithm = CompressionAlgorithm.GZIP,
+  val minRequestBytes: Int = 4096,
+  val acceptCompressedResponses: Boolean = true,
+)
+
+/**
+ * Counts the bytes saved by compression, across all the requests made by an [APIController].
+ *
+ * Only the requests and responses that were actually compressed are counted.
+ */
+class CompressionMetrics {
+  private val requestBytes = AtomicLong()
+  private val requestBytesSent = AtomicLong()
+  private val responseBytesReceived = AtomicLong()
+  private val responseBytes = AtomicLong()
+
+  /** The size of the compressed request bodies, before compression. */
+  val requestBytesBeforeCompression: Long
+    get() = requestBytes.get()
+
+  /** The size of the compressed request bodies, as sent. */
+  val requestBytesAfterCompression: Long
+    get() = requestBytesSent.get()
+
+  /** The size of the compressed response bodies, as received. */
+  val responseBytesBeforeDecompression: Long
+    get() = responseBytesReceived.get()
+
+  /** The size of the compressed response bodies, once decompressed. */
+  val responseBytesAfterDecompression: Long
+    get() = responseBytes.get()
+
+  internal fun onRequest(original: Long, sent: Long) {
+    requestBytes.addAndGet(original)
+    requestBytesSent.addAndGet(sent)
+  }
+
+  internal fun onResponseReceived(bytes: Long) = responseBytesReceived.addAndGet(bytes)
+
+  internal fun onResponseDecompressed(bytes: Long) = responseBytes.addAndGet(bytes)
+}
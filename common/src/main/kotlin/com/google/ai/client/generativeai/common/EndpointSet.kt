@@ -0,0 +1,223 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import android.util.Log
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+
+/**
+ * Several endpoints serving the same API, such as regional endpoints or proxies, that requests are
+ * routed between by latency.
+ *
+ * Each request goes to the healthy endpoint with the lowest latency, measured as an exponentially
+ * weighted moving average of how long its previous requests took to get their first response.
+ * Endpoints that haven't been measured yet are tried first, so that they all get measured.
+ *
+ * An endpoint that fails with a server error, a timeout or a network error is marked as unhealthy,
+ * and the request fails over to the next endpoint right away. Streams only fail over before their
+ * first response; once it arrived, failing over would repeat it. Unhealthy endpoints aren't used
+ * again until a health probe, sent every [probeInterval], gets a response from them.
+ *
+ * A set can be shared by several [APIController]s, so that they all know which endpoints are
+ * healthy, and how fast they are.
+ *
+ * @property smoothing the weight of the latest latency in the moving average, above 0 and at most 1.
+ * @property probeInterval how often unhealthy endpoints are probed.
+ */
+class EndpointSet(
+  endpoints: List<String>,
+  val smoothing: Double = 0.3,
+  val probeInterval: Duration = 10.seconds,
+) {
+  private val endpoints = endpoints.map { Endpoint(it.trimEnd('/')) }
+
+  init {
+    require(endpoints.isNotEmpty()) { "An EndpointSet needs at least one endpoint" }
+    require(endpoints.toSet().size == endpoints.size) {
+      "The endpoints of an EndpointSet must be unique"
+    }
+    require(smoothing > 0 && smoothing <= 1) {
+      "smoothing must be greater than 0, and at most 1, but was $smoothing"
+    }
+    require(probeInterval.isPositive()) { "probeInterval must be positive, but was $probeInterval" }
+  }
+
+  /** The status of each endpoint, in the order of the endpoints. */
+  val status: List<EndpointStatus>
+    get() = endpoints.map { it.status() }
+
+  /**
+   * Runs [block] with the fastest healthy endpoint, and with the next one whenever it fails because
+   * of the endpoint it was given.
+   *
+   * The block calls `onResponse` once the first response arrived, after which it no longer fails
+   * over. Otherwise, the block is considered to have responded once it returns.
+   *
+   * @param prober how endpoints are probed once they are marked as unhealthy
+   */
+  suspend fun <T> withEndpoint(
+    prober: Prober,
+    block: suspend (endpoint: String, onResponse: () -> Unit) -> T,
+  ): T {
+    val tried = mutableSetOf<Endpoint>()
+    while (true) {
+      val endpoint = select(tried, prober)
+      tried += endpoint
+      val start = System.nanoTime()
+      var responded = false
+      val onResponse = {
+        if (!responded) {
+          responded = true
+          endpoint.recordLatency(System.nanoTime() - start)
+        }
+      }
+      try {
+        return block(endpoint.url, onResponse).also {
+          onResponse()
+          endpoint.recover()
+        }
+      } catch (e: Throwable) {
+        // Cancellations may reach here converted into other exceptions, so the context is checked
+        if (e is CancellationException || !currentCoroutineContext().isActive) throw e
+        if (!e.isEndpointFailure()) throw e
+
+        endpoint.failures.incrementAndGet()
+        if (endpoint.healthy.compareAndSet(true, false)) {
+          Log.w(TAG, "Endpoint ${endpoint.url} failed, it is no longer used until it recovers", e)
+        }
+        startProbing(endpoint, prober)
+        if (responded || tried.size == endpoints.size) throw e
+      }
+    }
+  }
+
+  private fun select(tried: Set<Endpoint>, prober: Prober): Endpoint {
+    val candidates = endpoints.filterNot { it in tried }
+    // Probes end along with the scope they were started in, so they may need to be started again
+    candidates.filterNot { it.healthy.get() }.forEach { startProbing(it, prober) }
+
+    val endpoint =
+      candidates.filter { it.healthy.get() }.minByOrNull { it.latency ?: 0.0 }
+        ?: candidates.minBy { it.unhealthySince.get() }
+    endpoint.requests.incrementAndGet()
+    return endpoint
+  }
+
+  private fun startProbing(endpoint: Endpoint, prober: Prober) {
+    if (!endpoint.probing.compareAndSet(false, true)) return
+    endpoint.unhealthySince.compareAndSet(Long.MAX_VALUE, System.nanoTime())
+
+    prober.scope.launch {
+      try {
+        while (!endpoint.healthy.get()) {
+          delay(probeInterval)
+          val start = System.nanoTime()
+          try {
+            prober.probe(endpoint.url)
+          } catch (e: CancellationException) {
+            throw e
+          } catch (e: Throwable) {
+            continue
+          }
+          endpoint.recordLatency(System.nanoTime() - start)
+          endpoint.recover()
+        }
+      } finally {
+        endpoint.probing.set(false)
+      }
+    }
+  }
+
+  /**
+   * Probes endpoints that are marked as unhealthy.
+   *
+   * @property scope where probes run; they stop once it is cancelled.
+   * @property probe sends a probe to the provided endpoint, and fails if it is still unhealthy.
+   */
+  class Prober(val scope: CoroutineScope, val probe: suspend (endpoint: String) -> Unit)
+
+  private inner class Endpoint(val url: String) {
+    val requests = AtomicLong()
+    val failures = AtomicLong()
+    val healthy = AtomicBoolean(true)
+    val probing = AtomicBoolean(false)
+    val unhealthySince = AtomicLong(Long.MAX_VALUE)
+    @Volatile var latency: Double? = null
+
+    @Synchronized
+    fun recordLatency(nanos: Long) {
+      latency = latency?.let { it + smoothing * (nanos - it) } ?: nanos.toDouble()
+    }
+
+    fun recover() {
+      unhealthySince.set(Long.MAX_VALUE)
+      if (healthy.compareAndSet(false, true)) Log.w(TAG, "Endpoint $url recovered")
+    }
+
+    fun status() =
+      EndpointStatus(
+        url,
+        latency?.toLong()?.nanoseconds,
+        healthy.get(),
+        requests.get(),
+        failures.get(),
+      )
+  }
+
+  companion object {
+    private val TAG = EndpointSet::class.java.simpleName
+  }
+}
+
+/**
+ * The status of an endpoint of an [EndpointSet].
+ *
+ * @property url the base URL of the endpoint.
+ * @property latency the moving average of how long its requests took to get their first response,
+ *   or null if none of them got one yet.
+ * @property healthy whether the endpoint is used; unhealthy ones are only probed.
+ * @property requests how many requests were sent to the endpoint.
+ * @property failures how many requests failed because of the endpoint.
+ */
+class EndpointStatus(
+  val url: String,
+  val latency: Duration?,
+  val healthy: Boolean,
+  val requests: Long,
+  val failures: Long,
+)
+
+/** Whether this failure points to an unhealthy endpoint, rather than to the request itself. */
+private fun Throwable.isEndpointFailure() =
+  when (this) {
+    is ServerException,
+    is RequestTimeoutException,
+    // Network errors (including Ktor's timeouts), which haven't been converted yet
+    is IOException -> true
+    else -> false
+  }
@@ -116,6 +116,14 @@ class QuotaExceededException(message: String, cause: Throwable? = null) :
 class ServiceDisabledException(message: String, cause: Throwable? = null) :
   GoogleGenerativeAIException(message, cause)
 
+/**
+ * A request failed without being sent, because too many of the recent ones failed.
+ *
+ * Only occurs when [RequestOptions.circuitBreaker] is set.
+ */
+class CircuitOpenException(message: String, cause: Throwable? = null) :
+  GoogleGenerativeAIException(message, cause)
+
 /** Catch all case for exceptions not explicitly expected. */
 class UnknownException(message: String, cause: Throwable? = null) :
   GoogleGenerativeAIException(message, cause)
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import kotlin.math.ceil
+import kotlin.math.ln
+import kotlin.math.pow
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+
+/**
+ * A histogram of observed latencies, used to estimate their percentiles.
+ *
+ * Latencies are counted in exponential buckets, each [GROWTH] times wider than the previous one, so
+ * percentiles are estimated to within that resolution. Once [DECAY_THRESHOLD] latencies have been
+ * counted, every bucket is halved, so the histogram follows the most recent latencies.
+ */
+class LatencyHistogram {
+  private val buckets = LongArray(BUCKET_COUNT)
+
+  /** The (decayed) number of latencies the histogram holds. */
+  var count = 0L
+    @Synchronized get
+    private set
+
+  @Synchronized
+  fun record(latency: Duration) {
+    val millis = latency.inWholeMilliseconds
+    val bucket = if (millis < 1) 0 else (ln(millis.toDouble()) / ln(GROWTH)).toInt().plus(1)
+    buckets[bucket.coerceAtMost(BUCKET_COUNT - 1)]++
+
+    if (++count >= DECAY_THRESHOLD) {
+      count = 0
+      for (i in buckets.indices) {
+        buckets[i] = buckets[i] shr 1
+        count += buckets[i]
+      }
+    }
+  }
+
+  /**
+   * The latency under which the provided [percentile] (between 0 and 1) of the recorded latencies
+   * fall, or null if none were recorded yet.
+   */
+  @Synchronized
+  fun percentile(percentile: Double): Duration? {
+    require(percentile in 0.0..1.0) { "percentile must be between 0 and 1, but was $percentile" }
+    if (count == 0L) return null
+
+    val rank = ceil(percentile * count).toLong().coerceAtLeast(1)
+    var seen = 0L
+    val bucket =
+      buckets.indices.first {
+        seen += buckets[it]
+        seen >= rank
+      }
+    return GROWTH.pow(bucket).milliseconds
+  }
+
+  companion object {
+    private const val GROWTH = 1.25
+
+    /** Enough buckets to go past 20 minutes. */
+    private const val BUCKET_COUNT = 64
+
+    private const val DECAY_THRESHOLD = 1024
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import com.google.ai.client.generativeai.common.shared.Content
+import com.google.ai.client.generativeai.common.shared.Part
+import com.google.ai.client.generativeai.common.shared.TextPart
+
+/**
+ * What the first candidate of a stream generated so far, so that the stream can be continued by
+ * another request.
+ *
+ * Consecutive text is joined into a single [TextPart], and every other part is kept as it is.
+ */
+internal class PartialCandidate {
+  private val parts = ArrayList<Part>()
+  private val text = StringBuilder()
+
+  fun append(content: Content?) {
+    for (part in content?.parts.orEmpty()) {
+      if (part is TextPart) {
+        text.append(part.text)
+      } else {
+        flushText()
+        parts.add(part)
+      }
+    }
+  }
+
+  /**
+   * The request continuing [request] from where this candidate stopped, or [request] itself if
+   * nothing was generated yet.
+   */
+  fun continuation(request: GenerateContentRequest): GenerateContentRequest {
+    flushText()
+    if (parts.isEmpty()) return request
+
+    return request.copy(contents = request.contents + Content("model", parts.toList()))
+  }
+
+  private fun flushText() {
+    if (text.isEmpty()) return
+
+    // Text that continues after a previous flush still belongs to the same part
+    val previous = (parts.lastOrNull() as? TextPart)?.also { parts.removeAt(parts.lastIndex) }
+    parts.add(TextPart(previous?.text.orEmpty() + text))
+    text.setLength(0)
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import com.google.ai.client.generativeai.common.shared.Content
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonUnquotedLiteral
+import kotlinx.serialization.json.encodeToJsonElement
+
+/**
+ * Encodes [GenerateContentRequest]s to JSON, reusing the encoding of the parts that stay the same
+ * between the requests of a model.
+ *
+ * Everything but the [model][GenerateContentRequest.model] and the
+ * [contents][GenerateContentRequest.contents] (tools, safety settings, configs and system
+ * instruction) is encoded once, and written as it is into every request that holds the very same
+ * instances. The result is the same as encoding the whole request.
+ */
+internal class RequestEncoder {
+  @Volatile private var cached: Fragment? = null
+
+  fun encode(request: GenerateContentRequest): String {
+    val encoded =
+      fragmentOf(request).template.copy(model = request.model, contents = request.contents)
+    return JSON.encodeToString(EncodedRequest.serializer(), encoded)
+  }
+
+  private fun fragmentOf(request: GenerateContentRequest): Fragment {
+    cached?.let { if (it.isFor(request)) return it }
+
+    val encoded = JSON.encodeToJsonElement(request.copy(model = null, contents = emptyList()))
+    return Fragment(request, encoded as JsonObject).also { cached = it }
+  }
+
+  /** The encoding of the parts that stay the same, as a request without a model or contents. */
+  @OptIn(ExperimentalSerializationApi::class)
+  private class Fragment(request: GenerateContentRequest, encoded: JsonObject) {
+    private val safetySettings = request.safetySettings
+    private val generationConfig = request.generationConfig
+    private val tools = request.tools
+    private val toolConfig = request.toolConfig
+    private val systemInstruction = request.systemInstruction
+
+    val template =
+      EncodedRequest(
+        contents = emptyList(),
+        safetySettings = encoded.literal("safety_settings"),
+        generationConfig = encoded.literal("generation_config"),
+        tools = encoded.literal("tools"),
+        toolConfig = encoded.literal("tool_config"),
+        systemInstruction = encoded.literal("system_instruction"),
+      )
+
+    fun isFor(request: GenerateContentRequest) =
+      request.safetySettings === safetySettings &&
+        request.generationConfig === generationConfig &&
+        request.tools === tools &&
+        request.toolConfig === toolConfig &&
+        request.systemInstruction === systemInstruction
+
+    /** The member called [key], as JSON that is written as it is. */
+    private fun JsonObject.literal(key: String) =
+      get(key)?.let { JsonUnquotedLiteral(it.toString()) }
+  }
+
+  /** A [GenerateContentRequest] whose fixed parts are already encoded, in the same field order. */
+  @Serializable
+  private data class EncodedRequest(
+    val model: String? = null,
+    val contents: List<Content>,
+    @SerialName("safety_settings") val safetySettings: JsonElement? = null,
+    @SerialName("generation_config") val generationConfig: JsonElement? = null,
+    val tools: JsonElement? = null,
+    @SerialName("tool_config") val toolConfig: JsonElement? = null,
+    @SerialName("system_instruction") val systemInstruction: JsonElement? = null,
+  )
+}
@@ -16,6 +16,7 @@
 
 package com.google.ai.client.generativeai.common
 
+import com.google.ai.client.generativeai.common.server.FinishReason
 import io.ktor.client.plugins.HttpTimeout
 import kotlin.time.Duration
 import kotlin.time.DurationUnit
@@ -27,20 +28,50 @@ import kotlin.time.toDuration
  * @property timeout the maximum amount of time for a request to take, from the first request to
  *   first response.
  * @property apiVersion the api endpoint to call.
+ * @property partialOutputOnStop when `true`, responses whose generation stopped early (eg; because
+ *   of [FinishReason.MAX_TOKENS]) are returned as they are, instead of throwing a
+ *   [ResponseStoppedException].
+ * @property maxStreamResumptions how many times a stream that was interrupted (by a network error,
+ *   or by [FinishReason.MAX_TOKENS]) is automatically continued by another request. Defaults to 0,
+ *   which never continues them.
+ * @property compression when set, large request bodies are compressed, and so are the responses.
+ * @property apiKeyPool when set, requests are spread across the keys of the pool, instead of all
+ *   being made with the key of the [APIController].
+ * @property circuitBreaker when set, requests fail right away while the backend keeps failing.
+ * @property endpoints when set, requests are routed between its endpoints by latency, instead of
+ *   all being sent to the [endpoint].
  */
 class RequestOptions(
   val timeout: Duration,
   val apiVersion: String = "v1beta",
   val endpoint: String = "https://generativelanguage.googleapis.com",
+  val partialOutputOnStop: Boolean = false,
+  val maxStreamResumptions: Int = 0,
+  val compression: CompressionOptions? = null,
+  val apiKeyPool: ApiKeyPool? = null,
+  val circuitBreaker: CircuitBreakerOptions? = null,
+  val endpoints: EndpointSet? = null,
 ) {
   @JvmOverloads
   constructor(
     timeout: Long? = HttpTimeout.INFINITE_TIMEOUT_MS,
     apiVersion: String = "v1beta",
     endpoint: String = "https://generativelanguage.googleapis.com",
+    partialOutputOnStop: Boolean = false,
+    maxStreamResumptions: Int = 0,
+    compression: CompressionOptions? = null,
+    apiKeyPool: ApiKeyPool? = null,
+    circuitBreaker: CircuitBreakerOptions? = null,
+    endpoints: EndpointSet? = null,
   ) : this(
     (timeout ?: HttpTimeout.INFINITE_TIMEOUT_MS).toDuration(DurationUnit.MILLISECONDS),
     apiVersion,
     endpoint,
+    partialOutputOnStop,
+    maxStreamResumptions,
+    compression,
+    apiKeyPool,
+    circuitBreaker,
+    endpoints,
   )
 }
@@ -24,9 +24,14 @@ import kotlinx.serialization.KSerializer
 import kotlinx.serialization.SerialName
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.SerializationException
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.encoding.Encoder
 import kotlinx.serialization.json.JsonContentPolymorphicSerializer
 import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNames
+import kotlinx.serialization.json.JsonNull
 import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
 import kotlinx.serialization.json.jsonObject
 
 object HarmCategorySerializer :
@@ -51,7 +56,10 @@ data class Content(@EncodeDefault val role: String? = "user", val parts: List<Pa
 
 @Serializable data class TextPart(val text: String) : Part
 
-@Serializable data class BlobPart(@SerialName("inline_data") val inlineData: Blob) : Part
+@Serializable
+data class BlobPart
+@OptIn(ExperimentalSerializationApi::class)
+constructor(@SerialName("inline_data") @JsonNames("inlineData") val inlineData: Blob) : Part
 
 @Serializable data class FunctionCallPart(val functionCall: FunctionCall) : Part
 
@@ -64,17 +72,38 @@ data class CodeExecutionResultPart(val codeExecutionResult: CodeExecutionResult)
 
 @Serializable data class FunctionResponse(val name: String, val response: JsonObject)
 
-@Serializable data class FunctionCall(val name: String, val args: Map<String, String?>? = null)
+/**
+ * A function call requested by the model.
+ *
+ * @property args the arguments of the call, with every value that isn't a string (numbers,
+ *   booleans, arrays and objects) in its JSON form
+ * @property rawArgs the arguments exactly as they were sent by the model, when the call was decoded
+ *   from a response. Takes precedence over [args] when the call is sent back to the model.
+ */
+@Serializable(FunctionCallSerializer::class)
+data class FunctionCall(
+  val name: String,
+  val args: Map<String, String?>? = null,
+  val rawArgs: JsonObject? = null,
+)
 
-@Serializable data class FileDataPart(@SerialName("file_data") val fileData: FileData) : Part
+@Serializable
+data class FileDataPart
+@OptIn(ExperimentalSerializationApi::class)
+constructor(@SerialName("file_data") @JsonNames("fileData") val fileData: FileData) : Part
 
 @Serializable
-data class FileData(
-  @SerialName("mime_type") val mimeType: String,
-  @SerialName("file_uri") val fileUri: String,
+data class FileData
+@OptIn(ExperimentalSerializationApi::class)
+constructor(
+  @SerialName("mime_type") @JsonNames("mimeType") val mimeType: String,
+  @SerialName("file_uri") @JsonNames("fileUri") val fileUri: String,
 )
 
-@Serializable data class Blob(@SerialName("mime_type") val mimeType: String, val data: Base64)
+@Serializable
+data class Blob
+@OptIn(ExperimentalSerializationApi::class)
+constructor(@SerialName("mime_type") @JsonNames("mimeType") val mimeType: String, val data: Base64)
 
 @Serializable data class ExecutableCode(val language: String, val code: String)
 
@@ -118,11 +147,47 @@ object PartSerializer : JsonContentPolymorphicSerializer<Part>(Part::class) {
       "text" in jsonObject -> TextPart.serializer()
       "functionCall" in jsonObject -> FunctionCallPart.serializer()
       "functionResponse" in jsonObject -> FunctionResponsePart.serializer()
-      "inlineData" in jsonObject -> BlobPart.serializer()
-      "fileData" in jsonObject -> FileDataPart.serializer()
+      "inlineData" in jsonObject || "inline_data" in jsonObject -> BlobPart.serializer()
+      "fileData" in jsonObject || "file_data" in jsonObject -> FileDataPart.serializer()
       "executableCode" in jsonObject -> ExecutableCodePart.serializer()
       "codeExecutionResult" in jsonObject -> CodeExecutionResultPart.serializer()
       else -> throw SerializationException("Unknown Part type")
     }
   }
 }
+
+/** The form a [FunctionCall] takes on the wire. */
+@Serializable
+@SerialName("FunctionCall")
+private class FunctionCallSurrogate(val name: String, val args: JsonObject? = null)
+
+/**
+ * Serializer for [FunctionCall] that keeps the arguments as they were sent, so that values which
+ * aren't strings can be decoded without going through [FunctionCall.args].
+ */
+object FunctionCallSerializer : KSerializer<FunctionCall> {
+  override val descriptor = FunctionCallSurrogate.serializer().descriptor
+
+  override fun deserialize(decoder: Decoder): FunctionCall {
+    val surrogate = decoder.decodeSerializableValue(FunctionCallSurrogate.serializer())
+    val args = surrogate.args?.mapValues { (_, value) -> value.toArgument() }
+    return FunctionCall(surrogate.name, args, surrogate.args)
+  }
+
+  override fun serialize(encoder: Encoder, value: FunctionCall) {
+    val args =
+      value.rawArgs
+        ?: value.args?.let { args -> JsonObject(args.mapValues { JsonPrimitive(it.value) }) }
+    encoder.encodeSerializableValue(
+      FunctionCallSurrogate.serializer(),
+      FunctionCallSurrogate(value.name, args),
+    )
+  }
+
+  private fun JsonElement.toArgument(): String? =
+    when (this) {
+      is JsonNull -> null
+      is JsonPrimitive -> content
+      else -> toString()
+    }
+}
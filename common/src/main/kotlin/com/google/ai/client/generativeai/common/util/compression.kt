@@ -0,0 +1,176 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common.util
+
+import com.google.ai.client.generativeai.common.CompressionAlgorithm
+import com.google.ai.client.generativeai.common.CompressionMetrics
+import com.google.ai.client.generativeai.common.CompressionOptions
+import io.ktor.client.plugins.api.createClientPlugin
+import io.ktor.client.request.HttpRequestPipeline
+import io.ktor.client.statement.HttpResponseContainer
+import io.ktor.client.statement.HttpResponsePipeline
+import io.ktor.http.HttpHeaders
+import io.ktor.http.content.OutgoingContent
+import io.ktor.http.content.TextContent
+import io.ktor.http.headersOf
+import io.ktor.util.Encoder
+import io.ktor.util.GZip
+import io.ktor.utils.io.ByteReadChannel
+import io.ktor.utils.io.ByteWriteChannel
+import io.ktor.utils.io.copyAndClose
+import io.ktor.utils.io.readAvailable
+import io.ktor.utils.io.writeFully
+import io.ktor.utils.io.writer
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import java.util.zip.ZipException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.coroutineScope
+
+internal class ContentCompressionConfig {
+  var options = CompressionOptions()
+  var metrics = CompressionMetrics()
+}
+
+/**
+ * Compresses request bodies, and decompresses the responses, as configured by the provided
+ * [CompressionOptions].
+ *
+ * Bodies are compressed while they are written to the connection, and responses are decompressed
+ * while they are read from it, so neither is ever held in memory in its compressed form.
+ *
+ * Since the `Accept-Encoding` header is set explicitly, the engine leaves the decompression of
+ * responses to this plugin, which lets the [CompressionMetrics] account for them too.
+ */
+internal val ContentCompression =
+  createClientPlugin("ContentCompression", ::ContentCompressionConfig) {
+    val options = pluginConfig.options
+    val metrics = pluginConfig.metrics
+    val encoder = options.algorithm.encoder
+
+    client.requestPipeline.intercept(HttpRequestPipeline.Render) { body ->
+      if (options.acceptCompressedResponses) {
+        context.headers[HttpHeaders.AcceptEncoding] =
+          CompressionAlgorithm.values().joinToString { it.contentEncoding }
+      }
+      if (body !is TextContent) return@intercept
+
+      val bytes = body.bytes()
+      if (bytes.size < options.minRequestBytes) return@intercept
+      proceedWith(CompressedContent(body, bytes, options.algorithm, encoder, metrics))
+    }
+
+    client.responsePipeline.intercept(HttpResponsePipeline.Receive) { (info, body) ->
+      if (body !is ByteReadChannel) return@intercept
+      val encoding = context.response.headers[HttpHeaders.ContentEncoding] ?: return@intercept
+      val algorithm =
+        CompressionAlgorithm.values().firstOrNull { it.contentEncoding == encoding.trim() }
+          ?: return@intercept
+
+      val response = context.response
+      val received = response.counting(body, metrics::onResponseReceived)
+      val decoded = with(algorithm.encoder) { response.decode(received) }
+      proceedWith(
+        HttpResponseContainer(info, response.counting(decoded, metrics::onResponseDecompressed))
+      )
+    }
+  }
+
+/** A request body that is compressed while it is written. */
+private class CompressedContent(
+  original: TextContent,
+  private val bytes: ByteArray,
+  algorithm: CompressionAlgorithm,
+  private val encoder: Encoder,
+  private val metrics: CompressionMetrics,
+) : OutgoingContent.WriteChannelContent() {
+  override val contentType = original.contentType
+  override val headers = headersOf(HttpHeaders.ContentEncoding, algorithm.contentEncoding)
+
+  override suspend fun writeTo(channel: ByteWriteChannel) = coroutineScope {
+    val sent = with(encoder) { encode(ByteReadChannel(bytes)) }.copyAndClose(channel)
+    metrics.onRequest(bytes.size.toLong(), sent)
+  }
+}
+
+private val CompressionAlgorithm.encoder: Encoder
+  get() =
+    when (this) {
+      CompressionAlgorithm.GZIP -> GZip
+      CompressionAlgorithm.DEFLATE -> ZlibDeflate
+    }
+
+/**
+ * The `deflate` content coding, which (unlike ktor's own `Deflate`) is framed in the zlib format,
+ * as HTTP requires.
+ */
+private object ZlibDeflate : Encoder {
+  override fun CoroutineScope.encode(source: ByteReadChannel) =
+    writer {
+        val deflater = Deflater()
+        val input = ByteArray(BUFFER_SIZE)
+        val output = ByteArray(BUFFER_SIZE)
+        try {
+          while (true) {
+            val read = source.readAvailable(input)
+            if (read == -1) break
+            deflater.setInput(input, 0, read)
+            while (!deflater.needsInput()) {
+              channel.writeFully(output, 0, deflater.deflate(output))
+            }
+          }
+          deflater.finish()
+          while (!deflater.finished()) {
+            channel.writeFully(output, 0, deflater.deflate(output))
+          }
+        } finally {
+          deflater.end()
+        }
+      }
+      .channel
+
+  override fun CoroutineScope.decode(source: ByteReadChannel) =
+    writer {
+        val inflater = Inflater()
+        val input = ByteArray(BUFFER_SIZE)
+        val output = ByteArray(BUFFER_SIZE)
+        try {
+          while (!inflater.finished()) {
+            if (inflater.needsInput()) {
+              val read = source.readAvailable(input)
+              if (read == -1) throw ZipException("Unexpected end of the deflate stream")
+              inflater.setInput(input, 0, read)
+            }
+            val inflated = inflater.inflate(output)
+            // Otherwise, the stream asks for a preset dictionary, which HTTP doesn't provide
+            if (inflated == 0 && !inflater.needsInput() && !inflater.finished()) {
+              throw ZipException("The deflate stream can't be inflated any further")
+            }
+            channel.writeFully(output, 0, inflated)
+          }
+        } finally {
+          inflater.end()
+        }
+      }
+      .channel
+
+  private const val BUFFER_SIZE = 8192
+}
+
+/** Passes the [source] through, and reports how many bytes went through once it is exhausted. */
+private fun CoroutineScope.counting(source: ByteReadChannel, report: (Long) -> Unit) =
+  writer { report(source.copyAndClose(channel)) }.channel
@@ -21,10 +21,9 @@ package com.google.ai.client.generativeai.common.util
 import io.ktor.utils.io.ByteChannel
 import io.ktor.utils.io.ByteReadChannel
 import io.ktor.utils.io.close
-import io.ktor.utils.io.readUTF8Line
 import io.ktor.utils.io.writeFully
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.flow
 import kotlinx.serialization.SerializationException
 import kotlinx.serialization.json.Json
 
@@ -35,6 +34,9 @@ import kotlinx.serialization.json.Json
  * This extension function facilitates processing the stream of lines in a manner that takes into
  * account EOF/empty strings- and avoids calling [block] as such.
  *
+ * Lines are split out of a single buffer, which is reused for the whole channel, so the only
+ * allocation per line is the line itself. A line may end with either \n or \r\n.
+ *
  * Example usage:
  * ```
  * val channel: ByteReadChannel = ByteReadChannel("Hello, World!")
@@ -46,13 +48,55 @@ import kotlinx.serialization.json.Json
  * @param block A suspending function to process each line.
  */
 internal suspend fun ByteReadChannel.onEachLine(block: suspend (String) -> Unit) {
-  while (!isClosedForRead) {
-    awaitContent()
-    val line = readUTF8Line()?.takeUnless { it.isEmpty() } ?: continue
-    block(line)
+  var buffer = ByteArray(LINE_BUFFER_SIZE)
+  var start = 0
+  var end = 0
+  // The line is only searched for a newline from there, so that it's never scanned twice
+  var scanned = 0
+  while (true) {
+    val newline = buffer.indexOf(NEWLINE, scanned, end)
+    if (newline >= 0) {
+      val line = decodeLine(buffer, start, newline)
+      start = newline + 1
+      scanned = start
+      if (line.isNotEmpty()) block(line)
+      continue
+    }
+
+    // Makes room for the rest of the line, by moving its start to the beginning of the buffer
+    if (start > 0) {
+      buffer.copyInto(buffer, 0, start, end)
+      end -= start
+      start = 0
+    }
+    scanned = end
+    if (end == buffer.size) buffer = buffer.copyOf(buffer.size * 2)
+
+    val read = readAvailable(buffer, end, buffer.size - end)
+    if (read < 0) break
+    end += read
+  }
+  if (end > start) decodeLine(buffer, start, end).takeUnless { it.isEmpty() }?.let { block(it) }
+}
+
+private fun ByteArray.indexOf(byte: Byte, from: Int, to: Int): Int {
+  for (index in from until to) {
+    if (this[index] == byte) return index
   }
+  return -1
+}
+
+/** Decodes the line between [start] and [end], without the \r of a \r\n line ending. */
+private fun decodeLine(buffer: ByteArray, start: Int, end: Int): String {
+  val length =
+    if (end > start && buffer[end - 1] == CARRIAGE_RETURN) end - start - 1 else end - start
+  return String(buffer, start, length, Charsets.UTF_8)
 }
 
+private const val LINE_BUFFER_SIZE = 8 * 1024
+private const val NEWLINE = '\n'.code.toByte()
+private const val CARRIAGE_RETURN = '\r'.code.toByte()
+
 /**
  * Decodes a stream of JSON elements from the given [ByteReadChannel] into a [Flow] of objects of
  * type [T].
@@ -62,6 +106,8 @@ internal suspend fun ByteReadChannel.onEachLine(block: suspend (String) -> Unit)
  * assumes every event will only contain a named "data" part with a JSON object. Each data JSON is
  * decoded into an instance of [T] and emitted as it is read from the channel.
  *
+ * Nothing is read ahead: the [channel] is only read when the next object is collected.
+ *
  * Example usage:
  * ```
  * val json = Json { ignoreUnknownKeys = true } // Create a Json instance with any configurations
@@ -78,10 +124,10 @@ internal suspend fun ByteReadChannel.onEachLine(block: suspend (String) -> Unit)
  * @throws SerializationException in case of any decoding-specific error
  * @throws IllegalArgumentException if the decoded input is not a valid instance of [T]
  */
-internal inline fun <reified T> Json.decodeToFlow(channel: ByteReadChannel): Flow<T> = channelFlow {
+internal inline fun <reified T> Json.decodeToFlow(channel: ByteReadChannel): Flow<T> = flow {
   channel.onEachLine {
     val data = it.removePrefix("data:")
-    send(decodeFromString(data))
+    emit(decodeFromString(data))
   }
 }
 
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common.util
+
+import java.lang.management.ManagementFactory
+import kotlinx.coroutines.Job
+
+private val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+/**
+ * How many bytes the live threads of the process have allocated so far.
+ *
+ * Taking the difference of two calls measures the allocations of the code run in between, as long
+ * as the threads it ran on are still alive.
+ */
+internal fun allocatedBytes(): Long =
+  threads.getThreadAllocatedBytes(threads.allThreadIds).filter { it > 0 }.sum()
+
+/**
+ * How many bytes of the heap are in use, once as much garbage as possible has been collected.
+ *
+ * Garbage collection can only be requested, so this is an approximation; but a reliable enough one
+ * to tell megabytes that are leaked from the ones that are not.
+ */
+internal fun retainedHeapBytes(): Long {
+  val runtime = Runtime.getRuntime()
+  var retained = Long.MAX_VALUE
+  repeat(5) {
+    System.gc()
+    Thread.sleep(20)
+    retained = minOf(retained, runtime.totalMemory() - runtime.freeMemory())
+  }
+  return retained
+}
+
+/** How many coroutines started under this [Job], at any depth, are still active. */
+internal fun Job.activeDescendants(): Int =
+  children.sumOf { (if (it.isActive) 1 else 0) + it.activeDescendants() }
@@ -19,18 +19,26 @@ package com.google.ai.client.generativeai.common
 import com.google.ai.client.generativeai.common.client.FunctionCallingConfig
 import com.google.ai.client.generativeai.common.client.Tool
 import com.google.ai.client.generativeai.common.client.ToolConfig
+import com.google.ai.client.generativeai.common.server.Candidate
+import com.google.ai.client.generativeai.common.server.FinishReason
 import com.google.ai.client.generativeai.common.shared.Content
 import com.google.ai.client.generativeai.common.shared.TextPart
 import com.google.ai.client.generativeai.common.util.commonTest
 import com.google.ai.client.generativeai.common.util.createResponses
 import com.google.ai.client.generativeai.common.util.doBlocking
+import com.google.ai.client.generativeai.common.util.prepareResponse
 import com.google.ai.client.generativeai.common.util.prepareStreamingResponse
 import io.kotest.assertions.json.shouldContainJsonKey
 import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.comparables.shouldBeGreaterThan
+import io.kotest.matchers.comparables.shouldBeLessThan
 import io.kotest.matchers.shouldBe
 import io.kotest.matchers.string.shouldContain
+import io.kotest.matchers.types.shouldBeInstanceOf
 import io.ktor.client.engine.mock.MockEngine
 import io.ktor.client.engine.mock.respond
+import io.ktor.client.engine.mock.toByteArray
+import io.ktor.client.request.HttpRequestData
 import io.ktor.content.TextContent
 import io.ktor.http.HttpHeaders
 import io.ktor.http.HttpStatusCode
@@ -38,11 +46,34 @@ import io.ktor.http.headersOf
 import io.ktor.utils.io.ByteChannel
 import io.ktor.utils.io.close
 import io.ktor.utils.io.writeFully
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.InflaterInputStream
+import kotlin.concurrent.thread
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.nanoseconds
 import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.JsonObject
 import org.junit.Test
@@ -70,6 +101,20 @@ internal class APIControllerTests {
     }
   }
 
+  @Test
+  fun `(generateContentStream) records the latency of the first response`() = commonTest {
+    val response = createResponses("The", " world")
+    prepareStreamingResponse(response).forEach { channel.writeFully(it) }
+    channel.close()
+
+    withTimeout(testTimeout) {
+      apiController.generateContentStream(textGenerateContentRequest("test")).collect()
+    }
+
+    apiController.firstChunkLatency.count shouldBe 1
+    apiController.responseLatency.count shouldBe 0
+  }
+
   @Test
   fun `(generateContent) respects a custom timeout`() =
     commonTest(requestOptions = RequestOptions(2.seconds)) {
@@ -79,6 +124,52 @@ internal class APIControllerTests {
         }
       }
     }
+
+  @Test
+  fun `(generateContent) respects a per-call timeout`() = commonTest {
+    val options = CallOptions(timeout = 500.milliseconds)
+
+    shouldThrow<RequestTimeoutException> {
+      withTimeout(testTimeout) {
+        apiController.generateContent(textGenerateContentRequest("test"), options)
+      }
+    }
+  }
+
+  @Test
+  fun `(generateContentStream) times out when no response arrives in time`() = commonTest {
+    val options = CallOptions(firstResponseTimeout = 500.milliseconds)
+
+    shouldThrow<RequestTimeoutException> {
+      withTimeout(testTimeout) {
+        apiController.generateContentStream(textGenerateContentRequest("test"), options).collect()
+      }
+    }
+  }
+
+  @Test
+  fun `(generateContentStream) first response timeout doesn't limit later responses`() =
+    commonTest {
+      val options = CallOptions(firstResponseTimeout = 500.milliseconds)
+      val bytes = prepareStreamingResponse(createResponses("The", " world"))
+      channel.writeFully(bytes[0])
+
+      val responses =
+        withTimeout(testTimeout) {
+          coroutineScope {
+            launch {
+              delay(1.seconds)
+              channel.writeFully(bytes[1])
+              channel.close()
+            }
+            apiController
+              .generateContentStream(textGenerateContentRequest("test"), options)
+              .toList()
+          }
+        }
+
+      responses.size shouldBe 2
+    }
 }
 
 internal class RequestFormatTests {
@@ -350,3 +441,370 @@ fun textGenerateContentRequest(prompt: String) =
 
 fun textCountTokenRequest(prompt: String) =
   CountTokensRequest(generateContentRequest = textGenerateContentRequest(prompt))
+
+internal class StreamResumptionTests {
+  private val channels = List(3) { ByteChannel(autoFlush = true) }
+  private var requests = 0
+  private val mockEngine = MockEngine {
+    respond(
+      channels[requests++],
+      HttpStatusCode.OK,
+      headersOf(HttpHeaders.ContentType, "application/json"),
+    )
+  }
+
+  @Test
+  fun `a stream cut mid-way is continued where it stopped`() = doBlocking {
+    val firstReceived = CompletableDeferred<Unit>()
+    launch {
+      channels[0].writeResponse(responseOf("Hello"))
+      firstReceived.await()
+      channels[0].close(IOException("Connection reset"))
+
+      channels[1].writeResponse(responseOf(" world", FinishReason.STOP))
+      channels[1].close()
+    }
+
+    val responses =
+      withTimeout(5.seconds) {
+        controllerWith(maxStreamResumptions = 1)
+          .generateContentStream(textGenerateContentRequest("Greet me"))
+          .onEach { firstReceived.complete(Unit) }
+          .toList()
+      }
+
+    responses.textOf() shouldBe listOf("Hello", " world")
+    mockEngine.requestHistory.size shouldBe 2
+    mockEngine.requestHistory[1].contentsOf().last() shouldBe
+      Content("model", listOf(TextPart("Hello")))
+  }
+
+  @Test
+  fun `a stream stopped by max tokens is continued without the finish reason`() = doBlocking {
+    launch {
+      channels[0].writeResponse(responseOf("Once upon"))
+      channels[0].writeResponse(responseOf(" a", FinishReason.MAX_TOKENS))
+      channels[0].close()
+
+      channels[1].writeResponse(responseOf(" time", FinishReason.STOP))
+      channels[1].close()
+    }
+
+    val responses =
+      withTimeout(5.seconds) {
+        controllerWith(maxStreamResumptions = 1)
+          .generateContentStream(textGenerateContentRequest("Tell a story"))
+          .toList()
+      }
+
+    responses.textOf() shouldBe listOf("Once upon", " a", " time")
+    responses.map { it.candidates?.first()?.finishReason } shouldBe
+      listOf(null, null, FinishReason.STOP)
+    mockEngine.requestHistory[1].contentsOf().last() shouldBe
+      Content("model", listOf(TextPart("Once upon a")))
+  }
+
+  @Test
+  fun `a stream is only continued up to the maximum resumptions`() = doBlocking {
+    launch {
+      for (channel in channels.take(2)) {
+        channel.writeResponse(responseOf("More", FinishReason.MAX_TOKENS))
+        channel.close()
+      }
+    }
+
+    shouldThrow<ResponseStoppedException> {
+      withTimeout(5.seconds) {
+        controllerWith(maxStreamResumptions = 1)
+          .generateContentStream(textGenerateContentRequest("Go on"))
+          .collect()
+      }
+    }
+    mockEngine.requestHistory.size shouldBe 2
+  }
+
+  @Test
+  fun `a stream with a malformed response fails instead of being continued`() = doBlocking {
+    launch {
+      channels[0].writeResponse(responseOf("Hello"))
+      channels[0].writeFully("data: {\"candidates\": [\r\n\r\n".toByteArray())
+      channels[0].close()
+    }
+
+    shouldThrow<SerializationException> {
+      withTimeout(5.seconds) {
+        controllerWith(maxStreamResumptions = 1)
+          .generateContentStream(textGenerateContentRequest("Greet me"))
+          .collect()
+      }
+    }
+    mockEngine.requestHistory.size shouldBe 1
+  }
+
+  private fun controllerWith(maxStreamResumptions: Int) =
+    APIController(
+      "super_cool_test_key",
+      "gemini-pro-1.5",
+      RequestOptions(maxStreamResumptions = maxStreamResumptions),
+      mockEngine,
+      TEST_CLIENT_ID,
+      null,
+    )
+
+  private fun responseOf(text: String, finishReason: FinishReason? = null) =
+    GenerateContentResponse(
+      listOf(Candidate(Content("model", listOf(TextPart(text))), finishReason = finishReason))
+    )
+
+  private suspend fun ByteChannel.writeResponse(response: GenerateContentResponse) =
+    prepareStreamingResponse(listOf(response)).forEach { writeFully(it) }
+
+  private fun List<GenerateContentResponse>.textOf() = map {
+    (it.candidates?.first()?.content?.parts?.single() as TextPart).text
+  }
+
+  private fun HttpRequestData.contentsOf() =
+    JSON.decodeFromString<GenerateContentRequest>((body as TextContent).text).contents
+}
+
+internal class CompressionTests {
+  private val prompt = "Why is the sky blue? ".repeat(500)
+  private val received = mutableListOf<String>()
+
+  /** A stub backend that inflates and checks compressed requests, and compresses its responses. */
+  private fun backend(streaming: Boolean) = MockEngine { request ->
+    val encoding = request.body.headers[HttpHeaders.ContentEncoding]
+    val bytes = request.body.toByteArray()
+    received +=
+      when (encoding) {
+        "gzip" -> GZIPInputStream(bytes.inputStream()).readBytes().decodeToString()
+        "deflate" -> InflaterInputStream(bytes.inputStream()).readBytes().decodeToString()
+        else -> bytes.decodeToString()
+      }
+
+    val response = createResponses("The", " sky", " is", " blue")
+    val body =
+      if (streaming) prepareStreamingResponse(response).reduce { a, b -> a + b }
+      else prepareResponse(response.first())
+    val accepted = request.headers[HttpHeaders.AcceptEncoding].orEmpty()
+    if ("gzip" !in accepted) {
+      respond(body, HttpStatusCode.OK, headersOf(HttpHeaders.ContentType, "application/json"))
+    } else {
+      val compressed = ByteArrayOutputStream().also { GZIPOutputStream(it).use { it.write(body) } }
+      respond(
+        compressed.toByteArray(),
+        HttpStatusCode.OK,
+        headersOf(
+          HttpHeaders.ContentType to listOf("application/json"),
+          HttpHeaders.ContentEncoding to listOf("gzip"),
+        ),
+      )
+    }
+  }
+
+  @Test
+  fun `large requests are compressed, and compressed responses decoded`() = doBlocking {
+    val controller = controllerWith(backend(streaming = false), CompressionOptions())
+
+    val response = controller.generateContent(textGenerateContentRequest(prompt))
+
+    response.candidates?.first()?.content?.parts?.single() shouldBe TextPart("The")
+    JSON.decodeFromString<GenerateContentRequest>(received.single()) shouldBe
+      textGenerateContentRequest(prompt)
+    controller.compressionMetrics.let {
+      it.requestBytesBeforeCompression shouldBe received.single().length.toLong()
+      it.requestBytesAfterCompression shouldBeLessThan it.requestBytesBeforeCompression / 10
+      it.responseBytesBeforeDecompression shouldBeGreaterThan 0
+      it.responseBytesAfterDecompression shouldBe
+        prepareResponse(createResponses("The").first()).size.toLong()
+    }
+  }
+
+  @Test
+  fun `small requests are sent as they are`() = doBlocking {
+    val engine = backend(streaming = false)
+    val controller = controllerWith(engine, CompressionOptions())
+
+    controller.generateContent(textGenerateContentRequest("Hi"))
+
+    engine.requestHistory.single().body.shouldBeInstanceOf<TextContent>()
+    controller.compressionMetrics.requestBytesBeforeCompression shouldBe 0
+  }
+
+  @Test
+  fun `deflate can be used instead of gzip`() = doBlocking {
+    val options = CompressionOptions(algorithm = CompressionAlgorithm.DEFLATE)
+    val engine = backend(streaming = false)
+    val controller = controllerWith(engine, options)
+
+    controller.generateContent(textGenerateContentRequest(prompt))
+
+    engine.requestHistory.single().body.headers[HttpHeaders.ContentEncoding] shouldBe "deflate"
+    JSON.decodeFromString<GenerateContentRequest>(received.single()) shouldBe
+      textGenerateContentRequest(prompt)
+  }
+
+  @Test
+  fun `deflate responses that can't be inflated fail instead of hanging`() = doBlocking {
+    val body = prepareResponse(createResponses("The").first())
+    // A valid zlib stream, which can't be inflated without its preset dictionary
+    val compressed = ByteArrayOutputStream()
+    DeflaterOutputStream(compressed, Deflater().apply { setDictionary("The sky".toByteArray()) })
+      .use { it.write(body) }
+    val engine = MockEngine {
+      respond(
+        compressed.toByteArray(),
+        HttpStatusCode.OK,
+        headersOf(
+          HttpHeaders.ContentType to listOf("application/json"),
+          HttpHeaders.ContentEncoding to listOf("deflate"),
+        ),
+      )
+    }
+    val controller = controllerWith(engine, CompressionOptions())
+
+    // Only failing in time matters: whether the ZipException is kept as the cause depends on
+    // whether Ktor's converter finds the body closed already, or reads it first
+    shouldThrow<GoogleGenerativeAIException> {
+      withTimeout(5.seconds) { controller.generateContent(textGenerateContentRequest("Hi")) }
+    }
+  }
+
+  @Test
+  fun `compressed streams are decoded as they are read`() = doBlocking {
+    val controller = controllerWith(backend(streaming = true), CompressionOptions())
+
+    val responses = controller.generateContentStream(textGenerateContentRequest(prompt)).toList()
+
+    responses.map { (it.candidates?.first()?.content?.parts?.single() as TextPart).text } shouldBe
+      listOf("The", " sky", " is", " blue")
+  }
+
+  @Test
+  fun `compressed responses aren't asked for unless enabled`() = doBlocking {
+    val options = CompressionOptions(acceptCompressedResponses = false)
+    val engine = backend(streaming = false)
+    val controller = controllerWith(engine, options)
+
+    controller.generateContent(textGenerateContentRequest(prompt))
+
+    engine.requestHistory.single().headers[HttpHeaders.AcceptEncoding] shouldBe null
+    controller.compressionMetrics.responseBytesBeforeDecompression shouldBe 0
+  }
+
+  private fun controllerWith(engine: MockEngine, compression: CompressionOptions) =
+    APIController(
+      "super_cool_test_key",
+      "gemini-pro-1.5",
+      RequestOptions(compression = compression),
+      engine,
+      TEST_CLIENT_ID,
+      null,
+    )
+}
+
+internal class StreamCancellationTests {
+
+  @Test
+  fun `cancelling a stream releases its connection right away`() = doBlocking {
+    EndlessStreamServer().use { server ->
+      withTimeout(5.seconds) { server.controller().generateContentStream(request).first() }
+      val cancelledAt = System.nanoTime()
+
+      val releasedAt = withTimeout(5.seconds) { server.hangUp.await() }
+      (releasedAt - cancelledAt).nanoseconds shouldBeLessThan 500.milliseconds
+    }
+  }
+
+  @Test
+  fun `timing out a stream releases its connection right away`() = doBlocking {
+    EndlessStreamServer().use { server ->
+      // Long enough for the stream to start, even on a cold client
+      withTimeoutOrNull(2.seconds) { server.controller().generateContentStream(request).collect() }
+      val cancelledAt = System.nanoTime()
+
+      val releasedAt = withTimeout(5.seconds) { server.hangUp.await() }
+      (releasedAt - cancelledAt).nanoseconds shouldBeLessThan 500.milliseconds
+    }
+  }
+
+  private val request = textGenerateContentRequest("test")
+
+  /**
+   * A server streaming a response that never ends, on a real socket.
+   *
+   * [hangUp] completes with the time at which the client closed the connection.
+   */
+  private class EndlessStreamServer : Closeable {
+    private val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+    val hangUp = CompletableDeferred<Long>()
+
+    init {
+      thread(isDaemon = true) {
+        try {
+          server.accept().use { serve(it) }
+        } catch (e: IOException) {
+          // The server was closed
+        }
+      }
+    }
+
+    fun controller() =
+      APIController(
+        "super_cool_test_key",
+        "gemini-pro-1.5",
+        RequestOptions(endpoint = "http://127.0.0.1:${server.localPort}"),
+        TEST_CLIENT_ID,
+      )
+
+    private fun serve(socket: Socket) {
+      val input = socket.getInputStream()
+      val contentLength =
+        generateSequence { input.readLine() }
+          .takeWhile { it.isNotEmpty() }
+          .firstNotNullOfOrNull { it.substringAfter("Content-Length:", "").trim().toIntOrNull() }
+      repeat(contentLength ?: 0) { input.read() }
+
+      val output = socket.getOutputStream()
+      output.write(
+        "HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nTransfer-Encoding: chunked\r\n\r\n"
+          .toByteArray()
+      )
+      thread(isDaemon = true) {
+        val chunk = prepareStreamingResponse(createResponses("tick")).single()
+        try {
+          while (true) {
+            output.write(
+              "${chunk.size.toString(16)}\r\n".toByteArray() + chunk + "\r\n".toByteArray()
+            )
+            output.flush()
+            Thread.sleep(20)
+          }
+        } catch (e: IOException) {
+          // The client hung up
+        }
+      }
+
+      try {
+        while (input.read() != -1) {
+          // Nothing else is expected from the client
+        }
+      } catch (e: IOException) {
+        // The connection was reset
+      }
+      hangUp.complete(System.nanoTime())
+    }
+
+    private fun InputStream.readLine(): String {
+      val line = StringBuilder()
+      while (true) {
+        val char = read()
+        if (char == -1 || char == '\n'.code) break
+        if (char != '\r'.code) line.append(char.toChar())
+      }
+      return line.toString()
+    }
+
+    override fun close() = server.close()
+  }
+}
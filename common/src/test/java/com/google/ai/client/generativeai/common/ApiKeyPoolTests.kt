@@ -0,0 +1,227 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import com.google.ai.client.generativeai.common.util.createResponse
+import com.google.ai.client.generativeai.common.util.doBlocking
+import com.google.ai.client.generativeai.common.util.prepareResponse
+import com.google.ai.client.generativeai.common.util.prepareStreamingResponse
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.MockRequestHandleScope
+import io.ktor.client.engine.mock.respond
+import io.ktor.client.request.HttpRequestData
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.headersOf
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.withTimeout
+import org.junit.Test
+
+internal class ApiKeyPoolTests {
+  private val testTimeout = 5.seconds
+
+  @Test
+  fun `round robin spreads requests across the keys`() = doBlocking {
+    val engine = MockEngine { respondSuccess() }
+    val controller = createController(engine, ApiKeyPool(listOf("a", "b", "c")))
+
+    withTimeout(testTimeout) {
+      repeat(6) { controller.generateContent(textGenerateContentRequest("prompt")) }
+    }
+
+    engine.requestHistory.map { it.key } shouldBe listOf("a", "b", "c", "a", "b", "c")
+  }
+
+  @Test
+  fun `least loaded picks the key with the fewest requests in flight`() = doBlocking {
+    val slowResponse = CompletableDeferred<Unit>()
+    val engine = MockEngine {
+      if (it.key == "a") slowResponse.await()
+      respondSuccess()
+    }
+    val pool = ApiKeyPool(listOf("a", "b"), KeySelection.LEAST_LOADED)
+    val controller = createController(engine, pool)
+
+    withTimeout(testTimeout) {
+      val slow = async { controller.generateContent(textGenerateContentRequest("slow")) }
+      delay(50.milliseconds)
+      repeat(3) { controller.generateContent(textGenerateContentRequest("prompt")) }
+      pool.usage[0].inFlight shouldBe 1
+      slowResponse.complete(Unit)
+      slow.await()
+    }
+
+    pool.usage.map { it.requests } shouldBe listOf(1L, 3L)
+    pool.usage.map { it.inFlight } shouldBe listOf(0, 0)
+  }
+
+  @Test
+  fun `a key whose quota is depleted cools down while the others take over`() = doBlocking {
+    var quotaLeft = 0
+    val engine = MockEngine {
+      if (it.key == "a" && quotaLeft-- <= 0) respondError(429, QUOTA_MESSAGE) else respondSuccess()
+    }
+    val pool = ApiKeyPool(listOf("a", "b"), cooldown = 300.milliseconds)
+    val controller = createController(engine, pool)
+
+    withTimeout(testTimeout) {
+      repeat(3) { controller.generateContent(textGenerateContentRequest("prompt")) }
+      pool.usage[0].coolingDown shouldBe true
+
+      delay(400.milliseconds)
+      quotaLeft = 1
+      repeat(2) { controller.generateContent(textGenerateContentRequest("prompt")) }
+    }
+
+    engine.requestHistory.map { it.key } shouldBe listOf("a", "b", "b", "b", "a", "b")
+    pool.usage[0].let {
+      it.requests shouldBe 2
+      it.quotaExceeded shouldBe 1
+      it.coolingDown shouldBe false
+    }
+  }
+
+  @Test
+  fun `a rejected key is never used again`() = doBlocking {
+    val engine = MockEngine {
+      if (it.key == "b") respondError(400, INVALID_KEY_MESSAGE) else respondSuccess()
+    }
+    val pool = ApiKeyPool(listOf("a", "b"))
+    val controller = createController(engine, pool)
+
+    withTimeout(testTimeout) {
+      repeat(4) { controller.generateContent(textGenerateContentRequest("prompt")) }
+    }
+
+    engine.requestHistory.map { it.key } shouldBe listOf("a", "b", "a", "a", "a")
+    pool.usage[1].invalid shouldBe true
+  }
+
+  @Test
+  fun `streams fail over to another key before their first response`() = doBlocking {
+    val engine = MockEngine {
+      if (it.key == "a") {
+        respondError(429, QUOTA_MESSAGE)
+      } else {
+        respond(
+          prepareStreamingResponse(listOf(createResponse("Hello"))).single(),
+          HttpStatusCode.OK,
+          headersOf(HttpHeaders.ContentType, "text/event-stream"),
+        )
+      }
+    }
+    val controller = createController(engine, ApiKeyPool(listOf("a", "b")))
+
+    val responses =
+      withTimeout(testTimeout) {
+        controller.generateContentStream(textGenerateContentRequest("prompt")).toList()
+      }
+
+    responses.size shouldBe 1
+    engine.requestHistory.map { it.key } shouldBe listOf("a", "b")
+  }
+
+  @Test
+  fun `streams don't fail over once they responded`() = doBlocking {
+    val engine = MockEngine {
+      respond(
+        prepareStreamingResponse(listOf(createResponse("Hello"))).single(),
+        HttpStatusCode.OK,
+        headersOf(HttpHeaders.ContentType, "text/event-stream"),
+      )
+    }
+    val pool = ApiKeyPool(listOf("a", "b"))
+    val controller = createController(engine, pool)
+    val responses = mutableListOf<GenerateContentResponse>()
+
+    withTimeout(testTimeout) {
+      shouldThrow<QuotaExceededException> {
+        controller.generateContentStream(textGenerateContentRequest("prompt")).collect {
+          responses += it
+          throw QuotaExceededException(QUOTA_MESSAGE)
+        }
+      }
+    }
+
+    responses.size shouldBe 1
+    engine.requestHistory.map { it.key } shouldBe listOf("a")
+    pool.usage[0].coolingDown shouldBe false
+  }
+
+  @Test
+  fun `fails without a request once the quota of every key is depleted`() = doBlocking {
+    val engine = MockEngine { respondError(429, QUOTA_MESSAGE) }
+    val controller = createController(engine, ApiKeyPool(listOf("a", "b")))
+
+    withTimeout(testTimeout) {
+      shouldThrow<QuotaExceededException> {
+        controller.generateContent(textGenerateContentRequest("prompt"))
+      }
+      val concurrent =
+        List(3) {
+          async {
+            shouldThrow<QuotaExceededException> {
+              controller.generateContent(textGenerateContentRequest("prompt"))
+            }
+          }
+        }
+      concurrent.awaitAll()
+    }
+
+    engine.requestHistory.size shouldBe 2
+  }
+
+  private fun createController(engine: MockEngine, pool: ApiKeyPool) =
+    APIController(
+      "unused_key",
+      "gemini-pro-1.5",
+      RequestOptions(apiKeyPool = pool),
+      engine,
+      "genai-android/test",
+      null,
+    )
+
+  private val HttpRequestData.key
+    get() = headers["x-goog-api-key"]
+
+  private fun MockRequestHandleScope.respondSuccess() =
+    respond(
+      prepareResponse(createResponse("Hello")),
+      HttpStatusCode.OK,
+      headersOf(HttpHeaders.ContentType, "application/json"),
+    )
+
+  private fun MockRequestHandleScope.respondError(code: Int, message: String) =
+    respond(
+      """{"error": {"code": $code, "message": "$message", "details": []}}""",
+      HttpStatusCode.fromValue(code),
+      headersOf(HttpHeaders.ContentType, "application/json"),
+    )
+
+  companion object {
+    private const val QUOTA_MESSAGE = "Resource has been exhausted (e.g. check quota)."
+    private const val INVALID_KEY_MESSAGE = "API key not valid. Please pass a valid API key."
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import com.google.ai.client.generativeai.common.util.createResponse
+import com.google.ai.client.generativeai.common.util.doBlocking
+import com.google.ai.client.generativeai.common.util.prepareResponse
+import com.google.ai.client.generativeai.common.util.prepareStreamingResponse
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.longs.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.MockRequestHandleScope
+import io.ktor.client.engine.mock.respond
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.headersOf
+import java.io.IOException
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeout
+import org.junit.Test
+
+internal class CircuitBreakerTests {
+  private val testTimeout = 5.seconds
+  private val options =
+    CircuitBreakerOptions(
+      failureRateThreshold = 0.5,
+      windowSize = 4,
+      minimumRequests = 4,
+      openDuration = 200.milliseconds,
+    )
+
+  @Test
+  fun `opens once the failure rate is reached, and fails fast without requests`() = doBlocking {
+    var failing = true
+    val engine = MockEngine { if (failing) respondError() else respondSuccess() }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      failing = false
+      repeat(2) { controller.generateContent(textGenerateContentRequest("prompt")) }
+      failing = true
+      shouldThrow<ServerException> {
+        controller.generateContent(textGenerateContentRequest("prompt"))
+      }
+      controller.circuitBreakerMetrics?.state shouldBe CircuitState.CLOSED
+      shouldThrow<ServerException> {
+        controller.generateContent(textGenerateContentRequest("prompt"))
+      }
+      controller.circuitBreakerMetrics?.state shouldBe CircuitState.OPEN
+
+      val start = System.nanoTime()
+      repeat(1000) {
+        shouldThrow<CircuitOpenException> {
+          controller.generateContent(textGenerateContentRequest("prompt"))
+        }
+      }
+      (System.nanoTime() - start) / 1000 shouldBeLessThan 1.milliseconds.inWholeNanoseconds
+      shouldThrow<CircuitOpenException> { controller.countTokens(CountTokensRequest()) }
+    }
+
+    engine.requestHistory.size shouldBe 4
+    controller.circuitBreakerMetrics?.let {
+      it.timesOpened shouldBe 1
+      it.rejectedRequests shouldBe 1001
+      it.failureRate shouldBe 0.5
+    }
+  }
+
+  @Test
+  fun `a successful probe closes the circuit`() = doBlocking {
+    var failing = true
+    val engine = MockEngine { if (failing) respondError() else respondSuccess() }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(4) {
+        shouldThrow<ServerException> {
+          controller.generateContent(textGenerateContentRequest("prompt"))
+        }
+      }
+      delay(300.milliseconds)
+      controller.circuitBreakerMetrics?.state shouldBe CircuitState.HALF_OPEN
+
+      failing = false
+      controller.generateContent(textGenerateContentRequest("prompt"))
+    }
+
+    controller.circuitBreakerMetrics?.let {
+      it.state shouldBe CircuitState.CLOSED
+      it.failureRate shouldBe 0.0
+      it.timesOpened shouldBe 1
+      it.timesHalfOpened shouldBe 1
+      it.timesClosed shouldBe 1
+    }
+  }
+
+  @Test
+  fun `reading the metrics doesn't change the state of the circuit`() = doBlocking {
+    var failing = true
+    val engine = MockEngine { if (failing) respondError() else respondSuccess() }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(4) {
+        shouldThrow<ServerException> {
+          controller.generateContent(textGenerateContentRequest("prompt"))
+        }
+      }
+      delay(300.milliseconds)
+      repeat(3) {
+        controller.circuitBreakerMetrics?.let {
+          it.state shouldBe CircuitState.HALF_OPEN
+          it.timesHalfOpened shouldBe 1
+        }
+      }
+
+      failing = false
+      controller.generateContent(textGenerateContentRequest("probe"))
+    }
+
+    controller.circuitBreakerMetrics?.let {
+      it.state shouldBe CircuitState.CLOSED
+      it.timesHalfOpened shouldBe 1
+    }
+  }
+
+  @Test
+  fun `options are validated`() {
+    shouldThrow<IllegalArgumentException> { CircuitBreakerOptions(failureRateThreshold = 0.0) }
+    shouldThrow<IllegalArgumentException> { CircuitBreakerOptions(failureRateThreshold = 1.5) }
+    shouldThrow<IllegalArgumentException> { CircuitBreakerOptions(windowSize = 0) }
+    shouldThrow<IllegalArgumentException> { CircuitBreakerOptions(minimumRequests = 21) }
+    shouldThrow<IllegalArgumentException> { CircuitBreakerOptions(openDuration = 0.seconds) }
+    shouldThrow<IllegalArgumentException> { CircuitBreakerOptions(probeRequests = 0) }
+  }
+
+  @Test
+  fun `a failed probe opens the circuit again`() = doBlocking {
+    val engine = MockEngine { respondError() }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(4) {
+        shouldThrow<ServerException> {
+          controller.generateContent(textGenerateContentRequest("prompt"))
+        }
+      }
+      delay(300.milliseconds)
+      shouldThrow<ServerException> {
+        controller.generateContent(textGenerateContentRequest("prompt"))
+      }
+      shouldThrow<CircuitOpenException> {
+        controller.generateContent(textGenerateContentRequest("prompt"))
+      }
+    }
+
+    engine.requestHistory.size shouldBe 5
+    controller.circuitBreakerMetrics?.let {
+      it.state shouldBe CircuitState.OPEN
+      it.timesOpened shouldBe 2
+      it.timesClosed shouldBe 0
+    }
+  }
+
+  @Test
+  fun `only one probe is sent while the circuit is half-open`() = doBlocking {
+    val probeResponse = CompletableDeferred<Unit>()
+    var failing = true
+    val engine = MockEngine {
+      if (failing) {
+        respondError()
+      } else {
+        probeResponse.await()
+        respondSuccess()
+      }
+    }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(4) {
+        shouldThrow<ServerException> {
+          controller.generateContent(textGenerateContentRequest("prompt"))
+        }
+      }
+      delay(300.milliseconds)
+      failing = false
+
+      val probe = launch { controller.generateContent(textGenerateContentRequest("probe")) }
+      delay(50.milliseconds)
+      shouldThrow<CircuitOpenException> {
+        controller.generateContent(textGenerateContentRequest("prompt"))
+      }
+      probeResponse.complete(Unit)
+      probe.join()
+    }
+
+    controller.circuitBreakerMetrics?.state shouldBe CircuitState.CLOSED
+  }
+
+  @Test
+  fun `client errors and cancellations aren't counted as failures`() = doBlocking {
+    var status = HttpStatusCode.BadRequest
+    val engine = MockEngine {
+      if (status == HttpStatusCode.OK) CompletableDeferred<Unit>().await()
+      respondError(status)
+    }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(4) {
+        shouldThrow<InvalidAPIKeyException> {
+          controller.generateContent(textGenerateContentRequest("prompt"))
+        }
+      }
+      status = HttpStatusCode.OK
+      repeat(4) {
+        shouldThrow<GoogleGenerativeAIException> {
+          withTimeout(20.milliseconds) {
+            controller.generateContent(textGenerateContentRequest("prompt"))
+          }
+        }
+      }
+    }
+
+    controller.circuitBreakerMetrics?.let {
+      it.state shouldBe CircuitState.CLOSED
+      it.failureRate shouldBe 0.0
+    }
+  }
+
+  @Test
+  fun `a probe that gets a client error leaves the circuit half-open`() = doBlocking {
+    var status = HttpStatusCode.InternalServerError
+    val engine = MockEngine { respondError(status) }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(4) {
+        shouldThrow<ServerException> {
+          controller.generateContent(textGenerateContentRequest("prompt"))
+        }
+      }
+      delay(300.milliseconds)
+
+      status = HttpStatusCode.BadRequest
+      shouldThrow<InvalidAPIKeyException> {
+        controller.generateContent(textGenerateContentRequest("probe"))
+      }
+      controller.circuitBreakerMetrics?.state shouldBe CircuitState.HALF_OPEN
+
+      status = HttpStatusCode.InternalServerError
+      shouldThrow<ServerException> {
+        controller.generateContent(textGenerateContentRequest("probe"))
+      }
+    }
+
+    controller.circuitBreakerMetrics?.let {
+      it.state shouldBe CircuitState.OPEN
+      it.timesClosed shouldBe 0
+    }
+  }
+
+  @Test
+  fun `network errors are counted as failures`() = doBlocking {
+    val engine = MockEngine { throw IOException("Connection reset") }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(4) {
+        shouldThrow<UnknownException> {
+          controller.generateContent(textGenerateContentRequest("prompt"))
+        }
+      }
+    }
+
+    controller.circuitBreakerMetrics?.state shouldBe CircuitState.OPEN
+  }
+
+  @Test
+  fun `exceptions thrown by the collector of a stream aren't counted`() = doBlocking {
+    var failing = true
+    val engine = MockEngine {
+      if (failing) {
+        respondError()
+      } else {
+        respond(
+          prepareStreamingResponse(listOf(createResponse("Hello"))).single(),
+          HttpStatusCode.OK,
+          headersOf(HttpHeaders.ContentType, "text/event-stream"),
+        )
+      }
+    }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(2) {
+        shouldThrow<ServerException> {
+          controller.generateContentStream(textGenerateContentRequest("prompt")).toList()
+        }
+      }
+      failing = false
+      repeat(2) {
+        shouldThrow<IllegalStateException> {
+          controller.generateContentStream(textGenerateContentRequest("prompt")).collect {
+            throw IllegalStateException("Not counted")
+          }
+        }
+      }
+    }
+
+    controller.circuitBreakerMetrics?.let {
+      it.state shouldBe CircuitState.CLOSED
+      it.failureRate shouldBe 1.0
+    }
+  }
+
+  @Test
+  fun `streams are guarded too`() = doBlocking {
+    var failing = true
+    val engine = MockEngine {
+      if (failing) {
+        respondError()
+      } else {
+        respond(
+          prepareStreamingResponse(listOf(createResponse("Hello"))).single(),
+          HttpStatusCode.OK,
+          headersOf(HttpHeaders.ContentType, "text/event-stream"),
+        )
+      }
+    }
+    val controller = createController(engine)
+
+    withTimeout(testTimeout) {
+      repeat(4) {
+        shouldThrow<ServerException> {
+          controller.generateContentStream(textGenerateContentRequest("prompt")).toList()
+        }
+      }
+      shouldThrow<CircuitOpenException> {
+        controller.generateContentStream(textGenerateContentRequest("prompt")).toList()
+      }
+
+      delay(300.milliseconds)
+      failing = false
+      controller.generateContentStream(textGenerateContentRequest("prompt")).toList().size shouldBe
+        1
+    }
+
+    engine.requestHistory.size shouldBe 5
+    controller.circuitBreakerMetrics?.state shouldBe CircuitState.CLOSED
+  }
+
+  private fun createController(engine: MockEngine) =
+    APIController(
+      "super_cool_test_key",
+      "gemini-pro-1.5",
+      RequestOptions(circuitBreaker = options),
+      engine,
+      "genai-android/test",
+      null,
+    )
+
+  private fun MockRequestHandleScope.respondSuccess() =
+    respond(
+      prepareResponse(createResponse("Hello")),
+      HttpStatusCode.OK,
+      headersOf(HttpHeaders.ContentType, "application/json"),
+    )
+
+  private fun MockRequestHandleScope.respondError(
+    status: HttpStatusCode = HttpStatusCode.InternalServerError
+  ) =
+    respond(
+      """{"error": {"code": ${status.value}, "message": "${messageOf(status)}", "details": []}}""",
+      status,
+      headersOf(HttpHeaders.ContentType, "application/json"),
+    )
+
+  private fun messageOf(status: HttpStatusCode) =
+    if (status == HttpStatusCode.BadRequest) INVALID_KEY_MESSAGE else SERVER_ERROR_MESSAGE
+
+  companion object {
+    private const val INVALID_KEY_MESSAGE = "API key not valid. Please pass a valid API key."
+    private const val SERVER_ERROR_MESSAGE = "An internal error has occurred."
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import com.google.ai.client.generativeai.common.util.createResponse
+import com.google.ai.client.generativeai.common.util.doBlocking
+import com.google.ai.client.generativeai.common.util.prepareResponse
+import com.google.ai.client.generativeai.common.util.prepareStreamingResponse
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.MockRequestHandleScope
+import io.ktor.client.engine.mock.respond
+import io.ktor.client.request.HttpRequestData
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpMethod
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.headersOf
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.withTimeout
+import org.junit.Test
+
+internal class EndpointSetTests {
+  private val testTimeout = 5.seconds
+
+  @Test
+  fun `requests go to the endpoint with the lowest latency`() = doBlocking {
+    val engine = MockEngine {
+      delay(if (it.host == "slow") 100.milliseconds else 10.milliseconds)
+      respondSuccess()
+    }
+    val endpoints = EndpointSet(listOf("https://slow", "https://fast"))
+    val controller = createController(engine, endpoints)
+
+    withTimeout(testTimeout) {
+      repeat(5) { controller.generateContent(textGenerateContentRequest("prompt")) }
+    }
+
+    // Each endpoint is measured once, and the fastest one is used from then on
+    engine.requestHistory.map { it.host } shouldBe listOf("slow", "fast", "fast", "fast", "fast")
+    endpoints.status.map { it.requests } shouldBe listOf(1L, 4L)
+  }
+
+  @Test
+  fun `requests fail over, and failing endpoints are probed until they recover`() = doBlocking {
+    var failing = true
+    val engine = MockEngine {
+      if (it.host == "first" && failing) respondError(500, SERVER_ERROR_MESSAGE)
+      else respondSuccess()
+    }
+    val endpoints =
+      EndpointSet(listOf("https://first", "https://second"), probeInterval = 100.milliseconds)
+    val controller = createController(engine, endpoints)
+
+    withTimeout(testTimeout) {
+      repeat(3) { controller.generateContent(textGenerateContentRequest("prompt")) }
+      endpoints.status[0].healthy shouldBe false
+      delay(250.milliseconds)
+
+      failing = false
+      delay(200.milliseconds)
+      endpoints.status[0].healthy shouldBe true
+    }
+
+    val posts = engine.requestHistory.filter { it.method == HttpMethod.Post }
+    posts.map { it.host } shouldBe listOf("first", "second", "second", "second")
+    engine.requestHistory.any { it.method == HttpMethod.Get && it.host == "first" } shouldBe true
+    endpoints.status[0].failures shouldBe 1
+  }
+
+  @Test
+  fun `errors caused by the request don't fail over`() = doBlocking {
+    val engine = MockEngine { respondError(400, INVALID_KEY_MESSAGE) }
+    val endpoints = EndpointSet(listOf("https://first", "https://second"))
+    val controller = createController(engine, endpoints)
+
+    withTimeout(testTimeout) {
+      shouldThrow<InvalidAPIKeyException> {
+        controller.generateContent(textGenerateContentRequest("prompt"))
+      }
+    }
+
+    engine.requestHistory.size shouldBe 1
+    endpoints.status.map { it.healthy } shouldBe listOf(true, true)
+  }
+
+  @Test
+  fun `fails once every endpoint failed`() = doBlocking {
+    val engine = MockEngine { respondError(500, SERVER_ERROR_MESSAGE) }
+    val endpoints = EndpointSet(listOf("https://first", "https://second"))
+    val controller = createController(engine, endpoints)
+
+    withTimeout(testTimeout) {
+      shouldThrow<ServerException> {
+        controller.countTokens(CountTokensRequest(contents = emptyList()))
+      }
+    }
+
+    engine.requestHistory.map { it.host } shouldBe listOf("first", "second")
+  }
+
+  @Test
+  fun `streams fail over before their first response`() = doBlocking {
+    val engine = MockEngine {
+      if (it.host == "first") {
+        respondError(503, SERVER_ERROR_MESSAGE)
+      } else {
+        respond(
+          prepareStreamingResponse(listOf(createResponse("Hello"))).single(),
+          HttpStatusCode.OK,
+          headersOf(HttpHeaders.ContentType, "text/event-stream"),
+        )
+      }
+    }
+    val endpoints = EndpointSet(listOf("https://first", "https://second"))
+    val controller = createController(engine, endpoints)
+
+    val responses =
+      withTimeout(testTimeout) {
+        controller.generateContentStream(textGenerateContentRequest("prompt")).toList()
+      }
+
+    responses.size shouldBe 1
+    engine.requestHistory.map { it.host } shouldBe listOf("first", "second")
+    endpoints.status[1].latency?.isPositive() shouldBe true
+  }
+
+  @Test
+  fun `malformed responses and collector exceptions don't mark an endpoint as unhealthy`() =
+    doBlocking {
+      var body = prepareStreamingResponse(listOf(createResponse("Hello"))).single()
+      val engine = MockEngine {
+        respond(body, HttpStatusCode.OK, headersOf(HttpHeaders.ContentType, "text/event-stream"))
+      }
+      val endpoints = EndpointSet(listOf("https://first", "https://second"))
+      val controller = createController(engine, endpoints)
+
+      withTimeout(testTimeout) {
+        shouldThrow<IllegalStateException> {
+          controller.generateContentStream(textGenerateContentRequest("prompt")).collect {
+            throw IllegalStateException("Not the endpoint's fault")
+          }
+        }
+        body = "data: {\"candidates\": [\r\n\r\n".toByteArray()
+        shouldThrow<SerializationException> {
+          controller.generateContentStream(textGenerateContentRequest("prompt")).toList()
+        }
+      }
+
+      engine.requestHistory.size shouldBe 2
+      endpoints.status.map { it.healthy } shouldBe listOf(true, true)
+      endpoints.status.map { it.failures } shouldBe listOf(0L, 0L)
+    }
+
+  @Test
+  fun `options are validated`() {
+    val urls = listOf("https://first")
+    shouldThrow<IllegalArgumentException> { EndpointSet(emptyList()) }
+    shouldThrow<IllegalArgumentException> { EndpointSet(urls + urls) }
+    shouldThrow<IllegalArgumentException> { EndpointSet(urls, smoothing = 0.0) }
+    shouldThrow<IllegalArgumentException> { EndpointSet(urls, smoothing = 1.5) }
+    shouldThrow<IllegalArgumentException> { EndpointSet(urls, probeInterval = 0.seconds) }
+    shouldThrow<IllegalArgumentException> { EndpointSet(urls, probeInterval = (-1).seconds) }
+  }
+
+  private fun createController(engine: MockEngine, endpoints: EndpointSet) =
+    APIController(
+      "super_cool_test_key",
+      "gemini-pro-1.5",
+      RequestOptions(endpoints = endpoints),
+      engine,
+      "genai-android/test",
+      null,
+    )
+
+  private val HttpRequestData.host
+    get() = url.host
+
+  private fun MockRequestHandleScope.respondSuccess() =
+    respond(
+      prepareResponse(createResponse("Hello")),
+      HttpStatusCode.OK,
+      headersOf(HttpHeaders.ContentType, "application/json"),
+    )
+
+  private fun MockRequestHandleScope.respondError(code: Int, message: String) =
+    respond(
+      """{"error": {"code": $code, "message": "$message", "details": []}}""",
+      HttpStatusCode.fromValue(code),
+      headersOf(HttpHeaders.ContentType, "application/json"),
+    )
+
+  companion object {
+    private const val SERVER_ERROR_MESSAGE = "An internal error has occurred."
+    private const val INVALID_KEY_MESSAGE = "API key not valid. Please pass a valid API key."
+  }
+}
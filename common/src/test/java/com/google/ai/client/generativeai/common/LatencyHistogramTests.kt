@@ -0,0 +1,53 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import io.kotest.matchers.comparables.shouldBeGreaterThanOrEqualTo
+import io.kotest.matchers.comparables.shouldBeLessThan
+import io.kotest.matchers.nulls.shouldBeNull
+import kotlin.time.Duration.Companion.milliseconds
+import org.junit.Test
+
+internal class LatencyHistogramTests {
+
+  @Test
+  fun `percentile is null without any latencies`() {
+    LatencyHistogram().percentile(0.95).shouldBeNull()
+  }
+
+  @Test
+  fun `percentile is estimated within a bucket`() {
+    val histogram = LatencyHistogram()
+    repeat(95) { histogram.record(100.milliseconds) }
+    repeat(5) { histogram.record(2000.milliseconds) }
+
+    histogram.percentile(0.95)!!.let {
+      it shouldBeGreaterThanOrEqualTo 100.milliseconds
+      it shouldBeLessThan 125.milliseconds
+    }
+    histogram.percentile(0.99)!! shouldBeGreaterThanOrEqualTo 2000.milliseconds
+  }
+
+  @Test
+  fun `older latencies decay`() {
+    val histogram = LatencyHistogram()
+    repeat(1000) { histogram.record(2000.milliseconds) }
+    repeat(3000) { histogram.record(10.milliseconds) }
+
+    histogram.percentile(0.95)!! shouldBeLessThan 20.milliseconds
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import com.google.ai.client.generativeai.common.util.CommonTestScope
+import com.google.ai.client.generativeai.common.util.SSE_SEPARATOR
+import com.google.ai.client.generativeai.common.util.activeDescendants
+import com.google.ai.client.generativeai.common.util.allocatedBytes
+import com.google.ai.client.generativeai.common.util.commonTest
+import com.google.ai.client.generativeai.common.util.createRequest
+import com.google.ai.client.generativeai.common.util.createResponses
+import com.google.ai.client.generativeai.common.util.retainedHeapBytes
+import io.kotest.matchers.ints.shouldBeGreaterThan
+import io.kotest.matchers.longs.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import io.ktor.utils.io.close
+import io.ktor.utils.io.writeFully
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.flow.collectIndexed
+import kotlinx.coroutines.flow.count
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeout
+import kotlinx.serialization.encodeToString
+import org.junit.Test
+
+/**
+ * Regression tests for the cost of streaming long responses.
+ *
+ * Pushes thousands of events through [APIController.generateContentStream], and bounds what the
+ * stream allocates per chunk, how much of it stays on the heap once done, and how many coroutines
+ * it leaves behind. The bounds are well above what the stream currently uses, so that they only
+ * catch leaks and costs that grow with the length of the stream.
+ */
+internal class LongStreamTests {
+  private val testTimeout = 30.seconds
+
+  @Test
+  fun `allocations per chunk stay bounded`() {
+    streamChunks(WARM_UP_CHUNKS)
+
+    val short = allocationsPerChunk(SHORT_STREAM_CHUNKS)
+    val long = allocationsPerChunk(LONG_STREAM_CHUNKS)
+
+    long shouldBeLessThan MAX_BYTES_PER_CHUNK
+    // Costs that grow with the length of the stream, like copying what was received so far
+    long shouldBeLessThan short * 2
+  }
+
+  @Test
+  fun `nothing is retained once the stream completes`() {
+    streamChunks(WARM_UP_CHUNKS)
+    val before = retainedHeapBytes()
+
+    streamChunks(LONG_STREAM_CHUNKS)
+
+    retainedHeapBytes() - before shouldBeLessThan MAX_RETAINED_BYTES
+  }
+
+  @Test
+  fun `no coroutines are left alive once the stream completes`() = commonTest {
+    val baseline = liveCoroutines()
+
+    stream(LONG_STREAM_CHUNKS) shouldBe LONG_STREAM_CHUNKS
+
+    liveCoroutines() shouldBe baseline
+  }
+
+  @Test
+  fun `no coroutines are left alive once the stream is cancelled`() = commonTest {
+    val baseline = liveCoroutines()
+    var whileStreaming = 0
+
+    withTimeout(testTimeout) {
+      val writer = launch { writeEvents(LONG_STREAM_CHUNKS) }
+      apiController
+        .generateContentStream(createRequest("Tell me a long story"))
+        .take(SHORT_STREAM_CHUNKS)
+        .collectIndexed { index, _ -> if (index == 0) whileStreaming = liveCoroutines() }
+      writer.cancelAndJoin()
+    }
+
+    whileStreaming shouldBeGreaterThan baseline
+    liveCoroutines() shouldBe baseline
+  }
+
+  private fun allocationsPerChunk(chunks: Int): Long {
+    val before = allocatedBytes()
+    streamChunks(chunks)
+    return (allocatedBytes() - before) / chunks
+  }
+
+  private fun streamChunks(chunks: Int) = commonTest { stream(chunks) shouldBe chunks }
+
+  /** Streams [chunks] events through the [apiController], returning how many were received. */
+  private suspend fun CommonTestScope.stream(chunks: Int): Int =
+    withTimeout(testTimeout) {
+      launch { writeEvents(chunks) }
+      apiController.generateContentStream(createRequest("Tell me a long story")).count()
+    }
+
+  /** The coroutines started by the test itself, or by the [APIController] under its client. */
+  private suspend fun CommonTestScope.liveCoroutines() =
+    currentCoroutineContext().job.activeDescendants() +
+      apiController.client.engine.coroutineContext.job.activeDescendants()
+
+  private suspend fun CommonTestScope.writeEvents(chunks: Int) {
+    for (event in events.subList(0, chunks)) {
+      channel.writeFully(event)
+    }
+    channel.close()
+  }
+
+  companion object {
+    private const val WARM_UP_CHUNKS = 1_000
+    private const val SHORT_STREAM_CHUNKS = 1_000
+    private const val LONG_STREAM_CHUNKS = 10_000
+    private const val MAX_BYTES_PER_CHUNK = 64 * 1024L
+    private const val MAX_RETAINED_BYTES = 4 * 1024 * 1024L
+
+    /** Encoded ahead of time, so that only the SDK's allocations are measured. */
+    private val events =
+      createResponses(*Array(LONG_STREAM_CHUNKS) { "Chunk $it of a long story. " }).map {
+        "data: ${JSON.encodeToString(it)}$SSE_SEPARATOR".toByteArray()
+      }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common
+
+import com.google.ai.client.generativeai.common.client.FunctionCallingConfig
+import com.google.ai.client.generativeai.common.client.FunctionDeclaration
+import com.google.ai.client.generativeai.common.client.GenerationConfig
+import com.google.ai.client.generativeai.common.client.Schema
+import com.google.ai.client.generativeai.common.client.Tool
+import com.google.ai.client.generativeai.common.client.ToolConfig
+import com.google.ai.client.generativeai.common.shared.Content
+import com.google.ai.client.generativeai.common.shared.FunctionCall
+import com.google.ai.client.generativeai.common.shared.FunctionCallPart
+import com.google.ai.client.generativeai.common.shared.HarmBlockThreshold
+import com.google.ai.client.generativeai.common.shared.HarmCategory
+import com.google.ai.client.generativeai.common.shared.Part
+import com.google.ai.client.generativeai.common.shared.SafetySetting
+import com.google.ai.client.generativeai.common.shared.TextPart
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.string.shouldContain
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import org.junit.Test
+
+internal class RequestEncoderTests {
+  private val tools =
+    listOf(
+      Tool(
+        functionDeclarations =
+          List(3) {
+            FunctionDeclaration(
+              "lookup$it",
+              "Looks up an item",
+              Schema(
+                type = "OBJECT",
+                properties =
+                  mapOf(
+                    "id" to Schema(type = "STRING", description = "The id of the item"),
+                    "tags" to Schema(type = "ARRAY", items = Schema(type = "STRING")),
+                  ),
+                required = listOf("id"),
+              ),
+            )
+          }
+      )
+    )
+  private val request =
+    GenerateContentRequest(
+      model = "models/gemini-pro-1.5",
+      contents = listOf(Content(parts = listOf(TextPart("Hello")))),
+      safetySettings =
+        listOf(SafetySetting(HarmCategory.HARASSMENT, HarmBlockThreshold.BLOCK_ONLY_HIGH)),
+      generationConfig = GenerationConfig(0.5f, null, null, null, 100, listOf("STOP")),
+      tools = tools,
+      toolConfig = ToolConfig(FunctionCallingConfig(FunctionCallingConfig.Mode.AUTO)),
+      systemInstruction = Content("system", listOf(TextPart("Be brief"))),
+    )
+
+  @Test
+  fun `requests are encoded just like the serializer does`() {
+    RequestEncoder().encode(request) shouldBe JSON.encodeToString(request)
+  }
+
+  @Test
+  fun `requests without anything besides their contents are encoded just the same`() {
+    val minimal = GenerateContentRequest(contents = request.contents)
+
+    RequestEncoder().encode(minimal) shouldBe JSON.encodeToString(minimal)
+  }
+
+  @Test
+  fun `requests of the same model only differ by their contents`() {
+    val encoder = RequestEncoder()
+    encoder.encode(request)
+
+    val next = request.copy(contents = request.contents + Content(parts = listOf(TextPart("Bye"))))
+    encoder.encode(next) shouldBe JSON.encodeToString(next)
+  }
+
+  @Test
+  fun `requests with other tools are encoded again`() {
+    val encoder = RequestEncoder()
+    encoder.encode(request)
+
+    val other = request.copy(tools = tools.take(0), toolConfig = null)
+    encoder.encode(other) shouldBe JSON.encodeToString(other)
+  }
+
+  @Test
+  fun `function call arguments are sent back the way they were received`() {
+    val args = """{"city":"Paris","days":3,"units":{"metric":true},"tags":["a","b"]}"""
+    val call = JSON.decodeFromString<Part>("""{"functionCall":{"name":"forecast","args":$args}}""")
+    val next = request.copy(contents = request.contents + Content("model", listOf(call)))
+
+    (call as FunctionCallPart).functionCall.args shouldBe
+      mapOf(
+        "city" to "Paris",
+        "days" to "3",
+        "units" to """{"metric":true}""",
+        "tags" to """["a","b"]""",
+      )
+    RequestEncoder().encode(next) shouldContain """"args":$args"""
+  }
+
+  @Test
+  fun `function call arguments without their original form are sent as strings`() {
+    val call = FunctionCallPart(FunctionCall("forecast", mapOf("days" to "3", "city" to null)))
+    val next = request.copy(contents = request.contents + Content("model", listOf(call)))
+
+    RequestEncoder().encode(next) shouldContain """"args":{"days":"3","city":null}"""
+  }
+}
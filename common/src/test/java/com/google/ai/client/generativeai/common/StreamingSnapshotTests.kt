@@ -135,6 +135,21 @@ internal class StreamingSnapshotTests {
       }
     }
 
+  @Test
+  fun `stopped for safety with partial output`() =
+    goldenStreamingFile(
+      "failure-finish-reason-safety.txt",
+      requestOptions = RequestOptions(partialOutputOnStop = true),
+    ) {
+      val responses = apiController.generateContentStream(textGenerateContentRequest("prompt"))
+
+      withTimeout(testTimeout) {
+        val response = responses.toList().last()
+        response.candidates?.first()?.finishReason shouldBe FinishReason.SAFETY
+        response.candidates?.first()?.content?.parts?.isEmpty() shouldBe false
+      }
+    }
+
   @Test
   fun `citation parsed correctly`() =
     goldenStreamingFile("success-citations.txt") {
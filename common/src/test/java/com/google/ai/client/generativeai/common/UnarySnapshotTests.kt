@@ -158,6 +158,19 @@ internal class UnarySnapshotTests {
       }
     }
 
+  @Test
+  fun `stopped for safety with partial output`() =
+    goldenUnaryFile(
+      "failure-finish-reason-safety.json",
+      requestOptions = RequestOptions(partialOutputOnStop = true),
+    ) {
+      withTimeout(testTimeout) {
+        val response = apiController.generateContent(textGenerateContentRequest("prompt"))
+
+        response.candidates?.first()?.finishReason shouldBe FinishReason.SAFETY
+      }
+    }
+
   @Test
   fun `citation returns correctly`() =
     goldenUnaryFile("success-citations.json") {
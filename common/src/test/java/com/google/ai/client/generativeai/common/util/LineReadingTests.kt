@@ -0,0 +1,80 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.common.util
+
+import io.kotest.matchers.shouldBe
+import io.ktor.utils.io.ByteChannel
+import io.ktor.utils.io.close
+import io.ktor.utils.io.writeFully
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeout
+import org.junit.Test
+
+internal class LineReadingTests {
+  private val testTimeout = 5.seconds
+
+  @Test
+  fun `lines are split out of writes of any size`() = doBlocking {
+    val bytes = "data: café\r\n\r\nsecond\nlast".toByteArray()
+    val channel = ByteChannel(autoFlush = true)
+    val lines = ArrayList<String>()
+
+    withTimeout(testTimeout) {
+      launch {
+        // One byte at a time, so that the two bytes of the é are written separately
+        for (byte in bytes) channel.writeFully(byteArrayOf(byte))
+        channel.close()
+      }
+      channel.onEachLine { lines += it }
+    }
+
+    lines shouldBe listOf("data: café", "second", "last")
+  }
+
+  @Test
+  fun `lines longer than the buffer are read whole`() = doBlocking {
+    val long = "x".repeat(20_000)
+    val channel = ByteChannel(autoFlush = true)
+    val lines = ArrayList<String>()
+
+    withTimeout(testTimeout) {
+      launch { channel.send("$long\r\n\r\nshort\r\n".toByteArray()) }
+      channel.onEachLine { lines += it }
+    }
+
+    lines shouldBe listOf(long, "short")
+  }
+
+  @Test
+  fun `long lines are read whole from many small writes`() = doBlocking {
+    val long = (0 until 20_000).joinToString("") { (it % 10).toString() }
+    val bytes = "first\n$long\r\nlast".toByteArray()
+    val channel = ByteChannel(autoFlush = true)
+    val lines = ArrayList<String>()
+
+    withTimeout(testTimeout) {
+      launch {
+        for (chunk in bytes.asList().chunked(61)) channel.writeFully(chunk.toByteArray())
+        channel.close()
+      }
+      channel.onEachLine { lines += it }
+    }
+
+    lines shouldBe listOf("first", long, "last")
+  }
+}
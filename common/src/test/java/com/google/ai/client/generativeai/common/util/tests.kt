@@ -128,12 +128,13 @@ internal fun commonTest(
 internal fun goldenStreamingFile(
   name: String,
   httpStatusCode: HttpStatusCode = HttpStatusCode.OK,
+  requestOptions: RequestOptions = RequestOptions(),
   block: CommonTest,
 ) = doBlocking {
   val goldenFile = loadGoldenFile("streaming/$name")
   val messages = goldenFile.readLines().filter { it.isNotBlank() }
 
-  commonTest(httpStatusCode) {
+  commonTest(httpStatusCode, requestOptions) {
     launch {
       for (message in messages) {
         channel.writeFully("$message$SSE_SEPARATOR".toByteArray())
@@ -158,9 +159,10 @@ internal fun goldenStreamingFile(
 internal fun goldenUnaryFile(
   name: String,
   httpStatusCode: HttpStatusCode = HttpStatusCode.OK,
+  requestOptions: RequestOptions = RequestOptions(),
   block: CommonTest,
 ) =
-  commonTest(httpStatusCode) {
+  commonTest(httpStatusCode, requestOptions) {
     val goldenFile = loadGoldenFile("unary/$name")
     val message = goldenFile.readText()
 
@@ -70,6 +70,11 @@ android {
     testOptions {
         unitTests.isReturnDefaultValues = true
     }
+
+    sourceSets {
+        // Test helpers shared with the tests of the common module
+        getByName("test").java.srcDir("../common/src/sharedTest/java")
+    }
 }
 
 dependencies {
@@ -90,6 +95,7 @@ dependencies {
     testImplementation("io.kotest:kotest-assertions-core:5.5.5")
     testImplementation("io.kotest:kotest-assertions-core-jvm:5.5.5")
     testImplementation("io.mockk:mockk:1.12.8")
+    testImplementation("io.ktor:ktor-client-mock:2.3.2")
     androidTestImplementation("androidx.test.ext:junit:1.1.5")
     androidTestImplementation("androidx.test.espresso:espresso-core:3.5.1")
 
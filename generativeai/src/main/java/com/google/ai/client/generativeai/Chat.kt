@@ -17,18 +17,28 @@
 package com.google.ai.client.generativeai
 
 import android.graphics.Bitmap
-import com.google.ai.client.generativeai.type.BlobPart
+import android.util.Log
+import com.google.ai.client.generativeai.internal.util.ContentAccumulator
+import com.google.ai.client.generativeai.internal.util.FunctionCallExecutor
+import com.google.ai.client.generativeai.internal.util.HistoryTracker
+import com.google.ai.client.generativeai.internal.util.StoredHistory
+import com.google.ai.client.generativeai.internal.util.toPublic
+import com.google.ai.client.generativeai.type.ChatHistoryStore
+import com.google.ai.client.generativeai.type.ChatOptions
 import com.google.ai.client.generativeai.type.Content
+import com.google.ai.client.generativeai.type.FunctionCallMetrics
+import com.google.ai.client.generativeai.type.FunctionCallPart
 import com.google.ai.client.generativeai.type.GenerateContentResponse
-import com.google.ai.client.generativeai.type.ImagePart
+import com.google.ai.client.generativeai.type.HistoryContext
+import com.google.ai.client.generativeai.type.HistoryMetrics
 import com.google.ai.client.generativeai.type.InvalidStateException
-import com.google.ai.client.generativeai.type.TextPart
+import com.google.ai.client.generativeai.type.TextStream
+import com.google.ai.client.generativeai.type.UsageMetadata
 import com.google.ai.client.generativeai.type.content
-import java.util.LinkedList
-import java.util.concurrent.Semaphore
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.onCompletion
-import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.sync.Mutex
 
 /**
  * Representation of a back and forth interaction with a model.
@@ -36,14 +46,47 @@ import kotlinx.coroutines.flow.onEach
  * Handles the capturing and storage of the communication with the model, providing methods for
  * further interaction.
  *
- * Note: This object is not thread-safe, and calling [sendMessage] multiple times without waiting
- * for a response will throw an [InvalidStateException].
+ * Note: By default, calling [sendMessage] multiple times without waiting for a response will throw
+ * an [InvalidStateException]. Set [ChatOptions.queueMessages] to have such messages wait for their
+ * turn instead. In either case, [history] should not be modified while a message is in flight.
+ * A streamed message is in flight for as long as its responses are being collected, so a message
+ * should never be sent from the collector of another one (see [sendMessageStream]).
+ *
+ * Which part of the [history] is sent along with each message is decided by the
+ * [ChatOptions.historyPolicy], and its effect can be observed through [historyMetrics].
+ *
+ * With [ChatOptions.autoFunctionCalling], the functions the model calls are run by the chat, and
+ * every exchange needed to get to the final response is part of the [history].
+ *
+ * A chat started from a [ChatHistoryStore] (see [GenerativeModel.startChat]) persists every
+ * exchange to it, and its [history] can only be appended to.
  *
  * @param model the model to use for the interaction
  * @property history the previous interactions with the model
+ * @property options configuration for how the conversation is managed
  */
-class Chat(private val model: GenerativeModel, val history: MutableList<Content> = ArrayList()) {
-  private var lock = Semaphore(1)
+class Chat
+@JvmOverloads
+constructor(
+  private val model: GenerativeModel,
+  val history: MutableList<Content> = ArrayList(),
+  val options: ChatOptions = ChatOptions(),
+) {
+  private val lock = Mutex()
+  private val tracker = HistoryTracker()
+  private val executor = options.autoFunctionCalling?.let { FunctionCallExecutor(it) }
+
+  /** A snapshot of how the [ChatOptions.historyPolicy] has affected the messages sent so far. */
+  val historyMetrics: HistoryMetrics
+    get() = tracker.metrics()
+
+  /**
+   * A snapshot of how the calls to each function went, by function name.
+   *
+   * Empty unless [ChatOptions.autoFunctionCalling] is set.
+   */
+  val functionCallMetrics: Map<String, FunctionCallMetrics>
+    get() = executor?.metrics.orEmpty()
 
   /**
    * Generates a response from the backend with the provided [Content], and any previous ones
@@ -51,18 +94,19 @@ class Chat(private val model: GenerativeModel, val history: MutableList<Content>
    *
    * @param prompt A [Content] to send to the model.
    * @throws InvalidStateException if the prompt is not coming from the 'user' role
-   * @throws InvalidStateException if the [Chat] instance has an active request.
+   * @throws InvalidStateException if the [Chat] instance has an active request, and
+   *   [ChatOptions.queueMessages] is not enabled.
    */
   suspend fun sendMessage(prompt: Content): GenerateContentResponse {
     prompt.assertComesFromUser()
-    attemptLock()
-    try {
-      val response = model.generateContent(*history.toTypedArray(), prompt)
-      history.add(prompt)
-      history.add(response.candidates.first().content)
-      return response
-    } finally {
-      lock.release()
+    return withLock {
+      var response = exchange(prompt)
+      var iterations = 0
+      while (true) {
+        val responses = runFunctionCalls(response.candidates.first().content, ++iterations) ?: break
+        response = exchange(responses)
+      }
+      response
     }
   }
 
@@ -91,63 +135,27 @@ class Chat(private val model: GenerativeModel, val history: MutableList<Content>
   /**
    * Generates a streaming response from the backend with the provided [Content]s.
    *
+   * The request is only made once the returned [Flow] is collected, and the [Chat] is considered
+   * busy until the collection completes, fails, or is cancelled. That includes the time spent in
+   * the collector, so the collector must not send another message to this chat: with
+   * [ChatOptions.queueMessages], that message would wait for the stream to complete, which never
+   * happens (a deadlock); without it, that message fails with an [InvalidStateException].
+   *
    * @param prompt A [Content] to send to the model.
-   * @return A [Flow] which will emit responses as they are returned from the model.
+   * @return A [Flow] which will emit responses as they are returned from the model, and fails with
+   *   an [InvalidStateException] when collected while the [Chat] instance has an active request,
+   *   and [ChatOptions.queueMessages] is not enabled.
    * @throws InvalidStateException if the prompt is not coming from the 'user' role
-   * @throws InvalidStateException if the [Chat] instance has an active request.
    */
-  fun sendMessageStream(prompt: Content): Flow<GenerateContentResponse> {
-    prompt.assertComesFromUser()
-    attemptLock()
-
-    val flow = model.generateContentStream(*history.toTypedArray(), prompt)
-    val bitmaps = LinkedList<Bitmap>()
-    val blobs = LinkedList<BlobPart>()
-    val text = StringBuilder()
-
-    /**
-     * TODO: revisit when images and blobs are returned. This will cause issues with how things are
-     *   structured in the response. eg; a text/image/text response will be (incorrectly)
-     *   represented as image/text
-     */
-    return flow
-      .onEach {
-        for (part in it.candidates.first().content.parts) {
-          when (part) {
-            is TextPart -> text.append(part.text)
-            is ImagePart -> bitmaps.add(part.image)
-            is BlobPart -> blobs.add(part)
-          }
-        }
-      }
-      .onCompletion {
-        lock.release()
-        if (it == null) {
-          val content =
-            content("model") {
-              for (bitmap in bitmaps) {
-                image(bitmap)
-              }
-              for (blob in blobs) {
-                blob(blob.mimeType, blob.blob)
-              }
-              if (text.isNotBlank()) {
-                text(text.toString())
-              }
-            }
-
-          history.add(prompt)
-          history.add(content)
-        }
-      }
-  }
+  fun sendMessageStream(prompt: Content): Flow<GenerateContentResponse> =
+    internalMessageStream(prompt).map { it.toPublic() }
 
   /**
    * Generates a streaming response from the backend with the provided [Content]s.
    *
    * @param prompt A [Content] to send to the model.
-   * @return A [Flow] which will emit responses as they are returned from the model.
-   * @throws InvalidStateException if the [Chat] instance has an active request.
+   * @return A [Flow] which will emit responses as they are returned from the model, and fails with
+   *   an [InvalidStateException] when collected while the [Chat] instance has an active request.
    */
   fun sendMessageStream(prompt: String): Flow<GenerateContentResponse> {
     val content = content { text(prompt) }
@@ -158,26 +166,159 @@ class Chat(private val model: GenerativeModel, val history: MutableList<Content>
    * Generates a streaming response from the backend with the provided [Content]s.
    *
    * @param prompt A [Content] to send to the model.
-   * @return A [Flow] which will emit responses as they are returned from the model.
-   * @throws InvalidStateException if the [Chat] instance has an active request.
+   * @return A [Flow] which will emit responses as they are returned from the model, and fails with
+   *   an [InvalidStateException] when collected while the [Chat] instance has an active request.
    */
   fun sendMessageStream(prompt: Bitmap): Flow<GenerateContentResponse> {
     val content = content { image(prompt) }
     return sendMessageStream(content)
   }
 
+  /**
+   * Generates a streaming response from the backend with the provided [Content], for callers that
+   * only need its text.
+   *
+   * The exchange is added to the [history] the same way as with [sendMessageStream], once the
+   * [TextStream.textDeltas] are collected. See [TextStream] for how its text and metadata are
+   * delivered.
+   *
+   * @param prompt A [Content] to send to the model.
+   * @return A [TextStream] which makes the request once its [TextStream.textDeltas] are collected.
+   *   Like with [sendMessageStream], collecting them fails with an [InvalidStateException] while
+   *   the [Chat] instance has an active request, and [ChatOptions.queueMessages] is not enabled.
+   * @throws InvalidStateException if the prompt is not coming from the 'user' role
+   */
+  fun sendMessageTextStream(prompt: Content): TextStream = TextStream(internalMessageStream(prompt))
+
+  /**
+   * Generates a streaming response from the backend with the provided text represented [Content],
+   * for callers that only need its text.
+   *
+   * @param prompt The text to be converted into a single piece of [Content] to send to the model.
+   * @return A [TextStream] which makes the request once its [TextStream.textDeltas] are collected.
+   */
+  fun sendMessageTextStream(prompt: String): TextStream =
+    sendMessageTextStream(content { text(prompt) })
+
+  /**
+   * Streams the responses to [prompt] in their internal form, and adds each exchange to the
+   * [history] once it completes.
+   */
+  private fun internalMessageStream(
+    prompt: Content
+  ): Flow<com.google.ai.client.generativeai.common.GenerateContentResponse> {
+    prompt.assertComesFromUser()
+
+    return flow {
+      withLock {
+        var next = prompt
+        var iterations = 0
+        while (true) {
+          val sent = selectHistory()
+          val accumulator = ContentAccumulator()
+          var usageMetadata: com.google.ai.client.generativeai.common.UsageMetadata? = null
+
+          model.internalContentStream(null, (sent + next).toTypedArray()).collect {
+            it.candidates?.firstOrNull()?.content?.let { content -> accumulator.append(content) }
+            usageMetadata = it.usageMetadata ?: usageMetadata
+            emit(it)
+          }
+
+          val response = accumulator.build()
+          commit(sent, next, response, usageMetadata?.toPublic())
+          next = runFunctionCalls(response, ++iterations) ?: break
+        }
+      }
+    }
+  }
+
   private fun Content.assertComesFromUser() {
     if (role !in listOf("user", "function")) {
       throw InvalidStateException("Chat prompts should come from the 'user' or 'function' role.")
     }
   }
 
+  /** Sends [prompt] along with the selected history, and adds the exchange to the [history]. */
+  private suspend fun exchange(prompt: Content): GenerateContentResponse {
+    val sent = selectHistory()
+    val response = model.generateContent(*sent.toTypedArray(), prompt)
+    commit(sent, prompt, response.candidates.first().content, response.usageMetadata)
+    return response
+  }
+
+  /**
+   * Runs the functions called in a [response], when [ChatOptions.autoFunctionCalling] can run all
+   * of them.
+   *
+   * @param iteration how many times functions will have been run for the current message
+   * @return the 'function' [Content] to send back to the model, or null if the [response] should be
+   *   returned as it is
+   */
+  private suspend fun runFunctionCalls(response: Content, iteration: Int): Content? {
+    val executor = executor ?: return null
+    val calls = response.parts.filterIsInstance<FunctionCallPart>()
+    if (!executor.canRun(calls)) return null
+    if (iteration > executor.maxIterations) {
+      Log.w(TAG, "Reached the maximum number of function calling iterations")
+      return null
+    }
+    return Content("function", executor.run(calls))
+  }
+
+  /** Selects the part of the [history] to send along with the next message. */
+  private suspend fun selectHistory(): List<Content> {
+    val snapshot = (history as? StoredHistory)?.snapshot() ?: history.toList()
+    val selected = options.historyPolicy.select(snapshot, HistoryContext(model, tracker))
+    tracker.onHistorySelected(snapshot, selected)
+    return selected
+  }
+
+  /**
+   * Adds a completed exchange to the [history], as a single operation.
+   *
+   * @param sent the history that was sent along with the [prompt]
+   * @param usageMetadata the token usage reported for the exchange, if any
+   */
+  private fun commit(
+    sent: List<Content>,
+    prompt: Content,
+    response: Content,
+    usageMetadata: UsageMetadata?,
+  ) {
+    history.addAll(listOf(prompt, response))
+    // Stored histories hand out their own instances, so those are the ones to keep track of
+    tracker.onExchange(sent, history[history.size - 2], history[history.size - 1], usageMetadata)
+  }
+
+  /**
+   * Runs [block] while holding the lock for this chat.
+   *
+   * Waits for the lock if [ChatOptions.queueMessages] is enabled, and fails immediately otherwise.
+   * The lock is always released once [block] completes, fails or is cancelled.
+   */
+  private suspend inline fun <T> withLock(block: () -> T): T {
+    if (options.queueMessages) {
+      lock.lock()
+    } else {
+      attemptLock()
+    }
+    try {
+      return block()
+    } finally {
+      lock.unlock()
+    }
+  }
+
   private fun attemptLock() {
-    if (!lock.tryAcquire()) {
+    if (!lock.tryLock()) {
       throw InvalidStateException(
         "This chat instance currently has an ongoing request, please wait for it to complete " +
           "before sending more messages"
       )
     }
   }
+
+  companion object {
+    private const val TAG = "Chat"
+  }
 }
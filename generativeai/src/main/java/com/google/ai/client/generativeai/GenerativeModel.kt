@@ -21,22 +21,36 @@ import com.google.ai.client.generativeai.common.APIController
 import com.google.ai.client.generativeai.common.CountTokensRequest
 import com.google.ai.client.generativeai.common.GenerateContentRequest
 import com.google.ai.client.generativeai.common.util.fullModelName
+import com.google.ai.client.generativeai.internal.util.RequestCoalescer
+import com.google.ai.client.generativeai.internal.util.RequestHedger
+import com.google.ai.client.generativeai.internal.util.RequestScheduler
+import com.google.ai.client.generativeai.internal.util.StoredHistory
 import com.google.ai.client.generativeai.internal.util.toInternal
 import com.google.ai.client.generativeai.internal.util.toPublic
+import com.google.ai.client.generativeai.type.CallOptions
+import com.google.ai.client.generativeai.type.ChatHistoryStore
+import com.google.ai.client.generativeai.type.ChatOptions
+import com.google.ai.client.generativeai.type.CircuitBreakerMetrics
+import com.google.ai.client.generativeai.type.CompressionMetrics
 import com.google.ai.client.generativeai.type.Content
 import com.google.ai.client.generativeai.type.CountTokensResponse
-import com.google.ai.client.generativeai.type.FinishReason
 import com.google.ai.client.generativeai.type.GenerateContentResponse
 import com.google.ai.client.generativeai.type.GenerationConfig
 import com.google.ai.client.generativeai.type.GoogleGenerativeAIException
-import com.google.ai.client.generativeai.type.PromptBlockedException
+import com.google.ai.client.generativeai.type.InvalidStateException
 import com.google.ai.client.generativeai.type.RequestOptions
-import com.google.ai.client.generativeai.type.ResponseStoppedException
+import com.google.ai.client.generativeai.type.RequestPriority
 import com.google.ai.client.generativeai.type.SafetySetting
-import com.google.ai.client.generativeai.type.SerializationException
+import com.google.ai.client.generativeai.type.SchedulingMetrics
+import com.google.ai.client.generativeai.type.StructuredValue
+import com.google.ai.client.generativeai.type.TextStream
 import com.google.ai.client.generativeai.type.Tool
 import com.google.ai.client.generativeai.type.ToolConfig
 import com.google.ai.client.generativeai.type.content
+import com.google.ai.client.generativeai.type.structuredValues
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.catch
 import kotlinx.coroutines.flow.map
@@ -94,6 +108,42 @@ internal constructor(
     ),
   )
 
+  private val hedger = requestOptions.hedging?.let { RequestHedger(it) }
+  private val scheduler = requestOptions.scheduling?.let { RequestScheduler(it) }
+  private val coalescer = if (requestOptions.coalesceRequests) RequestCoalescer() else null
+
+  // The parts of every request that never change, converted once (and encoded once by the
+  // controller, since each request holds the very same instances)
+  private val internalSafetySettings = safetySettings?.map { it.toInternal() }
+  private val internalGenerationConfig = generationConfig?.toInternal()
+  private val internalTools = tools?.map { it.toInternal() }
+  private val internalToolConfig = toolConfig?.toInternal()
+  private val internalSystemInstruction = systemInstruction?.toInternal()
+
+  /**
+   * A snapshot of how the requests of each [RequestPriority] class were scheduled so far.
+   *
+   * Empty unless [RequestOptions.scheduling] is set.
+   */
+  val schedulingMetrics: Map<RequestPriority, SchedulingMetrics>
+    get() = scheduler?.metrics() ?: emptyMap()
+
+  /**
+   * A snapshot of the bytes saved by compression so far.
+   *
+   * Always zero unless [RequestOptions.compression] is set.
+   */
+  val compressionMetrics: CompressionMetrics
+    get() = controller.compressionMetrics.toPublic()
+
+  /**
+   * A snapshot of the state of the circuit breaker, and of how it changed so far.
+   *
+   * Null unless [RequestOptions.circuitBreaker] is set.
+   */
+  val circuitBreakerMetrics: CircuitBreakerMetrics?
+    get() = controller.circuitBreakerMetrics?.toPublic()
+
   /**
    * Generates a response from the backend with the provided [Content]s.
    *
@@ -102,9 +152,41 @@ internal constructor(
    *   suspend context to properly manage concurrency.
    */
   suspend fun generateContent(vararg prompt: Content): GenerateContentResponse =
+    doGenerateContent(null, prompt)
+
+  /**
+   * Generates a response from the backend with the provided [Content]s, overriding the
+   * [RequestOptions] of this model for this call only.
+   *
+   * @param options The [CallOptions] to apply to this call.
+   * @param prompt A group of [Content]s to send to the model.
+   * @return A [GenerateContentResponse] after some delay. Function should be called within a
+   *   suspend context to properly manage concurrency.
+   */
+  suspend fun generateContent(
+    options: CallOptions,
+    vararg prompt: Content,
+  ): GenerateContentResponse = doGenerateContent(options, prompt)
+
+  private suspend fun doGenerateContent(
+    options: CallOptions?,
+    prompt: Array<out Content>,
+  ): GenerateContentResponse =
     try {
-      controller.generateContent(constructRequest(*prompt)).toPublic().validate()
+      val request = constructRequest(*prompt)
+      val internalOptions = options?.toInternal()
+      val response =
+        coalesce(listOf(request, internalOptions, options.priority())) {
+          schedule(options) {
+            hedger?.hedge(controller.responseLatency) {
+              controller.generateContent(request, internalOptions)
+            } ?: controller.generateContent(request, internalOptions)
+          }
+        }
+      response.toPublic()
     } catch (e: Throwable) {
+      // Being cancelled (eg; while queued by the scheduler) isn't an error, but timing out is
+      if (e !is TimeoutCancellationException) currentCoroutineContext().ensureActive()
       throw GoogleGenerativeAIException.from(e)
     }
 
@@ -115,10 +197,94 @@ internal constructor(
    * @return A [Flow] which will emit responses as they are returned from the model.
    */
   fun generateContentStream(vararg prompt: Content): Flow<GenerateContentResponse> =
-    controller
-      .generateContentStream(constructRequest(*prompt))
-      .catch { throw GoogleGenerativeAIException.from(it) }
-      .map { it.toPublic().validate() }
+    doGenerateContentStream(null, prompt)
+
+  /**
+   * Generates a streaming response from the backend with the provided [Content]s, overriding the
+   * [RequestOptions] of this model for this call only.
+   *
+   * @param options The [CallOptions] to apply to this call.
+   * @param prompt A group of [Content]s to send to the model.
+   * @return A [Flow] which will emit responses as they are returned from the model.
+   */
+  fun generateContentStream(
+    options: CallOptions,
+    vararg prompt: Content,
+  ): Flow<GenerateContentResponse> = doGenerateContentStream(options, prompt)
+
+  private fun doGenerateContentStream(
+    options: CallOptions?,
+    prompt: Array<out Content>,
+  ): Flow<GenerateContentResponse> = internalContentStream(options, prompt).map { it.toPublic() }
+
+  /**
+   * Streams the responses to [prompt] in their internal form, for callers that only convert some of
+   * their parts.
+   */
+  internal fun internalContentStream(
+    options: CallOptions?,
+    prompt: Array<out Content>,
+  ): Flow<com.google.ai.client.generativeai.common.GenerateContentResponse> {
+    val request = constructRequest(*prompt)
+    val internalOptions = options?.toInternal()
+    val responses =
+      controller
+        .generateContentStream(request, internalOptions)
+        .let { hedger?.hedge(controller.firstChunkLatency, it) ?: it }
+        .let { scheduler?.schedule(options.priority(), it) ?: it }
+        .let { coalescer?.coalesce(listOf(request, internalOptions, options.priority()), it) ?: it }
+    return responses.catch { throw GoogleGenerativeAIException.from(it) }
+  }
+
+  /**
+   * Generates a streaming response from the backend with the provided [Content]s, for callers that
+   * only need its text.
+   *
+   * See [TextStream] for how its text and metadata are delivered.
+   *
+   * @param prompt A group of [Content]s to send to the model.
+   * @return A [TextStream] which makes the request once its [TextStream.textDeltas] are collected.
+   */
+  fun generateTextStream(vararg prompt: Content): TextStream =
+    TextStream(internalContentStream(null, prompt))
+
+  /**
+   * Generates a streaming response from the backend with the provided text represented [Content],
+   * for callers that only need its text.
+   *
+   * @param prompt The text to be converted into a single piece of [Content] to send to the model.
+   * @return A [TextStream] which makes the request once its [TextStream.textDeltas] are collected.
+   */
+  fun generateTextStream(prompt: String): TextStream = generateTextStream(content { text(prompt) })
+
+  /**
+   * Generates a streaming structured response from the backend with the provided [Content]s, and
+   * emits each of its values as soon as it is complete.
+   *
+   * Requires the [GenerationConfig.responseSchema] of this model, which the values are decoded
+   * according to. See [structuredValues] for what is emitted.
+   *
+   * @param prompt A group of [Content]s to send to the model.
+   * @return A [Flow] which will emit the values of the response as they are complete.
+   * @throws InvalidStateException if this model has no [GenerationConfig.responseSchema]
+   */
+  fun generateStructuredStream(vararg prompt: Content): Flow<StructuredValue> {
+    val decoder =
+      generationConfig?.responseDecoder
+        ?: throw InvalidStateException("Structured output requires a responseSchema.")
+    return generateContentStream(*prompt).structuredValues(decoder)
+  }
+
+  /**
+   * Generates a streaming structured response from the backend with the provided text represented
+   * [Content], and emits each of its values as soon as it is complete.
+   *
+   * @param prompt The text to be converted into a single piece of [Content] to send to the model.
+   * @return A [Flow] which will emit the values of the response as they are complete.
+   * @throws InvalidStateException if this model has no [GenerationConfig.responseSchema]
+   */
+  fun generateStructuredStream(prompt: String): Flow<StructuredValue> =
+    generateStructuredStream(content { text(prompt) })
 
   /**
    * Generates a response from the backend with the provided text represented [Content].
@@ -158,8 +324,28 @@ internal constructor(
   fun generateContentStream(prompt: Bitmap): Flow<GenerateContentResponse> =
     generateContentStream(content { image(prompt) })
 
-  /** Creates a chat instance which internally tracks the ongoing conversation with the model */
-  fun startChat(history: List<Content> = emptyList()): Chat = Chat(this, history.toMutableList())
+  /**
+   * Creates a chat instance which internally tracks the ongoing conversation with the model
+   *
+   * @param history an existing history of context to use as a starting point
+   * @param options configuration for how the chat manages its conversation
+   */
+  @JvmOverloads
+  fun startChat(history: List<Content> = emptyList(), options: ChatOptions = ChatOptions()): Chat =
+    Chat(this, history.toMutableList(), options)
+
+  /**
+   * Creates a chat instance whose conversation is persisted to the provided [store].
+   *
+   * The chat picks up the conversation already in the [store] without reading any of it, and only
+   * reads back the parts of its history that a message actually sends.
+   *
+   * @param store where the conversation is persisted, and resumed from
+   * @param options configuration for how the chat manages its conversation
+   */
+  @JvmOverloads
+  fun startChat(store: ChatHistoryStore, options: ChatOptions = ChatOptions()): Chat =
+    Chat(this, StoredHistory(store), options)
 
   /**
    * Counts the number of tokens used in a prompt.
@@ -168,7 +354,8 @@ internal constructor(
    * @return A [CountTokensResponse] containing the number of tokens in the prompt.
    */
   suspend fun countTokens(vararg prompt: Content): CountTokensResponse {
-    return controller.countTokens(constructCountTokensRequest(*prompt)).toPublic()
+    val request = constructCountTokensRequest(*prompt)
+    return coalesce(request) { controller.countTokens(request) }.toPublic()
   }
 
   /**
@@ -191,28 +378,27 @@ internal constructor(
     return countTokens(content { image(prompt) })
   }
 
+  /** Runs [request] through the [scheduler], if there is one. */
+  private suspend fun <T> schedule(options: CallOptions?, request: suspend () -> T): T =
+    if (scheduler == null) request() else scheduler.schedule(options.priority(), request)
+
+  /** Runs [request] through the [coalescer], if there is one. */
+  private suspend fun <T> coalesce(key: Any, request: suspend () -> T): T =
+    if (coalescer == null) request() else coalescer.coalesce(key, request)
+
+  private fun CallOptions?.priority() = this?.priority ?: RequestPriority.INTERACTIVE
+
   private fun constructRequest(vararg prompt: Content) =
     GenerateContentRequest(
       modelName,
       prompt.map { it.toInternal() },
-      safetySettings?.map { it.toInternal() },
-      generationConfig?.toInternal(),
-      tools?.map { it.toInternal() },
-      toolConfig?.toInternal(),
-      systemInstruction?.toInternal(),
+      internalSafetySettings,
+      internalGenerationConfig,
+      internalTools,
+      internalToolConfig,
+      internalSystemInstruction,
     )
 
   private fun constructCountTokensRequest(vararg prompt: Content) =
     CountTokensRequest.forGenAI(constructRequest(*prompt))
-
-  private fun GenerateContentResponse.validate() = apply {
-    if (candidates.isEmpty() && promptFeedback == null) {
-      throw SerializationException("Error deserializing response, found no valid fields")
-    }
-    promptFeedback?.blockReason?.let { throw PromptBlockedException(this) }
-    candidates
-      .mapNotNull { it.finishReason }
-      .firstOrNull { it != FinishReason.STOP }
-      ?.let { throw ResponseStoppedException(this) }
-  }
 }
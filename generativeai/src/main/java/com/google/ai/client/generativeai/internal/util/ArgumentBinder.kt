@@ -0,0 +1,225 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.type.FunctionArguments
+import com.google.ai.client.generativeai.type.FunctionType
+import com.google.ai.client.generativeai.type.Schema
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.booleanOrNull
+
+/** Decodes a single JSON value according to the [Schema] it was compiled from. */
+internal fun interface ValueBinder {
+  fun bind(element: JsonElement): Any?
+}
+
+/**
+ * Decodes JSON objects into [FunctionArguments], according to the [Schema]s of their properties.
+ *
+ * Everything that depends on the schemas is worked out once, when the binder is created, so that
+ * decoding only has to walk the arguments themselves.
+ *
+ * @param properties the schemas of the properties an object may have
+ * @param required the names of the properties that must be provided
+ */
+internal class ObjectBinder(properties: Collection<Schema<*>>, required: Collection<String>) :
+  ValueBinder {
+  private val indices = HashMap<String, Int>(properties.size * 2)
+  private val binders = arrayOfNulls<ValueBinder>(properties.size)
+  private val nullable = BooleanArray(properties.size)
+  private val required: IntArray
+
+  init {
+    properties.forEachIndexed { index, schema ->
+      indices[schema.name] = index
+      binders[index] = compile(schema)
+      nullable[index] = schema.nullable == true
+    }
+    this.required = required.mapNotNull { indices[it] }.toIntArray()
+  }
+
+  val names: Set<String>
+    get() = indices.keys
+
+  fun indexOf(name: String): Int? = indices[name]
+
+  override fun bind(element: JsonElement): FunctionArguments {
+    val json = element.parsedIfString() as? JsonObject ?: throw mismatch("OBJECT", element)
+    val values = arrayOfNulls<Any?>(binders.size)
+    for ((name, value) in json) {
+      val index = indices[name] ?: continue
+      if (value is JsonNull) {
+        if (!nullable[index]) throw ArgumentException(name, "is not nullable, but was null")
+        continue
+      }
+      values[index] =
+        try {
+          binders[index]!!.bind(value)
+        } catch (e: ArgumentException) {
+          throw e.inside(name)
+        }
+    }
+    for (index in required) {
+      if (values[index] == null && !nullable[index]) {
+        throw ArgumentException(names.first { indices[it] == index }, "is required, but missing")
+      }
+    }
+    return FunctionArguments(this, values)
+  }
+
+  /** Decodes arguments that were provided in their string form. */
+  fun bind(args: Map<String, String?>): FunctionArguments =
+    bind(JsonObject(args.mapValues { JsonPrimitive(it.value) }))
+
+  fun toMap(values: Array<Any?>): Map<String, Any?> =
+    indices.entries
+      .filter { values[it.value] != null }
+      .associate { it.key to values[it.value].toPlainValue() }
+
+  private fun Any?.toPlainValue(): Any? =
+    when (this) {
+      is FunctionArguments -> toMap()
+      is List<*> -> map { it.toPlainValue() }
+      else -> this
+    }
+}
+
+/** Decodes arrays whose elements are all decoded by the same [items] binder. */
+private class ListBinder(private val items: ValueBinder) : ValueBinder {
+  override fun bind(element: JsonElement): List<Any?> {
+    val json = element.parsedIfString() as? JsonArray ?: throw mismatch("ARRAY", element)
+    val values = ArrayList<Any?>(json.size)
+    for (index in json.indices) {
+      values +=
+        try {
+          json[index].takeUnless { it is JsonNull }?.let { items.bind(it) }
+        } catch (e: ArgumentException) {
+          throw e.inside("[$index]")
+        }
+    }
+    return values
+  }
+}
+
+/** Creates the [ValueBinder] for values described by [schema]. */
+private fun compile(schema: Schema<*>): ValueBinder =
+  when (schema.type) {
+    FunctionType.STRING -> stringBinder(schema.enum?.toHashSet())
+    FunctionType.INTEGER ->
+      ValueBinder { element ->
+        element.primitive("INTEGER").let { it.content.toIntOrNull() ?: it.wholeNumber()?.toInt() }
+          ?: throw mismatch("INTEGER", element)
+      }
+    FunctionType.LONG ->
+      ValueBinder { element ->
+        element.primitive("INTEGER").let { it.content.toLongOrNull() ?: it.wholeNumber() }
+          ?: throw mismatch("INTEGER", element)
+      }
+    FunctionType.NUMBER ->
+      ValueBinder { element ->
+        element.primitive("NUMBER").content.toDoubleOrNull() ?: throw mismatch("NUMBER", element)
+      }
+    FunctionType.BOOLEAN ->
+      ValueBinder { element ->
+        element.primitive("BOOLEAN").booleanOrNull ?: throw mismatch("BOOLEAN", element)
+      }
+    FunctionType.ARRAY -> ListBinder(schema.items?.let { compile(it) } ?: ANY_BINDER)
+    FunctionType.OBJECT ->
+      ObjectBinder(schema.properties?.values.orEmpty(), schema.required.orEmpty())
+    else ->
+      ValueBinder { element ->
+        val string = if (element is JsonPrimitive) element.content else element.toString()
+        schema.type.parse(string)
+      }
+  }
+
+private fun stringBinder(values: Set<String>?) = ValueBinder { element ->
+  val string = element.primitive("STRING").content
+  if (values != null && string !in values) {
+    throw ArgumentException("", "should be one of $values, but was \"$string\"")
+  }
+  string
+}
+
+/** Decodes values without a schema into plain strings, numbers, booleans, lists and maps. */
+private val ANY_BINDER: ValueBinder = ValueBinder { it.toPlainValue() }
+
+private fun JsonElement.toPlainValue(): Any? =
+  when (this) {
+    is JsonNull -> null
+    is JsonPrimitive ->
+      when {
+        isString -> content
+        else -> booleanOrNull ?: content.toLongOrNull() ?: content.toDouble()
+      }
+    is JsonArray -> map { it.toPlainValue() }
+    is JsonObject -> mapValues { it.value.toPlainValue() }
+  }
+
+private fun JsonElement.primitive(type: String): JsonPrimitive =
+  this as? JsonPrimitive ?: throw mismatch(type, this)
+
+/** The value of a number such as `3.0`, which some encoders use for integers. */
+private fun JsonPrimitive.wholeNumber(): Long? =
+  content
+    .toDoubleOrNull()
+    ?.takeIf { it % 1.0 == 0.0 && it >= Long.MIN_VALUE && it <= Long.MAX_VALUE }
+    ?.toLong()
+
+/**
+ * Arrays and objects that were provided in their string form, such as the ones in
+ * [FunctionCallPart.args][com.google.ai.client.generativeai.type.FunctionCallPart.args], are parsed
+ * before being decoded.
+ */
+private fun JsonElement.parsedIfString(): JsonElement =
+  if (this is JsonPrimitive && isString) {
+    try {
+      Json.parseToJsonElement(content)
+    } catch (e: kotlinx.serialization.SerializationException) {
+      this
+    }
+  } else {
+    this
+  }
+
+private fun mismatch(type: String, element: JsonElement) =
+  ArgumentException("", "should be $type, but was $element")
+
+/**
+ * An argument didn't match its schema.
+ *
+ * @property path where the argument is, relative to the object that is being decoded
+ */
+internal class ArgumentException(val path: String, val reason: String) :
+  RuntimeException("Argument '$path' $reason") {
+
+  /** The same failure, for an argument inside of the property or element [name]. */
+  fun inside(name: String) =
+    ArgumentException(
+      when {
+        path.isEmpty() -> name
+        path.startsWith("[") -> "$name$path"
+        else -> "$name.$path"
+      },
+      reason,
+    )
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.type.FunctionType
+import com.google.ai.client.generativeai.type.Schema
+
+/**
+ * A [Schema] tree, with everything that decoding values depends on worked out once: what kind of
+ * value each node expects, the names of its fields and enum values, and which of its fields must be
+ * provided.
+ *
+ * Names are matched against the characters of a document as they are, so that fields and enum
+ * values that match the schema are decoded to the schema's own strings without allocating new ones.
+ * Schemas are small enough for matching them one by one to be cheaper than hashing.
+ */
+internal class CompiledSchema private constructor(schema: Schema<*>) {
+  val kind = Kind.of(schema.type)
+  val typeName: String = schema.type.name
+  private val parse = schema.type.parse
+
+  /** The values a string may have, if it is an enum, in the order they were declared. */
+  val enum: List<String>? = schema.enum?.toList()
+
+  /** The schemas of the elements of an array. */
+  val items: CompiledSchema? = schema.items?.let { compile(it) }
+
+  private val fieldNames: List<String> = schema.properties.orEmpty().keys.toList()
+  private val fields: List<CompiledSchema> = schema.properties.orEmpty().values.map { compile(it) }
+
+  /** The names of the fields of an object that must be provided, and can't be null. */
+  val required: Array<String> =
+    schema.required
+      .orEmpty()
+      .filter { schema.properties?.get(it)?.nullable != true }
+      // The instances fields are decoded with, which makes looking them up cheaper
+      .map { name -> fieldNames.firstOrNull { it == name } ?: name }
+      .toTypedArray()
+
+  /** The index of the field called [name], or -1 if the object has no such field. */
+  fun indexOfField(name: CharSequence): Int = indexOf(fieldNames, name)
+
+  fun fieldName(index: Int): String = fieldNames[index]
+
+  fun field(index: Int): CompiledSchema = fields[index]
+
+  /** The enum value spelled [value], or null if the enum has no such value. */
+  fun enumValue(value: CharSequence): String? = enum?.let { it.getOrNull(indexOf(it, value)) }
+
+  /** Decodes a value of a [Kind.CUSTOM] schema from its string form. */
+  fun parseCustom(value: String): Any? = parse(value)
+
+  enum class Kind {
+    STRING,
+    INTEGER,
+    LONG,
+    NUMBER,
+    BOOLEAN,
+    ARRAY,
+    OBJECT,
+    /**
+     * A [FunctionType] that isn't one of the predefined ones, decoded by its own parse function.
+     */
+    CUSTOM;
+
+    companion object {
+      fun of(type: FunctionType<*>) =
+        when (type) {
+          FunctionType.STRING -> STRING
+          FunctionType.INTEGER -> INTEGER
+          FunctionType.LONG -> LONG
+          FunctionType.NUMBER -> NUMBER
+          FunctionType.BOOLEAN -> BOOLEAN
+          FunctionType.ARRAY -> ARRAY
+          FunctionType.OBJECT -> OBJECT
+          else -> CUSTOM
+        }
+    }
+  }
+
+  companion object {
+    fun compile(schema: Schema<*>) = CompiledSchema(schema)
+
+    private fun indexOf(names: List<String>, name: CharSequence): Int {
+      for (index in names.indices) {
+        if (names[index].contentEquals(name)) return index
+      }
+      return -1
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.common.shared.Part
+import com.google.ai.client.generativeai.common.shared.TextPart
+import com.google.ai.client.generativeai.type.Content
+
+/**
+ * Assembles the [Content] of a streamed response, one chunk at a time.
+ *
+ * Parts are kept in the order they were received, with adjacent text parts merged into a single
+ * one. Both the public and the internal form of each part are tracked, so the assembled [Content]
+ * can be sent back to the model without converting its parts again.
+ *
+ * Example usage:
+ * ```
+ * val accumulator = ContentAccumulator()
+ * flow.collect { accumulator.append(it.candidates.first().content) }
+ *
+ * history.add(accumulator.build())
+ * ```
+ *
+ * @property role the role to assign to the assembled [Content]
+ */
+internal class ContentAccumulator(private val role: String? = "model") {
+  private val parts = ArrayList<com.google.ai.client.generativeai.type.Part>()
+  private val internalParts = ArrayList<Part>()
+  private val text = StringBuilder()
+
+  /**
+   * Appends the parts of the provided [content] after the ones already received.
+   *
+   * Uses the [internal form][Content.internalForm] of the [content] when it is available, and falls
+   * back to converting each part otherwise.
+   */
+  fun append(content: Content) {
+    val internal = content.internalForm?.parts?.takeIf { it.size == content.parts.size }
+
+    for (index in content.parts.indices) {
+      val part = content.parts[index]
+      if (part is com.google.ai.client.generativeai.type.TextPart) {
+        text.append(part.text)
+      } else {
+        flushText()
+        parts.add(part)
+        internalParts.add(internal?.get(index) ?: part.toInternal())
+      }
+    }
+  }
+
+  /**
+   * Appends the parts of the internal form of a [content] after the ones already received, only
+   * converting the parts that aren't text.
+   */
+  fun append(content: com.google.ai.client.generativeai.common.shared.Content) {
+    for (part in content.parts) {
+      if (part is TextPart) {
+        text.append(part.text)
+      } else {
+        flushText()
+        parts.add(part.toPublic())
+        internalParts.add(part)
+      }
+    }
+  }
+
+  /** Creates a [Content] out of all the parts appended so far. */
+  fun build(): Content {
+    flushText()
+    return Content(role, parts.toList()).also {
+      it.internalForm =
+        com.google.ai.client.generativeai.common.shared.Content(role, internalParts.toList())
+    }
+  }
+
+  private fun flushText() {
+    if (text.isNotBlank()) {
+      val value = text.toString()
+      parts.add(com.google.ai.client.generativeai.type.TextPart(value))
+      internalParts.add(TextPart(value))
+    }
+    text.setLength(0)
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import android.util.Log
+import com.google.ai.client.generativeai.common.LatencyHistogram
+import com.google.ai.client.generativeai.type.AutoFunctionCallingOptions
+import com.google.ai.client.generativeai.type.FunctionCallMetrics
+import com.google.ai.client.generativeai.type.FunctionCallPart
+import com.google.ai.client.generativeai.type.FunctionResponsePart
+import com.google.ai.client.generativeai.type.FunctionTool
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import org.json.JSONObject
+
+/**
+ * Runs the function calls of a response with the handlers of their [FunctionTool]s.
+ *
+ * Calls run in parallel, bounded by [AutoFunctionCallingOptions.maxConcurrentCalls] both in number
+ * and in threads. Responses of idempotent tools are kept in a least recently used cache, keyed by
+ * the decoded arguments of their call.
+ */
+internal class FunctionCallExecutor(private val options: AutoFunctionCallingOptions) {
+  private val tools = options.tools.associateBy { it.declaration.name }
+  private val permits = Semaphore(options.maxConcurrentCalls)
+  @OptIn(ExperimentalCoroutinesApi::class)
+  private val dispatcher = Dispatchers.IO.limitedParallelism(options.maxConcurrentCalls)
+  private val cache =
+    object : LinkedHashMap<CacheKey, JSONObject>(16, 0.75f, true) {
+      override fun removeEldestEntry(eldest: MutableMap.MutableEntry<CacheKey, JSONObject>) =
+        size > options.maxCachedResponses
+    }
+  private val stats = options.tools.associate { it.declaration.name to ToolStats() }
+
+  /** How many times functions may be run for a single message. */
+  val maxIterations: Int
+    get() = options.maxIterations
+
+  /** The metrics of every tool, by function name. */
+  val metrics: Map<String, FunctionCallMetrics>
+    get() = stats.mapValues { it.value.snapshot() }
+
+  /** Whether there are [calls] to run, and all of them can be run by the provided tools. */
+  fun canRun(calls: List<FunctionCallPart>) = calls.isNotEmpty() && calls.all { it.name in tools }
+
+  /** Runs every one of the [calls] at once, and returns their responses in the same order. */
+  suspend fun run(calls: List<FunctionCallPart>): List<FunctionResponsePart> = coroutineScope {
+    calls
+      .map { async { FunctionResponsePart(it.name, run(tools.getValue(it.name), it)) } }
+      .awaitAll()
+  }
+
+  private suspend fun run(tool: FunctionTool, call: FunctionCallPart): JSONObject {
+    val stats = stats.getValue(call.name)
+    stats.onCall()
+
+    val args =
+      try {
+        tool.declaration.decodeArguments(call)
+      } catch (e: Exception) {
+        stats.onFailure(timedOut = false)
+        return errorResponse(call, "Invalid arguments: ${e.message}", e)
+      }
+    val key = CacheKey(call.name, args.toMap()).takeIf { tool.idempotent }
+    key
+      ?.let { cached(it) }
+      ?.let {
+        stats.onCachedResponse()
+        return it
+      }
+
+    val timeout = tool.timeout ?: options.timeout
+    // Only set once a permit and a thread are available, so that waiting for them isn't counted
+    var start = 0L
+    val response =
+      try {
+        permits.withPermit {
+          withContext(dispatcher) {
+            start = System.nanoTime()
+            withTimeoutOrNull(timeout) { tool.handler.invoke(args) }
+          }
+        }
+      } catch (e: Exception) {
+        // Handlers may be cancelled by their own timeouts, which are failures like any other
+        if (e is CancellationException) currentCoroutineContext().ensureActive()
+        stats.onFailure(timedOut = false)
+        return errorResponse(call, e.message ?: e.javaClass.simpleName, e)
+      }
+    if (response == null) {
+      stats.onFailure(timedOut = true)
+      return errorResponse(call, "Timed out after $timeout", null)
+    }
+
+    stats.onResponse(System.nanoTime() - start)
+    key?.let { cache(it, response) }
+    return response
+  }
+
+  @Synchronized private fun cached(key: CacheKey): JSONObject? = cache[key]
+
+  @Synchronized
+  private fun cache(key: CacheKey, response: JSONObject) {
+    if (options.maxCachedResponses > 0) cache[key] = response
+  }
+
+  private fun errorResponse(
+    call: FunctionCallPart,
+    message: String,
+    cause: Throwable?,
+  ): JSONObject {
+    Log.w(TAG, "Call to '${call.name}' failed: $message", cause)
+    return JSONObject().put("error", message)
+  }
+
+  private data class CacheKey(val name: String, val args: Map<String, Any?>)
+
+  /** The counters behind the [FunctionCallMetrics] of a single tool. */
+  private class ToolStats {
+    private val latencies = LatencyHistogram()
+    private var calls = 0L
+    private var cachedResponses = 0L
+    private var failures = 0L
+    private var timeouts = 0L
+    private var responses = 0L
+    private var totalLatencyNanos = 0L
+    private var maxLatencyNanos = 0L
+
+    @Synchronized
+    fun onCall() {
+      calls++
+    }
+
+    @Synchronized
+    fun onCachedResponse() {
+      cachedResponses++
+    }
+
+    @Synchronized
+    fun onFailure(timedOut: Boolean) {
+      failures++
+      if (timedOut) timeouts++
+    }
+
+    @Synchronized
+    fun onResponse(latencyNanos: Long) {
+      responses++
+      totalLatencyNanos += latencyNanos
+      maxLatencyNanos = maxOf(maxLatencyNanos, latencyNanos)
+      latencies.record(latencyNanos.nanoseconds)
+    }
+
+    @Synchronized
+    fun snapshot() =
+      FunctionCallMetrics(
+        calls = calls,
+        cachedResponses = cachedResponses,
+        failures = failures,
+        timeouts = timeouts,
+        averageLatencyMillis =
+          if (responses == 0L) 0.0 else totalLatencyNanos / responses / NANOS_PER_MILLI,
+        p95LatencyMillis = latencies.percentile(0.95)?.inWholeMilliseconds ?: 0,
+        maxLatencyMillis = (maxLatencyNanos / NANOS_PER_MILLI).toLong(),
+      )
+  }
+
+  companion object {
+    private const val TAG = "FunctionCallExecutor"
+    private const val NANOS_PER_MILLI = 1_000_000.0
+  }
+}
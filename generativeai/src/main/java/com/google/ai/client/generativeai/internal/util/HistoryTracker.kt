@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.common.shared.BlobPart as BlobPart_Common
+import com.google.ai.client.generativeai.common.shared.CodeExecutionResultPart as CodeExecutionResultPart_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.ExecutableCodePart as ExecutableCodePart_Common
+import com.google.ai.client.generativeai.common.shared.FileDataPart as FileDataPart_Common
+import com.google.ai.client.generativeai.common.shared.FunctionCallPart as FunctionCallPart_Common
+import com.google.ai.client.generativeai.common.shared.FunctionResponsePart as FunctionResponsePart_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.type.BlobPart
+import com.google.ai.client.generativeai.type.CodeExecutionResultPart
+import com.google.ai.client.generativeai.type.Content
+import com.google.ai.client.generativeai.type.ExecutableCodePart
+import com.google.ai.client.generativeai.type.FileDataPart
+import com.google.ai.client.generativeai.type.FunctionCallPart
+import com.google.ai.client.generativeai.type.FunctionResponsePart
+import com.google.ai.client.generativeai.type.HistoryMetrics
+import com.google.ai.client.generativeai.type.ImagePart
+import com.google.ai.client.generativeai.type.TextPart
+import com.google.ai.client.generativeai.type.UsageMetadata
+import java.util.WeakHashMap
+
+/**
+ * Keeps track of how many tokens each [Content] of a chat's history costs, and of how many of them
+ * were actually sent.
+ *
+ * Token counts are derived from the [UsageMetadata] of each response: the response itself costs
+ * [UsageMetadata.candidatesTokenCount] tokens, and the prompt costs whatever part of the
+ * [UsageMetadata.promptTokenCount] isn't accounted for by the history sent alongside it. Contents
+ * that were never part of an exchange (eg; an initial history) are estimated from their size.
+ */
+internal class HistoryTracker {
+  private val tokenCounts = WeakHashMap<Content, Int>()
+
+  private var messagesSent = 0L
+  private var historyTokensSent = 0L
+  private var historyTokensSaved = 0L
+  private var summaries = 0L
+  private var summaryTokens = 0L
+
+  // The token count of the history up to (and including) lastCounted, so that only the contents
+  // added since have to be counted when selecting history for the next message
+  private var countedTokens = 0L
+  private var countedSize = 0
+  private var lastCounted: Content? = null
+
+  /** The number of tokens the provided [content] costs, measured or estimated. */
+  @Synchronized
+  fun tokenCount(content: Content): Int = tokenCounts[content] ?: estimateTokens(content)
+
+  /** Records that [selected] was sent instead of the full [history]. */
+  @Synchronized
+  fun onHistorySelected(history: List<Content>, selected: List<Content>) {
+    val full = countTokens(history)
+    val sent = selected.sumOf { tokenCount(it).toLong() }
+
+    messagesSent++
+    historyTokensSent += sent
+    historyTokensSaved += (full - sent).coerceAtLeast(0)
+  }
+
+  /** Records the token counts of a completed exchange, as reported in its [usage]. */
+  @Synchronized
+  fun onExchange(sent: List<Content>, prompt: Content, response: Content, usage: UsageMetadata?) {
+    if (usage == null || usage.promptTokenCount <= 0) return
+
+    val history = sent.sumOf { tokenCount(it) }
+    tokenCounts[prompt] = (usage.promptTokenCount - history).coerceAtLeast(0)
+    tokenCounts[response] = usage.candidatesTokenCount
+  }
+
+  /** Records a summarization request, and the [summary] it produced. */
+  @Synchronized
+  fun onSummary(summary: Content, usage: UsageMetadata?) {
+    summaries++
+    if (usage != null) {
+      summaryTokens += usage.totalTokenCount
+      tokenCounts[summary] = usage.candidatesTokenCount
+    }
+  }
+
+  @Synchronized
+  fun metrics() =
+    HistoryMetrics(messagesSent, historyTokensSent, historyTokensSaved, summaries, summaryTokens)
+
+  /** The token count of the full [history], only counting the contents added since last time. */
+  private fun countTokens(history: List<Content>): Long {
+    val isStillValid =
+      countedSize == 0 ||
+        (countedSize <= history.size && history[countedSize - 1] === lastCounted)
+    if (!isStillValid) {
+      countedTokens = 0
+      countedSize = 0
+    }
+
+    for (index in countedSize until history.size) {
+      countedTokens += tokenCount(history[index])
+    }
+    countedSize = history.size
+    lastCounted = history.lastOrNull()
+    return countedTokens
+  }
+
+  private fun estimateTokens(content: Content): Int {
+    (content.parts as? StoredParts)?.let {
+      return it.tokenCount.takeIf { count -> count >= 0 } ?: estimateTokens(it.content)
+    }
+    return content.parts.sumOf {
+      when (it) {
+        is TextPart -> it.text.length / CHARACTERS_PER_TOKEN
+        is ImagePart,
+        is BlobPart,
+        is FileDataPart -> TOKENS_PER_MEDIA
+        is FunctionCallPart -> it.args.toString().length / CHARACTERS_PER_TOKEN
+        is FunctionResponsePart -> it.response.toString().length / CHARACTERS_PER_TOKEN
+        is ExecutableCodePart -> it.code.length / CHARACTERS_PER_TOKEN
+        is CodeExecutionResultPart -> it.output.length / CHARACTERS_PER_TOKEN
+        else -> 0
+      }
+    }
+  }
+
+  companion object {
+    private const val CHARACTERS_PER_TOKEN = 4
+    private const val TOKENS_PER_MEDIA = 258
+
+    /**
+     * Estimates content from its serializable form, so its media never has to be decoded.
+     *
+     * Used for contents that are stored, so their estimate can be kept alongside them.
+     */
+    fun estimateTokens(content: Content_Common): Int =
+      content.parts.sumOf {
+        when (it) {
+          is TextPart_Common -> it.text.length / CHARACTERS_PER_TOKEN
+          is BlobPart_Common,
+          is FileDataPart_Common -> TOKENS_PER_MEDIA
+          is FunctionCallPart_Common ->
+            it.functionCall.args.toString().length / CHARACTERS_PER_TOKEN
+          is FunctionResponsePart_Common ->
+            it.functionResponse.response.toString().length / CHARACTERS_PER_TOKEN
+          is ExecutableCodePart_Common -> it.executableCode.code.length / CHARACTERS_PER_TOKEN
+          is CodeExecutionResultPart_Common ->
+            it.codeExecutionResult.output.length / CHARACTERS_PER_TOKEN
+          else -> 0
+        }
+      }
+  }
+}
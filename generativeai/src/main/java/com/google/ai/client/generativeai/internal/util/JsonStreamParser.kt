@@ -0,0 +1,426 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.internal.util.CompiledSchema.Kind
+import com.google.ai.client.generativeai.type.FunctionType
+import com.google.ai.client.generativeai.type.Schema
+
+/**
+ * Parses a JSON document that arrives in fragments, such as the text of a streamed structured
+ * response, and reports each of its values as soon as it is complete.
+ *
+ * Values are decoded according to the [Schema] at their position in the document: [String] for
+ * [FunctionType.STRING], [Int] for [FunctionType.INTEGER], [Long] for [FunctionType.LONG], [Double]
+ * for [FunctionType.NUMBER], [Boolean] for [FunctionType.BOOLEAN], a [List] for
+ * [FunctionType.ARRAY], and a [Map] in document order for [FunctionType.OBJECT]. Values without a
+ * schema are decoded as plain strings, longs, doubles, booleans, lists and maps.
+ *
+ * Every character is only looked at once, whatever the size of the fragments, and the values of
+ * containers are built from the already decoded values of their elements. Parsing and validating
+ * are a single pass, against a schema that was compiled beforehand.
+ *
+ * @param schema the compiled schema of the whole document, if any
+ * @param onValue called with the path and the value of every array element and object field once it
+ *   is complete, and of the whole document last
+ */
+internal class JsonStreamParser(
+  private val schema: CompiledSchema?,
+  private val onValue: ((path: List<Any>, value: Any?) -> Unit)? = null,
+) {
+  private val frames = ArrayList<Frame>()
+  private val token = StringBuilder()
+  private var state = State.VALUE
+  private var tokenIsKey = false
+  private var escaping = false
+  private var unicodeDigits = -1
+  private var unicodeValue = 0
+  private var result: Any? = null
+
+  private var line = 1
+  private var column = 0
+
+  /** Parses the next fragment of the document. */
+  fun feed(text: CharSequence) {
+    var index = 0
+    while (index < text.length) {
+      if (state == State.STRING && !escaping && unicodeDigits < 0) {
+        // The plain characters of strings make up most documents, so they're copied in runs
+        val start = index
+        while (index < text.length && text[index].let { it != '"' && it != '\\' && it != '\n' }) {
+          index++
+        }
+        token.append(text, start, index)
+        column += index - start
+        if (index == text.length) break
+      }
+      accept(text[index++])
+    }
+  }
+
+  /**
+   * Marks the end of the document.
+   *
+   * @return the value of the whole document
+   * @throws JsonStreamException if the document is incomplete
+   */
+  fun finish(): Any? {
+    if (state == State.NUMBER) completeNumber()
+    if (state != State.END) throw fail("ended before the JSON document was complete")
+    return result
+  }
+
+  private fun accept(c: Char) {
+    if (c == '\n') {
+      line++
+      column = 0
+    } else {
+      column++
+    }
+
+    when (state) {
+      State.STRING -> string(c)
+      State.NUMBER ->
+        if (c in '0'..'9' || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+          token.append(c)
+        } else {
+          completeNumber()
+          structural(c)
+        }
+      State.LITERAL -> literal(c)
+      else -> structural(c)
+    }
+  }
+
+  private fun structural(c: Char) {
+    if (c == ' ' || c == '\n' || c == '\r' || c == '\t') return
+    when (state) {
+      State.VALUE -> startValue(c)
+      State.FIRST_KEY ->
+        when (c) {
+          '"' -> startString(isKey = true)
+          '}' -> closeObject()
+          else -> throw unexpected(c, "a field name or '}'")
+        }
+      State.KEY -> if (c == '"') startString(isKey = true) else throw unexpected(c, "a field name")
+      State.COLON -> if (c == ':') state = State.VALUE else throw unexpected(c, "':'")
+      State.FIRST_ELEMENT -> if (c == ']') closeArray() else startValue(c)
+      State.AFTER_VALUE -> {
+        val top = frames.last()
+        when {
+          c == ',' -> state = if (top.isObject) State.KEY else State.VALUE
+          c == '}' && top.isObject -> closeObject()
+          c == ']' && !top.isObject -> closeArray()
+          else -> throw unexpected(c, if (top.isObject) "',' or '}'" else "',' or ']'")
+        }
+      }
+      State.END -> throw unexpected(c, "the end of the document")
+      else -> throw IllegalStateException("Unexpected state $state")
+    }
+  }
+
+  private fun startValue(c: Char) {
+    when (c) {
+      '{' -> {
+        frames += Frame(checkContainer(childSchema(), Kind.OBJECT), isObject = true)
+        state = State.FIRST_KEY
+      }
+      '[' -> {
+        frames += Frame(checkContainer(childSchema(), Kind.ARRAY), isObject = false)
+        state = State.FIRST_ELEMENT
+      }
+      '"' -> startString(isKey = false)
+      '-',
+      in '0'..'9' -> startToken(c, State.NUMBER)
+      't',
+      'f',
+      'n' -> startToken(c, State.LITERAL)
+      else -> throw unexpected(c, "a value")
+    }
+  }
+
+  private fun startToken(c: Char, next: State) {
+    token.setLength(0)
+    token.append(c)
+    state = next
+  }
+
+  private fun startString(isKey: Boolean) {
+    token.setLength(0)
+    tokenIsKey = isKey
+    state = State.STRING
+  }
+
+  private fun string(c: Char) {
+    when {
+      unicodeDigits >= 0 -> {
+        val digit = Character.digit(c, 16)
+        if (digit < 0) throw unexpected(c, "a hexadecimal digit")
+        unicodeValue = unicodeValue * 16 + digit
+        if (++unicodeDigits == 4) {
+          token.append(unicodeValue.toChar())
+          unicodeDigits = -1
+        }
+      }
+      escaping -> {
+        escaping = false
+        when (c) {
+          '"',
+          '\\',
+          '/' -> token.append(c)
+          'b' -> token.append('\b')
+          'f' -> token.append('\u000C')
+          'n' -> token.append('\n')
+          'r' -> token.append('\r')
+          't' -> token.append('\t')
+          'u' -> {
+            unicodeDigits = 0
+            unicodeValue = 0
+          }
+          else -> throw unexpected(c, "an escape sequence")
+        }
+      }
+      c == '\\' -> escaping = true
+      c == '"' ->
+        if (tokenIsKey) {
+          frames.last().startField(token)
+          state = State.COLON
+        } else {
+          completeString()
+        }
+      else -> token.append(c)
+    }
+  }
+
+  private fun literal(c: Char) {
+    token.append(c)
+    val literal =
+      when (token[0]) {
+        't' -> "true"
+        'f' -> "false"
+        else -> "null"
+      }
+    if (!literal.startsWith(token)) throw fail("should be a value, but was \"$token\"")
+    if (token.length == literal.length) completeScalar(literal, isString = false)
+  }
+
+  private fun completeNumber() {
+    val raw = token.toString()
+    val schema = childSchema()
+    when (schema?.kind) {
+      // Numeric schemas check their values while decoding them
+      Kind.INTEGER,
+      Kind.LONG,
+      Kind.NUMBER -> {}
+      // Most numbers are integers, for which the cheaper check is enough
+      else ->
+        if (raw.toLongOrNull() == null && parseDouble(raw) == null) {
+          throw fail("should be a number, but was $raw")
+        }
+    }
+    completeValue(decode(schema, raw, isString = false))
+  }
+
+  private fun completeString() {
+    val schema = childSchema()
+    if (schema?.kind == Kind.STRING && schema.enum != null) {
+      completeValue(enumValue(schema, token))
+    } else {
+      completeValue(decode(schema, token.toString(), isString = true))
+    }
+  }
+
+  private fun completeScalar(raw: String, isString: Boolean) {
+    val value = if (!isString && raw == "null") null else decode(childSchema(), raw, isString)
+    completeValue(value)
+  }
+
+  private fun closeObject() {
+    val frame = frames.removeAt(frames.size - 1)
+    val values = frame.fields!!
+    for (name in frame.schema?.required ?: NONE_REQUIRED) {
+      if (values[name] == null) {
+        // The object was already removed, so the path leads to it
+        throw JsonStreamException(path() + name, line, column, "is required, but missing")
+      }
+    }
+    completeValue(values)
+  }
+
+  private fun closeArray() {
+    completeValue(frames.removeAt(frames.size - 1).elements)
+  }
+
+  private fun completeValue(value: Any?) {
+    if (frames.isEmpty()) {
+      result = value
+      state = State.END
+      onValue?.invoke(emptyList(), value)
+      return
+    }
+    onValue?.invoke(path(), value)
+    frames.last().add(value)
+    state = State.AFTER_VALUE
+  }
+
+  /** The schema of the value that starts at the current position. */
+  private fun childSchema(): CompiledSchema? {
+    val top = frames.lastOrNull() ?: return schema
+    return if (top.isObject) top.field else top.schema?.items
+  }
+
+  private fun checkContainer(schema: CompiledSchema?, kind: Kind): CompiledSchema? {
+    if (schema == null || schema.kind == kind) return schema
+    if (schema.kind != Kind.CUSTOM) {
+      throw fail("should be ${schema.typeName}, but was an ${kind.name.lowercase()}")
+    }
+    // Custom types don't say what they expect, so their containers are decoded as plain values
+    return null
+  }
+
+  private fun decode(schema: CompiledSchema?, raw: String, isString: Boolean): Any? {
+    // Only strings are quoted: "20" isn't an INTEGER, nor is 42 a STRING. Custom types parse
+    // whichever form they were given.
+    when (schema?.kind) {
+      null,
+      Kind.CUSTOM -> {}
+      Kind.STRING -> if (!isString) mismatch(schema, raw)
+      else -> if (isString) mismatch(schema, "\"$raw\"")
+    }
+    return when (schema?.kind) {
+      null ->
+        if (isString) raw else raw.toBooleanStrictOrNull() ?: raw.toLongOrNull() ?: raw.toDouble()
+      Kind.STRING -> if (schema.enum == null) raw else enumValue(schema, raw)
+      Kind.INTEGER -> raw.toIntOrNull() ?: wholeNumber(raw)?.toInt() ?: mismatch(schema, raw)
+      Kind.LONG -> raw.toLongOrNull() ?: wholeNumber(raw) ?: mismatch(schema, raw)
+      Kind.NUMBER -> parseDouble(raw) ?: mismatch(schema, raw)
+      Kind.BOOLEAN -> raw.toBooleanStrictOrNull() ?: mismatch(schema, raw)
+      Kind.ARRAY,
+      Kind.OBJECT -> mismatch(schema, raw)
+      Kind.CUSTOM -> schema.parseCustom(raw)
+    }
+  }
+
+  private fun enumValue(schema: CompiledSchema, raw: CharSequence): String =
+    schema.enumValue(raw) ?: throw fail("should be one of ${schema.enum}, but was \"$raw\"")
+
+  /** The value of a number such as `3.0`, which some encoders use for integers. */
+  private fun wholeNumber(raw: String): Long? =
+    parseDouble(raw)
+      ?.takeIf { it % 1.0 == 0.0 && it >= Long.MIN_VALUE && it <= Long.MAX_VALUE }
+      ?.toLong()
+
+  /**
+   * Parses a number token, without the regular expression [String.toDoubleOrNull] screens its input
+   * with first.
+   *
+   * Only unquoted tokens get here, which hold nothing but digits, signs, `.`, `e` and `E`, so the
+   * other forms [String.toDouble] accepts (`NaN`, `Infinity`, `0x1p3` or `1d`) never do. Numbers too
+   * large for a [Double] aren't valid either, rather than becoming infinite.
+   */
+  private fun parseDouble(raw: String): Double? =
+    try {
+      raw.toDouble().takeIf { it.isFinite() }
+    } catch (e: NumberFormatException) {
+      null
+    }
+
+  private fun mismatch(schema: CompiledSchema, raw: String): Nothing =
+    throw fail("should be ${schema.typeName}, but was $raw")
+
+  private fun unexpected(c: Char, expected: String) = fail("should be $expected, but was '$c'")
+
+  private fun fail(reason: String) = JsonStreamException(path(), line, column, reason)
+
+  private fun path(): List<Any> = frames.map { it.segment }
+
+  private enum class State {
+    VALUE,
+    FIRST_KEY,
+    KEY,
+    COLON,
+    FIRST_ELEMENT,
+    AFTER_VALUE,
+    STRING,
+    NUMBER,
+    LITERAL,
+    END,
+  }
+
+  /** An array or object whose elements are being parsed. */
+  private class Frame(val schema: CompiledSchema?, val isObject: Boolean) {
+    val fields = if (isObject) LinkedHashMap<String, Any?>() else null
+    val elements = if (isObject) null else ArrayList<Any?>()
+    var key: String = ""
+      private set
+
+    /** The schema of the field that is being parsed, if the object's schema has such a field. */
+    var field: CompiledSchema? = null
+      private set
+
+    fun startField(name: CharSequence) {
+      val index = schema?.indexOfField(name) ?: -1
+      if (index < 0) {
+        key = name.toString()
+        field = null
+      } else {
+        key = schema!!.fieldName(index)
+        field = schema.field(index)
+      }
+    }
+
+    /** Where the element that is being parsed is in this container. */
+    val segment: Any
+      get() = if (isObject) key else elements!!.size
+
+    fun add(value: Any?) {
+      if (isObject) fields!![key] = value else elements!! += value
+    }
+  }
+
+  companion object {
+    private val NONE_REQUIRED = emptyArray<String>()
+  }
+}
+
+/**
+ * A JSON document was malformed, or didn't match its schema.
+ *
+ * @property path where the failing value is in the document, see [formatPath]
+ * @property line the line of the document the failure was found at, starting from 1
+ * @property column the column of the document the failure was found at, starting from 1
+ */
+internal class JsonStreamException(
+  val path: List<Any>,
+  val line: Int,
+  val column: Int,
+  val reason: String,
+) : RuntimeException("Value at '${formatPath(path)}' (line $line, column $column) $reason")
+
+/**
+ * Formats a path such as `["items", 2, "name"]` the way it would be written, as `items[2].name`.
+ */
+internal fun formatPath(path: List<Any>): String = buildString {
+  for (segment in path) {
+    if (segment is Int) {
+      append('[').append(segment).append(']')
+    } else {
+      if (isNotEmpty()) append('.')
+      append(segment)
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import kotlin.coroutines.cancellation.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
+
+/**
+ * Coalesces concurrent identical requests, so that they share a single call to the backend.
+ *
+ * Requests are identical when their keys are equal; the first one starts the call, and the ones
+ * made while it is still running share its result. The shared call runs independently of any one of
+ * its callers: it is only cancelled once all of them were cancelled.
+ *
+ * Streams are shared the same way, and every response they emitted so far is replayed to the
+ * collectors that join late, so that each of them sees the whole stream.
+ */
+internal class RequestCoalescer {
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Unconfined)
+  private val calls = HashMap<Any, SharedCall<Deferred<*>>>()
+  private val streams = HashMap<Any, SharedCall<SharedStream<*>>>()
+
+  /** Runs [request], or waits for the result of an identical one that is already running. */
+  suspend fun <T> coalesce(key: Any, request: suspend () -> T): T {
+    val call =
+      join(calls, key) {
+        val deferred = scope.async(start = CoroutineStart.LAZY) { request() }
+        SharedCall(deferred, deferred)
+      }
+    try {
+      call.job.start()
+      @Suppress("UNCHECKED_CAST") return (call.value as Deferred<T>).await()
+    } finally {
+      leave(calls, key, call)
+    }
+  }
+
+  /** Collects [request], or joins the collection of an identical one that is already running. */
+  fun <T> coalesce(key: Any, request: Flow<T>): Flow<T> = flow {
+    val call =
+      join(streams, key) {
+        val stream = SharedStream(request)
+        SharedCall(stream, scope.launch(start = CoroutineStart.LAZY) { stream.collectUpstream() })
+      }
+    try {
+      call.job.start()
+      @Suppress("UNCHECKED_CAST") (call.value as SharedStream<T>).replayTo(this)
+    } finally {
+      leave(streams, key, call)
+    }
+  }
+
+  private fun <V> join(
+    map: HashMap<Any, SharedCall<V>>,
+    key: Any,
+    start: () -> SharedCall<V>,
+  ): SharedCall<V> =
+    synchronized(this) {
+      val call =
+        map.getOrPut(key) {
+          start().also { call ->
+            // Forget the call once it completes, so that later requests are made again
+            call.job.invokeOnCompletion { forget(map, key, call) }
+          }
+        }
+      call.callers++
+      call
+    }
+
+  /** Cancels the shared call once none of its callers is waiting for it anymore. */
+  private fun <V> leave(map: HashMap<Any, SharedCall<V>>, key: Any, call: SharedCall<V>) =
+    synchronized(this) {
+      call.callers--
+      if (call.callers == 0) {
+        forget(map, key, call)
+        call.job.cancel()
+      }
+    }
+
+  private fun <V> forget(map: HashMap<Any, SharedCall<V>>, key: Any, call: SharedCall<V>) =
+    synchronized(this) {
+      // A later call with the same key may have taken its place already
+      if (map[key] === call) map.remove(key)
+    }
+
+  private class SharedCall<V>(val value: V, val job: Job) {
+    var callers = 0
+  }
+
+  /** The responses of a stream, kept for every collector to replay them from the start. */
+  private class SharedStream<T>(private val upstream: Flow<T>) {
+    private val responses = ArrayList<T>()
+    private var completed = false
+    private var failure: Throwable? = null
+
+    /** The number of responses, plus one once the stream completed. */
+    private val events = MutableStateFlow(0)
+
+    suspend fun collectUpstream() {
+      try {
+        upstream.collect { response ->
+          synchronized(this) {
+            responses.add(response)
+            events.value = responses.size
+          }
+        }
+        complete(null)
+      } catch (e: Throwable) {
+        complete(e)
+        if (e is CancellationException) throw e
+      }
+    }
+
+    private fun complete(failure: Throwable?) =
+      synchronized(this) {
+        this.failure = failure
+        completed = true
+        events.value = responses.size + 1
+      }
+
+    suspend fun replayTo(collector: FlowCollector<T>) {
+      var next = 0
+      while (true) {
+        val batch: List<T>
+        val done: Boolean
+        synchronized(this) {
+          batch = responses.subList(next, responses.size).toList()
+          done = completed
+        }
+        for (response in batch) collector.emit(response)
+        next += batch.size
+        if (done) {
+          failure?.let { throw it }
+          return
+        }
+        events.first { it > next }
+      }
+    }
+  }
+}
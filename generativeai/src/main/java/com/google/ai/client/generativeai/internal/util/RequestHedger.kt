@@ -0,0 +1,204 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.common.LatencyHistogram
+import com.google.ai.client.generativeai.type.HedgingOptions
+import kotlin.coroutines.cancellation.CancellationException
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.channels.ChannelResult
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.produceIn
+import kotlinx.coroutines.selects.onTimeout
+import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.supervisorScope
+
+/**
+ * Hedges requests that are slower than usual, as configured by the provided [options].
+ *
+ * Every request adds [HedgingOptions.budget] to an allowance (capped at [MAX_ALLOWANCE]), and every
+ * hedge spends 1 of it, so that hedging never adds more than the budgeted load.
+ *
+ * A copy that fails is only given up on once the other one failed too, so that a hedge failing
+ * fast never fails a request that was about to succeed.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+internal class RequestHedger(private val options: HedgingOptions) {
+  private var allowance = 0.0
+
+  /**
+   * Runs [request], and runs it again if it didn't complete within the configured percentile of
+   * [latency]. Returns the result of whichever succeeds first, and cancels the other.
+   */
+  suspend fun <T> hedge(latency: LatencyHistogram, request: suspend () -> T): T {
+    val delay = hedgeDelay(latency) ?: return request()
+
+    // A supervisor, so that a failing copy doesn't cancel the other one
+    return supervisorScope {
+      val primary = async { recordingCancellation(latency) { request() } }
+      val late = select {
+        primary.onJoin { false }
+        onTimeout(delay) { true }
+      }
+      if (!late || !tryHedge()) return@supervisorScope primary.await()
+
+      val hedge = async { request() }
+      try {
+        firstSuccessful(primary, hedge)
+      } finally {
+        coroutineContext.cancelChildren()
+      }
+    }
+  }
+
+  /**
+   * Collects [request], and collects it again if it didn't emit within the configured percentile of
+   * [latency]. Emits the values of whichever emits first, and cancels the other.
+   */
+  fun <T> hedge(latency: LatencyHistogram, request: Flow<T>): Flow<T> = flow {
+    val delay = hedgeDelay(latency)
+    if (delay == null) {
+      emitAll(request)
+      return@flow
+    }
+
+    supervisorScope {
+      val primary = request.recordingCancellation(latency).produceIn(this)
+      // Unlike a timeout around a receive, a select never drops an element it received
+      var winner: ReceiveChannel<T> = primary
+      var first =
+        select<ChannelResult<T>?> {
+          primary.onReceiveCatching { it }
+          onTimeout(delay) { null }
+        }
+
+      if (first == null && tryHedge()) {
+        val hedge = request.produceIn(this)
+        firstReceived(primary, hedge).let { (channel, result) ->
+          winner = channel
+          first = result
+        }
+        (if (winner === primary) hedge else primary).cancel()
+      }
+
+      val result = first ?: primary.receiveCatching()
+      if (result.isClosed) {
+        result.exceptionOrNull()?.let { throw it }
+        return@supervisorScope
+      }
+      emit(result.getOrThrow())
+      emitAll(winner)
+    }
+  }
+
+  /** The result of whichever of [primary] and [hedge] succeeds first, or else the last failure. */
+  private suspend fun <T> firstSuccessful(primary: Deferred<T>, hedge: Deferred<T>): T {
+    val first = select {
+      primary.onJoin { primary }
+      hedge.onJoin { hedge }
+    }
+    val second = if (first === primary) hedge else primary
+    return try {
+      first.await()
+    } catch (e: Exception) {
+      currentCoroutineContext().ensureActive()
+      second.await()
+    }
+  }
+
+  /**
+   * The first element received from either [primary] or [hedge], along with the channel it came
+   * from. A channel that closes without any element (failed or not) is skipped in favour of the
+   * other one, whose result is then returned.
+   */
+  private suspend fun <T> firstReceived(
+    primary: ReceiveChannel<T>,
+    hedge: ReceiveChannel<T>,
+  ): Pair<ReceiveChannel<T>, ChannelResult<T>> {
+    val first = select {
+      primary.onReceiveCatching { primary to it }
+      hedge.onReceiveCatching { hedge to it }
+    }
+    if (!first.second.isClosed) return first
+    val other = if (first.first === primary) hedge else primary
+    return other to other.receiveCatching()
+  }
+
+  /**
+   * Runs [block], and records how long it ran into [latency] if it's cancelled (by the hedge
+   * winning). Requests are only recorded once they respond otherwise, so the slowest ones would
+   * never be, and the percentile would drift lower.
+   */
+  private suspend inline fun <T> recordingCancellation(
+    latency: LatencyHistogram,
+    block: () -> T,
+  ): T {
+    val start = System.nanoTime()
+    try {
+      return block()
+    } catch (e: CancellationException) {
+      latency.record((System.nanoTime() - start).nanoseconds)
+      throw e
+    }
+  }
+
+  /** Like [recordingCancellation], for requests that haven't emitted anything yet. */
+  private fun <T> Flow<T>.recordingCancellation(latency: LatencyHistogram): Flow<T> = flow {
+    val start = System.nanoTime()
+    var responded = false
+    try {
+      collect {
+        responded = true
+        emit(it)
+      }
+    } catch (e: CancellationException) {
+      if (!responded) latency.record((System.nanoTime() - start).nanoseconds)
+      throw e
+    }
+  }
+
+  /** How long to wait before hedging a request, or null if it shouldn't be hedged at all. */
+  @Synchronized
+  private fun hedgeDelay(latency: LatencyHistogram): Duration? {
+    allowance = (allowance + options.budget).coerceAtMost(MAX_ALLOWANCE)
+    if (latency.count < options.minSamples) return null
+    return latency.percentile(options.percentile)
+  }
+
+  /** Spends the allowance for a hedge, if there is enough of it. */
+  @Synchronized
+  private fun tryHedge(): Boolean {
+    if (allowance < 1) return false
+    allowance -= 1
+    return true
+  }
+
+  companion object {
+    /** How many hedges can be made in a burst, after a long period without any. */
+    private const val MAX_ALLOWANCE = 10.0
+  }
+}
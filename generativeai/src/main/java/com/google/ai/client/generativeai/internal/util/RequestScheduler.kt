@@ -0,0 +1,193 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.type.RequestPriority
+import com.google.ai.client.generativeai.type.RequestRejectedException
+import com.google.ai.client.generativeai.type.SchedulingMetrics
+import com.google.ai.client.generativeai.type.SchedulingOptions
+import kotlin.coroutines.cancellation.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
+
+/**
+ * Schedules requests by [RequestPriority], as configured by the provided [options].
+ *
+ * Waiting requests are ordered by weighted fair queueing: each one is tagged with the virtual time
+ * at which it would finish if every class was served at the rate of its weight, and the request
+ * with the earliest tag is sent first. A class that had nothing waiting starts again from the
+ * current virtual time, so idle periods can't be saved up for later bursts.
+ *
+ * Requests that can be sent right away never count against [SchedulingOptions.maxQueuedRequests].
+ */
+internal class RequestScheduler(private val options: SchedulingOptions) {
+  private val classes = RequestPriority.values().associateWith { PriorityClass(it) }
+  private var inFlight = 0
+  private var queued = 0
+  private var virtualTime = 0.0
+
+  /** Runs [request] once the scheduler lets it through. */
+  suspend fun <T> schedule(priority: RequestPriority, request: suspend () -> T): T {
+    acquire(priority)
+    try {
+      return request()
+    } finally {
+      release(priority)
+    }
+  }
+
+  /**
+   * Collects [request] once the scheduler lets it through, holding its place until it completes.
+   */
+  fun <T> schedule(priority: RequestPriority, request: Flow<T>): Flow<T> = flow {
+    acquire(priority)
+    try {
+      emitAll(request)
+    } finally {
+      release(priority)
+    }
+  }
+
+  @Synchronized
+  fun metrics(): Map<RequestPriority, SchedulingMetrics> = classes.mapValues { it.value.metrics() }
+
+  private suspend fun acquire(priority: RequestPriority) {
+    val waiter = enqueue(priority)
+    try {
+      waiter.granted.await()
+    } catch (e: CancellationException) {
+      abandon(priority, waiter)
+      throw e
+    }
+  }
+
+  /** Gives up the place of a [waiter] that was cancelled before it could be sent. */
+  @Synchronized
+  private fun abandon(priority: RequestPriority, waiter: Waiter) {
+    if (classes.getValue(priority).waiting.remove(waiter)) {
+      queued--
+    } else if (waiter.sent) {
+      // Let through just as it was cancelled, so its place goes to the next one instead
+      release(priority)
+    }
+  }
+
+  @Synchronized
+  private fun release(priority: RequestPriority) {
+    classes.getValue(priority).inFlight--
+    inFlight--
+    dispatch()
+  }
+
+  @Synchronized
+  private fun enqueue(priority: RequestPriority): Waiter {
+    val cls = classes.getValue(priority)
+    cls.lastTag = maxOf(virtualTime, cls.lastTag) + 1.0 / options.forPriority(priority).weight
+    val waiter = Waiter(cls.lastTag, System.nanoTime())
+    cls.waiting.addLast(waiter)
+    queued++
+    dispatch()
+
+    if (queued > options.maxQueuedRequests && !evictLowerThan(priority)) {
+      cls.waiting.remove(waiter)
+      queued--
+      cls.rejected++
+      throw RequestRejectedException(
+        "The request queue is full (${options.maxQueuedRequests} requests), and no queued " +
+          "request has a lower priority than $priority."
+      )
+    }
+    return waiter
+  }
+
+  /**
+   * Fails the most recently queued request of the lowest priority below [priority], to make room.
+   *
+   * @return whether a request was evicted
+   */
+  private fun evictLowerThan(priority: RequestPriority): Boolean {
+    val victim =
+      classes.values
+        .filter { it.priority > priority && it.waiting.isNotEmpty() }
+        .maxByOrNull { it.priority } ?: return false
+
+    val waiter = victim.waiting.removeLast()
+    queued--
+    victim.rejected++
+    waiter.granted.completeExceptionally(
+      RequestRejectedException(
+        "The request was dropped from the queue to make room for a request of priority $priority."
+      )
+    )
+    return true
+  }
+
+  /** Lets through as many waiting requests as the concurrency limits allow. */
+  private fun dispatch() {
+    while (inFlight < options.maxConcurrentRequests) {
+      val next =
+        classes.values
+          .filter {
+            it.waiting.isNotEmpty() &&
+              it.inFlight < options.forPriority(it.priority).maxConcurrentRequests
+          }
+          .minByOrNull { it.waiting.first().tag } ?: return
+
+      val waiter = next.waiting.removeFirst()
+      queued--
+      virtualTime = maxOf(virtualTime, waiter.tag)
+      next.inFlight++
+      inFlight++
+      next.onSent(System.nanoTime() - waiter.enqueuedAt)
+      waiter.sent = true
+      waiter.granted.complete(Unit)
+    }
+  }
+
+  private class Waiter(val tag: Double, val enqueuedAt: Long) {
+    val granted = CompletableDeferred<Unit>()
+    var sent = false
+  }
+
+  private class PriorityClass(val priority: RequestPriority) {
+    val waiting = ArrayDeque<Waiter>()
+    var lastTag = 0.0
+    var inFlight = 0
+    var sent = 0L
+    var rejected = 0L
+    private var totalQueueNanos = 0L
+    private var maxQueueNanos = 0L
+
+    fun onSent(queueNanos: Long) {
+      sent++
+      totalQueueNanos += queueNanos
+      maxQueueNanos = maxOf(maxQueueNanos, queueNanos)
+    }
+
+    fun metrics() =
+      SchedulingMetrics(
+        queued = waiting.size,
+        inFlight = inFlight,
+        sent = sent,
+        rejected = rejected,
+        averageQueueTimeMillis = if (sent == 0L) 0.0 else totalQueueNanos / sent / 1e6,
+        maxQueueTimeMillis = maxQueueNanos / 1_000_000,
+      )
+  }
+}
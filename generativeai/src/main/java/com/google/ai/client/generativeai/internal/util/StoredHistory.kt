@@ -0,0 +1,115 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.type.ChatHistoryStore
+import com.google.ai.client.generativeai.type.Content
+import com.google.ai.client.generativeai.type.Part
+import java.lang.ref.SoftReference
+import kotlinx.serialization.json.Json
+
+/**
+ * A chat history backed by a [ChatHistoryStore].
+ *
+ * Each [Content] only holds its role, and reads (and converts) its parts from the [store] when they
+ * are accessed, so the history can grow without its media staying in memory. The history is
+ * append-only: [Content]s can only be added at the end, and never replaced or removed.
+ */
+internal class StoredHistory(private val store: ChatHistoryStore) : AbstractMutableList<Content>() {
+  private val entries = ArrayList<Content?>()
+
+  override val size: Int
+    get() = store.size
+
+  @Synchronized
+  override fun get(index: Int): Content {
+    if (index !in 0 until size) {
+      throw IndexOutOfBoundsException("Index $index is out of bounds for a size of $size")
+    }
+    while (entries.size <= index) entries.add(null)
+
+    entries[index]?.let {
+      return it
+    }
+    val parts = StoredParts(store.tokenCount(index)) { decode(store.read(index)) }
+    return Content(store.role(index), parts).also { entries[index] = it }
+  }
+
+  /**
+   * A view of the entries currently in the history, which (unlike [toList]) doesn't go through all
+   * of them.
+   */
+  fun snapshot(): List<Content> = subList(0, size)
+
+  override fun add(index: Int, element: Content) {
+    addAll(index, listOf(element))
+  }
+
+  override fun addAll(elements: Collection<Content>): Boolean = addAll(size, elements)
+
+  override fun addAll(index: Int, elements: Collection<Content>): Boolean {
+    if (index != size) throw UnsupportedOperationException(APPEND_ONLY)
+
+    store.append(
+      elements.map {
+        val content = it.toInternal()
+        ChatHistoryStore.Entry(it.role, encode(content), HistoryTracker.estimateTokens(content))
+      }
+    )
+    return elements.isNotEmpty()
+  }
+
+  override fun set(index: Int, element: Content): Content =
+    throw UnsupportedOperationException(APPEND_ONLY)
+
+  override fun removeAt(index: Int): Content = throw UnsupportedOperationException(APPEND_ONLY)
+
+  companion object {
+    private const val APPEND_ONLY = "The history of a stored chat can only be appended to."
+
+    private val JSON = Json { ignoreUnknownKeys = true }
+
+    private fun encode(content: Content_Common) =
+      JSON.encodeToString(Content_Common.serializer(), content)
+
+    private fun decode(data: String) = JSON.decodeFromString(Content_Common.serializer(), data)
+  }
+}
+
+/**
+ * The parts of a [Content] that was read from a [ChatHistoryStore].
+ *
+ * The serialized [content] is only read when needed, and is kept softly so it can be dropped again
+ * under memory pressure. Parts are converted individually when accessed, so media is only decoded
+ * for the parts that are actually used.
+ *
+ * @property tokenCount the estimate stored along with the [content], or -1 if there is none
+ */
+internal class StoredParts(val tokenCount: Int, private val read: () -> Content_Common) :
+  AbstractList<Part>() {
+  private var cached: SoftReference<Content_Common>? = null
+
+  /** The serializable form of the [Content] these parts belong to. */
+  val content: Content_Common
+    @Synchronized get() = cached?.get() ?: read().also { cached = SoftReference(it) }
+
+  override val size: Int
+    get() = content.parts.size
+
+  override fun get(index: Int): Part = content.parts[index].toPublic()
+}
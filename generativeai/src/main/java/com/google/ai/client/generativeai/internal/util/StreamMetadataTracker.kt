@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.internal.util
+
+import com.google.ai.client.generativeai.common.GenerateContentResponse
+import com.google.ai.client.generativeai.common.UsageMetadata
+import com.google.ai.client.generativeai.common.server.CitationMetadata
+import com.google.ai.client.generativeai.common.server.FinishReason
+import com.google.ai.client.generativeai.common.server.PromptFeedback
+import com.google.ai.client.generativeai.common.server.SafetyRating
+import com.google.ai.client.generativeai.common.shared.TextPart
+import com.google.ai.client.generativeai.type.Part
+import com.google.ai.client.generativeai.type.StreamMetadata
+
+/**
+ * Keeps track of the [StreamMetadata] of a streamed response, one chunk at a time.
+ *
+ * Chunks usually repeat the metadata of the previous ones, if they have any at all, so the public
+ * [StreamMetadata] is only created again when a chunk actually changes it.
+ */
+internal class StreamMetadataTracker {
+  private var finishReason: FinishReason? = null
+  private var usageMetadata: UsageMetadata? = null
+  private var promptFeedback: PromptFeedback? = null
+  private var safetyRatings: List<SafetyRating>? = null
+  private var citations: CitationMetadata? = null
+  private val parts = ArrayList<Part>()
+
+  /**
+   * Takes the metadata of the next chunk of the response into account.
+   *
+   * @return the updated metadata, or null if [response] didn't change it
+   */
+  fun update(response: GenerateContentResponse): StreamMetadata? {
+    val candidate = response.candidates?.firstOrNull()
+    var changed = false
+
+    // Metadata that a chunk doesn't have is left as it was
+    candidate?.finishReason?.let {
+      changed = changed || it != finishReason
+      finishReason = it
+    }
+    response.usageMetadata?.let {
+      changed = changed || it != usageMetadata
+      usageMetadata = it
+    }
+    response.promptFeedback?.let {
+      changed = changed || it != promptFeedback
+      promptFeedback = it
+    }
+    candidate?.safetyRatings?.let {
+      changed = changed || it != safetyRatings
+      safetyRatings = it
+    }
+    candidate?.citationMetadata?.let {
+      changed = changed || it != citations
+      citations = it
+    }
+    for (part in candidate?.content?.parts.orEmpty()) {
+      if (part !is TextPart) {
+        parts += part.toPublic()
+        changed = true
+      }
+    }
+
+    if (!changed) return null
+    return StreamMetadata(
+      finishReason.toPublic(),
+      usageMetadata?.toPublic(),
+      promptFeedback?.toPublic(),
+      safetyRatings?.map { it.toPublic() }.orEmpty(),
+      citations?.citationSources?.map { it.toPublic() }.orEmpty(),
+      parts.toList(),
+    )
+  }
+}
@@ -19,8 +19,17 @@ package com.google.ai.client.generativeai.internal.util
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.util.Base64
+import com.google.ai.client.generativeai.common.CallOptions
+import com.google.ai.client.generativeai.common.CircuitBreakerMetrics
+import com.google.ai.client.generativeai.common.CircuitBreakerOptions
+import com.google.ai.client.generativeai.common.CompressionAlgorithm
+import com.google.ai.client.generativeai.common.CompressionMetrics
+import com.google.ai.client.generativeai.common.CompressionOptions
 import com.google.ai.client.generativeai.common.CountTokensResponse
+import com.google.ai.client.generativeai.common.EndpointStatus
 import com.google.ai.client.generativeai.common.GenerateContentResponse
+import com.google.ai.client.generativeai.common.KeySelection
+import com.google.ai.client.generativeai.common.KeyUsage
 import com.google.ai.client.generativeai.common.RequestOptions
 import com.google.ai.client.generativeai.common.client.GenerationConfig
 import com.google.ai.client.generativeai.common.client.Schema
@@ -69,10 +78,43 @@ import org.json.JSONObject
 private const val BASE_64_FLAGS = Base64.NO_WRAP
 
 internal fun com.google.ai.client.generativeai.type.RequestOptions.toInternal() =
-  RequestOptions(timeout, apiVersion)
+  RequestOptions(
+    timeout,
+    apiVersion,
+    partialOutputOnStop = partialOutputOnStop,
+    maxStreamResumptions = maxStreamResumptions,
+    compression = compression?.toInternal(),
+    apiKeyPool = apiKeyPool?.pool,
+    circuitBreaker = circuitBreaker?.toInternal(),
+    endpoints = endpoints?.set,
+  )
+
+internal fun com.google.ai.client.generativeai.type.CircuitBreakerOptions.toInternal() =
+  CircuitBreakerOptions(
+    failureRateThreshold,
+    windowSize,
+    minimumRequests,
+    openDuration,
+    probeRequests,
+  )
+
+internal fun com.google.ai.client.generativeai.type.CompressionOptions.toInternal() =
+  CompressionOptions(algorithm.toInternal(), minRequestBytes, acceptCompressedResponses)
+
+internal fun com.google.ai.client.generativeai.type.CompressionAlgorithm.toInternal() =
+  when (this) {
+    com.google.ai.client.generativeai.type.CompressionAlgorithm.GZIP -> CompressionAlgorithm.GZIP
+    com.google.ai.client.generativeai.type.CompressionAlgorithm.DEFLATE ->
+      CompressionAlgorithm.DEFLATE
+  }
+
+internal fun com.google.ai.client.generativeai.type.CallOptions.toInternal() =
+  CallOptions(timeout, connectTimeout, readTimeout, firstResponseTimeout)
 
 internal fun com.google.ai.client.generativeai.type.Content.toInternal() =
-  Content(this.role, this.parts.map { it.toInternal() })
+  internalForm
+    ?: (parts as? StoredParts)?.content
+    ?: Content(this.role, this.parts.map { it.toInternal() })
 
 internal fun com.google.ai.client.generativeai.type.Part.toInternal(): Part {
   return when (this) {
@@ -81,7 +123,7 @@ internal fun com.google.ai.client.generativeai.type.Part.toInternal(): Part {
     is com.google.ai.client.generativeai.type.BlobPart ->
       BlobPart(Blob(mimeType, Base64.encodeToString(blob, BASE_64_FLAGS)))
     is com.google.ai.client.generativeai.type.FunctionCallPart ->
-      FunctionCallPart(FunctionCall(name, args))
+      FunctionCallPart(FunctionCall(name, args, rawArgs))
     is com.google.ai.client.generativeai.type.FunctionResponsePart ->
       FunctionResponsePart(FunctionResponse(name, response.toInternal()))
     is com.google.ai.client.generativeai.type.FileDataPart ->
@@ -163,6 +205,42 @@ internal fun ToolConfig.toInternal() =
 internal fun com.google.ai.client.generativeai.common.UsageMetadata.toPublic(): UsageMetadata =
   UsageMetadata(promptTokenCount ?: 0, candidatesTokenCount ?: 0, totalTokenCount ?: 0)
 
+internal fun com.google.ai.client.generativeai.type.KeySelection.toInternal() =
+  when (this) {
+    com.google.ai.client.generativeai.type.KeySelection.ROUND_ROBIN -> KeySelection.ROUND_ROBIN
+    com.google.ai.client.generativeai.type.KeySelection.LEAST_LOADED -> KeySelection.LEAST_LOADED
+  }
+
+internal fun EndpointStatus.toPublic() =
+  com.google.ai.client.generativeai.type.EndpointStatus(url, latency, healthy, requests, failures)
+
+internal fun KeyUsage.toPublic() =
+  com.google.ai.client.generativeai.type.ApiKeyUsage(
+    requests,
+    inFlight,
+    quotaExceeded,
+    invalid,
+    coolingDown,
+  )
+
+internal fun CircuitBreakerMetrics.toPublic() =
+  com.google.ai.client.generativeai.type.CircuitBreakerMetrics(
+    com.google.ai.client.generativeai.type.CircuitState.valueOf(state.name),
+    failureRate,
+    timesOpened,
+    timesHalfOpened,
+    timesClosed,
+    rejectedRequests,
+  )
+
+internal fun CompressionMetrics.toPublic() =
+  com.google.ai.client.generativeai.type.CompressionMetrics(
+    requestBytesBeforeCompression,
+    requestBytesAfterCompression,
+    responseBytesBeforeDecompression,
+    responseBytesAfterDecompression,
+  )
+
 internal fun FunctionDeclaration.toInternal() =
   com.google.ai.client.generativeai.common.client.FunctionDeclaration(
     name,
@@ -203,7 +281,9 @@ internal fun Candidate.toPublic(): com.google.ai.client.generativeai.type.Candid
 }
 
 internal fun Content.toPublic(): com.google.ai.client.generativeai.type.Content =
-  com.google.ai.client.generativeai.type.Content(role, parts.map { it.toPublic() })
+  com.google.ai.client.generativeai.type.Content(role, parts.map { it.toPublic() }).also {
+    it.internalForm = this
+  }
 
 internal fun Part.toPublic(): com.google.ai.client.generativeai.type.Part {
   return when (this) {
@@ -217,7 +297,11 @@ internal fun Part.toPublic(): com.google.ai.client.generativeai.type.Part {
       }
     }
     is FunctionCallPart ->
-      com.google.ai.client.generativeai.type.FunctionCallPart(functionCall.name, functionCall.args)
+      com.google.ai.client.generativeai.type.FunctionCallPart(
+        functionCall.name,
+        functionCall.args,
+        functionCall.rawArgs,
+      )
     is FunctionResponsePart ->
       com.google.ai.client.generativeai.type.FunctionResponsePart(
         functionResponse.name,
@@ -16,11 +16,14 @@
 
 package com.google.ai.client.generativeai.java
 
-import androidx.concurrent.futures.SuspendToFutureAdapter
 import com.google.ai.client.generativeai.Chat
 import com.google.ai.client.generativeai.type.Content
 import com.google.ai.client.generativeai.type.GenerateContentResponse
 import com.google.common.util.concurrent.ListenableFuture
+import java.util.concurrent.Executor
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.reactive.asPublisher
 import org.reactivestreams.Publisher
 
@@ -46,15 +49,57 @@ abstract class ChatFutures internal constructor() {
    */
   abstract fun sendMessageStream(prompt: Content): Publisher<GenerateContentResponse>
 
+  /**
+   * Generates a streaming response from the backend with the provided [Content], passing each
+   * response to [callback] as it arrives.
+   *
+   * @param callback Receives the responses, one at a time.
+   * @param prompt A [Content] to send to the model.
+   * @return a future that completes once the stream does, or fails with its exception. Cancelling
+   *   it cancels the stream.
+   */
+  abstract fun sendMessageStream(
+    callback: ResponseCallback<GenerateContentResponse>,
+    prompt: Content,
+  ): ListenableFuture<Void?>
+
+  /**
+   * Generates a streaming response from the backend with the provided [Content], to be read through
+   * a blocking [ResponseIterator].
+   *
+   * @param prefetch How many responses may be read ahead of the iteration. 0 only reads a response
+   *   once it is asked for.
+   * @param prompt A [Content] to send to the model.
+   */
+  abstract fun sendMessageIterator(
+    prefetch: Int,
+    prompt: Content,
+  ): ResponseIterator<GenerateContentResponse>
+
   /** Returns the [Chat] instance that was used to create this instance */
   abstract fun getChat(): Chat
 
-  private class FuturesImpl(private val chat: Chat) : ChatFutures() {
+  private class FuturesImpl(private val chat: Chat, private val dispatcher: CoroutineDispatcher?) :
+    ChatFutures() {
     override fun sendMessage(prompt: Content): ListenableFuture<GenerateContentResponse> =
-      SuspendToFutureAdapter.launchFuture { chat.sendMessage(prompt) }
+      launchFuture(dispatcher) {
+        chat.sendMessage(prompt)
+      }
 
     override fun sendMessageStream(prompt: Content): Publisher<GenerateContentResponse> =
-      chat.sendMessageStream(prompt).asPublisher()
+      chat.sendMessageStream(prompt).asPublisher(dispatcher ?: EmptyCoroutineContext)
+
+    override fun sendMessageStream(
+      callback: ResponseCallback<GenerateContentResponse>,
+      prompt: Content,
+    ): ListenableFuture<Void?> =
+      launchCallbacks(dispatcher, chat.sendMessageStream(prompt), callback)
+
+    override fun sendMessageIterator(
+      prefetch: Int,
+      prompt: Content,
+    ): ResponseIterator<GenerateContentResponse> =
+      launchIterator(dispatcher, chat.sendMessageStream(prompt), prefetch)
 
     override fun getChat(): Chat = chat
   }
@@ -62,6 +107,17 @@ abstract class ChatFutures internal constructor() {
   companion object {
 
     /** @return a [ChatFutures] created around the provided [Chat] */
-    @JvmStatic fun from(chat: Chat): ChatFutures = FuturesImpl(chat)
+    @JvmStatic fun from(chat: Chat): ChatFutures = FuturesImpl(chat, null)
+
+    /**
+     * @return a [ChatFutures] created around the provided [Chat], whose messages and streams run on
+     *   [executor]
+     */
+    @JvmStatic
+    fun from(chat: Chat, executor: Executor): ChatFutures =
+      FuturesImpl(chat, executor.asCoroutineDispatcher())
+
+    internal fun from(chat: Chat, dispatcher: CoroutineDispatcher?): ChatFutures =
+      FuturesImpl(chat, dispatcher)
   }
 }
@@ -16,19 +16,30 @@
 
 package com.google.ai.client.generativeai.java
 
-import androidx.concurrent.futures.SuspendToFutureAdapter
 import com.google.ai.client.generativeai.GenerativeModel
-import com.google.ai.client.generativeai.java.ChatFutures.Companion.from
+import com.google.ai.client.generativeai.type.ChatOptions
 import com.google.ai.client.generativeai.type.Content
 import com.google.ai.client.generativeai.type.CountTokensResponse
 import com.google.ai.client.generativeai.type.GenerateContentResponse
+import com.google.ai.client.generativeai.type.RequestOptions
 import com.google.common.util.concurrent.ListenableFuture
+import java.util.concurrent.Executor
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.reactive.asPublisher
 import org.reactivestreams.Publisher
 
 /**
  * Helper method for interacting with a [GenerativeModel] from Java.
  *
+ * Calls run on the [Executor] passed to [from], if any. Besides the Reactive Streams [Publisher]s,
+ * streams can be read through a [ResponseCallback], or a blocking [ResponseIterator] that reads a
+ * bounded number of responses ahead.
+ *
  * @see from
  */
 abstract class GenerativeModelFutures internal constructor() {
@@ -47,6 +58,46 @@ abstract class GenerativeModelFutures internal constructor() {
    */
   abstract fun generateContentStream(vararg prompt: Content): Publisher<GenerateContentResponse>
 
+  /**
+   * Generates a response from the backend for each of the provided [prompts], concurrently.
+   *
+   * The requests go through the same [RequestOptions.scheduling] and limits as any other call of
+   * the model. If one of them fails, the others are cancelled and the returned future fails.
+   *
+   * @param prompts The [Content]s to send to the model, one per request.
+   * @return the responses, in the order of their [prompts]
+   */
+  abstract fun generateContentBatch(
+    prompts: List<Content>
+  ): ListenableFuture<List<GenerateContentResponse>>
+
+  /**
+   * Generates a streaming response from the backend with the provided [Content]s, passing each
+   * response to [callback] as it arrives.
+   *
+   * @param callback Receives the responses, one at a time.
+   * @param prompt A group of [Content]s to send to the model.
+   * @return a future that completes once the stream does, or fails with its exception. Cancelling
+   *   it cancels the stream.
+   */
+  abstract fun generateContentStream(
+    callback: ResponseCallback<GenerateContentResponse>,
+    vararg prompt: Content,
+  ): ListenableFuture<Void?>
+
+  /**
+   * Generates a streaming response from the backend with the provided [Content]s, to be read
+   * through a blocking [ResponseIterator].
+   *
+   * @param prefetch How many responses may be read ahead of the iteration. 0 only reads a response
+   *   once it is asked for.
+   * @param prompt A group of [Content]s to send to the model.
+   */
+  abstract fun generateContentIterator(
+    prefetch: Int,
+    vararg prompt: Content,
+  ): ResponseIterator<GenerateContentResponse>
+
   /**
    * Counts the number of tokens used in a prompt.
    *
@@ -64,31 +115,76 @@ abstract class GenerativeModelFutures internal constructor() {
    */
   abstract fun startChat(history: List<Content>): ChatFutures
 
+  /**
+   * Creates a chat instance which internally tracks the ongoing conversation with the model
+   *
+   * @param history an existing history of context to use as a starting point
+   * @param options configuration for how the chat manages its conversation
+   */
+  abstract fun startChat(history: List<Content>, options: ChatOptions): ChatFutures
+
   /** Returns the [GenerativeModel] instance that was used to create this object */
   abstract fun getGenerativeModel(): GenerativeModel
 
-  private class FuturesImpl(private val model: GenerativeModel) : GenerativeModelFutures() {
+  private class FuturesImpl(
+    private val model: GenerativeModel,
+    private val dispatcher: CoroutineDispatcher?,
+  ) : GenerativeModelFutures() {
     override fun generateContent(
       vararg prompt: Content
-    ): ListenableFuture<GenerateContentResponse> =
-      SuspendToFutureAdapter.launchFuture { model.generateContent(*prompt) }
+    ): ListenableFuture<GenerateContentResponse> = launch { model.generateContent(*prompt) }
 
     override fun generateContentStream(vararg prompt: Content): Publisher<GenerateContentResponse> =
-      model.generateContentStream(*prompt).asPublisher()
+      model.generateContentStream(*prompt).asPublisher(dispatcher ?: EmptyCoroutineContext)
+
+    override fun generateContentBatch(
+      prompts: List<Content>
+    ): ListenableFuture<List<GenerateContentResponse>> = launch {
+      prompts.map { async { model.generateContent(it) } }.awaitAll()
+    }
+
+    override fun generateContentStream(
+      callback: ResponseCallback<GenerateContentResponse>,
+      vararg prompt: Content,
+    ): ListenableFuture<Void?> =
+      launchCallbacks(dispatcher, model.generateContentStream(*prompt), callback)
+
+    override fun generateContentIterator(
+      prefetch: Int,
+      vararg prompt: Content,
+    ): ResponseIterator<GenerateContentResponse> =
+      launchIterator(dispatcher, model.generateContentStream(*prompt), prefetch)
 
     override fun countTokens(vararg prompt: Content): ListenableFuture<CountTokensResponse> =
-      SuspendToFutureAdapter.launchFuture { model.countTokens(*prompt) }
+      launch {
+        model.countTokens(*prompt)
+      }
 
     override fun startChat(): ChatFutures = startChat(emptyList())
 
-    override fun startChat(history: List<Content>): ChatFutures = from(model.startChat(history))
+    override fun startChat(history: List<Content>): ChatFutures =
+      ChatFutures.from(model.startChat(history), dispatcher)
+
+    override fun startChat(history: List<Content>, options: ChatOptions): ChatFutures =
+      ChatFutures.from(model.startChat(history, options), dispatcher)
 
     override fun getGenerativeModel(): GenerativeModel = model
+
+    private fun <T> launch(block: suspend CoroutineScope.() -> T): ListenableFuture<T> =
+      launchFuture(dispatcher, block)
   }
 
   companion object {
 
     /** @return a [GenerativeModelFutures] created around the provided [GenerativeModel] */
-    @JvmStatic fun from(model: GenerativeModel): GenerativeModelFutures = FuturesImpl(model)
+    @JvmStatic fun from(model: GenerativeModel): GenerativeModelFutures = FuturesImpl(model, null)
+
+    /**
+     * @return a [GenerativeModelFutures] created around the provided [GenerativeModel], whose calls
+     *   and streams run on [executor], as do those of the chats it starts
+     */
+    @JvmStatic
+    fun from(model: GenerativeModel, executor: Executor): GenerativeModelFutures =
+      FuturesImpl(model, executor.asCoroutineDispatcher())
   }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.java
+
+import androidx.concurrent.futures.SuspendToFutureAdapter
+import com.google.common.util.concurrent.ListenableFuture
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ChannelResult
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.runBlocking
+
+/**
+ * Receives the responses of a stream, one at a time.
+ *
+ * The next response is only read once [onResponse] returns, so a slow callback slows the stream
+ * down instead of letting responses pile up.
+ */
+fun interface ResponseCallback<T> {
+  fun onResponse(response: T)
+}
+
+/**
+ * A blocking [Iterator] over the responses of a stream, for Java code that reads them on its own
+ * thread.
+ *
+ * The stream is read ahead of the iteration by at most the `prefetch` responses that were asked
+ * for: the next response is only read from the stream once one is asked for by [hasNext], or taken
+ * out of the ones read ahead. [hasNext] blocks until the next response arrives or the stream ends,
+ * and throws the exception the stream failed with, if any.
+ *
+ * [close] the iterator to cancel the stream when it isn't read to the end; it then has no more
+ * responses.
+ */
+class ResponseIterator<T>
+internal constructor(
+  private val responses: ReceiveChannel<T>,
+  private val demand: SendChannel<Unit>,
+  private val producer: ListenableFuture<*>,
+) : Iterator<T>, AutoCloseable {
+  private var next: ChannelResult<T>? = null
+  @Volatile private var closed = false
+
+  override fun hasNext(): Boolean {
+    if (closed) return false
+    val result = next ?: receive().also { next = it }
+    if (result.isClosed) {
+      result.exceptionOrNull()?.let { if (!closed) throw it }
+      return false
+    }
+    return true
+  }
+
+  override fun next(): T {
+    if (!hasNext()) throw NoSuchElementException()
+    return next!!.getOrThrow().also { next = null }
+  }
+
+  override fun close() {
+    closed = true
+    producer.cancel(true)
+    responses.cancel()
+    demand.close()
+  }
+
+  private fun receive(): ChannelResult<T> {
+    // Lets the stream read one more response, in place of the one about to be taken
+    demand.trySend(Unit)
+    // Only blocks when no response is waiting already
+    val result = responses.tryReceive()
+    if (result.isSuccess || result.isClosed) return result
+    return runBlocking { responses.receiveCatching() }
+  }
+}
+
+/**
+ * Launches [block] as a future, on [dispatcher] when one is given.
+ *
+ * [SuspendToFutureAdapter.launchFuture] runs its block undispatched by default: on the calling
+ * thread, until it first suspends. That would run requests which never suspend (and the work before
+ * any request does) outside of the [dispatcher], so it's only done without one.
+ */
+internal fun <T> launchFuture(
+  dispatcher: CoroutineDispatcher?,
+  block: suspend CoroutineScope.() -> T,
+): ListenableFuture<T> =
+  SuspendToFutureAdapter.launchFuture(
+    dispatcher ?: EmptyCoroutineContext,
+    launchUndispatched = dispatcher == null,
+    block = block,
+  )
+
+/**
+ * Collects [responses] on [dispatcher], passing each of them to [callback].
+ *
+ * @return a future that completes once the stream did, and cancels the stream when cancelled
+ */
+internal fun <T> launchCallbacks(
+  dispatcher: CoroutineDispatcher?,
+  responses: Flow<T>,
+  callback: ResponseCallback<T>,
+): ListenableFuture<Void?> =
+  launchFuture(dispatcher) {
+    responses.collect { callback.onResponse(it) }
+    null
+  }
+
+/**
+ * Collects [responses] on [dispatcher] into a [ResponseIterator] that reads at most [prefetch] of
+ * them ahead.
+ *
+ * Without a [dispatcher], the stream is collected on [Dispatchers.IO] rather than the main thread,
+ * which may well be the one blocked iterating. Either way, none of it runs on the calling thread.
+ */
+internal fun <T> launchIterator(
+  dispatcher: CoroutineDispatcher?,
+  responses: Flow<T>,
+  prefetch: Int,
+): ResponseIterator<T> {
+  require(prefetch >= 0) { "prefetch should not be negative, but was $prefetch" }
+  // Every element allows the stream to read one response, so no more than that are ever buffered
+  val channel = Channel<T>(Channel.UNLIMITED)
+  val demand = Channel<Unit>(Channel.UNLIMITED)
+  repeat(prefetch) { demand.trySend(Unit) }
+
+  val producer =
+    SuspendToFutureAdapter.launchFuture(dispatcher ?: Dispatchers.IO, launchUndispatched = false) {
+      try {
+        demand.receive()
+        responses.collect {
+          channel.send(it)
+          // The stream is paused here, before it reads the next response
+          demand.receive()
+        }
+        channel.close()
+      } catch (e: Throwable) {
+        channel.close(e)
+        throw e
+      }
+    }
+  return ResponseIterator(channel, demand, producer)
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.GenerativeModel
+import com.google.ai.client.generativeai.internal.util.toInternal
+import com.google.ai.client.generativeai.internal.util.toPublic
+import kotlin.time.Duration
+import kotlin.time.DurationUnit
+import kotlin.time.toDuration
+
+/** How an [ApiKeyPool] picks the key each request is made with. */
+enum class KeySelection {
+  /** Each request uses the next key, in turn. */
+  ROUND_ROBIN,
+
+  /** Each request uses the key with the fewest requests in flight. */
+  LEAST_LOADED,
+}
+
+/**
+ * Several API keys that requests are spread across, so that they aren't limited by the quota of a
+ * single one.
+ *
+ * A key whose quota is depleted ([QuotaExceededException]) cools down for [cooldown] before it is
+ * used again, and a key that is rejected ([InvalidAPIKeyException]) is never used again. The
+ * requests that failed for either reason are retried with another key right away, and only fail
+ * once no key can be used.
+ *
+ * A pool can be shared by several [GenerativeModel]s, so that they all know which keys can be used.
+ * Each model still makes its requests through a single connection pool, whatever their key.
+ *
+ * ```
+ * val options = RequestOptions(apiKeyPool = ApiKeyPool(listOf(firstKey, secondKey)))
+ * val model = GenerativeModel("gemini-1.5-flash", firstKey, requestOptions = options)
+ * ```
+ *
+ * @property selection how the key of each request is picked among the ones that can be used.
+ *   Defaults to [KeySelection.ROUND_ROBIN].
+ * @property cooldown how long a key whose quota is depleted isn't used for.
+ * @see RequestOptions.apiKeyPool
+ */
+class ApiKeyPool(keys: List<String>, val selection: KeySelection, val cooldown: Duration) {
+  @JvmOverloads
+  constructor(
+    keys: List<String>,
+    selection: KeySelection = KeySelection.ROUND_ROBIN,
+    cooldownMillis: Long? = 60_000,
+  ) : this(keys, selection, (cooldownMillis ?: 60_000).toDuration(DurationUnit.MILLISECONDS))
+
+  init {
+    require(keys.isNotEmpty()) { "An ApiKeyPool needs at least one key" }
+    require(keys.toSet().size == keys.size) { "The keys of an ApiKeyPool must be unique" }
+    require(!cooldown.isNegative()) { "cooldown must not be negative, but was $cooldown" }
+  }
+
+  /** Where the keys are kept track of; shared by every model the pool is used with. */
+  internal val pool =
+    com.google.ai.client.generativeai.common.ApiKeyPool(keys, selection.toInternal(), cooldown)
+
+  /** A snapshot of how each key was used so far, in the order of the keys. */
+  val usage: List<ApiKeyUsage>
+    get() = pool.usage.map { it.toPublic() }
+}
+
+/**
+ * A snapshot of how a key of an [ApiKeyPool] was used so far.
+ *
+ * @property requests how many requests were made with the key
+ * @property inFlight how many requests made with the key are still in flight
+ * @property quotaExceeded how many requests failed because the quota of the key was depleted
+ * @property invalid whether the key was rejected, and is no longer used
+ * @property coolingDown whether the key isn't used until its cooldown ends
+ */
+class ApiKeyUsage
+internal constructor(
+  val requests: Long,
+  val inFlight: Int,
+  val quotaExceeded: Long,
+  val invalid: Boolean,
+  val coolingDown: Boolean,
+)
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.Chat
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import org.json.JSONObject
+
+/** Runs a function that the model asked to call. */
+fun interface FunctionHandler {
+
+  /**
+   * Runs the function with the provided [args].
+   *
+   * @return the response to send back to the model
+   */
+  suspend fun invoke(args: FunctionArguments): JSONObject
+}
+
+/**
+ * A [FunctionDeclaration], along with the [FunctionHandler] that runs it.
+ *
+ * ```
+ * val tool = FunctionTool(getExchangeRate, idempotent = true) { args ->
+ *   JSONObject().put("rate", rates.lookup(args.getString("currencyFrom"), args.getString("currencyTo")))
+ * }
+ * ```
+ *
+ * @property declaration the function, as declared to the model
+ * @property timeout how long the [handler] may run before the call fails. Defaults to the
+ *   [AutoFunctionCallingOptions.timeout].
+ * @property idempotent whether calls with the same arguments always have the same response, so that
+ *   responses can be reused instead of calling the [handler] again
+ * @property handler runs the function
+ */
+class FunctionTool
+private constructor(
+  val declaration: FunctionDeclaration,
+  val idempotent: Boolean,
+  val handler: FunctionHandler,
+  val timeout: Duration?,
+) {
+  @JvmOverloads
+  constructor(
+    declaration: FunctionDeclaration,
+    idempotent: Boolean = false,
+    handler: FunctionHandler,
+  ) : this(declaration, idempotent, handler, null)
+
+  constructor(
+    declaration: FunctionDeclaration,
+    timeout: Duration,
+    idempotent: Boolean = false,
+    handler: FunctionHandler,
+  ) : this(declaration, idempotent, handler, timeout)
+
+  companion object {
+    /** Creates a [FunctionTool] whose [timeout] is [timeoutMillis], for Java callers. */
+    @JvmStatic
+    @JvmOverloads
+    fun withTimeoutMillis(
+      declaration: FunctionDeclaration,
+      timeoutMillis: Long,
+      idempotent: Boolean = false,
+      handler: FunctionHandler,
+    ) = FunctionTool(declaration, timeoutMillis.milliseconds, idempotent, handler)
+  }
+}
+
+/**
+ * Configures a [Chat] to run the functions the model calls by itself.
+ *
+ * When a response only calls functions of the provided [tools], they are run, and their responses
+ * are sent back to the model right away; until it responds with something else, or the
+ * [maxIterations] are reached. Only that last response is returned, and every exchange along the
+ * way is kept in the history. Responses that call any other function are returned as they are.
+ *
+ * Calls made in the same response run in parallel, up to [maxConcurrentCalls] at once, on a pool of
+ * as many threads. A call that fails (including by taking longer than its timeout) is reported to
+ * the model as a response with an `error`, so that it can recover.
+ *
+ * The [tools] still need to be declared to the model, through its `tools`.
+ *
+ * @property tools the functions to run, along with their handlers
+ * @property timeout how long a function may run, unless its [FunctionTool] says otherwise. Defaults
+ *   to 30 seconds.
+ * @property maxIterations how many times functions are run for a single message, before the
+ *   response calling them is returned as it is
+ * @property maxConcurrentCalls how many functions can run at once
+ * @property maxCachedResponses how many responses of [FunctionTool.idempotent] functions are kept
+ *   for reuse
+ */
+class AutoFunctionCallingOptions(
+  val tools: List<FunctionTool>,
+  val timeout: Duration = 30.seconds,
+  val maxIterations: Int = 10,
+  val maxConcurrentCalls: Int = 4,
+  val maxCachedResponses: Int = 64,
+) {
+  /** Options with the default for everything but the [tools], for Java callers. */
+  constructor(tools: List<FunctionTool>) : this(tools, 30.seconds)
+
+  init {
+    require(maxIterations > 0) { "maxIterations must be positive, but was $maxIterations" }
+    require(maxConcurrentCalls > 0) {
+      "maxConcurrentCalls must be positive, but was $maxConcurrentCalls"
+    }
+    require(timeout.isPositive()) { "timeout must be positive, but was $timeout" }
+    require(maxCachedResponses >= 0) {
+      "maxCachedResponses must not be negative, but was $maxCachedResponses"
+    }
+    require(tools.map { it.declaration.name }.toSet().size == tools.size) {
+      "Every tool must have a different name."
+    }
+  }
+
+  companion object {
+    /** Creates [AutoFunctionCallingOptions] whose [timeout] is [timeoutMillis], for Java callers. */
+    @JvmStatic
+    @JvmOverloads
+    fun withTimeoutMillis(
+      tools: List<FunctionTool>,
+      timeoutMillis: Long,
+      maxIterations: Int = 10,
+      maxConcurrentCalls: Int = 4,
+      maxCachedResponses: Int = 64,
+    ) =
+      AutoFunctionCallingOptions(
+        tools,
+        timeoutMillis.milliseconds,
+        maxIterations,
+        maxConcurrentCalls,
+        maxCachedResponses,
+      )
+  }
+}
+
+/**
+ * A snapshot of how the calls to a single [FunctionTool] went.
+ *
+ * @property calls the number of calls the model made
+ * @property cachedResponses how many of those calls reused the response of an earlier one
+ * @property failures how many of those calls failed, including the ones that timed out
+ * @property timeouts how many of those calls took longer than their timeout
+ * @property averageLatencyMillis the average time the handler took to respond
+ * @property p95LatencyMillis the time under which 95% of the handler's responses arrived, estimated
+ *   from the most recent ones
+ * @property maxLatencyMillis the longest time the handler took to respond
+ */
+class FunctionCallMetrics
+internal constructor(
+  val calls: Long,
+  val cachedResponses: Long,
+  val failures: Long,
+  val timeouts: Long,
+  val averageLatencyMillis: Double,
+  val p95LatencyMillis: Long,
+  val maxLatencyMillis: Long,
+)
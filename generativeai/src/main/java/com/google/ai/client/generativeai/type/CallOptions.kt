@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.GenerativeModel
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+
+/**
+ * Options for a single call to the backend, overriding the [RequestOptions] of the
+ * [GenerativeModel] making it.
+ *
+ * Calls with different options still share the same underlying client and connections, so there's
+ * no need for separate models to give some calls a tighter deadline than others.
+ *
+ * @property timeout the maximum amount of time for the whole call to take, including receiving all
+ *   the responses of a stream
+ * @property connectTimeout the maximum amount of time to establish a connection
+ * @property readTimeout the maximum amount of time between two reads from the connection
+ * @property firstResponseTimeout the maximum amount of time until the first response is received.
+ *   For a stream, this is its first response; for other calls, the response itself.
+ * @property priority the class the call is scheduled in, when the model's
+ *   [RequestOptions.scheduling] is set. Defaults to [RequestPriority.INTERACTIVE].
+ * @see callOptions
+ */
+class CallOptions
+private constructor(
+  val timeout: Duration?,
+  val connectTimeout: Duration?,
+  val readTimeout: Duration?,
+  val firstResponseTimeout: Duration?,
+  val priority: RequestPriority,
+) {
+
+  class Builder {
+    var timeout: Duration? = null
+    var connectTimeout: Duration? = null
+    var readTimeout: Duration? = null
+    var firstResponseTimeout: Duration? = null
+    var priority: RequestPriority = RequestPriority.INTERACTIVE
+
+    fun setTimeoutMillis(millis: Long) = apply { timeout = millis.milliseconds }
+
+    fun setConnectTimeoutMillis(millis: Long) = apply { connectTimeout = millis.milliseconds }
+
+    fun setReadTimeoutMillis(millis: Long) = apply { readTimeout = millis.milliseconds }
+
+    fun setFirstResponseTimeoutMillis(millis: Long) = apply {
+      firstResponseTimeout = millis.milliseconds
+    }
+
+    fun build() =
+      CallOptions(
+        timeout = timeout,
+        connectTimeout = connectTimeout,
+        readTimeout = readTimeout,
+        firstResponseTimeout = firstResponseTimeout,
+        priority = priority,
+      )
+  }
+
+  companion object {
+    fun builder() = Builder()
+  }
+}
+
+/**
+ * Helper method to construct a [CallOptions] in a DSL-like manner.
+ *
+ * Example Usage:
+ * ```
+ * callOptions {
+ *   timeout = 10.seconds
+ *   firstResponseTimeout = 2.seconds
+ *   priority = RequestPriority.BACKGROUND
+ * }
+ * ```
+ */
+fun callOptions(init: CallOptions.Builder.() -> Unit): CallOptions {
+  val builder = CallOptions.builder()
+  builder.init()
+  return builder.build()
+}
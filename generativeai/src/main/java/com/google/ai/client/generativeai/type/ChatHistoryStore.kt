@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.Chat
+import com.google.ai.client.generativeai.GenerativeModel
+
+/**
+ * Append-only storage for the history of a [Chat].
+ *
+ * Entries are stored in their serialized form, and are only read back when a message actually needs
+ * them, so a chat started from a store (see [GenerativeModel.startChat]) doesn't keep its whole
+ * history (and any media in it) in memory.
+ *
+ * Implementations must be safe to call from multiple threads.
+ *
+ * @see FileChatHistoryStore
+ */
+interface ChatHistoryStore {
+
+  /** The number of entries in the store. */
+  val size: Int
+
+  /** The role of the entry at [index], which should be available without reading the entry. */
+  fun role(index: Int): String?
+
+  /**
+   * The estimated token count of the entry at [index], as provided when it was appended, which
+   * should be available without reading the entry.
+   *
+   * Stores that don't keep it return -1, and the entry is then read to estimate it again.
+   */
+  fun tokenCount(index: Int): Int = -1
+
+  /** Reads the serialized entry at [index]. */
+  fun read(index: Int): String
+
+  /**
+   * Appends the provided [entries] to the end of the store.
+   *
+   * The [entries] form a single exchange with the model, and should be appended as a single
+   * operation whenever possible.
+   */
+  fun append(entries: List<Entry>)
+
+  /**
+   * A single entry of a [ChatHistoryStore].
+   *
+   * @property role the role of the [Content] the entry holds
+   * @property data the serialized form of that [Content]
+   * @property tokenCount an estimate of how many tokens that [Content] costs
+   */
+  class Entry
+  @JvmOverloads
+  constructor(val role: String?, val data: String, val tokenCount: Int = -1)
+}
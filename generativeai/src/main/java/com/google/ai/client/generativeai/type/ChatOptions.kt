@@ -0,0 +1,38 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.Chat
+
+/**
+ * Configurable options unique to how a [Chat] manages its conversation.
+ *
+ * @property queueMessages when `true`, messages sent while another one is still in flight wait for
+ *   it to complete, and are then sent in the order they arrived. When `false` (the default), doing
+ *   so throws an [InvalidStateException] instead.
+ * @property historyPolicy decides which part of the history is sent along with each message.
+ *   Defaults to [HistoryPolicy.UNBOUNDED].
+ * @property autoFunctionCalling when set, the functions the model calls are run by the chat itself,
+ *   and their responses are sent back to the model before a message returns.
+ */
+class ChatOptions
+@JvmOverloads
+constructor(
+  val queueMessages: Boolean = false,
+  val historyPolicy: HistoryPolicy = HistoryPolicy.UNBOUNDED,
+  val autoFunctionCalling: AutoFunctionCallingOptions? = null,
+)
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import kotlin.time.Duration
+import kotlin.time.DurationUnit
+import kotlin.time.toDuration
+
+/**
+ * Configures a circuit breaker: failing requests right away, without sending them, while the
+ * backend keeps failing.
+ *
+ * The outcomes of the most recent requests are recorded while the circuit is [CircuitState.CLOSED].
+ * Once the [failureRateThreshold] is reached, the circuit opens: requests fail right away with a
+ * [CircuitOpenException] for [openDuration]. The circuit then turns [CircuitState.HALF_OPEN], and
+ * lets [probeRequests] through. If they all succeed, the circuit closes; if any of them fails, it
+ * opens again.
+ *
+ * Only the failures that point to an unhealthy backend are counted: [ServerException]s, a disabled
+ * service, [RequestTimeoutException]s and network errors.
+ *
+ * @property failureRateThreshold the fraction of failed requests, above 0 and at most 1, from which
+ *   the circuit opens. Defaults to `0.5`.
+ * @property windowSize how many of the most recent requests the failure rate is measured over.
+ * @property minimumRequests how many requests need to be recorded before the circuit can open.
+ * @property openDuration how long the circuit stays open before probe requests are sent.
+ * @property probeRequests how many probe requests are sent while the circuit is half-open.
+ */
+class CircuitBreakerOptions(
+  val failureRateThreshold: Double,
+  val windowSize: Int,
+  val minimumRequests: Int,
+  val openDuration: Duration,
+  val probeRequests: Int,
+) {
+  @JvmOverloads
+  constructor(
+    failureRateThreshold: Double = 0.5,
+    windowSize: Int = 20,
+    minimumRequests: Int = 10,
+    openDurationMillis: Long? = 30_000,
+    probeRequests: Int = 1,
+  ) : this(
+    failureRateThreshold,
+    windowSize,
+    minimumRequests,
+    (openDurationMillis ?: 30_000).toDuration(DurationUnit.MILLISECONDS),
+    probeRequests,
+  )
+
+  init {
+    require(failureRateThreshold > 0.0 && failureRateThreshold <= 1.0) {
+      "failureRateThreshold must be above 0 and at most 1, but was $failureRateThreshold"
+    }
+    require(windowSize > 0) { "windowSize must be positive, but was $windowSize" }
+    require(minimumRequests in 1..windowSize) {
+      "minimumRequests must be between 1 and windowSize, but was $minimumRequests"
+    }
+    require(openDuration.isPositive()) { "openDuration must be positive, but was $openDuration" }
+    require(probeRequests > 0) { "probeRequests must be positive, but was $probeRequests" }
+  }
+}
+
+/** The states of a circuit breaker. */
+enum class CircuitState {
+  /** Requests are sent, and their outcomes are recorded. */
+  CLOSED,
+
+  /** Requests fail right away with a [CircuitOpenException], without being sent. */
+  OPEN,
+
+  /** A few probe requests are sent, to find out whether the backend recovered. */
+  HALF_OPEN,
+}
+
+/**
+ * A snapshot of the state of a circuit breaker, and of how it changed so far.
+ *
+ * @property state the current state of the circuit
+ * @property failureRate the fraction of failed requests among the most recent ones, while the
+ *   circuit was last closed
+ * @property timesOpened how many times the circuit opened
+ * @property timesHalfOpened how many times the circuit went from open to half-open
+ * @property timesClosed how many times the circuit closed again, after being open
+ * @property rejectedRequests how many requests failed right away, without being sent
+ */
+class CircuitBreakerMetrics
+internal constructor(
+  val state: CircuitState,
+  val failureRate: Double,
+  val timesOpened: Long,
+  val timesHalfOpened: Long,
+  val timesClosed: Long,
+  val rejectedRequests: Long,
+)
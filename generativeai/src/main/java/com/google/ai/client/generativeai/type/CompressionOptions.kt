@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+/** The algorithms request bodies can be compressed with. */
+enum class CompressionAlgorithm {
+  GZIP,
+  DEFLATE,
+}
+
+/**
+ * Configures the compression of request bodies, and of the responses to them.
+ *
+ * Mostly useful for long prompts, such as chats with a long history or many function declarations,
+ * whose JSON compresses well.
+ *
+ * @property algorithm the algorithm request bodies are compressed with. Defaults to
+ *   [CompressionAlgorithm.GZIP].
+ * @property minRequestBytes the size (in bytes) from which request bodies are compressed. Smaller
+ *   ones are sent as they are, since compressing them would save little.
+ * @property acceptCompressedResponses whether the backend is asked to compress its responses.
+ */
+class CompressionOptions
+@JvmOverloads
+constructor(
+  val algorithm: CompressionAlgorithm = CompressionAlgorithm.GZIP,
+  val minRequestBytes: Int = 4096,
+  val acceptCompressedResponses: Boolean = true,
+) {
+  init {
+    require(minRequestBytes >= 0) {
+      "minRequestBytes must not be negative, but was $minRequestBytes"
+    }
+  }
+}
+
+/**
+ * A snapshot of the bytes saved by compression, across all the requests made by a model.
+ *
+ * Only the requests and responses that were actually compressed are counted.
+ *
+ * @property requestBytesBeforeCompression the size of the compressed request bodies, before
+ *   compression
+ * @property requestBytesAfterCompression the size of the compressed request bodies, as sent
+ * @property responseBytesBeforeDecompression the size of the compressed responses, as received
+ * @property responseBytesAfterDecompression the size of the compressed responses, once decompressed
+ */
+class CompressionMetrics
+internal constructor(
+  val requestBytesBeforeCompression: Long,
+  val requestBytesAfterCompression: Long,
+  val responseBytesBeforeDecompression: Long,
+  val responseBytesAfterDecompression: Long,
+) {
+  /** The bytes compression saved on requests. */
+  val requestBytesSaved: Long
+    get() = requestBytesBeforeCompression - requestBytesAfterCompression
+
+  /** The bytes compression saved on responses. */
+  val responseBytesSaved: Long
+    get() = responseBytesAfterDecompression - responseBytesBeforeDecompression
+}
@@ -27,6 +27,14 @@ import android.graphics.Bitmap
  */
 class Content @JvmOverloads constructor(val role: String? = "user", val parts: List<Part>) {
 
+  /**
+   * The serializable form of this content, when it is already known.
+   *
+   * Populated for content that originated from the backend (or was assembled from it), so that
+   * sending it back as history doesn't require converting (and re-encoding) every part again.
+   */
+  internal var internalForm: com.google.ai.client.generativeai.common.shared.Content? = null
+
   class Builder {
     var role: String? = "user"
 
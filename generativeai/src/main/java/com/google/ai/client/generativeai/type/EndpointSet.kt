@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.GenerativeModel
+import com.google.ai.client.generativeai.internal.util.toPublic
+import kotlin.time.Duration
+import kotlin.time.DurationUnit
+import kotlin.time.toDuration
+
+/**
+ * Several endpoints serving the API, such as regional endpoints or proxies, that requests are
+ * routed between by latency.
+ *
+ * Each request goes to the healthy endpoint with the lowest latency, measured as a moving average
+ * of how long its previous requests took to get their first response. An endpoint that fails with a
+ * [ServerException], a [RequestTimeoutException] or a network error is marked as unhealthy, and the
+ * request fails over to the next endpoint right away. Streams only fail over before their first
+ * response. Unhealthy endpoints are probed every [probeInterval], and used again once they respond.
+ *
+ * A set can be shared by several [GenerativeModel]s, so that they all know which endpoints are
+ * healthy, and how fast they are.
+ *
+ * ```
+ * val endpoints = EndpointSet(listOf("https://eu.example.com", "https://us.example.com"))
+ * val options = RequestOptions(endpoints = endpoints)
+ * val model = GenerativeModel("gemini-1.5-flash", apiKey, requestOptions = options)
+ * ```
+ *
+ * @property smoothing the weight of the latest latency in the moving average, above 0 and at most 1.
+ *   Higher values react faster to changes, and lower ones are less affected by outliers.
+ * @property probeInterval how often unhealthy endpoints are probed.
+ * @see RequestOptions.endpoints
+ */
+class EndpointSet(endpoints: List<String>, val smoothing: Double, val probeInterval: Duration) {
+  @JvmOverloads
+  constructor(
+    endpoints: List<String>,
+    smoothing: Double = 0.3,
+    probeIntervalMillis: Long? = 10_000,
+  ) : this(
+    endpoints,
+    smoothing,
+    (probeIntervalMillis ?: 10_000).toDuration(DurationUnit.MILLISECONDS),
+  )
+
+  /**
+   * Where the endpoints are kept track of; shared by every model the set is used with. It validates
+   * the endpoints and options as it's created.
+   */
+  internal val set =
+    com.google.ai.client.generativeai.common.EndpointSet(endpoints, smoothing, probeInterval)
+
+  /** A snapshot of the status of each endpoint, in the order of the endpoints. */
+  val status: List<EndpointStatus>
+    get() = set.status.map { it.toPublic() }
+}
+
+/**
+ * A snapshot of the status of an endpoint of an [EndpointSet].
+ *
+ * @property url the base URL of the endpoint
+ * @property latency the moving average of how long its requests took to get their first response,
+ *   or null if none of them got one yet
+ * @property healthy whether requests are sent to the endpoint; unhealthy ones are only probed
+ * @property requests how many requests were sent to the endpoint
+ * @property failures how many requests failed because of the endpoint
+ */
+class EndpointStatus
+internal constructor(
+  val url: String,
+  val latency: Duration?,
+  val healthy: Boolean,
+  val requests: Long,
+  val failures: Long,
+)
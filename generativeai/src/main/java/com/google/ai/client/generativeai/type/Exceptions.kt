@@ -57,6 +57,8 @@ sealed class GoogleGenerativeAIException(message: String, cause: Throwable? = nu
               UnknownException(cause.message ?: "", cause.cause)
             is com.google.ai.client.generativeai.common.QuotaExceededException ->
               QuotaExceededException(cause.message ?: "", cause.cause)
+            is com.google.ai.client.generativeai.common.CircuitOpenException ->
+              CircuitOpenException(cause.message ?: "", cause.cause)
             else -> UnknownException(cause.message ?: "", cause)
           }
         is TimeoutCancellationException ->
@@ -130,10 +132,28 @@ class ResponseStoppedException(val response: GenerateContentResponse, cause: Thr
 class RequestTimeoutException(message: String, cause: Throwable? = null) :
   GoogleGenerativeAIException(message, cause)
 
+/**
+ * A request was dropped before being sent, because the queue of the request scheduler was full.
+ *
+ * Only occurs when [RequestOptions.scheduling] is set. Queued [RequestPriority.BACKGROUND] requests
+ * are dropped first to make room for [RequestPriority.INTERACTIVE] ones.
+ */
+class RequestRejectedException(message: String, cause: Throwable? = null) :
+  GoogleGenerativeAIException(message, cause)
+
 /** The quota for this API key is depleted, retry this request at a later time. */
 class QuotaExceededException(message: String, cause: Throwable? = null) :
   GoogleGenerativeAIException(message, cause)
 
+/**
+ * A request failed without being sent, because too many of the recent ones failed.
+ *
+ * Only occurs when [RequestOptions.circuitBreaker] is set. Requests are sent again once the
+ * [CircuitBreakerOptions.openDuration] has passed, and the backend has recovered.
+ */
+class CircuitOpenException(message: String, cause: Throwable? = null) :
+  GoogleGenerativeAIException(message, cause)
+
 /** Catch all case for exceptions not explicitly expected. */
 class UnknownException(message: String, cause: Throwable? = null) :
   GoogleGenerativeAIException(message, cause)
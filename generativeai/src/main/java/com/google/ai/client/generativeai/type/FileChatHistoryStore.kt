@@ -0,0 +1,199 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * A [ChatHistoryStore] backed by an append-only file, which is memory-mapped for reading.
+ *
+ * Entries are stored in [file], and their positions in a fixed-size index next to it (with an
+ * `.idx` suffix), so opening a store doesn't require reading any of its entries. Every append is
+ * forced to the storage device before it returns, and appends that were interrupted (eg; by the
+ * process being killed) are discarded the next time the store is opened.
+ *
+ * The store should be [closed][close] once it's no longer used, and a file should only be opened by
+ * a single store at a time.
+ *
+ * @param file the file the entries are stored in, created if it doesn't exist yet
+ */
+class FileChatHistoryStore(file: File) : ChatHistoryStore, Closeable {
+  private val data = MappedFile(file)
+  private val index = MappedFile(File(file.path + INDEX_SUFFIX))
+  private var count = (index.length / INDEX_ENTRY_SIZE).toInt()
+
+  init {
+    while (count > 0 && end(count - 1) > data.length) count--
+    index.truncate(count.toLong() * INDEX_ENTRY_SIZE)
+    data.truncate(if (count == 0) 0 else end(count - 1))
+  }
+
+  override val size: Int
+    @Synchronized get() = count
+
+  @Synchronized
+  override fun role(index: Int): String? {
+    val record = record(index)
+    val length = record.short.toInt()
+    if (length < 0) return null
+
+    record.position(RECORD_HEADER_SIZE).limit(RECORD_HEADER_SIZE + length)
+    return Charsets.UTF_8.decode(record).toString()
+  }
+
+  @Synchronized
+  override fun tokenCount(index: Int): Int = record(index).getInt(Short.SIZE_BYTES)
+
+  @Synchronized
+  override fun read(index: Int): String {
+    val record = record(index)
+    val length = record.short.toInt()
+    record.position(RECORD_HEADER_SIZE + length.coerceAtLeast(0))
+    return Charsets.UTF_8.decode(record).toString()
+  }
+
+  @Synchronized
+  override fun append(entries: List<ChatHistoryStore.Entry>) {
+    if (entries.isEmpty()) return
+
+    val records = entries.map { it.role?.toByteArray() to it.data.toByteArray() }
+    val recordsSize =
+      records.sumOf { (role, data) -> RECORD_HEADER_SIZE + (role?.size ?: 0) + data.size }
+    val recordsBuffer = ByteBuffer.allocate(recordsSize)
+    val indexBuffer = ByteBuffer.allocate(entries.size * INDEX_ENTRY_SIZE)
+
+    var offset = data.length
+    for ((entry, record) in entries.zip(records)) {
+      val (role, data) = record
+      val start = recordsBuffer.position()
+      recordsBuffer.putShort(role?.size?.toShort() ?: -1).putInt(entry.tokenCount)
+      role?.let { recordsBuffer.put(it) }
+      recordsBuffer.put(data)
+
+      val length = recordsBuffer.position() - start
+      indexBuffer.putLong(offset).putInt(length)
+      offset += length
+    }
+
+    // The index is written (and made durable) last, so that an interrupted append never refers to
+    // missing records
+    data.append(recordsBuffer.flip() as ByteBuffer)
+    index.append(indexBuffer.flip() as ByteBuffer)
+    count += entries.size
+  }
+
+  @Synchronized
+  override fun close() {
+    data.close()
+    index.close()
+  }
+
+  /** The serialized record of the entry at [index], positioned (and indexed) from its start. */
+  private fun record(index: Int): ByteBuffer {
+    if (index !in 0 until count) {
+      throw IndexOutOfBoundsException("Index $index is out of bounds for a size of $count")
+    }
+    val entry = this.index.slice(index.toLong() * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE)
+    return data.slice(entry.long, entry.int)
+  }
+
+  /** The offset right after the record of the entry at [index]. */
+  private fun end(index: Int): Long {
+    val entry = this.index.slice(index.toLong() * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE)
+    return entry.long + entry.int
+  }
+
+  companion object {
+    private const val INDEX_SUFFIX = ".idx"
+
+    /** An index entry is the offset ([Long]) and length ([Int]) of a record. */
+    private const val INDEX_ENTRY_SIZE = 12
+
+    /**
+     * A record starts with the length ([Short]) of its role (or -1 when it has none), followed by
+     * its estimated token count ([Int]).
+     */
+    private const val RECORD_HEADER_SIZE = 6
+  }
+}
+
+/**
+ * A file that is only ever appended to, and read through a memory mapping.
+ *
+ * Only a window of the file is mapped at a time, so files of any size can be read, and the window
+ * is kept for as long as reads fall within it.
+ */
+private class MappedFile(file: File) : Closeable {
+  private val channel = RandomAccessFile(file, "rw").channel
+  private var mapping: MappedByteBuffer? = null
+  private var mappingStart = 0L
+
+  var length: Long = channel.size()
+    private set
+
+  /** Writes [buffer] at the end of the file, and waits for it to reach the storage device. */
+  fun append(buffer: ByteBuffer) {
+    while (buffer.hasRemaining()) {
+      length += channel.write(buffer, length)
+    }
+    channel.force(false)
+  }
+
+  fun truncate(size: Long) {
+    if (size >= length) return
+    channel.truncate(size)
+    length = size
+    mapping = null
+  }
+
+  /** A view of [size] bytes starting at [offset], mapping another window of the file if needed. */
+  fun slice(offset: Long, size: Int): ByteBuffer {
+    val end = offset + size
+    val buffer =
+      mapping?.takeIf { offset >= mappingStart && end <= mappingStart + it.capacity() }
+        ?: map(offset, end)
+
+    return buffer.duplicate().apply {
+      position((offset - mappingStart).toInt())
+      limit((end - mappingStart).toInt())
+    }.slice()
+  }
+
+  /** Maps a window of the file that covers the bytes from [offset] until [end]. */
+  private fun map(offset: Long, end: Long): MappedByteBuffer {
+    val start = offset - offset % WINDOW_ALIGNMENT
+    val size = maxOf(end, minOf(start + WINDOW_SIZE, length)) - start
+
+    mappingStart = start
+    return channel.map(FileChannel.MapMode.READ_ONLY, start, size).also { mapping = it }
+  }
+
+  override fun close() {
+    mapping = null
+    channel.close()
+  }
+
+  companion object {
+    private const val WINDOW_SIZE = 64L * 1024 * 1024
+    private const val WINDOW_ALIGNMENT = 1024L * 1024
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.internal.util.ObjectBinder
+
+/**
+ * The arguments of a [FunctionCallPart], decoded according to the [Schema]s they were declared
+ * with.
+ *
+ * ```
+ * val args = getExchangeRate.decodeArguments(response.functionCalls.first())
+ * val amount = args.getDouble("amount")
+ * ```
+ *
+ * Each value has the type of its schema: [String] for [FunctionType.STRING], [Int] for
+ * [FunctionType.INTEGER], [Long] for [FunctionType.LONG], [Double] for [FunctionType.NUMBER],
+ * [Boolean] for [FunctionType.BOOLEAN], a [List] of values of the item schema for
+ * [FunctionType.ARRAY], and [FunctionArguments] for [FunctionType.OBJECT]. Values of a custom
+ * [FunctionType] are decoded with its [FunctionType.parse].
+ *
+ * @see FunctionDeclaration.decodeArguments
+ */
+class FunctionArguments
+internal constructor(private val binder: ObjectBinder, private val values: Array<Any?>) {
+
+  /** The names of the declared parameters, whether or not the model provided them. */
+  val names: Set<String>
+    get() = binder.names
+
+  /** Whether the model provided a (non null) value for the parameter called [name]. */
+  operator fun contains(name: String): Boolean = binder.indexOf(name)?.let { values[it] } != null
+
+  /**
+   * The value of the parameter called [name], or null if the model didn't provide one.
+   *
+   * @throws IllegalArgumentException if no parameter called [name] was declared
+   */
+  operator fun get(name: String): Any? {
+    val index = requireNotNull(binder.indexOf(name)) { "No parameter called '$name' was declared." }
+    return values[index]
+  }
+
+  /** The value of the [FunctionType.STRING] parameter called [name]. */
+  fun getString(name: String): String? = typed(name, "STRING") { it as? String }
+
+  /** The value of the [FunctionType.INTEGER] parameter called [name]. */
+  fun getInt(name: String): Int? = typed(name, "INTEGER") { it as? Int }
+
+  /** The value of the [FunctionType.INTEGER] or [FunctionType.LONG] parameter called [name]. */
+  fun getLong(name: String): Long? =
+    typed(name, "INTEGER") {
+      when (it) {
+        is Long -> it
+        is Int -> it.toLong()
+        else -> null
+      }
+    }
+
+  /** The value of the numeric parameter called [name], as a [Double]. */
+  fun getDouble(name: String): Double? = typed(name, "NUMBER") { (it as? Number)?.toDouble() }
+
+  /** The value of the [FunctionType.BOOLEAN] parameter called [name]. */
+  fun getBoolean(name: String): Boolean? = typed(name, "BOOLEAN") { it as? Boolean }
+
+  /** The value of the [FunctionType.ARRAY] parameter called [name]. */
+  fun getList(name: String): List<Any?>? = typed(name, "ARRAY") { (it as? List<*>)?.toList() }
+
+  /** The value of the [FunctionType.OBJECT] parameter called [name]. */
+  fun getObject(name: String): FunctionArguments? =
+    typed(name, "OBJECT") { it as? FunctionArguments }
+
+  /** The provided values by parameter name, with nested objects also converted to maps. */
+  fun toMap(): Map<String, Any?> = binder.toMap(values)
+
+  override fun toString() = toMap().toString()
+
+  private inline fun <T> typed(name: String, type: String, cast: (Any) -> T?): T? {
+    val value = get(name) ?: return null
+    return cast(value)
+      ?: throw IllegalArgumentException(
+        "Parameter '$name' is a ${value.javaClass.simpleName}, not $type."
+      )
+  }
+}
@@ -16,6 +16,8 @@
 
 package com.google.ai.client.generativeai.type
 
+import com.google.ai.client.generativeai.internal.util.ArgumentException
+import com.google.ai.client.generativeai.internal.util.ObjectBinder
 import org.json.JSONObject
 
 /**
@@ -28,7 +30,34 @@ class FunctionDeclaration(
   val description: String,
   val parameters: List<Schema<*>>,
   val requiredParameters: List<String>,
-)
+) {
+  private val binder by lazy { ObjectBinder(parameters, requiredParameters) }
+
+  /**
+   * Decodes the arguments of a [call] to this function according to its [parameters].
+   *
+   * The decoder is built from the [parameters] on first use, and reused for every later call.
+   * Values that aren't strings are decoded from what the model sent, rather than from their string
+   * form in [FunctionCallPart.args].
+   *
+   * ```
+   * val args = getExchangeRate.decodeArguments(response.functionCalls.first())
+   * val currencyFrom = args.getString("currencyFrom")
+   * ```
+   *
+   * @throws IllegalArgumentException if [call] is for a different function
+   * @throws SerializationException if an argument doesn't match its [Schema], or a required one is
+   *   missing
+   */
+  fun decodeArguments(call: FunctionCallPart): FunctionArguments {
+    require(call.name == name) { "Expected a call to '$name', but got one to '${call.name}'." }
+    return try {
+      call.rawArgs?.let { binder.bind(it) } ?: binder.bind(call.args.orEmpty())
+    } catch (e: ArgumentException) {
+      throw SerializationException("Invalid arguments for '$name': ${e.message}", e)
+    }
+  }
+}
 
 /**
  * Represents a parameter for a declared function
@@ -28,6 +28,8 @@ package com.google.ai.client.generativeai.type
  * @property responseMimeType Response type for generated candidate text. See the
  *   [cloud docs](https://cloud.google.com/vertex-ai/docs/reference/rest/v1beta1/GenerationConfig)
  *   for a list of supported types.
+ * @property responseSchema The schema that generated candidate text must follow, when the
+ *   [responseMimeType] is `application/json`.
  */
 class GenerationConfig
 private constructor(
@@ -41,6 +43,12 @@ private constructor(
   val responseSchema: Schema<*>?,
 ) {
 
+  /**
+   * Decodes the responses generated with this configuration according to the [responseSchema],
+   * which is compiled once, on first use. Null if there is no [responseSchema].
+   */
+  val responseDecoder: ResponseDecoder? by lazy { responseSchema?.let { ResponseDecoder(it) } }
+
   class Builder {
     @JvmField var temperature: Float? = null
     @JvmField var topK: Int? = null
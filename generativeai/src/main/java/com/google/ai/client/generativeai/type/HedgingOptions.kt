@@ -0,0 +1,42 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+/**
+ * Configures hedging: sending a duplicate of a request that takes longer than usual to respond, and
+ * using whichever of the two responds first.
+ *
+ * A request is hedged once it has waited longer than the [percentile] of the latencies observed so
+ * far (the time to the response, or to the first response of a stream). The first of the two
+ * requests to respond is used, and the other one is cancelled. A request that fails is only given
+ * up on once the other one failed too.
+ *
+ * @property percentile the latency percentile after which a request is hedged, between 0 and 1.
+ *   Defaults to `0.95`.
+ * @property budget the maximum fraction of requests that may be hedged, between 0 and 1. Defaults
+ *   to `0.05`, which adds at most 5% to the load on the backend.
+ * @property minSamples how many latencies need to be observed before any request is hedged.
+ */
+class HedgingOptions
+@JvmOverloads
+constructor(val percentile: Double = 0.95, val budget: Double = 0.05, val minSamples: Int = 20) {
+  init {
+    require(percentile in 0.0..1.0) { "percentile must be between 0 and 1, but was $percentile" }
+    require(budget in 0.0..1.0) { "budget must be between 0 and 1, but was $budget" }
+    require(minSamples > 0) { "minSamples must be positive, but was $minSamples" }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.Chat
+
+/**
+ * A snapshot of how a [Chat]'s [HistoryPolicy] has affected the requests it made.
+ *
+ * Token counts are based on the [UsageMetadata] of previous responses, and are estimated for
+ * content that was never part of a response.
+ *
+ * @property messagesSent the number of messages sent through the chat
+ * @property historyTokensSent the tokens of history sent along with those messages
+ * @property historyTokensSaved the tokens of history that were left out of those messages
+ * @property summaries the number of summarization requests made by the [HistoryPolicy]
+ * @property summaryTokens the total tokens spent on summarization requests
+ */
+class HistoryMetrics
+internal constructor(
+  val messagesSent: Long,
+  val historyTokensSent: Long,
+  val historyTokensSaved: Long,
+  val summaries: Long,
+  val summaryTokens: Long,
+)
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import android.util.Log
+import com.google.ai.client.generativeai.Chat
+import com.google.ai.client.generativeai.GenerativeModel
+import com.google.ai.client.generativeai.internal.util.HistoryTracker
+
+/**
+ * Decides which part of a [Chat]'s history is sent to the model along with each new message.
+ *
+ * Policies only affect what is sent; the [Chat.history] itself is never modified.
+ *
+ * ```
+ * val chat = model.startChat(options = ChatOptions(historyPolicy = HistoryPolicy.slidingWindow(10)))
+ * ```
+ *
+ * @see ChatOptions.historyPolicy
+ */
+fun interface HistoryPolicy {
+
+  /**
+   * Selects the [Content]s to send before the next prompt.
+   *
+   * The selection should start at the beginning of a turn (a 'user' [Content]), so that function
+   * calls are never separated from their responses.
+   *
+   * @param history the full history of the chat
+   * @param context information about the chat, such as how many tokens each [Content] costs
+   */
+  suspend fun select(history: List<Content>, context: HistoryContext): List<Content>
+
+  companion object {
+    /** Sends the full history along with every message. This is the default. */
+    @JvmField val UNBOUNDED = HistoryPolicy { history, _ -> history }
+
+    /**
+     * Only sends the most recent turns of the history.
+     *
+     * @param maxTurns how many turns (a 'user' message, and everything up to the next one) to send;
+     *   with 0, only the new message is sent
+     */
+    @JvmStatic
+    fun slidingWindow(maxTurns: Int): HistoryPolicy {
+      require(maxTurns >= 0) { "maxTurns must not be negative, but was $maxTurns" }
+      return HistoryPolicy { history, _ ->
+        val turns = history.turnStarts()
+        when {
+          turns.size <= maxTurns -> history
+          maxTurns == 0 -> emptyList()
+          else -> history.subList(turns[turns.size - maxTurns], history.size)
+        }
+      }
+    }
+
+    /**
+     * Only sends the most recent turns of the history that fit in the provided token budget.
+     *
+     * Token counts come from the [UsageMetadata] of previous responses, so the budget is an
+     * approximation rather than a guarantee.
+     *
+     * @param maxTokens how many tokens of history to send along with each message
+     */
+    @JvmStatic
+    fun tokenBudget(maxTokens: Int): HistoryPolicy {
+      require(maxTokens >= 0) { "maxTokens must not be negative, but was $maxTokens" }
+      return HistoryPolicy { history, context ->
+        var start = history.size
+        var tokens = 0
+        for (turn in history.turnStarts().asReversed()) {
+          tokens += (turn until start).sumOf { context.tokenCount(history[it]) }
+          if (tokens > maxTokens) break
+          start = turn
+        }
+        history.subList(start, history.size)
+      }
+    }
+
+    /**
+     * Sends a summary of older turns, followed by the most recent turns of the history.
+     *
+     * Once the history grows beyond [maxTurns] turns (not counting the ones already summarized),
+     * all but the last [keepTurns] of them are folded into a rolling summary, generated by the
+     * chat's own model. Summaries are only regenerated when that happens again, so a summarization
+     * request is made at most once every `maxTurns - keepTurns` turns.
+     *
+     * If a summary can't be generated, the turns are sent unchanged, and summarization is attempted
+     * again on the next message.
+     *
+     * Note: The returned policy keeps the summary between messages, and should not be shared
+     * between multiple [Chat]s.
+     *
+     * @param maxTurns how many turns to send before summarizing the older ones
+     * @param keepTurns how many of the most recent turns to keep out of the summary
+     * @param instruction the prompt used to ask the model for a summary
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun summarizing(
+      maxTurns: Int,
+      keepTurns: Int = maxTurns / 2,
+      instruction: String = DEFAULT_SUMMARY_INSTRUCTION,
+    ): HistoryPolicy {
+      require(keepTurns in 0 until maxTurns) {
+        "keepTurns must be between 0 and maxTurns (exclusive), but was $keepTurns"
+      }
+      return SummarizingPolicy(maxTurns, keepTurns, instruction)
+    }
+  }
+}
+
+/**
+ * Information about a [Chat] that is available to its [HistoryPolicy].
+ *
+ * @property model the model the chat is interacting with
+ */
+class HistoryContext
+internal constructor(val model: GenerativeModel, private val tracker: HistoryTracker) {
+
+  /**
+   * The number of tokens the provided [content] costs.
+   *
+   * Measured from the [UsageMetadata] of previous responses when the [content] was part of one, and
+   * estimated from its size otherwise.
+   */
+  fun tokenCount(content: Content): Int = tracker.tokenCount(content)
+
+  /**
+   * Asks the [model] to summarize the provided [contents].
+   *
+   * @return a 'user' [Content] holding the summary, or null if one could not be generated
+   */
+  internal suspend fun summarize(contents: List<Content>, instruction: String): Content? {
+    val response =
+      try {
+        model.generateContent(*contents.toTypedArray(), content { text(instruction) })
+      } catch (e: GoogleGenerativeAIException) {
+        Log.w(TAG, "Failed to summarize the chat history, sending it unchanged", e)
+        return null
+      }
+    val summary = response.text?.takeUnless { it.isBlank() } ?: return null
+
+    return content { text("$SUMMARY_PREFIX$summary") }
+      .also { tracker.onSummary(it, response.usageMetadata) }
+  }
+
+  companion object {
+    private const val TAG = "HistoryContext"
+    private const val SUMMARY_PREFIX = "Summary of the conversation so far:\n"
+  }
+}
+
+/** A [HistoryPolicy] that replaces older turns with a rolling summary. */
+private class SummarizingPolicy(
+  private val maxTurns: Int,
+  private val keepTurns: Int,
+  private val instruction: String,
+) : HistoryPolicy {
+  private var summary: List<Content> = emptyList()
+  private var summarizedCount = 0
+  private var lastSummarized: Content? = null
+
+  override suspend fun select(history: List<Content>, context: HistoryContext): List<Content> {
+    if (!isStillValid(history)) {
+      summary = emptyList()
+      summarizedCount = 0
+      lastSummarized = null
+    }
+
+    val remaining = history.subList(summarizedCount, history.size)
+    val turns = remaining.turnStarts()
+    if (turns.size > maxTurns) {
+      val end = if (keepTurns == 0) remaining.size else turns[turns.size - keepTurns]
+      val summarized = context.summarize(summary + remaining.subList(0, end), instruction)
+
+      if (summarized != null) {
+        summary = listOf(summarized, content("model") { text(SUMMARY_ACKNOWLEDGEMENT) })
+        summarizedCount += end
+        lastSummarized = history[summarizedCount - 1]
+      }
+    }
+
+    return summary + history.subList(summarizedCount, history.size)
+  }
+
+  /** Whether the history that was summarized is still the start of the provided [history]. */
+  private fun isStillValid(history: List<Content>) =
+    summarizedCount == 0 ||
+      (summarizedCount <= history.size && history[summarizedCount - 1] === lastSummarized)
+
+  companion object {
+    private const val SUMMARY_ACKNOWLEDGEMENT = "Understood."
+  }
+}
+
+private const val DEFAULT_SUMMARY_INSTRUCTION =
+  "Summarize the conversation so far. Keep every fact, decision, name and number that could be " +
+    "needed to continue it, and leave out everything else."
+
+/**
+ * The indices at which each turn (a 'user' [Content], and everything up to the next one) starts.
+ */
+private fun List<Content>.turnStarts(): List<Int> =
+  indices.filter { it == 0 || this[it].role == "user" }
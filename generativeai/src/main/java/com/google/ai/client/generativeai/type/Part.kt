@@ -17,6 +17,7 @@
 package com.google.ai.client.generativeai.type
 
 import android.graphics.Bitmap
+import kotlinx.serialization.json.JsonObject
 import org.json.JSONObject
 
 /**
@@ -52,8 +53,19 @@ class FileDataPart(val uri: String, val mimeType: String) : Part
 /** @return The part as a [BlobPart] if it represents a blob, and null otherwise */
 fun Part.asFileDataPartOrNull(): FileDataPart? = this as? FileDataPart
 
-/** Represents function call name and params received from requests. */
-class FunctionCallPart(val name: String, val args: Map<String, String?>?) : Part
+/**
+ * Represents function call name and params received from requests.
+ *
+ * Use [FunctionDeclaration.decodeArguments] to get the arguments as the types declared for them.
+ */
+class FunctionCallPart
+internal constructor(
+  val name: String,
+  val args: Map<String, String?>?,
+  internal val rawArgs: JsonObject?,
+) : Part {
+  constructor(name: String, args: Map<String, String?>?) : this(name, args, null)
+}
 
 /** Represents function call output to be returned to the model when it requests a function call */
 class FunctionResponsePart(val name: String, val response: JSONObject) : Part
@@ -16,6 +16,7 @@
 
 package com.google.ai.client.generativeai.type
 
+import com.google.ai.client.generativeai.Chat
 import kotlin.time.Duration
 import kotlin.time.DurationUnit
 import kotlin.time.toDuration
@@ -26,11 +27,63 @@ import kotlin.time.toDuration
  * @property timeout the maximum amount of time for a request to take, from the first request to
  *   first response.
  * @property apiVersion the api endpoint to call.
+ * @property hedging when set, slow `generateContent` requests, and streams slow to send their first
+ *   response, are hedged with a duplicate request.
+ * @property partialOutputOnStop when `true`, responses whose generation stopped early (eg; because
+ *   of [FinishReason.MAX_TOKENS]) are returned as they are, with their [FinishReason], instead of
+ *   throwing a [ResponseStoppedException]. A [Chat] then keeps the partial output in its history.
+ * @property maxStreamResumptions how many times a stream that was interrupted (by a network error,
+ *   or by [FinishReason.MAX_TOKENS]) is automatically continued by another request, whose responses
+ *   pick up where the interrupted ones stopped. Defaults to 0, which never continues them.
+ * @property scheduling when set, `generateContent` requests and streams are queued by priority, as
+ *   configured. A stream holds its place until it completes.
+ * @property coalesceRequests when `true`, identical `generateContent`, `countTokens` and streaming
+ *   requests made while one of them is still in flight share its call to the backend, and its
+ *   result. Streams that join late still receive every response.
+ * @property compression when set, large request bodies are compressed, and so are the responses.
+ * @property apiKeyPool when set, requests are spread across the keys of the pool, instead of all
+ *   being made with the API key of the model.
+ * @property circuitBreaker when set, requests fail right away while the backend keeps failing.
+ * @property endpoints when set, requests are routed between its endpoints by latency, and fail over
+ *   between them, instead of all being sent to the default endpoint.
  */
-class RequestOptions(val timeout: Duration, val apiVersion: String = "v1beta") {
+class RequestOptions(
+  val timeout: Duration,
+  val apiVersion: String = "v1beta",
+  val hedging: HedgingOptions? = null,
+  val partialOutputOnStop: Boolean = false,
+  val maxStreamResumptions: Int = 0,
+  val scheduling: SchedulingOptions? = null,
+  val coalesceRequests: Boolean = false,
+  val compression: CompressionOptions? = null,
+  val apiKeyPool: ApiKeyPool? = null,
+  val circuitBreaker: CircuitBreakerOptions? = null,
+  val endpoints: EndpointSet? = null,
+) {
   @JvmOverloads
   constructor(
     timeout: Long? = Long.MAX_VALUE,
     apiVersion: String = "v1beta",
-  ) : this((timeout ?: Long.MAX_VALUE).toDuration(DurationUnit.MILLISECONDS), apiVersion)
+    hedging: HedgingOptions? = null,
+    partialOutputOnStop: Boolean = false,
+    maxStreamResumptions: Int = 0,
+    scheduling: SchedulingOptions? = null,
+    coalesceRequests: Boolean = false,
+    compression: CompressionOptions? = null,
+    apiKeyPool: ApiKeyPool? = null,
+    circuitBreaker: CircuitBreakerOptions? = null,
+    endpoints: EndpointSet? = null,
+  ) : this(
+    (timeout ?: Long.MAX_VALUE).toDuration(DurationUnit.MILLISECONDS),
+    apiVersion,
+    hedging,
+    partialOutputOnStop,
+    maxStreamResumptions,
+    scheduling,
+    coalesceRequests,
+    compression,
+    apiKeyPool,
+    circuitBreaker,
+    endpoints,
+  )
 }
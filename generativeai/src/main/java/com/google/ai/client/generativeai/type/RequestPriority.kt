@@ -0,0 +1,30 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+/**
+ * The class a request is scheduled in, when [RequestOptions.scheduling] is set.
+ *
+ * @see CallOptions.priority
+ */
+enum class RequestPriority {
+  /** Requests someone is waiting on, such as the messages of a chat. This is the default. */
+  INTERACTIVE,
+
+  /** Requests that can wait, such as summarization or prefetching. */
+  BACKGROUND,
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.GenerativeModel
+
+/**
+ * Configures the scheduling of requests made by a [GenerativeModel], so that [RequestPriority]
+ * classes sharing a model don't starve each other.
+ *
+ * Up to [maxConcurrentRequests] requests are sent at once, and the others wait in a queue. Waiting
+ * requests are sent in weighted fair order: while both classes have requests waiting, each gets a
+ * share of the sent requests proportional to its [PriorityClassOptions.weight]. A stream counts as
+ * in flight until it completes.
+ *
+ * Once [maxQueuedRequests] are waiting, a new request takes the place of the most recently queued
+ * request of a lower priority, which fails with a [RequestRejectedException]. If there is none, the
+ * new request fails instead. Requests that were already sent are never interrupted.
+ *
+ * @property maxConcurrentRequests how many requests can be in flight at once, across all classes
+ * @property maxQueuedRequests how many requests can wait to be sent, across all classes
+ * @property interactive the options of the [RequestPriority.INTERACTIVE] class
+ * @property background the options of the [RequestPriority.BACKGROUND] class. By default, it can
+ *   use at most half of the [maxConcurrentRequests], so that interactive requests always find room.
+ */
+class SchedulingOptions
+@JvmOverloads
+constructor(
+  val maxConcurrentRequests: Int = 4,
+  val maxQueuedRequests: Int = 64,
+  val interactive: PriorityClassOptions = PriorityClassOptions(weight = 4),
+  val background: PriorityClassOptions =
+    PriorityClassOptions(
+      weight = 1,
+      maxConcurrentRequests = (maxConcurrentRequests / 2).coerceAtLeast(1),
+    ),
+) {
+  init {
+    require(maxConcurrentRequests > 0) {
+      "maxConcurrentRequests must be positive, but was $maxConcurrentRequests"
+    }
+    require(maxQueuedRequests >= 0) {
+      "maxQueuedRequests must not be negative, but was $maxQueuedRequests"
+    }
+  }
+
+  /** The options of the provided [priority] class. */
+  fun forPriority(priority: RequestPriority) =
+    when (priority) {
+      RequestPriority.INTERACTIVE -> interactive
+      RequestPriority.BACKGROUND -> background
+    }
+}
+
+/**
+ * The options of a single [RequestPriority] class.
+ *
+ * @property weight the share of the sent requests this class gets while others are waiting too
+ * @property maxConcurrentRequests how many requests of this class can be in flight at once.
+ *   Defaults to no limit besides [SchedulingOptions.maxConcurrentRequests].
+ */
+class PriorityClassOptions
+@JvmOverloads
+constructor(val weight: Int, val maxConcurrentRequests: Int = Int.MAX_VALUE) {
+  init {
+    require(weight > 0) { "weight must be positive, but was $weight" }
+    require(maxConcurrentRequests > 0) {
+      "maxConcurrentRequests must be positive, but was $maxConcurrentRequests"
+    }
+  }
+}
+
+/**
+ * A snapshot of how the requests of a [RequestPriority] class were scheduled.
+ *
+ * @property queued the number of requests currently waiting to be sent
+ * @property inFlight the number of requests currently in flight
+ * @property sent the number of requests sent so far
+ * @property rejected the number of requests that failed with a [RequestRejectedException]
+ * @property averageQueueTimeMillis the average time the sent requests waited in the queue
+ * @property maxQueueTimeMillis the longest time a sent request waited in the queue
+ */
+class SchedulingMetrics
+internal constructor(
+  val queued: Int,
+  val inFlight: Int,
+  val sent: Long,
+  val rejected: Long,
+  val averageQueueTimeMillis: Double,
+  val maxQueueTimeMillis: Long,
+)
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.GenerativeModel
+import com.google.ai.client.generativeai.internal.util.CompiledSchema
+import com.google.ai.client.generativeai.internal.util.JsonStreamException
+import com.google.ai.client.generativeai.internal.util.JsonStreamParser
+import com.google.ai.client.generativeai.internal.util.formatPath
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.flow.flow
+
+/**
+ * Decodes structured responses, generated with the `application/json`
+ * [GenerationConfig.responseMimeType], according to their [schema].
+ *
+ * The [schema] is compiled once, when the decoder is created, and each response is then parsed and
+ * validated in a single pass over its text. Values are decoded as [String] for
+ * [FunctionType.STRING], [Int] for [FunctionType.INTEGER], [Long] for [FunctionType.LONG], [Double]
+ * for [FunctionType.NUMBER], [Boolean] for [FunctionType.BOOLEAN], a [List] for
+ * [FunctionType.ARRAY], and a [Map] of fields, in the order they were generated, for
+ * [FunctionType.OBJECT]. Fields that aren't in the [schema] are decoded as plain values.
+ *
+ * ```
+ * val response = model.generateContent(prompt)
+ * val recipes = model.generationConfig?.responseDecoder?.decode(response) as Map<String, Any?>
+ * ```
+ *
+ * A decoder holds no state between responses, and can be used from several threads.
+ *
+ * @property schema the schema of the responses
+ * @see GenerationConfig.responseDecoder
+ */
+class ResponseDecoder(val schema: Schema<*>) {
+  internal val compiled = CompiledSchema.compile(schema)
+
+  /**
+   * Decodes the JSON [text] of a structured response.
+   *
+   * @throws SerializationException if [text] isn't valid JSON, or doesn't match the [schema]. Its
+   *   message says where: the path of the failing value, and its line and column in [text].
+   */
+  fun decode(text: String): Any? =
+    try {
+      JsonStreamParser(compiled).apply { feed(text) }.finish()
+    } catch (e: JsonStreamException) {
+      throw SerializationException("Invalid structured response: ${e.message}", e)
+    }
+
+  /**
+   * Decodes the text of the first candidate of a structured [response].
+   *
+   * @throws SerializationException if the text isn't valid JSON, or doesn't match the [schema]
+   */
+  fun decode(response: GenerateContentResponse): Any? =
+    decode(
+      response.candidates
+        .firstOrNull()
+        ?.content
+        ?.parts
+        .orEmpty()
+        .filterIsInstance<TextPart>()
+        .joinToString("") { it.text }
+    )
+}
+
+/**
+ * A value of a structured response, emitted as soon as it was complete.
+ *
+ * @property path where the value is in the response: the names of object fields and the indices of
+ *   array elements leading to it, from the outermost one. Empty for the whole response.
+ * @property value the value, decoded according to its [Schema]: [String] for [FunctionType.STRING],
+ *   [Int] for [FunctionType.INTEGER], [Long] for [FunctionType.LONG], [Double] for
+ *   [FunctionType.NUMBER], [Boolean] for [FunctionType.BOOLEAN], a [List] for [FunctionType.ARRAY],
+ *   and a [Map] of fields, in the order they were generated, for [FunctionType.OBJECT]. Null if the
+ *   model generated `null`.
+ * @see structuredValues
+ */
+class StructuredValue internal constructor(val path: List<Any>, val value: Any?) {
+  override fun toString() = "${formatPath(path)}=$value"
+}
+
+/**
+ * Parses the text of a streamed structured response as it arrives, and emits each of its values as
+ * soon as it is complete.
+ *
+ * Every array element and object field is emitted once its last character was generated, at any
+ * depth, followed by its container. The whole response is emitted last, with an empty
+ * [StructuredValue.path]. This lets a list be rendered item by item, long before the response is
+ * complete:
+ * ```
+ * model.generateContentStream(prompt)
+ *   .structuredValues(recipeListSchema)
+ *   .filter { it.path.size == 2 && it.path[0] == "recipes" }
+ *   .collect { showRecipe(it.value as Map<String, Any?>) }
+ * ```
+ *
+ * The responses should have been generated with the `application/json`
+ * [GenerationConfig.responseMimeType], and the same [GenerationConfig.responseSchema] as [schema].
+ *
+ * @param schema the schema of the whole response
+ * @throws SerializationException if the response isn't valid JSON, or doesn't match the [schema]
+ * @see GenerativeModel.generateStructuredStream
+ */
+fun Flow<GenerateContentResponse>.structuredValues(schema: Schema<*>): Flow<StructuredValue> =
+  structuredValues(ResponseDecoder(schema))
+
+/**
+ * Parses the text of a streamed structured response as it arrives, and emits each of its values as
+ * soon as it is complete, with the already compiled schema of a [decoder].
+ *
+ * @see structuredValues
+ */
+fun Flow<GenerateContentResponse>.structuredValues(
+  decoder: ResponseDecoder
+): Flow<StructuredValue> = flow {
+  val completed = ArrayList<StructuredValue>()
+  val parser =
+    JsonStreamParser(decoder.compiled) { path, value -> completed += StructuredValue(path, value) }
+
+  try {
+    collect { response ->
+      for (part in response.candidates.firstOrNull()?.content?.parts.orEmpty()) {
+        if (part is TextPart) parser.feed(part.text)
+      }
+      emitCompleted(completed)
+    }
+    parser.finish()
+  } catch (e: JsonStreamException) {
+    // The values that were complete before the failure are still valid
+    emitCompleted(completed)
+    throw SerializationException("Invalid structured response: ${e.message}", e)
+  }
+  emitCompleted(completed)
+}
+
+private suspend fun FlowCollector<StructuredValue>.emitCompleted(
+  completed: MutableList<StructuredValue>
+) {
+  for (value in completed) emit(value)
+  completed.clear()
+}
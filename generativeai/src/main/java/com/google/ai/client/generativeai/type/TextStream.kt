@@ -0,0 +1,113 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai.type
+
+import com.google.ai.client.generativeai.Chat
+import com.google.ai.client.generativeai.GenerativeModel
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.internal.util.StreamMetadataTracker
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.flow
+
+/**
+ * A streamed response, for callers that only need its text, such as a UI displaying it as it is
+ * generated.
+ *
+ * The [textDeltas] are the text of each chunk, taken as it was received: chunks that only hold text
+ * are never converted into a [GenerateContentResponse]. Everything else about the response is kept
+ * on the side, in [metadata], which is only converted again when a chunk changes it.
+ *
+ * ```
+ * val stream = model.generateTextStream("Tell me a story")
+ * stream.textDeltas().collect { textView.append(it) }
+ * if (stream.metadata.value.finishReason != FinishReason.STOP) showWarning()
+ * ```
+ *
+ * @see GenerativeModel.generateTextStream
+ * @see Chat.sendMessageTextStream
+ */
+class TextStream
+internal constructor(
+  private val responses: Flow<com.google.ai.client.generativeai.common.GenerateContentResponse>
+) {
+  private val state = MutableStateFlow(StreamMetadata.NONE)
+  private val collecting = AtomicBoolean(false)
+
+  /**
+   * The metadata of the response, as of the last chunk the [textDeltas] went through.
+   *
+   * Updated before the text of the chunk that changed it is emitted, and reset whenever the
+   * [textDeltas] are collected again.
+   */
+  val metadata: StateFlow<StreamMetadata> = state.asStateFlow()
+
+  /**
+   * The text of the response, one chunk at a time.
+   *
+   * The request is only made once the returned [Flow] is collected, and a new request is made every
+   * time it is collected. Since there is a single [metadata], the deltas can only be collected once
+   * at a time.
+   *
+   * @throws InvalidStateException when collected while they are already being collected
+   */
+  fun textDeltas(): Flow<CharSequence> = flow {
+    if (!collecting.compareAndSet(false, true)) {
+      throw InvalidStateException("The text deltas of a TextStream are already being collected.")
+    }
+    try {
+      val tracker = StreamMetadataTracker()
+      state.value = StreamMetadata.NONE
+      responses.collect { response ->
+        tracker.update(response)?.let { state.value = it }
+        for (part in response.candidates?.firstOrNull()?.content?.parts.orEmpty()) {
+          if (part is TextPart_Common && part.text.isNotEmpty()) emit(part.text)
+        }
+      }
+    } finally {
+      collecting.set(false)
+    }
+  }
+}
+
+/**
+ * Everything about a streamed response besides its text, as of a given chunk.
+ *
+ * @property finishReason why the model stopped generating, once it did
+ * @property usageMetadata the latest token usage reported for the response
+ * @property promptFeedback the feedback on the prompt, when streaming it's only in the first chunk
+ * @property safetyRatings the latest [SafetyRating]s of the response
+ * @property citations the latest [CitationMetadata] of the response
+ * @property parts the parts of the response that aren't text, such as function calls, in the order
+ *   they were received
+ */
+class StreamMetadata
+internal constructor(
+  val finishReason: FinishReason?,
+  val usageMetadata: UsageMetadata?,
+  val promptFeedback: PromptFeedback?,
+  val safetyRatings: List<SafetyRating>,
+  val citations: List<CitationMetadata>,
+  val parts: List<Part>,
+) {
+  internal companion object {
+    val NONE = StreamMetadata(null, null, null, emptyList(), emptyList(), emptyList())
+  }
+}
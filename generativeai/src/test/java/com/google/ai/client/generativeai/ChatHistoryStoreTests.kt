@@ -0,0 +1,173 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.GenerateContentRequest as GenerateContentRequest_Common
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.FileData
+import com.google.ai.client.generativeai.common.shared.FileDataPart as FileDataPart_Common
+import com.google.ai.client.generativeai.common.shared.FunctionCall
+import com.google.ai.client.generativeai.common.shared.FunctionCallPart as FunctionCallPart_Common
+import com.google.ai.client.generativeai.common.shared.Part as Part_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.type.ChatHistoryStore
+import com.google.ai.client.generativeai.type.ChatOptions
+import com.google.ai.client.generativeai.type.FileChatHistoryStore
+import com.google.ai.client.generativeai.type.FileDataPart
+import com.google.ai.client.generativeai.type.FunctionCallPart
+import com.google.ai.client.generativeai.type.HistoryPolicy
+import com.google.ai.client.generativeai.type.TextPart
+import com.google.ai.client.generativeai.type.content
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeInstanceOf
+import io.mockk.coEvery
+import io.mockk.mockk
+import java.io.File
+import java.io.RandomAccessFile
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+internal class ChatHistoryStoreTests {
+  @get:Rule val folder = TemporaryFolder()
+
+  private val mockApiController = mockk<APIController>()
+  private val model = GenerativeModel("gemini-pro-1.5", "api_key", controller = mockApiController)
+
+  @Test
+  fun `a chat resumed from a store sends the stored history`() = doBlocking {
+    val file = File(folder.root, "chat")
+    val requests = mutableListOf<GenerateContentRequest_Common>()
+    coEvery { mockApiController.generateContent(capture(requests)) } returns
+      responseOf(TextPart_Common("Reply"))
+
+    FileChatHistoryStore(file).use { store ->
+      val chat = model.startChat(store)
+      chat.sendMessage("One")
+      chat.sendMessage("Two")
+    }
+
+    FileChatHistoryStore(file).use { store ->
+      store.size shouldBe 4
+      val chat = model.startChat(store)
+      chat.history.map { it.role } shouldBe listOf("user", "model", "user", "model")
+
+      chat.sendMessage("Three")
+    }
+
+    requests.last().contents.map { (it.parts.single() as TextPart_Common).text } shouldBe
+      listOf("One", "Reply", "Two", "Reply", "Three")
+  }
+
+  @Test
+  fun `a stored chat only reads the history its policy selects`() = doBlocking {
+    val file = File(folder.root, "chat")
+    coEvery { mockApiController.generateContent(any()) } returns
+      responseOf(TextPart_Common("Reply"))
+
+    FileChatHistoryStore(file).use { store ->
+      val chat = model.startChat(store)
+      for (message in listOf("One", "Two", "Three")) chat.sendMessage(message)
+    }
+
+    FileChatHistoryStore(file).use { store ->
+      val reads = mutableListOf<Int>()
+      val tracking =
+        object : ChatHistoryStore by store {
+          override fun read(index: Int) = store.read(index).also { reads.add(index) }
+        }
+      val options = ChatOptions(historyPolicy = HistoryPolicy.slidingWindow(1))
+      val chat = model.startChat(tracking, options)
+      chat.sendMessage("Four")
+      chat.sendMessage("Five")
+
+      reads.distinct().sorted() shouldBe listOf(4, 5, 6, 7)
+      chat.historyMetrics.historyTokensSaved shouldBe 2 + 4
+    }
+  }
+
+  @Test
+  fun `stored history keeps every kind of part`() = doBlocking {
+    coEvery { mockApiController.generateContent(any()) } returns
+      responseOf(
+        FunctionCallPart_Common(FunctionCall("lookup", mapOf("id" to "1", "unset" to null))),
+        FileDataPart_Common(FileData("application/pdf", "files/doc")),
+      )
+
+    FileChatHistoryStore(File(folder.root, "chat")).use { store ->
+      val chat = model.startChat(store)
+      chat.sendMessage(content { text("Find it") })
+
+      val parts = chat.history.last().parts
+      parts shouldHaveSize 2
+      parts[0].shouldBeInstanceOf<FunctionCallPart>().let {
+        it.name shouldBe "lookup"
+        it.args shouldBe mapOf("id" to "1", "unset" to null)
+      }
+      parts[1].shouldBeInstanceOf<FileDataPart>().uri shouldBe "files/doc"
+      (chat.history.first().parts.single() as TextPart).text shouldBe "Find it"
+    }
+  }
+
+  @Test
+  fun `stored history can only be appended to`() = doBlocking {
+    coEvery { mockApiController.generateContent(any()) } returns
+      responseOf(TextPart_Common("Reply"))
+
+    FileChatHistoryStore(File(folder.root, "chat")).use { store ->
+      val chat = model.startChat(store)
+      chat.sendMessage("One")
+
+      shouldThrow<UnsupportedOperationException> { chat.history.removeAt(0) }
+      shouldThrow<UnsupportedOperationException> { chat.history.add(0, content { text("Zero") }) }
+      chat.history shouldHaveSize 2
+    }
+  }
+
+  @Test
+  fun `interrupted appends are discarded when reopening`() {
+    val file = File(folder.root, "chat")
+    FileChatHistoryStore(file).use {
+      it.append(listOf(ChatHistoryStore.Entry("user", "first")))
+      it.append(listOf(ChatHistoryStore.Entry("user", "second")))
+    }
+
+    // Lose the end of the last record, along with a partially written index entry
+    RandomAccessFile(file, "rw").use { it.setLength(it.length() - 2) }
+    RandomAccessFile(File(file.path + ".idx"), "rw").use { it.setLength(it.length() + 5) }
+
+    FileChatHistoryStore(file).use {
+      it.size shouldBe 1
+      it.read(0) shouldBe "first"
+
+      it.append(listOf(ChatHistoryStore.Entry(null, "third")))
+      it.size shouldBe 2
+      it.role(1) shouldBe null
+      it.read(1) shouldBe "third"
+    }
+  }
+
+  private fun responseOf(vararg parts: Part_Common) =
+    GenerateContentResponse_Common(
+      listOf(Candidate_Common(Content_Common(role = "model", parts = parts.toList())))
+    )
+}
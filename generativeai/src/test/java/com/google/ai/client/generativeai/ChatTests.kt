@@ -0,0 +1,294 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.GenerateContentRequest as GenerateContentRequest_Common
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.UsageMetadata as UsageMetadata_Common
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.ExecutableCode
+import com.google.ai.client.generativeai.common.shared.ExecutableCodePart as ExecutableCodePart_Common
+import com.google.ai.client.generativeai.common.shared.FunctionCall
+import com.google.ai.client.generativeai.common.shared.FunctionCallPart as FunctionCallPart_Common
+import com.google.ai.client.generativeai.common.shared.Part as Part_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.internal.util.toInternal
+import com.google.ai.client.generativeai.type.ChatOptions
+import com.google.ai.client.generativeai.type.ExecutableCodePart
+import com.google.ai.client.generativeai.type.FunctionCallPart
+import com.google.ai.client.generativeai.type.HistoryPolicy
+import com.google.ai.client.generativeai.type.InvalidStateException
+import com.google.ai.client.generativeai.type.TextPart
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeInstanceOf
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import io.mockk.coEvery
+import io.mockk.every
+import io.mockk.mockk
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.yield
+import org.junit.Test
+
+internal class ChatTests {
+  private val apiKey: String = "api_key"
+  private val mockApiController = mockk<APIController>()
+
+  @Test
+  fun `sendMessageStream keeps the order of streamed parts`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat = model.startChat()
+
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(
+          responseOf(TextPart_Common("Let me")),
+          responseOf(TextPart_Common(" check.")),
+          responseOf(FunctionCallPart_Common(FunctionCall("lookup", mapOf("id" to "1")))),
+          responseOf(ExecutableCodePart_Common(ExecutableCode("PYTHON", "print(1)"))),
+          responseOf(TextPart_Common("Done")),
+        )
+        .asFlow()
+
+    chat.sendMessageStream("Look it up").collect()
+
+    val parts = chat.history.last().parts
+    parts shouldHaveSize 4
+    parts[0].shouldBeInstanceOf<TextPart>().text shouldBe "Let me check."
+    parts[1].shouldBeInstanceOf<FunctionCallPart>().name shouldBe "lookup"
+    parts[2].shouldBeInstanceOf<ExecutableCodePart>().code shouldBe "print(1)"
+    parts[3].shouldBeInstanceOf<TextPart>().text shouldBe "Done"
+  }
+
+  @Test
+  fun `sendMessageStream stores history that doesn't need converting again`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat = model.startChat()
+
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(responseOf(TextPart_Common("Hello")), responseOf(TextPart_Common(" there"))).asFlow()
+
+    chat.sendMessageStream("Hi").collect()
+
+    val reply = chat.history.last()
+    val internal = reply.toInternal()
+    internal shouldBeSameInstanceAs reply.toInternal()
+    internal.role shouldBe "model"
+    internal.parts shouldBe listOf(TextPart_Common("Hello there"))
+  }
+
+  @Test
+  fun `sendMessage throws while another message is in flight`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat = model.startChat()
+
+    coEvery { mockApiController.generateContent(any()) } coAnswers
+      {
+        delay(100)
+        responseOf(TextPart_Common("Reply"))
+      }
+
+    val first = async { chat.sendMessage("First") }
+    yield()
+
+    shouldThrow<InvalidStateException> { chat.sendMessage("Second") }
+    first.await()
+  }
+
+  @Test
+  fun `queued sendMessage waits for its turn and keeps the order`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat = model.startChat(options = ChatOptions(queueMessages = true))
+
+    coEvery { mockApiController.generateContent(any()) } coAnswers
+      {
+        val prompt = firstArg<GenerateContentRequest_Common>().contents.last().parts.single()
+        delay(50)
+        responseOf(TextPart_Common("Re: ${(prompt as TextPart_Common).text}"))
+      }
+
+    val messages = listOf("First", "Second", "Third")
+    messages.map { async { chat.sendMessage(it) } }.awaitAll()
+
+    chat.history.map { (it.parts.single() as TextPart).text } shouldBe
+      messages.flatMap { listOf(it, "Re: $it") }
+  }
+
+  @Test
+  fun `queued sendMessageStream doesn't block later messages when never collected`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat = model.startChat(options = ChatOptions(queueMessages = true))
+
+    coEvery { mockApiController.generateContent(any()) } returns
+      responseOf(TextPart_Common("Reply"))
+
+    chat.sendMessageStream("Never collected")
+
+    withTimeout(1.seconds) { chat.sendMessage("Hello") }
+    chat.history shouldHaveSize 2
+  }
+
+  @Test
+  fun `sendMessage fails when sent from the collector of a stream`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat = model.startChat()
+
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(responseOf(TextPart_Common("Reply"))).asFlow()
+
+    // Creating the stream doesn't make the chat busy, only collecting it does
+    val stream = chat.sendMessageStream("First")
+    shouldThrow<InvalidStateException> { stream.collect { chat.sendMessage("Second") } }
+  }
+
+  @Test
+  fun `cancelling sendMessageStream releases the chat`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat = model.startChat()
+
+    every { mockApiController.generateContentStream(any()) } returns
+      flow {
+        emit(responseOf(TextPart_Common("Partial")))
+        awaitCancellation()
+      }
+    coEvery { mockApiController.generateContent(any()) } returns
+      responseOf(TextPart_Common("Reply"))
+
+    val stream = launch { chat.sendMessageStream("Stuck").collect() }
+    yield()
+    stream.cancelAndJoin()
+
+    chat.sendMessage("Hello")
+    chat.history.map { (it.parts.single() as TextPart).text } shouldBe listOf("Hello", "Reply")
+  }
+
+  @Test
+  fun `slidingWindow only sends the most recent turns`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat =
+      model.startChat(options = ChatOptions(historyPolicy = HistoryPolicy.slidingWindow(2)))
+    val requests = mutableListOf<GenerateContentRequest_Common>()
+
+    coEvery { mockApiController.generateContent(capture(requests)) } returns
+      responseOf(TextPart_Common("Reply"))
+
+    for (message in listOf("One", "Two", "Three", "Four")) {
+      chat.sendMessage(message)
+    }
+
+    requests.last().contents.textOf() shouldBe listOf("Two", "Reply", "Three", "Reply", "Four")
+    chat.history shouldHaveSize 8
+  }
+
+  @Test
+  fun `slidingWindow of 0 only sends the new message`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat =
+      model.startChat(options = ChatOptions(historyPolicy = HistoryPolicy.slidingWindow(0)))
+    val requests = mutableListOf<GenerateContentRequest_Common>()
+
+    coEvery { mockApiController.generateContent(capture(requests)) } returns
+      responseOf(TextPart_Common("Reply"))
+
+    for (message in listOf("One", "Two")) {
+      chat.sendMessage(message)
+    }
+
+    requests.map { it.contents.textOf() } shouldBe listOf(listOf("One"), listOf("Two"))
+    chat.history shouldHaveSize 4
+  }
+
+  @Test
+  fun `tokenBudget uses reported usage and tracks the tokens saved`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val chat = model.startChat(options = ChatOptions(historyPolicy = HistoryPolicy.tokenBudget(30)))
+    val requests = mutableListOf<GenerateContentRequest_Common>()
+
+    // Every prompt costs 10 tokens, and every reply costs 5
+    coEvery { mockApiController.generateContent(capture(requests)) } answers
+      {
+        val sent = firstArg<GenerateContentRequest_Common>().contents.size - 1
+        responseOf(
+          TextPart_Common("Reply"),
+          UsageMetadata_Common(promptTokenCount = 10 + sent / 2 * 15, candidatesTokenCount = 5),
+        )
+      }
+
+    for (message in listOf("One", "Two", "Three", "Four")) {
+      chat.sendMessage(message)
+    }
+
+    requests.last().contents.textOf() shouldBe listOf("Two", "Reply", "Three", "Reply", "Four")
+    chat.historyMetrics.let {
+      it.messagesSent shouldBe 4
+      it.historyTokensSent shouldBe 0L + 15 + 30 + 30
+      it.historyTokensSaved shouldBe 15
+    }
+  }
+
+  @Test
+  fun `summarizing replaces older turns with a summary from the model`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val policy = HistoryPolicy.summarizing(maxTurns = 2, keepTurns = 1, instruction = "Summarize")
+    val chat = model.startChat(options = ChatOptions(historyPolicy = policy))
+    val requests = mutableListOf<GenerateContentRequest_Common>()
+
+    coEvery { mockApiController.generateContent(capture(requests)) } answers
+      {
+        val prompt = firstArg<GenerateContentRequest_Common>().contents.textOf().last()
+        responseOf(TextPart_Common(if (prompt == "Summarize") "They counted" else "Reply"))
+      }
+
+    for (message in listOf("One", "Two", "Three", "Four")) {
+      chat.sendMessage(message)
+    }
+
+    requests.map { it.contents.textOf().last() } shouldBe
+      listOf("One", "Two", "Three", "Summarize", "Four")
+    requests[3].contents.textOf() shouldBe listOf("One", "Reply", "Two", "Reply", "Summarize")
+    requests.last().contents.textOf() shouldBe
+      listOf(
+        "Summary of the conversation so far:\nThey counted",
+        "Understood.",
+        "Three",
+        "Reply",
+        "Four",
+      )
+    chat.historyMetrics.summaries shouldBe 1
+    chat.history shouldHaveSize 8
+  }
+
+  private fun List<Content_Common>.textOf() = map { (it.parts.single() as TextPart_Common).text }
+
+  private fun responseOf(part: Part_Common, usageMetadata: UsageMetadata_Common? = null) =
+    GenerateContentResponse_Common(
+      listOf(Candidate_Common(Content_Common(role = "model", parts = listOf(part)))),
+      usageMetadata = usageMetadata,
+    )
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.CountTokensResponse as CountTokensResponse_Common
+import com.google.ai.client.generativeai.common.GenerateContentRequest as GenerateContentRequest_Common
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.type.RequestOptions
+import io.kotest.matchers.shouldBe
+import io.mockk.coEvery
+import io.mockk.coVerify
+import io.mockk.every
+import io.mockk.mockk
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.yield
+import org.junit.Test
+
+internal class CoalescingTests {
+  private val mockApiController = mockk<APIController>()
+  private val gate = CompletableDeferred<Unit>()
+  private val model =
+    GenerativeModel(
+      "gemini-pro-1.5",
+      "api_key",
+      requestOptions = RequestOptions(coalesceRequests = true),
+      controller = mockApiController,
+    )
+
+  init {
+    coEvery { mockApiController.generateContent(any(), any()) } coAnswers
+      {
+        gate.await()
+        responseOf("Re: ${firstArg<GenerateContentRequest_Common>().textOf()}")
+      }
+  }
+
+  @Test
+  fun `concurrent identical requests share a single call`() = doBlocking {
+    val requests = List(3) { async { model.generateContent("Hello").text } }
+    yield()
+    gate.complete(Unit)
+
+    requests.awaitAll() shouldBe List(3) { "Re: Hello" }
+    coVerify(exactly = 1) { mockApiController.generateContent(any(), any()) }
+  }
+
+  @Test
+  fun `different requests aren't coalesced`() = doBlocking {
+    val requests = listOf("Hello", "Goodbye").map { async { model.generateContent(it).text } }
+    yield()
+    gate.complete(Unit)
+
+    requests.awaitAll() shouldBe listOf("Re: Hello", "Re: Goodbye")
+    coVerify(exactly = 2) { mockApiController.generateContent(any(), any()) }
+  }
+
+  @Test
+  fun `requests made after the shared call completed are made again`() = doBlocking {
+    gate.complete(Unit)
+
+    model.generateContent("Hello")
+    model.generateContent("Hello")
+
+    coVerify(exactly = 2) { mockApiController.generateContent(any(), any()) }
+  }
+
+  @Test
+  fun `the shared call survives the cancellation of one of its callers`() = doBlocking {
+    val cancelled = async { model.generateContent("Hello") }
+    val remaining = async { model.generateContent("Hello").text }
+    yield()
+    cancelled.cancel()
+    gate.complete(Unit)
+
+    remaining.await() shouldBe "Re: Hello"
+    coVerify(exactly = 1) { mockApiController.generateContent(any(), any()) }
+  }
+
+  @Test
+  fun `the shared call is cancelled once all its callers are`() = doBlocking {
+    val callCancelled = CompletableDeferred<Unit>()
+    coEvery { mockApiController.generateContent(any(), any()) } coAnswers
+      {
+        try {
+          awaitCancellation()
+        } finally {
+          callCancelled.complete(Unit)
+        }
+      }
+
+    val requests = List(2) { launch { model.generateContent("Hello") } }
+    yield()
+    requests.forEach { it.cancel() }
+
+    callCancelled.await()
+  }
+
+  @Test
+  fun `late collectors of a shared stream replay it from the start`() = doBlocking {
+    val chunks = Channel<String>(Channel.UNLIMITED)
+    val collections = AtomicInteger()
+    every { mockApiController.generateContentStream(any(), any()) } returns
+      flow {
+        collections.incrementAndGet()
+        for (chunk in chunks) emit(responseOf(chunk))
+      }
+
+    val first = async { model.generateContentStream("Hello").toList().map { it.text } }
+    chunks.send("One")
+    yield()
+    val second = async { model.generateContentStream("Hello").toList().map { it.text } }
+    yield()
+    chunks.send("Two")
+    chunks.close()
+
+    first.await() shouldBe listOf("One", "Two")
+    second.await() shouldBe listOf("One", "Two")
+    collections.get() shouldBe 1
+  }
+
+  @Test
+  fun `a collector leaving early doesn't end the shared stream for others`() = doBlocking {
+    val chunks = Channel<String>(Channel.UNLIMITED)
+    val collections = AtomicInteger()
+    every { mockApiController.generateContentStream(any(), any()) } returns
+      flow {
+        collections.incrementAndGet()
+        for (chunk in chunks) emit(responseOf(chunk))
+      }
+
+    val partial = async { model.generateContentStream("Hello").take(1).toList().map { it.text } }
+    val full = async { model.generateContentStream("Hello").toList().map { it.text } }
+    yield()
+    chunks.send("One")
+    partial.await() shouldBe listOf("One")
+    chunks.send("Two")
+    chunks.close()
+
+    full.await() shouldBe listOf("One", "Two")
+    collections.get() shouldBe 1
+  }
+
+  @Test
+  fun `concurrent identical token counts share a single call`() = doBlocking {
+    coEvery { mockApiController.countTokens(any()) } coAnswers
+      {
+        gate.await()
+        CountTokensResponse_Common(totalTokens = 10)
+      }
+
+    val requests = List(2) { async { model.countTokens("Hello").totalTokens } }
+    yield()
+    gate.complete(Unit)
+
+    requests.awaitAll() shouldBe listOf(10, 10)
+    coVerify(exactly = 1) { mockApiController.countTokens(any()) }
+  }
+
+  private fun GenerateContentRequest_Common.textOf() =
+    (contents.last().parts.single() as TextPart_Common).text
+
+  private fun responseOf(text: String) =
+    GenerateContentResponse_Common(
+      listOf(
+        Candidate_Common(Content_Common(role = "model", parts = listOf(TextPart_Common(text))))
+      )
+    )
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.shared.FunctionCall
+import com.google.ai.client.generativeai.common.shared.FunctionCallPart as FunctionCallPart_Common
+import com.google.ai.client.generativeai.internal.util.toPublic
+import com.google.ai.client.generativeai.type.FunctionCallPart
+import com.google.ai.client.generativeai.type.FunctionType
+import com.google.ai.client.generativeai.type.Schema
+import com.google.ai.client.generativeai.type.SerializationException
+import com.google.ai.client.generativeai.type.defineFunction
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.string.shouldContain
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.jsonObject
+import org.junit.Test
+
+internal class FunctionArgumentsTests {
+  private val forecast =
+    defineFunction(
+      name = "forecast",
+      description = "Gets the weather forecast",
+      parameters =
+        listOf(
+          Schema.str("city", "The city to forecast"),
+          Schema.int("days", "How many days to forecast"),
+          Schema.double("threshold", "The chance of rain worth reporting"),
+          Schema.arr("hours", "The hours to forecast", Schema.long("hour", "An hour")),
+          Schema.obj(
+            "units",
+            "The units to use",
+            Schema.bool("metric", "Whether to use metric units"),
+            Schema.enum("wind", "The unit for wind speeds", listOf("KMH", "KNOTS")),
+          ),
+        ),
+      requiredParameters = listOf("city"),
+    )
+
+  @Test
+  fun `arguments are decoded as the types of their schemas`() {
+    val args =
+      forecast.decodeArguments(
+        callOf(
+          """{"city":"Paris","days":3,"threshold":0.5,"hours":[6,12.0],""" +
+            """"units":{"metric":true,"wind":"KNOTS"}}"""
+        )
+      )
+
+    args.getString("city") shouldBe "Paris"
+    args.getInt("days") shouldBe 3
+    args.getDouble("threshold") shouldBe 0.5
+    args.getList("hours") shouldBe listOf(6L, 12L)
+    args.getObject("units")?.getBoolean("metric") shouldBe true
+    args.getObject("units")?.getString("wind") shouldBe "KNOTS"
+  }
+
+  @Test
+  fun `arguments that weren't provided are null`() {
+    val args = forecast.decodeArguments(callOf("""{"city":"Paris"}"""))
+
+    ("days" in args) shouldBe false
+    args.getInt("days") shouldBe null
+    args.getObject("units") shouldBe null
+    args.toMap() shouldBe mapOf("city" to "Paris")
+  }
+
+  @Test
+  fun `arguments in their string form are decoded just the same`() {
+    val call =
+      FunctionCallPart(
+        "forecast",
+        mapOf("city" to "Paris", "days" to "3", "units" to """{"metric":false,"wind":"KMH"}"""),
+      )
+
+    forecast.decodeArguments(call).toMap() shouldBe
+      mapOf("city" to "Paris", "days" to 3, "units" to mapOf("metric" to false, "wind" to "KMH"))
+  }
+
+  @Test
+  fun `arguments of custom types use their parser`() {
+    val upper = FunctionType<String>("STRING") { it?.uppercase() }
+    val shout =
+      defineFunction("shout", "Shouts", listOf(Schema("text", "What to shout", type = upper)))
+
+    val args = shout.decodeArguments(FunctionCallPart("shout", mapOf("text" to "hey")))
+
+    args["text"] shouldBe "HEY"
+  }
+
+  @Test
+  fun `arguments that don't match their schema fail with their path`() {
+    val exception =
+      shouldThrow<SerializationException> {
+        forecast.decodeArguments(callOf("""{"city":"Paris","hours":[6,"noon"]}"""))
+      }
+
+    exception.message shouldContain "'hours[1]' should be INTEGER"
+  }
+
+  @Test
+  fun `enum arguments must be one of their values`() {
+    val exception =
+      shouldThrow<SerializationException> {
+        forecast.decodeArguments(
+          callOf("""{"city":"Paris","units":{"metric":true,"wind":"MPH"}}""")
+        )
+      }
+
+    exception.message shouldContain "'units.wind' should be one of"
+  }
+
+  @Test
+  fun `missing required arguments fail`() {
+    shouldThrow<SerializationException> { forecast.decodeArguments(callOf("""{"days":3}""")) }
+  }
+
+  @Test
+  fun `null arguments fail unless their schema is nullable`() {
+    val exception =
+      shouldThrow<SerializationException> {
+        forecast.decodeArguments(callOf("""{"city":"Paris","days":null}"""))
+      }
+    val note =
+      defineFunction(
+        "note",
+        "Takes a note",
+        listOf(Schema("text", "The note", nullable = true, type = FunctionType.STRING)),
+      )
+
+    exception.message shouldContain "'days' is not nullable"
+    note.decodeArguments(callOf("note", """{"text":null}"""))["text"] shouldBe null
+  }
+
+  @Test
+  fun `calls to other functions are rejected`() {
+    shouldThrow<IllegalArgumentException> {
+      forecast.decodeArguments(FunctionCallPart("other", emptyMap()))
+    }
+  }
+
+  @Test
+  fun `asking for the wrong type fails`() {
+    val args = forecast.decodeArguments(callOf("""{"city":"Paris","days":3}"""))
+
+    shouldThrow<IllegalArgumentException> { args.getString("days") }
+    shouldThrow<IllegalArgumentException> { args["unknown"] }
+  }
+
+  /** A call to the function called [name] as it would be decoded from a response. */
+  private fun callOf(name: String, args: String): FunctionCallPart {
+    val raw = Json.parseToJsonElement(args).jsonObject
+    return FunctionCallPart_Common(FunctionCall(name, emptyMap(), raw)).toPublic()
+      as FunctionCallPart
+  }
+
+  /** A call to [forecast] as it would be decoded from a response. */
+  private fun callOf(args: String) = callOf("forecast", args)
+}
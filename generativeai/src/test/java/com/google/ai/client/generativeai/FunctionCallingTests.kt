@@ -0,0 +1,222 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.GenerateContentRequest as GenerateContentRequest_Common
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.FunctionCall
+import com.google.ai.client.generativeai.common.shared.FunctionCallPart as FunctionCallPart_Common
+import com.google.ai.client.generativeai.common.shared.FunctionResponsePart as FunctionResponsePart_Common
+import com.google.ai.client.generativeai.common.shared.Part as Part_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.type.AutoFunctionCallingOptions
+import com.google.ai.client.generativeai.type.ChatOptions
+import com.google.ai.client.generativeai.type.FunctionCallPart
+import com.google.ai.client.generativeai.type.FunctionTool
+import com.google.ai.client.generativeai.type.Schema
+import com.google.ai.client.generativeai.type.TextPart
+import com.google.ai.client.generativeai.type.defineFunction
+import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeInstanceOf
+import io.mockk.coEvery
+import io.mockk.every
+import io.mockk.mockk
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.toList
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import org.json.JSONObject
+import org.junit.Test
+
+internal class FunctionCallingTests {
+  private val mockApiController = mockk<APIController>()
+  private val requests = mutableListOf<GenerateContentRequest_Common>()
+  private val lookup = defineFunction("lookup", "Looks up an item", listOf(Schema.int("id", "Id")))
+  private val lookups = AtomicInteger()
+
+  private fun lookupTool(idempotent: Boolean = false, delayMillis: Long = 0) =
+    FunctionTool(lookup, idempotent = idempotent) { args ->
+      lookups.incrementAndGet()
+      delay(delayMillis)
+      JSONObject().put("item", "Item ${args.getInt("id")}")
+    }
+
+  @Test
+  fun `function calls are run and their responses sent back`() = doBlocking {
+    val chat = chatWith(AutoFunctionCallingOptions(listOf(lookupTool())))
+    respondWith(responseOf(callOf("lookup", 1)), responseOf(TextPart_Common("It's Item 1")))
+
+    val response = chat.sendMessage("What's 1?")
+
+    response.text shouldBe "It's Item 1"
+    chat.history.map { it.role } shouldBe listOf("user", "model", "function", "model")
+    requests
+      .last()
+      .contents[2]
+      .parts
+      .single()
+      .shouldBeInstanceOf<FunctionResponsePart_Common>()
+      .let {
+        it.functionResponse.name shouldBe "lookup"
+        it.functionResponse.response["item"] shouldBe JsonPrimitive("Item 1")
+      }
+  }
+
+  @Test
+  fun `calls from the same response run in parallel`() = doBlocking {
+    val running = AtomicInteger()
+    val mostRunning = AtomicInteger()
+    val tool =
+      FunctionTool(lookup) {
+        mostRunning.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+        delay(100)
+        running.decrementAndGet()
+        JSONObject()
+      }
+    val chat = chatWith(AutoFunctionCallingOptions(listOf(tool), maxConcurrentCalls = 2))
+    respondWith(
+      responseOf(callOf("lookup", 1), callOf("lookup", 2), callOf("lookup", 3)),
+      responseOf(TextPart_Common("Done")),
+    )
+
+    chat.sendMessage("Look them up")
+
+    mostRunning.get() shouldBe 2
+    requests.last().contents[2].parts shouldHaveSize 3
+  }
+
+  @Test
+  fun `calls that take too long are reported as failed`() = doBlocking {
+    val tool = FunctionTool(lookup, timeout = 50.milliseconds) { delay(1000).let { JSONObject() } }
+    val chat = chatWith(AutoFunctionCallingOptions(listOf(tool)))
+    respondWith(responseOf(callOf("lookup", 1)), responseOf(TextPart_Common("Sorry")))
+
+    chat.sendMessage("What's 1?")
+
+    val part = requests.last().contents[2].parts.single() as FunctionResponsePart_Common
+    part.functionResponse.response.keys shouldBe setOf("error")
+    chat.functionCallMetrics.getValue("lookup").let {
+      it.calls shouldBe 1
+      it.failures shouldBe 1
+      it.timeouts shouldBe 1
+    }
+  }
+
+  @Test
+  fun `responses of idempotent tools are reused`() = doBlocking {
+    val chat = chatWith(AutoFunctionCallingOptions(listOf(lookupTool(idempotent = true))))
+    respondWith(
+      responseOf(callOf("lookup", 1)),
+      responseOf(callOf("lookup", 1)),
+      responseOf(TextPart_Common("Done")),
+    )
+
+    chat.sendMessage("What's 1?")
+
+    lookups.get() shouldBe 1
+    chat.functionCallMetrics.getValue("lookup").let {
+      it.calls shouldBe 2
+      it.cachedResponses shouldBe 1
+    }
+  }
+
+  @Test
+  fun `functions stop being run after the maximum iterations`() = doBlocking {
+    val chat = chatWith(AutoFunctionCallingOptions(listOf(lookupTool()), maxIterations = 2))
+    respondWith(responseOf(callOf("lookup", 1)))
+
+    val response = chat.sendMessage("What's 1?")
+
+    response.functionCalls shouldHaveSize 1
+    requests shouldHaveSize 3
+    lookups.get() shouldBe 2
+  }
+
+  @Test
+  fun `calls to other functions are returned as they are`() = doBlocking {
+    val chat = chatWith(AutoFunctionCallingOptions(listOf(lookupTool())))
+    respondWith(responseOf(callOf("lookup", 1), callOf("other", 2)))
+
+    val response = chat.sendMessage("What's 1?")
+
+    response.functionCalls.map { it.name } shouldBe listOf("lookup", "other")
+    requests shouldHaveSize 1
+    lookups.get() shouldBe 0
+  }
+
+  @Test
+  fun `timeouts in milliseconds are the same as their durations`() {
+    val tool = FunctionTool.withTimeoutMillis(lookup, 1500) { JSONObject() }
+    val options = AutoFunctionCallingOptions.withTimeoutMillis(listOf(tool), 2000, maxIterations = 3)
+
+    tool.timeout shouldBe 1500.milliseconds
+    options.timeout shouldBe 2.seconds
+    options.maxIterations shouldBe 3
+    AutoFunctionCallingOptions(listOf(tool)).timeout shouldBe 30.seconds
+  }
+
+  @Test
+  fun `streams run function calls and continue with the next response`() = doBlocking {
+    val chat = chatWith(AutoFunctionCallingOptions(listOf(lookupTool())))
+    val streams =
+      mutableListOf(
+        listOf(responseOf(TextPart_Common("Checking")), responseOf(callOf("lookup", 1))),
+        listOf(responseOf(TextPart_Common("It's ")), responseOf(TextPart_Common("Item 1"))),
+      )
+    every { mockApiController.generateContentStream(capture(requests), any()) } answers
+      {
+        streams.removeFirst().asFlow()
+      }
+
+    val responses = chat.sendMessageStream("What's 1?").toList()
+
+    responses shouldHaveSize 4
+    chat.history.map { it.role } shouldBe listOf("user", "model", "function", "model")
+    chat.history[1].parts[1].shouldBeInstanceOf<FunctionCallPart>()
+    (chat.history.last().parts.single() as TextPart).text shouldBe "It's Item 1"
+  }
+
+  private fun chatWith(options: AutoFunctionCallingOptions) =
+    GenerativeModel("gemini-pro-1.5", "api_key", controller = mockApiController)
+      .startChat(options = ChatOptions(autoFunctionCalling = options))
+
+  private fun respondWith(vararg responses: GenerateContentResponse_Common) {
+    var index = 0
+    coEvery { mockApiController.generateContent(capture(requests), any()) } answers
+      {
+        responses[minOf(index++, responses.size - 1)]
+      }
+  }
+
+  private fun callOf(name: String, id: Int) =
+    FunctionCallPart_Common(
+      FunctionCall(name, mapOf("id" to "$id"), JsonObject(mapOf("id" to JsonPrimitive(id))))
+    )
+
+  private fun responseOf(vararg parts: Part_Common) =
+    GenerateContentResponse_Common(
+      listOf(Candidate_Common(Content_Common(role = "model", parts = parts.toList())))
+    )
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.java.GenerativeModelFutures
+import com.google.ai.client.generativeai.type.content
+import io.kotest.matchers.shouldBe
+import io.mockk.coEvery
+import io.mockk.every
+import io.mockk.mockk
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.onEach
+import org.junit.After
+import org.junit.Test
+
+internal class FuturesTests {
+  private val mockApiController = mockk<APIController>()
+  private val model = GenerativeModel("gemini-pro-1.5", "api_key", controller = mockApiController)
+  private val executor = Executors.newSingleThreadExecutor { Thread(it, "futures-test") }
+
+  @After
+  fun tearDown() {
+    executor.shutdownNow()
+  }
+
+  @Test
+  fun `calls run on the provided executor`() {
+    var thread: String? = null
+    coEvery { mockApiController.generateContent(any()) } answers
+      {
+        thread = Thread.currentThread().name
+        responseOf("Hello")
+      }
+
+    val response =
+      GenerativeModelFutures.from(model, executor)
+        .generateContent(content { text("Hi") })
+        .get(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+
+    response.text shouldBe "Hello"
+    thread shouldBe "futures-test"
+  }
+
+  @Test
+  fun `batches return the responses in the order of their prompts`() {
+    coEvery { mockApiController.generateContent(any()) } coAnswers
+      {
+        val prompt = firstArg<Any>().toString()
+        // The first prompts take the longest, so that they complete last
+        val index = PROMPTS.indexOfFirst { prompt.contains(it) }
+        delay(50L * (PROMPTS.size - index))
+        responseOf(PROMPTS[index].uppercase())
+      }
+
+    val responses =
+      GenerativeModelFutures.from(model, executor)
+        .generateContentBatch(PROMPTS.map { content { text(it) } })
+        .get(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+
+    responses.map { it.text } shouldBe PROMPTS.map { it.uppercase() }
+  }
+
+  @Test
+  fun `callbacks receive every response before the stream completes`() {
+    every { mockApiController.generateContentStream(any()) } returns
+      PROMPTS.map { responseOf(it) }.asFlow()
+    val received = ArrayList<String?>()
+
+    GenerativeModelFutures.from(model, executor)
+      .generateContentStream({ received += it.text }, content { text("Hi") })
+      .get(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+
+    received shouldBe PROMPTS
+  }
+
+  @Test
+  fun `iterators only read a bounded number of responses ahead`() {
+    val read = AtomicInteger()
+    every { mockApiController.generateContentStream(any()) } returns
+      List(20) { responseOf("Chunk $it") }.asFlow().onEach { read.incrementAndGet() }
+
+    val iterator =
+      GenerativeModelFutures.from(model, executor)
+        .generateContentIterator(2, content { text("Hi") })
+    iterator.next().text shouldBe "Chunk 0"
+
+    // The response that was asked for, and the prefetched ones
+    read.shouldReach(1 + 2)
+    iterator.asSequence().count() shouldBe 19
+    iterator.close()
+  }
+
+  @Test
+  fun `iterators without prefetch only read the responses that are asked for`() {
+    val read = AtomicInteger()
+    every { mockApiController.generateContentStream(any()) } returns
+      List(20) { responseOf("Chunk $it") }.asFlow().onEach { read.incrementAndGet() }
+
+    val iterator =
+      GenerativeModelFutures.from(model, executor)
+        .generateContentIterator(0, content { text("Hi") })
+    Thread.sleep(100)
+    read.get() shouldBe 0
+
+    iterator.next().text shouldBe "Chunk 0"
+    iterator.next().text shouldBe "Chunk 1"
+    read.shouldReach(2)
+
+    iterator.close()
+    iterator.hasNext() shouldBe false
+  }
+
+  /**
+   * Waits (up to the test's timeout) for the count to reach [expected], and then checks that it
+   * stays there for a while.
+   */
+  private fun AtomicInteger.shouldReach(expected: Int) {
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS)
+    while (get() < expected && System.nanoTime() < deadline) Thread.sleep(10)
+    get() shouldBe expected
+    Thread.sleep(100)
+    get() shouldBe expected
+  }
+
+  private fun responseOf(text: String) =
+    GenerateContentResponse_Common(
+      listOf(
+        Candidate_Common(Content_Common(role = "model", parts = listOf(TextPart_Common(text))))
+      )
+    )
+
+  companion object {
+    private const val TIMEOUT_SECONDS = 5L
+    private val PROMPTS = listOf("first", "second", "third")
+  }
+}
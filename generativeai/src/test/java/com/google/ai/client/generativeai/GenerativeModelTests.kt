@@ -17,6 +17,7 @@
 package com.google.ai.client.generativeai
 
 import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.CallOptions as CallOptions_Common
 import com.google.ai.client.generativeai.common.GenerateContentRequest as GenerateContentRequest_Common
 import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
 import com.google.ai.client.generativeai.common.InvalidAPIKeyException as InvalidAPIKeyException_Common
@@ -41,6 +42,7 @@ import com.google.ai.client.generativeai.type.TextPart
 import com.google.ai.client.generativeai.type.Tool
 import com.google.ai.client.generativeai.type.UnsupportedUserLocationException
 import com.google.ai.client.generativeai.type.UsageMetadata
+import com.google.ai.client.generativeai.type.callOptions
 import com.google.ai.client.generativeai.type.content
 import com.google.ai.client.generativeai.type.defineFunction
 import io.kotest.assertions.throwables.shouldThrow
@@ -49,8 +51,11 @@ import io.kotest.matchers.equality.shouldBeEqualToUsingFields
 import io.kotest.matchers.maps.shouldContain
 import io.kotest.matchers.nulls.shouldNotBeNull
 import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
 import io.mockk.coEvery
 import io.mockk.mockk
+import io.mockk.slot
+import kotlin.time.Duration.Companion.seconds
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.runBlocking
@@ -148,6 +153,28 @@ internal class GenerativeModelTests {
     shouldThrow<InvalidAPIKeyException> { model.generateContent("Why's the sky blue?") }
   }
 
+  @Test
+  fun `generateContent passes call options to the controller`() = doBlocking {
+    val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
+    val options = slot<CallOptions_Common>()
+    coEvery { mockApiController.generateContent(any(), capture(options)) } returns
+      GenerateContentResponse_Common(
+        listOf(Candidate_Common(Content_Common(parts = listOf(TextPart_Common("Blue")))))
+      )
+
+    model.generateContent(
+      callOptions {
+        timeout = 10.seconds
+        firstResponseTimeout = 2.seconds
+      },
+      content { text("Why's the sky blue?") },
+    )
+
+    options.captured.timeout shouldBe 10.seconds
+    options.captured.firstResponseTimeout shouldBe 2.seconds
+    options.captured.connectTimeout shouldBe null
+  }
+
   @Test
   fun `generateContentStream throws exception`() = doBlocking {
     val model = GenerativeModel("gemini-pro-1.5", apiKey, controller = mockApiController)
@@ -165,6 +192,30 @@ internal class GenerativeModelTests {
     }
   }
 
+  @Test
+  fun `requests share the parts that never change`() = doBlocking {
+    val lookup = defineFunction("lookup", "Looks up an item", listOf(Schema.str("id", "The item")))
+    val model =
+      GenerativeModel(
+        "gemini-pro-1.5",
+        apiKey,
+        tools = listOf(Tool(listOf(lookup))),
+        systemInstruction = content { text("Be brief") },
+        controller = mockApiController,
+      )
+    val requests = mutableListOf<GenerateContentRequest_Common>()
+    coEvery { mockApiController.generateContent(capture(requests)) } returns
+      GenerateContentResponse_Common(
+        listOf(Candidate_Common(Content_Common(parts = listOf(TextPart_Common("Reply")))))
+      )
+
+    model.generateContent("One")
+    model.generateContent("Two")
+
+    requests[1].tools shouldBeSameInstanceAs requests[0].tools
+    requests[1].systemInstruction shouldBeSameInstanceAs requests[0].systemInstruction
+  }
+
   @Test
   fun `generateContent function parts work as expected`() = doBlocking {
     val getExchangeRate =
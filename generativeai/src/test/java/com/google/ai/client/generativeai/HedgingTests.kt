@@ -0,0 +1,207 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.LatencyHistogram
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.type.GoogleGenerativeAIException
+import com.google.ai.client.generativeai.type.HedgingOptions
+import com.google.ai.client.generativeai.type.RequestOptions
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import io.mockk.coEvery
+import io.mockk.coVerify
+import io.mockk.every
+import io.mockk.mockk
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.withTimeout
+import org.junit.Test
+
+internal class HedgingTests {
+  private val mockApiController = mockk<APIController>()
+  private val calls = AtomicInteger()
+  private val cancelled = AtomicInteger()
+  // Every previous response took about a millisecond
+  private val latency = LatencyHistogram().apply { repeat(20) { record(1.milliseconds) } }
+
+  init {
+    every { mockApiController.responseLatency } returns latency
+    every { mockApiController.firstChunkLatency } returns latency
+  }
+
+  @Test
+  fun `a slow request is hedged, and the slower one is cancelled`() = doBlocking {
+    val model = modelWith(HedgingOptions(budget = 1.0))
+    coEvery { mockApiController.generateContent(any()) } coAnswers
+      {
+        val call = calls.getAndIncrement()
+        respondAfter(if (call == 0) 10.seconds else 10.milliseconds, "Reply $call")
+      }
+
+    val response = withTimeout(1.seconds) { model.generateContent("Hello") }
+
+    response.text shouldBe "Reply 1"
+    cancelled.get() shouldBe 1
+    // The cancelled request is recorded, even though it never responded
+    latency.count shouldBe 21
+  }
+
+  @Test
+  fun `a hedge that fails doesn't fail the request`() = doBlocking {
+    val model = modelWith(HedgingOptions(budget = 1.0))
+    coEvery { mockApiController.generateContent(any()) } coAnswers
+      {
+        val call = calls.getAndIncrement()
+        if (call == 1) throw IOException("Connection reset")
+        respondAfter(100.milliseconds, "Reply $call")
+      }
+
+    val response = withTimeout(1.seconds) { model.generateContent("Hello") }
+
+    response.text shouldBe "Reply 0"
+    calls.get() shouldBe 2
+  }
+
+  @Test
+  fun `requests fail once both copies failed`() = doBlocking {
+    val model = modelWith(HedgingOptions(budget = 1.0))
+    coEvery { mockApiController.generateContent(any()) } coAnswers
+      {
+        val call = calls.getAndIncrement()
+        delay(if (call == 0) 100.milliseconds else 1.milliseconds)
+        throw IOException("Failure $call")
+      }
+
+    val exception =
+      shouldThrow<GoogleGenerativeAIException> {
+        withTimeout(1.seconds) { model.generateContent("Hello") }
+      }
+
+    exception.cause?.message shouldBe "Failure 0"
+  }
+
+  @Test
+  fun `hedging stays within its budget`() = doBlocking {
+    val model = modelWith(HedgingOptions(budget = 0.5))
+    coEvery { mockApiController.generateContent(any()) } coAnswers
+      {
+        respondAfter(20.milliseconds, "Reply")
+      }
+
+    repeat(4) { model.generateContent("Hello") }
+
+    coVerify(exactly = 6) { mockApiController.generateContent(any()) }
+  }
+
+  @Test
+  fun `requests aren't hedged before enough latencies were observed`() = doBlocking {
+    val model = modelWith(HedgingOptions(budget = 1.0, minSamples = 100))
+    coEvery { mockApiController.generateContent(any()) } coAnswers
+      {
+        respondAfter(20.milliseconds, "Reply")
+      }
+
+    model.generateContent("Hello")
+
+    coVerify(exactly = 1) { mockApiController.generateContent(any()) }
+  }
+
+  @Test
+  fun `a slow stream is hedged, and the one that starts first is used`() = doBlocking {
+    val model = modelWith(HedgingOptions(budget = 1.0))
+    every { mockApiController.generateContentStream(any()) } returns
+      flow {
+        val call = calls.getAndIncrement()
+        emit(respondAfter(if (call == 0) 10.seconds else 10.milliseconds, "First $call"))
+        emit(respondAfter(10.milliseconds, "Second $call"))
+      }
+
+    val responses = withTimeout(1.seconds) { model.generateContentStream("Hello").toList() }
+
+    responses.map { it.text } shouldBe listOf("First 1", "Second 1")
+    cancelled.get() shouldBe 1
+  }
+
+  @Test
+  fun `a stream whose hedge fails uses the primary`() = doBlocking {
+    val model = modelWith(HedgingOptions(budget = 1.0))
+    every { mockApiController.generateContentStream(any()) } returns
+      flow {
+        val call = calls.getAndIncrement()
+        if (call == 1) throw IOException("Connection reset")
+        emit(respondAfter(100.milliseconds, "First $call"))
+      }
+
+    val responses = withTimeout(1.seconds) { model.generateContentStream("Hello").toList() }
+
+    responses.map { it.text } shouldBe listOf("First 0")
+  }
+
+  @Test
+  fun `a stream that starts right as it's hedged keeps its first response`() = doBlocking {
+    val model = modelWith(HedgingOptions(budget = 1.0))
+    val hedgeDelay = latency.percentile(HedgingOptions().percentile)!!
+    every { mockApiController.generateContentStream(any()) } returns
+      flow {
+        // Whether it was hedged or not, and whichever copy is used, nothing may be lost
+        emit(respondAfter(hedgeDelay, "First"))
+        emit(respondAfter(1.milliseconds, "Second"))
+      }
+
+    repeat(20) {
+      val responses = withTimeout(1.seconds) { model.generateContentStream("Hello").toList() }
+
+      responses.map { it.text } shouldBe listOf("First", "Second")
+    }
+  }
+
+  private fun modelWith(hedging: HedgingOptions) =
+    GenerativeModel(
+      "gemini-pro-1.5",
+      "api_key",
+      requestOptions = RequestOptions(hedging = hedging),
+      controller = mockApiController,
+    )
+
+  private suspend fun respondAfter(
+    duration: Duration,
+    text: String,
+  ): GenerateContentResponse_Common {
+    try {
+      delay(duration)
+    } catch (e: Throwable) {
+      cancelled.incrementAndGet()
+      throw e
+    }
+    return GenerateContentResponse_Common(
+      listOf(
+        Candidate_Common(Content_Common(role = "model", parts = listOf(TextPart_Common(text))))
+      )
+    )
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.RequestOptions as RequestOptions_Common
+import com.google.ai.client.generativeai.common.util.allocatedBytes
+import io.kotest.matchers.longs.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import io.ktor.http.HttpStatusCode
+import io.ktor.utils.io.ByteChannel
+import io.ktor.utils.io.close
+import io.ktor.utils.io.writeFully
+import kotlin.time.Duration.Companion.seconds
+import kotlinx.coroutines.flow.count
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeout
+import org.junit.Test
+
+/**
+ * Regression tests for what converting long streams to the public types costs.
+ *
+ * The stream itself is covered by the tests of the common module; these only bound what a
+ * [GenerativeModel] adds on top of it for each chunk.
+ */
+internal class LongStreamTests {
+  private val testTimeout = 30.seconds
+
+  @Test
+  fun `allocations per chunk stay bounded`() {
+    streamChunks(WARM_UP_CHUNKS)
+
+    val short = allocationsPerChunk(SHORT_STREAM_CHUNKS)
+    val long = allocationsPerChunk(LONG_STREAM_CHUNKS)
+
+    long shouldBeLessThan MAX_BYTES_PER_CHUNK
+    // Like aggregating (or converting) everything that was received so far, for every chunk
+    long shouldBeLessThan short * 2
+  }
+
+  @Test
+  fun `text deltas allocate less per chunk than whole responses`() {
+    streamChunks(WARM_UP_CHUNKS)
+    streamChunks(WARM_UP_CHUNKS, textOnly = true)
+
+    val responses = allocationsPerChunk(LONG_STREAM_CHUNKS)
+    val deltas = allocationsPerChunk(LONG_STREAM_CHUNKS, textOnly = true)
+
+    deltas shouldBeLessThan responses
+  }
+
+  private fun allocationsPerChunk(chunks: Int, textOnly: Boolean = false): Long {
+    val before = allocatedBytes()
+    streamChunks(chunks, textOnly)
+    return (allocatedBytes() - before) / chunks
+  }
+
+  private fun streamChunks(chunks: Int, textOnly: Boolean = false) = doBlocking {
+    val channel = ByteChannel(autoFlush = true)
+    withTimeout(testTimeout) {
+      launch { channel.writeEvents(chunks) }
+      val model = createModel(channel)
+      val prompt = "Tell me a long story"
+      if (textOnly) {
+        model.generateTextStream(prompt).textDeltas().count() shouldBe chunks
+      } else {
+        model.generateContentStream(prompt).count() shouldBe chunks
+      }
+    }
+  }
+
+  private fun createModel(channel: ByteChannel) =
+    GenerativeModel(
+      "models/gemini-pro-1.5",
+      "api_key",
+      controller =
+        APIController(
+          "api_key",
+          "gemini-pro-1.5",
+          RequestOptions_Common(),
+          "genai-android/test",
+          null,
+          channel,
+          HttpStatusCode.OK,
+        ),
+    )
+
+  private suspend fun ByteChannel.writeEvents(chunks: Int) {
+    for (event in events.subList(0, chunks)) {
+      writeFully(event)
+    }
+    close()
+  }
+
+  companion object {
+    private const val WARM_UP_CHUNKS = 1_000
+    private const val SHORT_STREAM_CHUNKS = 1_000
+    private const val LONG_STREAM_CHUNKS = 10_000
+    private const val MAX_BYTES_PER_CHUNK = 16 * 1024L
+
+    /** Encoded ahead of time, so that only the SDK's allocations are measured. */
+    private val events =
+      List(LONG_STREAM_CHUNKS) {
+        val text = "Chunk $it of a long story. "
+        val response =
+          """{"candidates":[{"content":{"role":"model","parts":[{"text":"$text"}]}}]}"""
+        "data: $response\r\n\r\n".toByteArray()
+      }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.GenerateContentRequest as GenerateContentRequest_Common
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.type.PriorityClassOptions
+import com.google.ai.client.generativeai.type.RequestOptions
+import com.google.ai.client.generativeai.type.RequestPriority
+import com.google.ai.client.generativeai.type.RequestRejectedException
+import com.google.ai.client.generativeai.type.SchedulingOptions
+import com.google.ai.client.generativeai.type.callOptions
+import com.google.ai.client.generativeai.type.content
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import io.mockk.coEvery
+import io.mockk.mockk
+import java.util.Collections
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.yield
+import org.junit.Test
+
+internal class SchedulingTests {
+  private val mockApiController = mockk<APIController>()
+  private val sent = Collections.synchronizedList(mutableListOf<String>())
+  private val gate = CompletableDeferred<Unit>()
+
+  init {
+    // Every request is held until the gate opens
+    coEvery { mockApiController.generateContent(any(), any()) } coAnswers
+      {
+        val prompt = firstArg<GenerateContentRequest_Common>().contents.last().parts.single()
+        val text = (prompt as TextPart_Common).text
+        sent.add(text)
+        gate.await()
+        GenerateContentResponse_Common(
+          listOf(Candidate_Common(Content_Common(parts = listOf(TextPart_Common("Re: $text")))))
+        )
+      }
+  }
+
+  @Test
+  fun `interactive requests are sent ahead of queued background ones`() = doBlocking {
+    val model = modelWith(SchedulingOptions(maxConcurrentRequests = 1))
+
+    val requests =
+      listOf("B1", "B2", "B3", "B4").map { async { model.send(it, RequestPriority.BACKGROUND) } } +
+        async { model.send("I1", RequestPriority.INTERACTIVE) }
+    repeat(5) { yield() }
+    gate.complete(Unit)
+    requests.awaitAll()
+
+    sent shouldBe listOf("B1", "I1", "B2", "B3", "B4")
+  }
+
+  @Test
+  fun `classes are served in proportion to their weights`() = doBlocking {
+    val options =
+      SchedulingOptions(
+        maxConcurrentRequests = 1,
+        interactive = PriorityClassOptions(weight = 2),
+        background = PriorityClassOptions(weight = 1),
+      )
+    val model = modelWith(options)
+
+    val requests =
+      (1..4).map { async { model.send("B$it", RequestPriority.BACKGROUND) } } +
+        (1..4).map { async { model.send("I$it", RequestPriority.INTERACTIVE) } }
+    repeat(8) { yield() }
+    gate.complete(Unit)
+    requests.awaitAll()
+
+    sent shouldBe listOf("B1", "I1", "I2", "B2", "I3", "I4", "B3", "B4")
+  }
+
+  @Test
+  fun `a class never exceeds its own concurrency limit`() = doBlocking {
+    val model = modelWith(SchedulingOptions(maxConcurrentRequests = 4))
+
+    val background = (1..3).map { async { model.send("B$it", RequestPriority.BACKGROUND) } }
+    val interactive = async { model.send("I1", RequestPriority.INTERACTIVE) }
+    repeat(4) { yield() }
+
+    sent shouldBe listOf("B1", "B2", "I1")
+    model.schedulingMetrics.getValue(RequestPriority.BACKGROUND).let {
+      it.inFlight shouldBe 2
+      it.queued shouldBe 1
+    }
+
+    gate.complete(Unit)
+    (background + interactive).awaitAll()
+    model.schedulingMetrics.getValue(RequestPriority.BACKGROUND).sent shouldBe 3
+    model.schedulingMetrics.getValue(RequestPriority.INTERACTIVE).sent shouldBe 1
+  }
+
+  @Test
+  fun `a full queue drops background requests to make room for interactive ones`() = doBlocking {
+    val model = modelWith(SchedulingOptions(maxConcurrentRequests = 1, maxQueuedRequests = 1))
+
+    val first = async { model.send("B1", RequestPriority.BACKGROUND) }
+    val dropped = async {
+      shouldThrow<RequestRejectedException> { model.send("B2", RequestPriority.BACKGROUND) }
+    }
+    repeat(2) { yield() }
+    val interactive = async { model.send("I1", RequestPriority.INTERACTIVE) }
+    repeat(2) { yield() }
+
+    shouldThrow<RequestRejectedException> { model.send("I2", RequestPriority.INTERACTIVE) }
+    gate.complete(Unit)
+    listOf(first, dropped, interactive).awaitAll()
+
+    sent shouldBe listOf("B1", "I1")
+    model.schedulingMetrics.getValue(RequestPriority.BACKGROUND).rejected shouldBe 1
+    model.schedulingMetrics.getValue(RequestPriority.INTERACTIVE).rejected shouldBe 1
+  }
+
+  @Test
+  fun `cancelling a queued request frees its place`() = doBlocking {
+    val model = modelWith(SchedulingOptions(maxConcurrentRequests = 1, maxQueuedRequests = 1))
+
+    val first = async { model.send("B1", RequestPriority.BACKGROUND) }
+    val cancelled = async { model.send("B2", RequestPriority.BACKGROUND) }
+    repeat(2) { yield() }
+    cancelled.cancel()
+    val next = async { model.send("B3", RequestPriority.BACKGROUND) }
+    repeat(2) { yield() }
+    gate.complete(Unit)
+    listOf(first, next).awaitAll()
+
+    sent shouldBe listOf("B1", "B3")
+    model.schedulingMetrics.getValue(RequestPriority.BACKGROUND).queued shouldBe 0
+  }
+
+  private suspend fun GenerativeModel.send(text: String, priority: RequestPriority) =
+    generateContent(callOptions { this.priority = priority }, content { text(text) }).text
+
+  private fun modelWith(scheduling: SchedulingOptions) =
+    GenerativeModel(
+      "gemini-pro-1.5",
+      "api_key",
+      requestOptions = RequestOptions(scheduling = scheduling),
+      controller = mockApiController,
+    )
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.type.InvalidStateException
+import com.google.ai.client.generativeai.type.ResponseDecoder
+import com.google.ai.client.generativeai.type.Schema
+import com.google.ai.client.generativeai.type.SerializationException
+import com.google.ai.client.generativeai.type.generationConfig
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.string.shouldContain
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.toList
+import org.junit.Test
+
+internal class StructuredOutputTests {
+  private val mockApiController = mockk<APIController>()
+  private val recipes =
+    Schema.obj(
+      "response",
+      "The recipes",
+      Schema.arr(
+        "recipes",
+        "The recipes",
+        Schema.obj(
+          "recipe",
+          "A recipe",
+          Schema.str("name", "The name of the recipe"),
+          Schema.int("minutes", "How long the recipe takes"),
+          Schema.enum("course", "The course", listOf("MAIN", "DESSERT")),
+        ),
+      ),
+    )
+  private val details =
+    Schema.obj(
+      "response",
+      "The details of a recipe",
+      Schema.bool("vegetarian", "Whether the recipe is vegetarian"),
+      Schema.long("servings", "How many people the recipe serves"),
+      Schema.double("rating", "The rating of the recipe"),
+    )
+
+  @Test
+  fun `values are emitted as soon as they are complete`() = doBlocking {
+    val text =
+      """{"recipes": [{"name": "Pasta", "minutes": 20, "course": "MAIN"}, """ +
+        """{"name": "Tart \"au citron\"", "minutes": 45.0, "course": "DESSERT"}]}"""
+    val chunks = text.chunked(7)
+    var received = 0
+    every { mockApiController.generateContentStream(any()) } returns
+      chunks.map { responseOf(it) }.asFlow().onEach { received++ }
+
+    val values = createModel().generateStructuredStream("Recipes").map { it to received }.toList()
+
+    val recipes = values.filter { (it, _) -> it.path.size == 2 }
+    recipes.map { (it, _) -> it.path } shouldBe listOf(listOf("recipes", 0), listOf("recipes", 1))
+    recipes[0].first.value shouldBe mapOf("name" to "Pasta", "minutes" to 20, "course" to "MAIN")
+    recipes[1].first.value shouldBe
+      mapOf("name" to "Tart \"au citron\"", "minutes" to 45, "course" to "DESSERT")
+    // The first recipe was emitted along with the chunk that completed it
+    recipes[0].second shouldBe text.indexOf("}") / 7 + 1
+
+    values.first().first.toString() shouldBe "recipes[0].name=Pasta"
+    values.last().first.path shouldBe emptyList()
+    values.last().second shouldBe chunks.size
+  }
+
+  @Test
+  fun `values without a schema are decoded as plain values`() = doBlocking {
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(responseOf("""{"recipes": [], "extra": {"a": [1, 2.5, true, null]}}""")).asFlow()
+
+    val values = createModel().generateStructuredStream("Recipes").toList()
+
+    values.last().value shouldBe
+      mapOf("recipes" to emptyList<Any>(), "extra" to mapOf("a" to listOf(1L, 2.5, true, null)))
+  }
+
+  @Test
+  fun `values that don't match their schema fail with their location`() = doBlocking {
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(responseOf("{\"recipes\": [\n{\"name\": \"Pasta\", \"minutes\": \"soon\"")).asFlow()
+
+    val exception =
+      shouldThrow<SerializationException> {
+        createModel().generateStructuredStream("Recipes").toList()
+      }
+    exception.message shouldContain "recipes[0].minutes"
+    exception.message shouldContain "line 2, column 35"
+    exception.message shouldContain "should be INTEGER"
+
+    // Only strings may be quoted, whatever the text of a value
+    mismatchOf(recipes, """{"recipes": [{"minutes": "20", """) shouldContain
+      "'recipes[0].minutes' (line 1, column 29) should be INTEGER, but was \"20\""
+    mismatchOf(recipes, """{"recipes": [{"name": 42, """) shouldContain
+      "'recipes[0].name' (line 1, column 25) should be STRING, but was 42"
+    mismatchOf(recipes, """{"recipes": [{"name": true, """) shouldContain
+      "'recipes[0].name' (line 1, column 26) should be STRING, but was true"
+    mismatchOf(details, """{"vegetarian": "true", """) shouldContain
+      "'vegetarian' (line 1, column 21) should be BOOLEAN, but was \"true\""
+    mismatchOf(details, """{"servings": "4", """) shouldContain
+      "'servings' (line 1, column 16) should be INTEGER, but was \"4\""
+  }
+
+  @Test
+  fun `missing required fields fail`() = doBlocking {
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(responseOf("""{"recipes": [{"name": "Pasta", "course": "MAIN"}]}""")).asFlow()
+
+    val exception =
+      shouldThrow<SerializationException> {
+        createModel().generateStructuredStream("Recipes").toList()
+      }
+    exception.message shouldContain "recipes[0].minutes' (line 1, column 48) is required"
+  }
+
+  @Test
+  fun `incomplete responses fail once the stream ends`() = doBlocking {
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(responseOf("""{"recipes": [{"name": "Pasta", "minutes": 20, "course": "MAIN"}"""))
+        .asFlow()
+
+    val paths = mutableListOf<List<Any>>()
+    shouldThrow<SerializationException> {
+      createModel().generateStructuredStream("Recipes").collect { paths.add(it.path) }
+    }
+    paths.last() shouldBe listOf("recipes", 0)
+  }
+
+  @Test
+  fun `response decoders are compiled once per configuration`() {
+    val config = generationConfig { responseSchema = recipes }
+
+    config.responseDecoder shouldBeSameInstanceAs config.responseDecoder
+    generationConfig { responseMimeType = "application/json" }.responseDecoder shouldBe null
+  }
+
+  @Test
+  fun `response decoders decode a whole response into a typed tree`() {
+    val decoder = ResponseDecoder(recipes)
+
+    val decoded =
+      decoder.decode("""{"recipes": [{"name": "Tart", "minutes": 45, "course": "DESSERT"}]}""")
+
+    decoded shouldBe
+      mapOf("recipes" to listOf(mapOf("name" to "Tart", "minutes" to 45, "course" to "DESSERT")))
+  }
+
+  @Test
+  fun `response decoders report where a response doesn't match its schema`() {
+    val decoder = ResponseDecoder(recipes)
+    val text =
+      """
+      {"recipes": [
+        {"name": "Pasta", "minutes": 20, "course": "MAIN"},
+        {"name": "Tart", "minutes": 45, "course": "STARTER"}
+      ]}
+      """
+        .trimIndent()
+
+    val exception = shouldThrow<SerializationException> { decoder.decode(text) }
+    exception.message shouldContain "'recipes[1].course' (line 3, column 53)"
+    exception.message shouldContain "should be one of [MAIN, DESSERT]"
+  }
+
+  @Test
+  fun `response decoders only decode numbers from unquoted numbers`() {
+    val decoder = ResponseDecoder(details)
+
+    decoder.decode("""{"rating": 4.5, "servings": 4, "vegetarian": true}""") shouldBe
+      mapOf("rating" to 4.5, "servings" to 4L, "vegetarian" to true)
+    // Quoted numbers, even in the forms Double.parseDouble accepts, and numbers too large for one
+    val invalid = listOf("\"4.5\"", "\"NaN\"", "\"Infinity\"", "\"1d\"", "\"0x1p3\"", "1e400")
+    for (rating in invalid) {
+      val exception =
+        shouldThrow<SerializationException> {
+          decoder.decode("""{"rating": $rating, "servings": 4, "vegetarian": true}""")
+        }
+      exception.message shouldContain "'rating' (line 1, column"
+      exception.message shouldContain "should be NUMBER, but was $rating"
+    }
+  }
+
+  @Test
+  fun `models without a response schema can't stream structured output`() {
+    val model = GenerativeModel("gemini-1.5-flash", "api_key", controller = mockApiController)
+
+    shouldThrow<InvalidStateException> { model.generateStructuredStream("Recipes") }
+  }
+
+  private fun createModel(schema: Schema<*> = recipes) =
+    GenerativeModel(
+      "gemini-1.5-flash",
+      "api_key",
+      generationConfig {
+        responseMimeType = "application/json"
+        responseSchema = schema
+      },
+      controller = mockApiController,
+    )
+
+  /** The message of the exception streaming [text] as structured output of [schema] fails with. */
+  private suspend fun mismatchOf(schema: Schema<*>, text: String): String {
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(responseOf(text)).asFlow()
+
+    return shouldThrow<SerializationException> {
+        createModel(schema).generateStructuredStream("Recipes").toList()
+      }
+      .message
+      .orEmpty()
+  }
+
+  private fun responseOf(text: String) =
+    GenerateContentResponse_Common(
+      listOf(
+        Candidate_Common(Content_Common(role = "model", parts = listOf(TextPart_Common(text))))
+      )
+    )
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ai.client.generativeai
+
+import com.google.ai.client.generativeai.common.APIController
+import com.google.ai.client.generativeai.common.GenerateContentResponse as GenerateContentResponse_Common
+import com.google.ai.client.generativeai.common.UsageMetadata as UsageMetadata_Common
+import com.google.ai.client.generativeai.common.server.Candidate as Candidate_Common
+import com.google.ai.client.generativeai.common.server.FinishReason as FinishReason_Common
+import com.google.ai.client.generativeai.common.shared.Content as Content_Common
+import com.google.ai.client.generativeai.common.shared.FunctionCall
+import com.google.ai.client.generativeai.common.shared.FunctionCallPart as FunctionCallPart_Common
+import com.google.ai.client.generativeai.common.shared.Part as Part_Common
+import com.google.ai.client.generativeai.common.shared.TextPart as TextPart_Common
+import com.google.ai.client.generativeai.type.FinishReason
+import com.google.ai.client.generativeai.type.FunctionCallPart
+import com.google.ai.client.generativeai.type.InvalidStateException
+import com.google.ai.client.generativeai.type.StreamMetadata
+import com.google.ai.client.generativeai.type.TextPart
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeInstanceOf
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.yield
+import org.junit.Test
+
+internal class TextStreamTests {
+  private val mockApiController = mockk<APIController>()
+  private val model = GenerativeModel("gemini-pro-1.5", "api_key", controller = mockApiController)
+
+  @Test
+  fun `textDeltas emits the text of each chunk as it was received`() = doBlocking {
+    val chunks = listOf("Once", " upon", "", " a time").map { responseOf(TextPart_Common(it)) }
+    every { mockApiController.generateContentStream(any()) } returns chunks.asFlow()
+
+    val deltas = model.generateTextStream("Tell me a story").textDeltas().toList()
+
+    deltas.map { it.toString() } shouldBe listOf("Once", " upon", " a time")
+    deltas[0] shouldBeSameInstanceAs
+      (chunks[0].candidates!![0].content!!.parts[0] as TextPart_Common).text
+  }
+
+  @Test
+  fun `textDeltas can only be collected once at a time`() = doBlocking {
+    var stuck = true
+    every { mockApiController.generateContentStream(any()) } returns
+      flow {
+        emit(responseOf(TextPart_Common("Once")))
+        if (stuck) awaitCancellation()
+      }
+    val stream = model.generateTextStream("Tell me a story")
+
+    val first = launch { stream.textDeltas().collect() }
+    yield()
+    shouldThrow<InvalidStateException> { stream.textDeltas().collect() }
+    first.cancelAndJoin()
+
+    stuck = false
+    stream.textDeltas().toList().map { it.toString() } shouldBe listOf("Once")
+  }
+
+  @Test
+  fun `metadata is kept on the side and only updated when it changes`() = doBlocking {
+    val usage = UsageMetadata_Common(4, 1, 5)
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(
+          responseOf(TextPart_Common("Once"), usageMetadata = usage),
+          responseOf(TextPart_Common(" upon"), usageMetadata = usage.copy()),
+          responseOf(TextPart_Common(" a time"), usageMetadata = UsageMetadata_Common(4, 3, 7)),
+          responseOf(TextPart_Common(""), FinishReason_Common.STOP),
+        )
+        .asFlow()
+    val stream = model.generateTextStream("Tell me a story")
+    val seen = ArrayList<StreamMetadata>()
+
+    stream.textDeltas().onEach { seen += stream.metadata.value }.toList()
+
+    seen shouldHaveSize 3
+    seen[0] shouldBeSameInstanceAs seen[1]
+    seen[2].usageMetadata?.totalTokenCount shouldBe 7
+    stream.metadata.value.let {
+      it.finishReason shouldBe FinishReason.STOP
+      it.usageMetadata?.candidatesTokenCount shouldBe 3
+      it.parts shouldHaveSize 0
+    }
+  }
+
+  @Test
+  fun `parts that aren't text are reported in the metadata`() = doBlocking {
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(
+          responseOf(TextPart_Common("Let me check.")),
+          responseOf(FunctionCallPart_Common(FunctionCall("lookup", mapOf("id" to "1")))),
+        )
+        .asFlow()
+    val stream = model.generateTextStream("Look it up")
+
+    stream.textDeltas().toList() shouldBe listOf("Let me check.")
+
+    stream.metadata.value.parts.single().shouldBeInstanceOf<FunctionCallPart>().name shouldBe
+      "lookup"
+  }
+
+  @Test
+  fun `chat text streams add the exchange to the history`() = doBlocking {
+    val chat = model.startChat()
+    every { mockApiController.generateContentStream(any()) } returns
+      listOf(responseOf(TextPart_Common("Hello")), responseOf(TextPart_Common(" there"))).asFlow()
+
+    chat.sendMessageTextStream("Hi").textDeltas().toList() shouldBe listOf("Hello", " there")
+
+    chat.history shouldHaveSize 2
+    chat.history.last().parts.single().shouldBeInstanceOf<TextPart>().text shouldBe "Hello there"
+  }
+
+  private fun responseOf(
+    part: Part_Common,
+    finishReason: FinishReason_Common? = null,
+    usageMetadata: UsageMetadata_Common? = null,
+  ) =
+    GenerateContentResponse_Common(
+      listOf(
+        Candidate_Common(
+          Content_Common(role = "model", parts = listOf(part)),
+          finishReason = finishReason,
+        )
+      ),
+      usageMetadata = usageMetadata,
+    )
+}
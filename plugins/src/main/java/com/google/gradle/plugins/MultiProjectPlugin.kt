@@ -35,6 +35,9 @@ import org.gradle.kotlin.dsl.register
  *   projects.
  * - `prepareRelease` -> performs all the steps necessary to prepare a release.
  *
+ * Only the child projects that are released (the ones with the [ReleasePlugin]) take part in these
+ * tasks, so that projects like the benchmarks don't need to provide them.
+ *
  * To learn more about these tasks, you may want to read the documentation under the following
  * plugins and tasks:
  *
@@ -46,8 +49,10 @@ abstract class MultiProjectPlugin : Plugin<Project> {
   override fun apply(project: Project) {
     with(project) {
       gradle.projectsEvaluated {
+        val releasedProjects = subprojects.filter { it.pluginManager.hasPlugin("release-plugin") }
+
         tasks.register<CombineApiChangesTask>("warnAboutApiChanges") {
-          val apiChangesTasks = subprojects.map { it.tasks.named("warnAboutApiChanges") }
+          val apiChangesTasks = releasedProjects.map { it.tasks.named("warnAboutApiChanges") }
           val files = apiChangesTasks.map { it.outputFile }.asSingleProvider()
 
           // TODO(b/332887819) - Remove when fixed
@@ -61,7 +66,7 @@ abstract class MultiProjectPlugin : Plugin<Project> {
           tasks.register<CombineReleaseNotesTask>("makeReleaseNotes") {
             group = "publishing"
 
-            val releaseNotesTasks = subprojects.map { it.tasks.named("makeReleaseNotes") }
+            val releaseNotesTasks = releasedProjects.map { it.tasks.named("makeReleaseNotes") }
             val files = releaseNotesTasks.map { it.outputFile }.asSingleProvider()
 
             // TODO(b/332887819) - Remove when fixed
@@ -74,7 +79,7 @@ abstract class MultiProjectPlugin : Plugin<Project> {
         tasks.register("prepareRelease") {
           group = "publishing"
 
-          val prepareReleaseTasks = subprojects.map { it.tasks.named("prepareRelease") }
+          val prepareReleaseTasks = releasedProjects.map { it.tasks.named("prepareRelease") }
 
           dependsOn(prepareReleaseTasks, makeReleaseNotesTask)
         }
@@ -32,4 +32,5 @@ dependencyResolutionManagement {
 rootProject.name = "generativeai"
 include(":generativeai")
 include(":common")
+include(":benchmarks")
 includeBuild("./plugins")